@@ -3,6 +3,8 @@ package org.codec.audio;
 import javax.sound.sampled.TargetDataLine;
 
 import org.codec.audio.common.AudioBuffer;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
 
 import java.io.ByteArrayOutputStream;
 
@@ -36,7 +38,7 @@ public class MicrophoneListener implements Runnable {
     public static final String kThreadName = "org.codec.audio.MicrophoneListener";
 
     private AudioBuffer buffer = null;
-    private Thread myThread = null;
+    private BackgroundTask myThread = null;
     private Object runLock = new Object();
     private boolean running = false;
 
@@ -46,8 +48,7 @@ public class MicrophoneListener implements Runnable {
      */
     public MicrophoneListener(AudioBuffer _buffer) {
 	buffer = _buffer;
-	myThread = new Thread(this, kThreadName);
-	myThread.start();
+	myThread = ExecutionService.start(ExecutionService.PoolChannel, this);
     }
 
     public void run() {
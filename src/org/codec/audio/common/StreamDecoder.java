@@ -14,6 +14,8 @@ import java.io.OutputStream;
 
 import org.codec.utils.ArrayUtils;
 import org.codec.utils.Constants;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
 
 /**
  * Copyright (c) 2007, Regents of the University of California
@@ -56,7 +58,7 @@ import org.codec.utils.Constants;
 public class StreamDecoder implements Runnable {
     public static String kThreadName = "org.codec.audio.StreamDecoder";
 
-    private Thread myThread = null;
+    private BackgroundTask myThread = null;
     private final Object runLock = new Object();
     private boolean running = false;
 
@@ -71,9 +73,7 @@ public class StreamDecoder implements Runnable {
      */
     public StreamDecoder(OutputStream _out) {
         out = _out;
-        myThread = new Thread(this, kThreadName);
-//        myThread.setDaemon(true);
-        myThread.start();
+        myThread = ExecutionService.start(ExecutionService.PoolChannel, this);
     }
 
     public AudioBuffer getAudioBuffer() {
@@ -138,7 +138,7 @@ public class StreamDecoder implements Runnable {
 
                 try {
                     //this provides the audio sampling mechanism a chance to maintain continuity
-                    myThread.sleep(10);
+                    Thread.sleep(10);
                 } catch (InterruptedException e) {
                     System.out.println("Stream Decoding thread interrupted:" + e);
                     break;
@@ -228,7 +228,7 @@ public class StreamDecoder implements Runnable {
     }
 
 
-    public Thread getMyThread() {
+    public BackgroundTask getMyThread() {
         return myThread;
     }
 
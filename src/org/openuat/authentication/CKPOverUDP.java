@@ -19,8 +19,11 @@ import java.util.StringTokenizer;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Counter;
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
 import org.openuat.authentication.CandidateKeyProtocol.CandidateKey;
 import org.openuat.authentication.CandidateKeyProtocol.CandidateKeyPartIdentifier;
 import org.openuat.authentication.exceptions.InternalApplicationException;
@@ -55,11 +58,20 @@ import org.openuat.channel.main.ip.UDPMulticastSocket;
  */
 public abstract class CKPOverUDP extends AuthenticationEventSender {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger(CKPOverUDP.class.getName());
+	private static Log logger = LogFactory.getLogger(CKPOverUDP.class.getName());
 	/** This is a special logger used for logging only statistics. It is separate from the main logger
 	 * so that it's possible to turn statistics on an off independently.
 	 */
-	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.ckp");
+	private static Log statisticsLogger = LogFactory.getLogger("statistics.ckp");
+
+	/** The time spent in each call into CandidateKeyProtocol, in ns. */
+	protected static final LatencyHistogram ckpTimer = MetricsRegistry.timer("ckp.protocol");
+	/** The time spent in each step of coding and decoding packets, in ns. */
+	protected static final LatencyHistogram codingTimer = MetricsRegistry.timer("ckp.coding");
+	/** The number of packets sent and received. */
+	private static final Counter messageCounter = MetricsRegistry.counter("ckp.messages");
+	/** The number of bytes sent and received. */
+	private static final Counter messageSizeCounter = MetricsRegistry.counter("ckp.messages.size");
 
 	private final static String Protocol_CandidateKeyPart = "CAND ";
 
@@ -92,6 +104,9 @@ public abstract class CKPOverUDP extends AuthenticationEventSender {
 
 	/** This may be set to distinguish multiple instances running on the same machine. */
 	protected String instanceId = null;
+	
+	/** The suffix appended to all log messages, derived from instanceId. */
+	protected String logSuffix = "";
 
 	/** The UDP multicaster/communication class used for all network communication. */
 	private UDPMulticastSocket channel;
@@ -170,7 +185,9 @@ public abstract class CKPOverUDP extends AuthenticationEventSender {
 	private Object globalLock = new Object();
 
 	/** These are only for keeping statistics on number and size of messages and time spent for CKP. */
-    protected int totalMessageNum=0, totalMessageSize=0, totalCKPTime=0, totalCodingTime=0;
+    protected int totalMessageNum=0, totalMessageSize=0;
+    /** In ns. */
+    protected long totalCKPTime=0, totalCodingTime=0;
 	
 	/** Just a small helper class to keep a list of generated keys for each host. */
 	private class GeneratedKeyCandidates {
@@ -339,6 +356,8 @@ public abstract class CKPOverUDP extends AuthenticationEventSender {
 			int minNumRoundsForAction, boolean useJSSE) throws IOException {
 		this.useJSSE = useJSSE;
 		this.instanceId = instanceId;
+		if (instanceId != null)
+			this.logSuffix = " [" + instanceId + "]";
 		this.broadcastCandidates = broadcastCandidates;
 		this.sendMatches = sendMatches;
 		this.minMatchingRoundsFraction = minMatchingRoundsFraction;
@@ -384,7 +403,7 @@ Bogdan Groza, 2007-04-19 */
 		
 		// this is synchronized so that handleMessage will not try to match while we 
 		synchronized (globalLock) {
-           	long timestamp = System.currentTimeMillis();
+           	long timestamp = MetricsRegistry.now();
 			{
 				/* Optimization: Check for duplicates in the key parts - this costs some 
 				 * performance now, but can save significantly later on. This whole block can be
@@ -402,7 +421,7 @@ Bogdan Groza, 2007-04-19 */
 				if (parts.size() < keyParts.length) {
 					logger.info("Duplicate feature vectors detected: " + parts.size() +
 							" unique vectors out of " + keyParts.length +
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+							logSuffix);
 					statisticsLogger.info("d duplicate feature vectors detected: " + parts.size() + " out of " + keyParts.length + " are unique");
 					keyParts = new byte[parts.size()][];
 					Iterator iter = parts.values().iterator();
@@ -411,30 +430,34 @@ Bogdan Groza, 2007-04-19 */
 				}
 			}
 			
-			totalCodingTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+			totalCodingTime += codingTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
 			CandidateKeyPartIdentifier[] candidateKeyParts = ckp.generateCandidates(keyParts, entropy);
-			totalCKPTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+			totalCKPTime += ckpTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
 			/* send out as many UDP multicast packets as necessary to transmit all the generated 
 			 * candidate key parts
 			 */
 			if (broadcastCandidates) {
-				logger.debug("Broadcasting " + candidateKeyParts.length + " candidate key parts" + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Broadcasting " + candidateKeyParts.length + " candidate key parts" + 
+							logSuffix);
 				byte[] buffer = new byte[Maximum_Udp_Data_Size];
 				int outIndex = 0, numMessages = 0;
 				for (int i=0; i<candidateKeyParts.length; i++) {
 					if (outIndex == 0 || outIndex+candidateKeyParts[i].hash.length*2+1 >= Maximum_Udp_Data_Size) {
 						// send the old packet and construct a new one
 						if (outIndex > 0) {
-							logger.debug("Sending UDP packet with " + outIndex + " bytes" + 
-									(instanceId != null ? " [" + instanceId + "]" : ""));
+							if (logger.isDebugEnabled())
+								logger.debug("Sending UDP packet with " + outIndex + " bytes" + 
+										logSuffix);
 							byte[] packet = new byte[outIndex];
 							System.arraycopy(buffer, 0, packet, 0, outIndex);
 							channel.sendMulticast(packet);
 							totalMessageNum++;
 							totalMessageSize+=outIndex;
+							messageCounter.increment();
+							messageSizeCounter.add(outIndex);
 						}
 						
 						numMessages++;
@@ -443,9 +466,10 @@ Bogdan Groza, 2007-04-19 */
 						System.arraycopy(packetStart.getBytes(), 0, buffer, 0, packetStart.length());
 						outIndex = packetStart.length();
 
-						logger.debug("Started new UDP packet with round " + candidateKeyParts[i].round + 
-								" for candidate number " + i + 
-								(instanceId != null ? " [" + instanceId + "]" : ""));
+						if (logger.isDebugEnabled())
+							logger.debug("Started new UDP packet with round " + candidateKeyParts[i].round + 
+									" for candidate number " + i + 
+									logSuffix);
 					}
 					// small optimization: the candidate number is not transmitted explicitly, but just as its position
 					// but do a sanity check here (optimizations are always dangerous)
@@ -453,19 +477,22 @@ Bogdan Groza, 2007-04-19 */
 						logger.warn("Locally generatared candidate number " + candidateKeyParts[i].candidateNumber +
 								" in round " + candidateKeyParts[i].round + " does not match its position " +
 								"in the array: " + i + ". Something might be subtly broken!" +
-								(instanceId != null ? " [" + instanceId + "]" : ""));
+								logSuffix);
 					String cand = new String(Hex.encodeHex(candidateKeyParts[i].hash)) + " ";
 					System.arraycopy(cand.getBytes(), 0, buffer, outIndex, cand.length());
 					outIndex += cand.length();
 				}
 				if (outIndex > 0) {
-					logger.debug("Sending UDP packet with " + outIndex + " bytes" + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					if (logger.isDebugEnabled())
+						logger.debug("Sending UDP packet with " + outIndex + " bytes" + 
+								logSuffix);
 					byte[] packet = new byte[outIndex];
 					System.arraycopy(buffer, 0, packet, 0, outIndex);
 					channel.sendMulticast(packet);
 					totalMessageNum++;
 					totalMessageSize+=outIndex;
+					messageCounter.increment();
+					messageSizeCounter.add(outIndex);
 				}
 				statisticsLogger.info("sc broadcasting " + numMessages + " packets for " + candidateKeyParts.length + " candidate key parts");
 			}
@@ -478,11 +505,11 @@ Bogdan Groza, 2007-04-19 */
 					CandidateKeyPartIdentifier[] incomingKeyParts = incomingKeyPartsBuffer[i].keyParts;
 					numOldCandidates += incomingKeyParts.length;
 
-					totalCodingTime += System.currentTimeMillis()-timestamp;
-		           	timestamp = System.currentTimeMillis();
+					totalCodingTime += codingTimer.stop(timestamp);
+		           	timestamp = MetricsRegistry.now();
 					int match = ckp.matchCandidates(incomingKeyPartsBuffer[i].sender.getHostAddress(), incomingKeyParts);
-					totalCKPTime += System.currentTimeMillis()-timestamp;
-		           	timestamp = System.currentTimeMillis();
+					totalCKPTime += ckpTimer.stop(timestamp);
+		           	timestamp = MetricsRegistry.now();
 		           	
 					if (match > -1) {
 						// yes, we have a match, handle it
@@ -494,7 +521,7 @@ Bogdan Groza, 2007-04-19 */
 				}
 			}
 
-			totalCodingTime += System.currentTimeMillis()-timestamp;
+			totalCodingTime += codingTimer.stop(timestamp);
 			statisticsLogger.info("rc* processed " + numOldMessages + " old incoming CAND messages with " + numOldCandidates + " candidate key parts");
 		}
 	}
@@ -552,17 +579,20 @@ Bogdan Groza, 2007-04-19 */
 	 * @see #addCandidates(byte[][], float)
 	 */
 	private void handleMatchingCandidateKeyPart(int round, int match, InetAddress remote) throws IOException, InternalApplicationException {
-		logger.debug("Number " + match + " of the incoming candidate key parts from host " + remote + " matches" + 
-				(instanceId != null ? " [" + instanceId + "]" : ""));
+		if (logger.isDebugEnabled())
+			logger.debug("Number " + match + " of the incoming candidate key parts from host " + remote + " matches" + 
+					logSuffix);
 		// optionally flag
 		if (sendMatches) {
-			long timestamp = System.currentTimeMillis();
+			long timestamp = MetricsRegistry.now();
 			String ackPacket = Protocol_CandidateMatch + round + " " + match;
 			byte[] pckt = ackPacket.getBytes();
-			totalCodingTime += System.currentTimeMillis()-timestamp;
+			totalCodingTime += codingTimer.stop(timestamp);
 			channel.sendTo(pckt, remote);
 			totalMessageNum++;
 			totalMessageSize+=pckt.length;
+			messageCounter.increment();
+			messageSizeCounter.add(pckt.length);
 		}
 	
 		/* Make sure that this is not interrupted, or else the following could (and did)
@@ -621,45 +651,48 @@ Bogdan Groza, 2007-04-19 */
 		String remoteHostAddress = remoteHost.getHostAddress();
 		
 		// only if enough rounds have passed in total with this remote host can we do anything
-		logger.debug("Checking criteria for generating a key for remote host " + remoteHostAddress + 
-				": " + ckp.getNumLocalRounds(remoteHostAddress) + " local rounds, " +
-				ckp.getMatchingRoundsFraction(remoteHostAddress) + " matching, " +
-				ckp.getSumMatchEntropy(remoteHostAddress) + " entropy sum; " +
-				minNumRoundsForAction + " minimum rounds for action, " +
-				minMatchingRoundsFraction + " minimum match treshold, " +
-				minMatchingEntropy + " minimum entropy sum threshold, " + 
-				maxMismatchRoundsFraction + " maximum mismatch threshold" +
-				(instanceId != null ? " [" + instanceId + "]" : ""));
+		if (logger.isDebugEnabled())
+			logger.debug("Checking criteria for generating a key for remote host " + remoteHostAddress + 
+					": " + ckp.getNumLocalRounds(remoteHostAddress) + " local rounds, " +
+					ckp.getMatchingRoundsFraction(remoteHostAddress) + " matching, " +
+					ckp.getSumMatchEntropy(remoteHostAddress) + " entropy sum; " +
+					minNumRoundsForAction + " minimum rounds for action, " +
+					minMatchingRoundsFraction + " minimum match treshold, " +
+					minMatchingEntropy + " minimum entropy sum threshold, " + 
+					maxMismatchRoundsFraction + " maximum mismatch threshold" +
+					logSuffix);
 		if (ckp.getNumLocalRounds(remoteHostAddress) >= minNumRoundsForAction) {
 			// check if the "positive" criteria are fulfilled so that we can try and create a candidate key
 			if (ckp.getMatchingRoundsFraction(remoteHostAddress) >= minMatchingRoundsFraction &&
 					ckp.getSumMatchEntropy(remoteHostAddress) >= minMatchingEntropy) {
 				logger.info("Positive criteria are fulfilled for remote host " + remoteHostAddress + 
 						", can now generate candidate key" + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 				return true;
 			}
 			// check if the "negative" criteria are fulfilled
 			else if ((1-ckp.getMatchingRoundsFraction(remoteHostAddress)) >= maxMismatchRoundsFraction) {
 				logger.warn("Negative criteria are fulfilled for remote host " + remoteHostAddress + 
 						", aborting protocol and generating authentication failure event" +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 				// abort protocol and generated authentication failure event
 				authenticationFailed(remoteHost, true, null, "Too many rounds without a matching key part encountered");
 				return false;
 			}
 			else {
-				logger.debug("Enough local rounds have passed with remote host " + remoteHostAddress +
-						", but neither positive nor negative criteria are fulfilled" +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Enough local rounds have passed with remote host " + remoteHostAddress +
+							", but neither positive nor negative criteria are fulfilled" +
+							logSuffix);
 				return false;
 			}
 		}
 		else {
-			logger.debug("Not enough local rounds have passed yet for remote host " +
-					remoteHostAddress + " to check for any action (" + 
-					ckp.getNumLocalRounds(remoteHostAddress) + " passed, want " + minNumRoundsForAction + ")" +
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+			if (logger.isDebugEnabled())
+				logger.debug("Not enough local rounds have passed yet for remote host " +
+						remoteHostAddress + " to check for any action (" + 
+						ckp.getNumLocalRounds(remoteHostAddress) + " passed, want " + minNumRoundsForAction + ")" +
+						logSuffix);
 			return false;
 		}
 	}
@@ -673,50 +706,56 @@ Bogdan Groza, 2007-04-19 */
 
 		if (checkKeyCriteria(remoteHost)) {
 			try {
-				long timestamp = System.currentTimeMillis();
+				long timestamp = MetricsRegistry.now();
 				CandidateKey candKey = ckp.generateKey(remoteHostAddress);
-				totalCKPTime += System.currentTimeMillis()-timestamp;
-	           	timestamp = System.currentTimeMillis();
+				totalCKPTime += ckpTimer.stop(timestamp);
+	           	timestamp = MetricsRegistry.now();
 				// and remember this key for later matching with the acknowledge
 				GeneratedKeyCandidates genList = null;
 				if (generatedKeys.containsKey(remoteHostAddress)) {
 					genList = (GeneratedKeyCandidates) generatedKeys.get(remoteHostAddress);
 				}
 				else {
-					logger.debug("No list of generated keys found for remote host '" + remoteHostAddress + 
-							"', creating new list" +
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					if (logger.isDebugEnabled())
+						logger.debug("No list of generated keys found for remote host '" + remoteHostAddress + 
+								"', creating new list" +
+								logSuffix);
 					genList = new GeneratedKeyCandidates();
 					generatedKeys.put(remoteHostAddress, genList);
 				}
-				logger.debug("Inserting candidate key for host " + remoteHostAddress + " at list position " + genList.index +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Inserting candidate key for host " + remoteHostAddress + " at list position " + genList.index +
+							logSuffix);
 				genList.list[genList.index++] = candKey;
 				if (genList.index == genList.list.length) {
 					statisticsLogger.info("o candidate key list overflow (" + genList.list.length + ")");
 					genList.index = 0;
 				}
 			
-				logger.debug("Sending candidate key of " + candKey.numParts + " parts with hash " + 
-						new String(Hex.encodeHex(candKey.hash)) +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Sending candidate key of " + candKey.numParts + " parts with hash " + 
+							new String(Hex.encodeHex(candKey.hash)) +
+							logSuffix);
 				statisticsLogger.info("sk sending candidate key of " + candKey.numParts + " parts");
 				String candKeyPacket = Protocol_CandidateKey + candKey.numParts + " " +
 						new String(Hex.encodeHex(candKey.hash)) + " " + 
 						CandidateKeyProtocol.CandidateKey.indexTuplesToString(candKey.localIndices) + " " +
 						CandidateKeyProtocol.CandidateKey.indexTuplesToString(candKey.remoteIndices);
 				byte[] pckt = candKeyPacket.getBytes();
-				totalCodingTime += System.currentTimeMillis()-timestamp;
+				totalCodingTime += codingTimer.stop(timestamp);
 				channel.sendTo(pckt, remoteHost);
 				totalMessageNum++;
 				totalMessageSize+=pckt.length;
+				messageCounter.increment();
+				messageSizeCounter.add(pckt.length);
 			}
 			catch (InternalApplicationException e) {
 				logger.error("Could not generate key: " + e + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					logSuffix);
 			} catch (IOException e) {
-				logger.debug("Can not send candidate key packet: " + e + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Can not send candidate key packet: " + e + 
+						logSuffix);
 			}
 		}
 	}
@@ -731,10 +770,10 @@ Bogdan Groza, 2007-04-19 */
 	 */
 	private boolean checkForKeyMatch(InetAddress remoteHost, byte[] candKeyHash,
 			int[][] localIndices, int[][] remoteIndices) throws InternalApplicationException, IOException {
-		long timestamp = System.currentTimeMillis();
+		long timestamp = MetricsRegistry.now();
 		CandidateKey candKey = ckp.searchKey(remoteHost.getHostAddress(), candKeyHash, localIndices, remoteIndices);
-		totalCKPTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+		totalCKPTime += ckpTimer.stop(timestamp);
+       	timestamp = MetricsRegistry.now();
 		
 		if (candKey != null) {
 			// this is just a sanity check
@@ -742,15 +781,15 @@ Bogdan Groza, 2007-04-19 */
 				if (candKey.hash[i] != candKeyHash[i])
 					throw new InternalApplicationException("Search for matching key returned "+
 						"different hash from what we searched for. This should not happen!" + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			
 			// also check if our local criteria for generating a key are fulfilled
 			if (checkKeyCriteria(remoteHost)) {
 				logger.info("Generated local key " +
 						new String(Hex.encodeHex(candKey.key)) + " that matches candidate key identifier " +  
 						new String(Hex.encodeHex(candKey.hash)) + " received from " + remoteHost.getHostAddress() + " " +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
-				totalCodingTime += System.currentTimeMillis()-timestamp;
+						logSuffix);
+				totalCodingTime += codingTimer.stop(timestamp);
 				// this sends a key acknowledge message to the remote host
 				authenticationSucceededStage1(remoteHost, candKey.hash, candKey.key);
 				return true;
@@ -759,13 +798,12 @@ Bogdan Groza, 2007-04-19 */
 				logger.info("Received candidate key from remote host " + remoteHost.getHostAddress() +
 						" and successfully generated matching key, but local criteria for key generation " +
 						"are not yet fulfilled. Ignoring this candidate key." +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 				return false;
 			}
 		}
 		else {
-			logger.debug("Could not generate local key that matches received candidate key identifier" + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+			logger.debug("Could not generate local key that matches received candidate key identifier{}", logSuffix);
 			return false;
 		}
 		
@@ -779,24 +817,26 @@ Bogdan Groza, 2007-04-19 */
 			Exception e, String msg) {
 		String remoteHostAddress = remoteHost.getHostAddress();
 
-		logger.debug("Authentication with remote host " + remoteHostAddress + " failed" +
-				(e != null ? " with exception '" + e + "'" : "") +
-				(msg != null ? " with message '" + msg + "'" : "") + 
-				(instanceId != null ? " [" + instanceId + "]" : ""));
+		if (logger.isDebugEnabled())
+			logger.debug("Authentication with remote host " + remoteHostAddress + " failed" +
+					(e != null ? " with exception '" + e + "'" : "") +
+					(msg != null ? " with message '" + msg + "'" : "") + 
+					logSuffix);
 		if (ckp.wipe(remoteHostAddress) && sendTerminateMsg) {
 			// ok, there was some state, also send a termination message
 			String termPacket = Protocol_Terminate;
-			logger.debug("Sending termination message to remote host" + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+			logger.debug("Sending termination message to remote host{}", logSuffix);
 			try {
 				byte[] pckt = termPacket.getBytes();
 				channel.sendTo(pckt, remoteHost);
 				totalMessageNum++;
 				totalMessageSize+=pckt.length;
+				messageCounter.increment();
+				messageSizeCounter.add(pckt.length);
 			}
 			catch (IOException f) {
 				logger.error("Could not send protocol termination message to remote host: " + f + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			}
 		}
 
@@ -825,12 +865,13 @@ Bogdan Groza, 2007-04-19 */
 	private void authenticationSucceededStage1(InetAddress remoteHost,
 			byte[] foundKeyHash, byte[] foundKey) throws IOException {
 		String remoteHostAddress = remoteHost.getHostAddress();
-		long timestamp = System.currentTimeMillis();
+		long timestamp = MetricsRegistry.now();
 
 		if (! generatedKeys.containsKey(remoteHostAddress)) {
-			logger.debug("Got candidate key message from remote host " + remoteHostAddress + 
-					" before generating our own key, creating new list" + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+			if (logger.isDebugEnabled())
+				logger.debug("Got candidate key message from remote host " + remoteHostAddress + 
+						" before generating our own key, creating new list" + 
+						logSuffix);
 			generatedKeys.put(remoteHostAddress, new GeneratedKeyCandidates());
 		}
 
@@ -840,20 +881,20 @@ Bogdan Groza, 2007-04-19 */
 			if (! Arrays.equals(cand.foundMatchingKey, foundKey)) {
 				logger.warn("Not overwriting the found matching key for remote host " + remoteHost +
 					", because stage 2 not entered yet." + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					logSuffix);
 			}
 			else { 
 				if (logger.isDebugEnabled())
 					logger.debug("Received candidate key message and generated the same matching key as before for " + remoteHost +
 						", which has not yet been acknowledged. Ignoring now." + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			}
 			
 			if (++cand.overwriteBlockedCnt > GeneratedKeyCandidates.MaximumOverwriteBlockedCnt) {
 				logger.warn("Now overwriting the found matching key for remote host " + remoteHost +
 						", as it has been blocked in stage 1 for " + GeneratedKeyCandidates.MaximumOverwriteBlockedCnt +
 						" incoming candidate key messages. Maybe the local host's candidate key message got lost?" +
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 				cand.overwriteBlockedCnt=0;
 				sendAck = true;
 			}
@@ -886,12 +927,14 @@ Suggestion by Bogdan Groza, 2007-04-19
 			if (logger.isInfoEnabled())
 				logger.info("Sending key acknowledge message for hash " + new String(Hex.encodeHex(foundKeyHash))
 					+ " to remote host " + remoteHostAddress + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					logSuffix);
 			byte[] pckt = ackPacket.getBytes();
-			totalCodingTime += System.currentTimeMillis()-timestamp;
+			totalCodingTime += codingTimer.stop(timestamp);
 			channel.sendTo(pckt, remoteHost);
 			totalMessageNum++;
 			totalMessageSize+=pckt.length;
+			messageCounter.increment();
+			messageSizeCounter.add(pckt.length);
 		}
 	}
 
@@ -902,12 +945,12 @@ Suggestion by Bogdan Groza, 2007-04-19
 	private void authenticationSucceededStage2(InetAddress remoteHost,
 			byte[] ackedKeyHash) throws InternalApplicationException {
 		String remoteHostAddress = remoteHost.getHostAddress();
-		long timestamp = System.currentTimeMillis();
+		long timestamp = MetricsRegistry.now();
 
 		if (! generatedKeys.containsKey(remoteHostAddress))
 			throw new InternalApplicationException("Got key acknowledge message from remote host " + 
 					remoteHostAddress + " with no locally generated key candidates or a found matching key. This should not happen!" + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					logSuffix);
 
 		GeneratedKeyCandidates cand = (GeneratedKeyCandidates) generatedKeys.get(remoteHostAddress);
 
@@ -923,8 +966,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 					if (cand.list[i].hash[j] != ackedKeyHash[j])
 						match = false;
 				if (match) {
-					logger.debug("Found recently generated key matching the acknowledged hash" + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					logger.debug("Found recently generated key matching the acknowledged hash{}", logSuffix);
 					ackedMatchingKey = cand.list[i].key;
 				}
 			}
@@ -934,7 +976,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 			logger.warn("Could not find a recently generated key matching the acknowledged hash. " +
 					"This might indicate an ongoing attack! " +
 					"Wiping state for remote host " + remoteHostAddress + 
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					logSuffix);
 			authenticationFailed(remoteHost, true, null, 
 				"Message received that shouldn't. Remote host is bad");
 			return;
@@ -951,14 +993,13 @@ Suggestion by Bogdan Groza, 2007-04-19
 		if (cand.foundMatchingKey != null) {
 			logger.info("Received an acknowledge for a locally generated key, and already " +
 					"found and acknowledged a key matching a remote candidate key. " + 
-					"Thus using the combination of both." +
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					"Thus using the combination of both.{}", logSuffix);
 
 			// another sanity check
 			if (ackedMatchingKey.length != cand.foundMatchingKey.length)
 				throw new InternalApplicationException("Found matching key has different length than " +
 						"acknowledged key" + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			/* And now check if the same key has been acknowledged that we ourselves
 			 * acknowledged (because a key with the same hash could be generated locally).
 			 */
@@ -974,7 +1015,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 					realSharedKey[i] = (byte) (cand.foundMatchingKey[i] ^ ackedMatchingKey[i]);
 				logger.info("Overlapping candidate key match and acknowledgment messages detected, using " + 
 						"both keys: " + new String(Hex.encodeHex(realSharedKey)) + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			}
 			else {
 				// When they match, do <b>NOT</b> XOR them together.
@@ -982,18 +1023,17 @@ Suggestion by Bogdan Groza, 2007-04-19
 				realSharedKey = cand.foundMatchingKey;
 				logger.info("Last matching candidate key has been acknowledged, thus both acknowledges should match. " +
 						"Using it as the shared key: " + new String(Hex.encodeHex(realSharedKey)) + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+						logSuffix);
 			}
 		}
 		else {
 			logger.info("Received an acknowledge for a locally generated key, and did " +
 					"not yet receive a candidate key from the remote host that we acknowledged. " +
-					"Thus using the locally generated key that has now been acknowledged." +
-					(instanceId != null ? " [" + instanceId + "]" : ""));
+					"Thus using the locally generated key that has now been acknowledged.{}", logSuffix);
 			realSharedKey = ackedMatchingKey;
 		}
-		totalCodingTime += System.currentTimeMillis()-timestamp;
-		timestamp = System.currentTimeMillis();
+		totalCodingTime += codingTimer.stop(timestamp);
+		timestamp = MetricsRegistry.now();
 
 		// before wiping state, remember the fraction of matching rounds
 		float matchingRoundsFraction = ckp.getMatchingRoundsFraction(remoteHostAddress);
@@ -1001,7 +1041,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 		// now that we finally have the (real) shared key, can wipe the state
 		wipe(remoteHostAddress);
 		ckp.wipe(remoteHostAddress);
-		totalCKPTime += System.currentTimeMillis()-timestamp;
+		totalCKPTime += ckpTimer.stop(timestamp);
 		
 		// raise the event to notify others
 		raiseAuthenticationSuccessEvent(remoteHostAddress, realSharedKey);
@@ -1042,6 +1082,8 @@ Suggestion by Bogdan Groza, 2007-04-19
 		public void handleMessage(byte[] message, int offset, int length, Object sender) {
 			totalMessageNum++;
 			totalMessageSize+=length;
+			messageCounter.increment();
+			messageSizeCounter.add(length);
 			
 			/* should be synchronized so that we process packets in their order of arrival
 			 * (and not interrupt or be interrupted by other local methods) 
@@ -1049,14 +1091,15 @@ Suggestion by Bogdan Groza, 2007-04-19
 			synchronized (globalLock) {
 				// only use the IP address part, but not the host (which will be dynamic for sending packets)
 				String remoteHostAddress = ((InetAddress) sender).getHostAddress();
-				long timestamp = System.currentTimeMillis();
+				long timestamp = MetricsRegistry.now();
 				
 				// this is inefficient, but Java is anyway, so don't care at the moment...
 				byte[] packet = new byte[length];
 				System.arraycopy(message, offset, packet, 0, length);
 				String pack = new String(packet);
-				logger.debug("Received UDP packet with  " + pack.length() + " bytes from " + remoteHostAddress + 
-						(instanceId != null ? " [" + instanceId + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("Received UDP packet with  " + pack.length() + " bytes from " + remoteHostAddress + 
+							logSuffix);
 				try {
 					// this handles the different packet types
 					if (pack.startsWith(Protocol_CandidateKeyPart)) {
@@ -1067,8 +1110,9 @@ Suggestion by Bogdan Groza, 2007-04-19
 						StringTokenizer st = new StringTokenizer(pack.substring(off+1));
 						CandidateKeyPartIdentifier[] keyParts = new CandidateKeyPartIdentifier[st.countTokens()]; 
 						if (keyParts.length > 0) {
-							logger.debug("Received packet with " + keyParts.length + " candidate key parts for round " + round + 
-									(instanceId != null ? " [" + instanceId + "]" : ""));
+							if (logger.isDebugEnabled())
+								logger.debug("Received packet with " + keyParts.length + " candidate key parts for round " + round + 
+										logSuffix);
 							for (int i=0; i<keyParts.length; i++) {
 								keyParts[i] = new CandidateKeyPartIdentifier();
 								keyParts[i].hash = Hex.decodeHex(st.nextToken().toCharArray());
@@ -1076,11 +1120,11 @@ Suggestion by Bogdan Groza, 2007-04-19
 								// small optimization: the candidate number is not transmitted explicitly, but just as its position
 								keyParts[i].candidateNumber = (byte) i;
 							}
-							totalCodingTime += System.currentTimeMillis()-timestamp;
-							timestamp = System.currentTimeMillis();
+							totalCodingTime += codingTimer.stop(timestamp);
+							timestamp = MetricsRegistry.now();
 							
 							int match = ckp.matchCandidates(remoteHostAddress, keyParts);
-							totalCKPTime += System.currentTimeMillis()-timestamp;
+							totalCKPTime += ckpTimer.stop(timestamp);
 
 							if (match > -1) {
 								// yes, we have a match, handle it
@@ -1089,9 +1133,9 @@ Suggestion by Bogdan Groza, 2007-04-19
 							}
 							else {
 								// no match
-								logger.debug("None of the incoming candidate key parts matches, only storing it in " +
-										"buffer for future reference"+ 
-										(instanceId != null ? " [" + instanceId + "]" : ""));
+								if (logger.isDebugEnabled())
+									logger.debug("None of the incoming candidate key parts matches, only storing it in " +
+											"buffer for future reference{}", logSuffix);
 								statisticsLogger.info("rc- no match in incoming CAND packet with " + keyParts.length + " candidate key parts in round " + round);
 								/* But since this was a mismatch, need to check if negative criteria might be fulfilled now.
 								 * This method call takes care of it.
@@ -1099,7 +1143,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 								checkKeyCriteria((InetAddress) sender);
 							}
 
-							timestamp = System.currentTimeMillis();
+							timestamp = MetricsRegistry.now();
 							/* Independent of the match, remember the received key parts in case the (or 
 							 * another) matching local candidates are about to be added - classical race
 							 * condition, should be solved by this buffer. 
@@ -1113,7 +1157,7 @@ Suggestion by Bogdan Groza, 2007-04-19
 								statisticsLogger.info("o incoming CAND messages list overflow (" + incomingKeyPartsBuffer.length + ")");
 								incomingKeyPartsBufferIndex = 0;
 							}
-							totalCodingTime += System.currentTimeMillis()-timestamp;
+							totalCodingTime += codingTimer.stop(timestamp);
 								
 							/* If positive criteria are fulfilled, don't care here. When the last
 							 * match was received (or the last candidate key message), no key could
@@ -1122,20 +1166,20 @@ Suggestion by Bogdan Groza, 2007-04-19
 							 */
 						}
 						else
-							logger.warn("Received candidate key parts packet without any key parts, ignoring it" +
-									(instanceId != null ? " [" + instanceId + "]" : ""));
+							logger.warn("Received candidate key parts packet without any key parts, ignoring it{}", logSuffix);
 					}
 					else if (pack.startsWith(Protocol_CandidateMatch)) {
 						// for an incoming match, just add them
 						int off = pack.indexOf(' ', Protocol_CandidateMatch.length());
 						int round = Integer.parseInt(pack.substring(Protocol_CandidateMatch.length(), off));
 						int match = Integer.parseInt(pack.substring(off+1));
-						logger.debug("Received packet with matching index " + match + " for round " + round + 
-								(instanceId != null ? " [" + instanceId + "]" : ""));
-						totalCodingTime += System.currentTimeMillis()-timestamp;
-						timestamp = System.currentTimeMillis();
+						if (logger.isDebugEnabled())
+							logger.debug("Received packet with matching index " + match + " for round " + round + 
+									logSuffix);
+						totalCodingTime += codingTimer.stop(timestamp);
+						timestamp = MetricsRegistry.now();
 						ckp.acknowledgeMatches(remoteHostAddress, round, match);
-						totalCKPTime += System.currentTimeMillis()-timestamp;
+						totalCKPTime += ckpTimer.stop(timestamp);
 
 						/* Since a new match was now added the the local match list, check 
 						 * if there are enough to create a candidate key.
@@ -1159,8 +1203,8 @@ Suggestion by Bogdan Groza, 2007-04-19
 								CandidateKeyProtocol.CandidateKey.indexTuplesToString(remoteIndices) + 
 								", my indices " + 
 								CandidateKeyProtocol.CandidateKey.indexTuplesToString(localIndices) +
-								(instanceId != null ? " [" + instanceId + "]" : ""));
-						totalCodingTime += System.currentTimeMillis()-timestamp;
+								logSuffix);
+						totalCodingTime += codingTimer.stop(timestamp);
 
 						if (! checkForKeyMatch((InetAddress) sender, candKeyHash, localIndices, remoteIndices)) {
 							/* No match, but remember the received candidate key in case the match local 
@@ -1173,9 +1217,9 @@ Suggestion by Bogdan Groza, 2007-04-19
 							 * _not_ to be expected - and if there is a matching key, then we're finished
 							 * anyway (if the other host acknowledges it).  
 							 */
-							logger.debug("Could not generate key with same hash as incoming candidate key, storing it in " +
-									"buffer for future reference"+ 
-									(instanceId != null ? " [" + instanceId + "]" : ""));
+							if (logger.isDebugEnabled())
+								logger.debug("Could not generate key with same hash as incoming candidate key, storing it in " +
+										"buffer for future reference{}", logSuffix);
 							Object[] tmp = new Object[5];
 							tmp[0] = sender;
 							tmp[1] = new Integer(numParts);
@@ -1191,41 +1235,38 @@ Suggestion by Bogdan Groza, 2007-04-19
 					}
 					else if (pack.startsWith(Protocol_KeyAcknowledge)) {
 						byte[] ackHash = Hex.decodeHex(pack.substring(Protocol_KeyAcknowledge.length()).toCharArray());
-						logger.debug("Received key acknowledge with hash " + new String(Hex.encodeHex(ackHash)) + 
-								(instanceId != null ? " [" + instanceId + "]" : ""));
+						if (logger.isDebugEnabled())
+							logger.debug("Received key acknowledge with hash " + new String(Hex.encodeHex(ackHash)) + 
+									logSuffix);
 						authenticationSucceededStage2((InetAddress) sender, ackHash);
 					}
 					else if (pack.startsWith(Protocol_Terminate)) {
-						logger.debug("Received protocol termination request, wiping local state" + 
-								(instanceId != null ? " [" + instanceId + "]" : ""));
+						logger.debug("Received protocol termination request, wiping local state{}", logSuffix);
 						// no need to reply with a terminate message...
 						authenticationFailed((InetAddress) sender, false, null, 
 								"Received termination message from remote host");
 					}
 					else {
 						logger.error("Received unknown packet type '" + pack + "', ignoring it" + 
-								(instanceId != null ? " [" + instanceId + "]" : ""));
+								logSuffix);
 					}
 				}
 				catch (NumberFormatException e) {
-					logger.error("Can not decode number, ignoring whole packet" + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					logger.error("Can not decode number, ignoring whole packet{}", logSuffix);
 					authenticationFailed((InetAddress) sender, true, e, "Could not decode number");
 				} catch (DecoderException e) {
-					logger.error("Can not decode hash, ignoring whole packet" + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					logger.error("Can not decode hash, ignoring whole packet{}", logSuffix);
 					authenticationFailed((InetAddress) sender, true, e, "Could not decode hash");
 				} catch (NoSuchElementException e) {
 					logger.error("Invalid incoming candidate key message received, could not decode: " +e +
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+							logSuffix);
 					authenticationFailed((InetAddress) sender, true, e, "Could not decode message structure");
 				} catch (IOException e) {
-					logger.error("Can not send packet" + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+					logger.error("Can not send packet{}", logSuffix);
 					authenticationFailed((InetAddress) sender, true, e, "Could not send packet");
 				} catch (InternalApplicationException e) {
 					logger.error("Could not search for matching key: " + e + 
-							(instanceId != null ? " [" + instanceId + "]" : ""));
+							logSuffix);
 					authenticationFailed((InetAddress) sender, true, e, "Could not search for matching key");
 				}
 			}
@@ -17,9 +17,13 @@ import java.util.LinkedList;
 
 import org.apache.commons.codec.binary.Hex;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
+import org.openuat.log.PhaseTracer;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
 import org.openuat.authentication.exceptions.InternalApplicationException;
+import org.openuat.util.Clock;
 import org.openuat.util.Hash;
 
 /** This class implements the candidate key protocol (CKP) as presented in
@@ -112,11 +116,18 @@ import org.openuat.util.Hash;
  */
 public class CandidateKeyProtocol {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger(CandidateKeyProtocol.class.getName());
+	private static Log logger = LogFactory.getLogger(CandidateKeyProtocol.class.getName());
 	/** This is a special logger used for logging only statistics. It is separate from the main logger
 	 * so that it's possible to turn statistics on an off independently.
 	 */
-	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.ckp");
+	private static Log statisticsLogger = LogFactory.getLogger("statistics.ckp");
+
+	/** The time spent in each step of maintaining the candidate lists, in ns. */
+	private static final LatencyHistogram listingTimer = MetricsRegistry.timer("ckp.listing");
+	/** The time spent in each search for matching candidates, in ns. */
+	private static final LatencyHistogram searchTimer = MetricsRegistry.timer("ckp.search");
+	/** The time spent in each cryptographic step, in ns. */
+	private static final LatencyHistogram cryptoTimer = MetricsRegistry.timer("ckp.crypto");
 
 	/** This is used for deriving the shared key them from the one used for comparing 
 	 * key to ensure that they are different. It's just some random text, the exact value really 
@@ -249,7 +260,7 @@ public class CandidateKeyProtocol {
 						this.remoteRound + "/" + this.remoteCandidateNumber + ": " +
 						new String(Hex.encodeHex(this.keyPart)) + " with hash " +
 						new String(Hex.encodeHex(this.hash)) +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 		}
 	}
 	
@@ -311,7 +322,8 @@ public class CandidateKeyProtocol {
 		 * can not be decoded.
 		 */
 		public static int[][] stringToIndexTuples(String coded) {
-			logger.debug("Trying to decode index tuples from string '" + coded + "'");
+			if (logger.isDebugEnabled())
+				logger.debug("Trying to decode index tuples from string '" + coded + "'");
 			try {
 				// this is a crude heuristic of the maximum length the array can get
 				int[][] tmp = new int[coded.length()*2/3][];
@@ -378,7 +390,8 @@ public class CandidateKeyProtocol {
 						inI++;
 					}
 				}
-				logger.debug("Decoded " + outI  + " tuples from string");
+				if (logger.isDebugEnabled())
+					logger.debug("Decoded " + outI  + " tuples from string");
 				int[][] ret = new int[outI][];
 				System.arraycopy(tmp, 0, ret, 0, outI);
 				return ret;
@@ -403,7 +416,7 @@ public class CandidateKeyProtocol {
 		/** The time when this list of matching key parts was updated last. Used for
 		 * pruning of aged entries to keep memory consumption finite.
 		 */
-		long lastUpdate = System.currentTimeMillis();
+		long lastUpdate = Clock.getDefault().currentTimeMillis();
 		/** The first local round number at which a match with this remote host
 		 * occured. The difference between this value and the current value of
 		 * @see #lastRound therefore specifies the number of (local) rounds during
@@ -423,6 +436,10 @@ public class CandidateKeyProtocol {
 	 */ 
 	private String remoteIdentifier;
 	
+	/** The suffix appended to all log messages, derived from remoteIdentifier.
+	 * It is computed once so that log statements don't need to. */
+	private String logSuffix;
+	
 	/** The history of candidate key parts that were generated recently. It is used
 	 * as a circular buffer and is generated by the constructor.
 	 */
@@ -458,7 +475,7 @@ public class CandidateKeyProtocol {
 	private int lastRound = 0;
 	
 	/** These are only for keeping statistics on book-keeping, search, and "crypto" times. */
-    protected int totalListingTime=0, totalSearchTime=0, totalCryptoTime=0;
+    protected long totalListingTime=0, totalSearchTime=0, totalCryptoTime=0;
 	
 	/** Initializes the candidate key protocol, setting a few parameters and
 	 * creating the local candidate key parts history.
@@ -484,6 +501,7 @@ public class CandidateKeyProtocol {
 	public CandidateKeyProtocol(int candidateHistorySize, int matchHistorySize, 
 			int maxRemoteMatchListAge, String instanceId, boolean useJSSE) {
 		this.remoteIdentifier = instanceId;
+		this.logSuffix = instanceId != null ? " [" + instanceId + "]" : "";
 		this.maxRemoteMatchListAge = maxRemoteMatchListAge;
 		this.useJSSE = useJSSE;
 		
@@ -495,7 +513,7 @@ public class CandidateKeyProtocol {
 				" key parts in history and a window of " + this.matchHistorySize +
 				" matching key parts and maximum match list age of " + 
 				this.maxRemoteMatchListAge + " ms created" + 
-				(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+				logSuffix);
 	}
 	
 	/** Generate a list of candidate key parts out of key parts. This also stores the
@@ -512,27 +530,27 @@ public class CandidateKeyProtocol {
 			throws InternalApplicationException {
 		if (candidateKeys == null)
 			throw new IllegalArgumentException("candidateKeys can not be null" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (candidateKeys.length > recentKeyParts.length)
 			throw new IllegalArgumentException("Length of new key set is larger than the history size" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (candidateKeys.length > 127)
 			throw new IllegalArgumentException("Maximum of 127 key parts supported for each round" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
 		CandidateKeyPartIdentifier[] ret = new CandidateKeyPartIdentifier[candidateKeys.length];
 		lastRound++;
 		if (logger.isDebugEnabled())
 			logger.debug("Adding " + candidateKeys.length + " candidates to local history, assigning round " +
 					lastRound + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 
 		int candidateKeyPartsLength = -1;
 		for (int i=0; i<candidateKeys.length; i++) {
 			if (candidateKeys[i] == null) {
 				logger.warn("Candidate with index " + i + " is null, ignoring" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 				continue;
 			}
 			
@@ -540,15 +558,15 @@ public class CandidateKeyProtocol {
 			if (candidateKeyPartsLength != -1 && candidateKeyPartsLength != candidateKeys[i].length) 
 				throw new IllegalArgumentException("Candidate with index " + i + " has different length from first valid " +
 						"candidate, is " + candidateKeys[i].length + " but expected " + candidateKeyPartsLength +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			candidateKeyPartsLength = candidateKeys[i].length;
 			
 			// first add to the history
-           	totalListingTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+           	totalListingTime += listingTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
 			CandidateKeyPart p = new CandidateKeyPart(candidateKeys[i], lastRound, (byte) i, entropy);
-           	totalCryptoTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+           	totalCryptoTime += cryptoTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
 
 			recentKeyParts[recentKeyPartsIndex++] = p;
 			if (recentKeyPartsIndex == recentKeyParts.length) {
@@ -564,9 +582,9 @@ public class CandidateKeyProtocol {
 				logger.trace("Generating local candidate identifier number " + p.candidateNumber +
 						" for part " + new String(Hex.encodeHex(p.keyPart)) + " with hash " +
 						new String(Hex.encodeHex(p.hash)) +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
-           	totalListingTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+						logSuffix);
+           	totalListingTime += listingTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
 		}
 		
 		return ret;
@@ -591,15 +609,15 @@ public class CandidateKeyProtocol {
 			throws InternalApplicationException {
 		if (candidateIdentifiers == null)
 			throw new IllegalArgumentException("candidateIdentifiers can not be null" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (candidateIdentifiers.length > recentKeyParts.length)
-			logger.warn("Length of incoming candidate list is larger than the history size" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.warn("Length of incoming candidate list is larger than the history size{}", logSuffix);
 		if (candidateIdentifiers.length > 127)
 			throw new IllegalArgumentException("Maximum of 127 key parts supported for each round" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
+       	Object trace = PhaseTracer.begin(PhaseTracer.CandidateKeyMatch);
 		
 		int firstMatch = -1, numMatches = 0, numHistoryParts = 0;
 		// check against the whole history
@@ -610,7 +628,7 @@ public class CandidateKeyProtocol {
 				for (int i=0; i<candidateIdentifiers.length; i++) {
 					if (candidateIdentifiers[i] == null) {
 						logger.warn("Candidate with index " + i + " is null, ignoring" +
-								(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+								logSuffix);
 						continue;
 					}
 					int compareBytes = recentKeyParts[j].hash.length;
@@ -619,7 +637,7 @@ public class CandidateKeyProtocol {
 								recentKeyParts[j].hash.length : candidateIdentifiers[i].hash.length;
 						logger.warn("Length of candidate " + i + " does not match expected length, " +
 								"comparing only " + compareBytes + " bytes" +
-								(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+								logSuffix);
 					}
 					boolean match = true;
 					for (int k=0; k<compareBytes && match; k++)
@@ -630,9 +648,9 @@ public class CandidateKeyProtocol {
 								" with number " + candidateIdentifiers[i].candidateNumber + " " + 
 								(match ? "matches" : "does not match") + " local candidate of round " + 
 								recentKeyParts[j].round + " with number " + recentKeyParts[j].candidateNumber +
-								(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
-		           	totalSearchTime += System.currentTimeMillis()-timestamp;
-		           	timestamp = System.currentTimeMillis();
+								logSuffix);
+		           	totalSearchTime += searchTimer.stop(timestamp);
+		           	timestamp = MetricsRegistry.now();
 					
 					/* when it matches, add this local candidate to the matches list and report
 					 * the remote candidate back to the other host
@@ -652,15 +670,15 @@ public class CandidateKeyProtocol {
 								logger.warn("Incoming candidate number " + candidateIdentifiers[i].candidateNumber +
 										" in round " + candidateIdentifiers[i].round + " does not match its position " +
 										"in the array: " + i +
-										(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+										logSuffix);
 							firstMatch = candidateIdentifiers[i].candidateNumber;
 							if (logger.isDebugEnabled())
 								logger.debug("This is the first match, will report candidate number " + firstMatch +
-										(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+										logSuffix);
 						}
 					}
-		           	totalListingTime += System.currentTimeMillis()-timestamp;
-		           	timestamp = System.currentTimeMillis();
+		           	totalListingTime += listingTimer.stop(timestamp);
+		           	timestamp = MetricsRegistry.now();
 				}
 			}
 		}
@@ -672,8 +690,8 @@ public class CandidateKeyProtocol {
 					(matchingKeyParts.containsKey(remoteHost) ? ("; numMatches=" + 
 							((MatchingKeyParts) matchingKeyParts.get(remoteHost)).numMatchingRounds) : ""));
 		if (firstMatch == -1)
-			logger.info("No match found, not reporting to remote host" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("No match found, not reporting to remote host{}", logSuffix);
+		PhaseTracer.end(trace, numMatches, candidateIdentifiers.length);
 		return firstMatch;
 	}
 	
@@ -688,7 +706,7 @@ public class CandidateKeyProtocol {
 	 * @throws InternalApplicationException 
 	 */
 	public synchronized void acknowledgeMatches(Object remoteHost, int round, int candidateNumber) throws InternalApplicationException {
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
 
 		// need to find the local index in the recent history with that round and number
 		boolean found=false;
@@ -705,9 +723,9 @@ public class CandidateKeyProtocol {
 		if (!found)
 			logger.warn("Local candidate number of round " + round + " with number " + candidateNumber + 
 					" could not be found in recent parts list, probably outdated" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 
-       	totalListingTime += System.currentTimeMillis()-timestamp;
+       	totalListingTime += listingTimer.stop(timestamp);
 	}
 	
 	// checked: this method is always accounted for in totalListingTime (see above)
@@ -744,14 +762,14 @@ public class CandidateKeyProtocol {
 					logger.debug("Found match with earlier local round number, updating first local round for host " +
 						remoteHost + " from " + matchList.firstLocalRoundNumber +
 						" to " + recentKeyParts[candidateIndex].round +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 				matchList.firstLocalRoundNumber = recentKeyParts[candidateIndex].round;
 			}
 		}
 		else {
 			if (logger.isDebugEnabled())
 				logger.debug("Creating new match list for remote host " + remoteHost +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			matchList = new MatchingKeyParts();
 			matchList.firstLocalRoundNumber = recentKeyParts[candidateIndex].round;
 			matchingKeyParts.put(remoteHost, matchList);
@@ -759,7 +777,7 @@ public class CandidateKeyProtocol {
 				statisticsLogger.debug("+ Creating new match list for " + remoteHost + ", now " + 
 						matchingKeyParts.size() + " lists; lastRound=" + lastRound);
 		}
-		long curTime = System.currentTimeMillis();
+		long curTime = Clock.getDefault().currentTimeMillis();
 		matchList.lastUpdate = curTime;
 
 		// TODO: (simple to do) move this check into a background thread
@@ -772,12 +790,12 @@ public class CandidateKeyProtocol {
 				if (logger.isDebugEnabled())
 					logger.debug("Pruning match list for remote host " + checkHost + 
 							", its last update was " + lastUpdate +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 				// TODO: generate timeout events so that higher levels can react (e.g. with failure events and protocol abort)
 				if (! wipe(checkHost)) 
 					logger.error("Could not purge match list for remote host " + checkHost + 
 							". This should not happen." +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 				if (statisticsLogger.isDebugEnabled())
 					statisticsLogger.debug("- Removing old match list for " + checkHost + ", now " + 
 							matchingKeyParts.size() + " lists; lastRound=" + lastRound);
@@ -810,7 +828,7 @@ public class CandidateKeyProtocol {
 						" (remote uses round " + remoteReportedRound + " with number " + remoteReportedCandidateNumber + 
 						") to matching status" +
 						" (match list index is now " + matchList.index + ")" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			if (matchList.index == matchList.parts.length) {
 				matchList.index = 0;
 				if (statisticsLogger.isDebugEnabled())
@@ -827,7 +845,7 @@ public class CandidateKeyProtocol {
 				logger.debug("Local candidate of round " + recentKeyParts[candidateIndex].round +
 						" with number " + recentKeyParts[candidateIndex].candidateNumber + 
 						" already marked as match, skipping to add it" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 	}
 	
 	// checked: this method is always accounted for in totalListingTime (see above)
@@ -844,18 +862,18 @@ public class CandidateKeyProtocol {
 		if (matchList == null)
 			throw new InternalApplicationException("Just advanced a candidate to a matching key part, but no match known for remote host " +
 					remoteHost + ". This should not happen!" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		matchList.numMatchingRounds++;
 		if (logger.isDebugEnabled())
 			logger.debug("Remote host " + remoteHost + " now has " + matchList.numMatchingRounds + 
 					" rounds with matches out of " + (lastRound-matchList.firstLocalRoundNumber) +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (lastRound-matchList.firstLocalRoundNumber+1 < matchList.numMatchingRounds) {
 			logger.error("More matching rounds (" + matchList.numMatchingRounds + ") than total rounds (" +
 					(lastRound-matchList.firstLocalRoundNumber) + "), correcting first round number for remote host " +
 					remoteHost + " to " + (lastRound-matchList.numMatchingRounds) +
 					" - BUT THIS SHOULD NOT LONGER HAPPEN - " +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 			matchList.firstLocalRoundNumber = lastRound-matchList.numMatchingRounds+1;
 		}
 	}
@@ -869,19 +887,19 @@ public class CandidateKeyProtocol {
 	 */
 	public synchronized int getNumLocalRounds(Object remoteHost) throws InternalApplicationException {
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.info("getNumLocalRounds called for a remote host where no match list has yet been created or it has already been pruned, returning 0" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("getNumLocalRounds called for a remote host where no match list has yet been created or it has already been pruned, returning 0{}", logSuffix);
 			return 0;
 		}
 		MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.get(remoteHost);
 		// sanity check
 		if (lastRound < matchList.firstLocalRoundNumber)
 			throw new InternalApplicationException("lastRound <= first round with remote host " + remoteHost + ". Overflow?" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
-		logger.debug("For remote host " + remoteHost + ", lastRound=" + 
-				lastRound + ", first local round=" + matchList.firstLocalRoundNumber + 
-				", thus numLocalRounds=" + (lastRound-matchList.firstLocalRoundNumber+1) +
-				(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
+		if (logger.isDebugEnabled())
+			logger.debug("For remote host " + remoteHost + ", lastRound=" + 
+					lastRound + ", first local round=" + matchList.firstLocalRoundNumber + 
+					", thus numLocalRounds=" + (lastRound-matchList.firstLocalRoundNumber+1) +
+					logSuffix);
 		return lastRound - matchList.firstLocalRoundNumber + 1;
 	}
 	
@@ -893,8 +911,7 @@ public class CandidateKeyProtocol {
 	 */
 	public synchronized int getNumTotalMatches(Object remoteHost) {
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.info("getNumTotalMatches called for a remote host where no match list has yet been created or it has already been pruned, returning 0" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("getNumTotalMatches called for a remote host where no match list has yet been created or it has already been pruned, returning 0{}", logSuffix);
 			return 0;
 		}
 		MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.get(remoteHost);
@@ -916,8 +933,7 @@ public class CandidateKeyProtocol {
 	 */
 	public synchronized float getMatchingRoundsFraction(Object remoteHost) throws InternalApplicationException {
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.info("getMatchingRoundsFraction called for a remote host where no match list has yet been created or it has already been pruned, returning 0" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("getMatchingRoundsFraction called for a remote host where no match list has yet been created or it has already been pruned, returning 0{}", logSuffix);
 			return 0;
 		}
 		MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.get(remoteHost);
@@ -925,7 +941,7 @@ public class CandidateKeyProtocol {
 		// sanity check
 		if (lastRound < matchList.firstLocalRoundNumber)
 			throw new InternalApplicationException("lastRound <= first round with remote host " + remoteHost + ". Overflow?" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		
 		float ret = ((float) matchList.numMatchingRounds) / (lastRound - matchList.firstLocalRoundNumber + 1);
 		if (ret > 1) {
@@ -937,7 +953,7 @@ public class CandidateKeyProtocol {
 		// sanity check
 		if (ret < 0)
 			throw new InternalApplicationException("Computed negative fraction with remote host " + remoteHost + ". Overflow?" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 
 			return ret;
 	}
@@ -950,8 +966,7 @@ public class CandidateKeyProtocol {
 	 */
 	public synchronized float getSumMatchEntropy(Object remoteHost) {
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.info("getSumMatchEntropy called for a remote host where no match list has yet been created or it has already been pruned, returning 0" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("getSumMatchEntropy called for a remote host where no match list has yet been created or it has already been pruned, returning 0{}", logSuffix);
 			return 0;
 		}
 		MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.get(remoteHost);
@@ -980,11 +995,11 @@ public class CandidateKeyProtocol {
 	 */
 	public synchronized CandidateKey generateKey(Object remoteHost) throws InternalApplicationException {
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.warn("generateKey called for a remote host where no match list has yet been created or it has already been pruned, returning null" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.warn("generateKey called for a remote host where no match list has yet been created or it has already been pruned, returning null{}", logSuffix);
 			return null;
 		}
 
+		Object trace = PhaseTracer.begin(PhaseTracer.CandidateKeyGenerate);
 		// assemble the key for all available parts
 		Object[] keyRet = assembleKeyFromMatches(remoteHost, -1, false);
 		byte[] keyParts = ((byte[][]) keyRet[0])[0];
@@ -995,7 +1010,9 @@ public class CandidateKeyProtocol {
 			statisticsLogger.info("g generated key for " + remoteHost + " out of " + numCopied + 
 					" matching parts; lastRound=" + lastRound + "; numMatches=" + 
 					((MatchingKeyParts) matchingKeyParts.get(remoteHost)).numMatchingRounds);
-		return generateKey(keyParts, numCopied, localIndices, remoteIndices);
+		CandidateKey key = generateKey(keyParts, numCopied, localIndices, remoteIndices);
+		PhaseTracer.end(trace, lastRound, numCopied);
+		return key;
 	}
 	
 	/** Tries to generate a key that produces the same hash from the
@@ -1026,11 +1043,18 @@ public class CandidateKeyProtocol {
 	 *         creating a key with the same hash.
 	 * @throws InternalApplicationException */
 	public synchronized CandidateKey searchKey(Object remoteHost, byte[] hash, int numParts) throws InternalApplicationException {
+		Object trace = PhaseTracer.begin(PhaseTracer.CandidateKeySearch);
+		CandidateKey key = searchKeyWithParts(remoteHost, hash, numParts);
+		PhaseTracer.end(trace, key != null ? 1 : 0, numParts);
+		return key;
+	}
+
+	/** Implements searchKey(Object, byte[], int). */
+	private CandidateKey searchKeyWithParts(Object remoteHost, byte[] hash, int numParts) throws InternalApplicationException {
 		if (hash == null)
 			throw new IllegalArgumentException("hash must be set");
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.warn("searchKey called for a remote host where no match list has yet been created or it has already been pruned, returning null" + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.warn("searchKey called for a remote host where no match list has yet been created or it has already been pruned, returning null{}", logSuffix);
 			return null;
 		}
 		
@@ -1038,21 +1062,20 @@ public class CandidateKeyProtocol {
 		if (numParts > matchList.parts.length) {
 			logger.error("Received candidate key has been created of more key parts than " + 
 					"there are in the local list of matching key parts. Can not possibly find " +
-					"a matching key. Giving up." +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					"a matching key. Giving up.{}", logSuffix);
 			return null;
 		}
 
 		if (logger.isDebugEnabled())
 			logger.debug("Trying to create key for remote '" + remoteHost + "' with hash " + 
 					new String(Hex.encodeHex(hash)) + " from " + numParts + " parts" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 
 		Object[] keyRet = assembleKeyFromMatches(remoteHost, numParts, true);
 		if (keyRet == null) {
 			if (logger.isDebugEnabled())
 				logger.debug("Could not generate key candidates with " + numParts + " parts" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			return null;
 		}
 			
@@ -1063,7 +1086,7 @@ public class CandidateKeyProtocol {
 		// sanity check
 		if (numCopied != numParts) 
 			throw new InternalApplicationException("Did not get as many parts as requestes. This should not happen" + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (statisticsLogger.isInfoEnabled())
 			statisticsLogger.info("g* generated " + keyParts.length + " candiates keys for " + remoteHost + 
 					" out of " + numCopied + " matching parts; lastRound=" + lastRound + "; numMatches=" + 
@@ -1071,32 +1094,31 @@ public class CandidateKeyProtocol {
 
 		if (logger.isDebugEnabled())
 			logger.debug("Comparing " + keyParts.length + " candidate keys" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		// and compare the target hash with hashes over all candidate keys
+		byte[] candidateHash = new byte[Hash.HashByteLength];
 		for (int i=0; i<keyParts.length; i++) {
-	       	long timestamp = System.currentTimeMillis();
-			byte[] candidateHash = Hash.doubleSHA256(keyParts[i], useJSSE);
-           	totalCryptoTime += System.currentTimeMillis()-timestamp;
-           	timestamp = System.currentTimeMillis();
+	       	long timestamp = MetricsRegistry.now();
+			Hash.doubleSHA256(keyParts[i], 0, keyParts[i].length, candidateHash, 0, useJSSE);
+           	totalCryptoTime += cryptoTimer.stop(timestamp);
+           	timestamp = MetricsRegistry.now();
            	
 			if (logger.isDebugEnabled())
 				logger.debug("Checking candidate number " + i + ": hash " + new String(Hex.encodeHex(candidateHash)) +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			boolean match = true;
 			for (int j=0; j<candidateHash.length && j<hash.length && match; j++)
 				if (candidateHash[j] != hash[j])
 					match = false;
-           	totalSearchTime += System.currentTimeMillis()-timestamp;
+           	totalSearchTime += searchTimer.stop(timestamp);
 
 			if (match) {
-				logger.info("Could generate key with same hash" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+				logger.info("Could generate key with same hash{}", logSuffix);
 				return generateKey(keyParts[i], numParts, localIndices[i], remoteIndices[i]);
 			}
 		}
 		
-		logger.info("Could not generate key with same hash" +
-				(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+		logger.info("Could not generate key with same hash{}", logSuffix);
 		return null;
 	}
 
@@ -1134,17 +1156,25 @@ public class CandidateKeyProtocol {
 	 *         creating a key with the same hash.
 	 * @throws InternalApplicationException */
 	public synchronized CandidateKey searchKey(Object remoteHost, byte[] hash, int [][] localIndices, int[][] remoteIndices) throws InternalApplicationException {
+		Object trace = PhaseTracer.begin(PhaseTracer.CandidateKeySearch);
+		CandidateKey key = searchKeyWithIndices(remoteHost, hash, localIndices, remoteIndices);
+		PhaseTracer.end(trace, key != null ? 1 : 0, localIndices.length);
+		return key;
+	}
+
+	/** Implements searchKey(Object, byte[], int[][], int[][]). */
+	private CandidateKey searchKeyWithIndices(Object remoteHost, byte[] hash, int [][] localIndices, int[][] remoteIndices) throws InternalApplicationException {
 		if (hash == null)
 			throw new IllegalArgumentException("hash must be set");
 		if (localIndices == null || remoteIndices == null)
 			throw new IllegalArgumentException("Both localIndices and remoteIndices must be set" + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (localIndices.length != remoteIndices.length)
 			throw new IllegalArgumentException("Length of local indices tuples (" + localIndices.length +
 					") does not equal length of remote indices tuples (" + remoteIndices.length + ")" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
 		/* Fallback: when we don't know all of our local indices (if any of 
 		 * them is unknown, then can't efficiently assemble the key. Instead,
 		 * fall back to a full key search.
@@ -1153,14 +1183,13 @@ public class CandidateKeyProtocol {
 		for (int i=0; i<localIndices.length && localIndicesComplete; i++)
 			if (localIndices[i][0] == -1 || localIndices[i][1] == -1)
 				localIndicesComplete = false;
-       	totalSearchTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+       	totalSearchTime += searchTimer.stop(timestamp);
+       	timestamp = MetricsRegistry.now();
 		if (! localIndicesComplete)
-			return searchKey(remoteHost, hash, localIndices.length);
+			return searchKeyWithParts(remoteHost, hash, localIndices.length);
 		
 		if (! matchingKeyParts.containsKey(remoteHost)) {
-			logger.warn("searchKey called for a remote host where no match list has yet been created or it has already been pruned, returning null" + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.warn("searchKey called for a remote host where no match list has yet been created or it has already been pruned, returning null{}", logSuffix);
 			return null;
 		}
 		
@@ -1168,8 +1197,7 @@ public class CandidateKeyProtocol {
 		if (localIndices.length > matchList.parts.length) {
 			logger.error("Received candidate key has been created of more key parts than " + 
 					"there are in the local list of matching key parts. Can not possibly find " +
-					"a matching key. Giving up." +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					"a matching key. Giving up.{}", logSuffix);
 			return null;
 		}
 
@@ -1178,7 +1206,7 @@ public class CandidateKeyProtocol {
 					new String(Hex.encodeHex(hash)) + " from " + localIndices.length + 
 					" parts with local indices " + CandidateKey.indexTuplesToString(localIndices) + 
 					" and remote indices " + CandidateKey.indexTuplesToString(remoteIndices) +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		}
 		
 		// after all the prelude, finally go through the lists of index tuples to gather the parts
@@ -1189,7 +1217,7 @@ public class CandidateKeyProtocol {
 			if (localIndices[i] == null || remoteIndices[i] == null) {
 				throw new IllegalArgumentException("Either localIndices[" + i + "] or remoteIndices[" + 
 						i + "] is null" + 
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			}
 
 			MatchingKeyPart foundPart = null;
@@ -1208,8 +1236,8 @@ public class CandidateKeyProtocol {
 					}
 				}
 
-		       	totalSearchTime += System.currentTimeMillis()-timestamp;
-		       	timestamp = System.currentTimeMillis();
+		       	totalSearchTime += searchTimer.stop(timestamp);
+		       	timestamp = MetricsRegistry.now();
 			}
 			else if (remoteIndices[i][0] >= 0 && remoteIndices[i][1] >= 0) {
 				// use the remote index tuple
@@ -1226,13 +1254,13 @@ public class CandidateKeyProtocol {
 					}
 				}
 
-		       	totalSearchTime += System.currentTimeMillis()-timestamp;
-		       	timestamp = System.currentTimeMillis();
+		       	totalSearchTime += searchTimer.stop(timestamp);
+		       	timestamp = MetricsRegistry.now();
 			}
 			else {
 				// Houston, we have a problem
 				logger.error("Both local and remote index tuples at position " + i + " are invalid. Can not construct a key" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 				return null;
 			}
 			if (foundPart == null) {
@@ -1240,7 +1268,7 @@ public class CandidateKeyProtocol {
 				// but this can happen (genuinely) when the state was wiped very recently
 				logger.info("Unable to locate matching key part at position " + i + ". Can not construct a key" + 
 						" (Maybe the matchList was recently wiped?)" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 				return null;
 			}
 
@@ -1254,7 +1282,7 @@ public class CandidateKeyProtocol {
 					logger.error("In round " + matchList.parts[i].round + ", reported two parts for key: " +
 							keyParts[j].candidateNumber + " and " + 
 							foundPart.candidateNumber + ". Can not construct a key" +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 					return null;
 				}
 			}
@@ -1263,8 +1291,8 @@ public class CandidateKeyProtocol {
 			keyParts[i] = foundPart;
 			keyPartsLength += keyParts[i].keyPart.length;
 		}
-       	totalSearchTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+       	totalSearchTime += searchTimer.stop(timestamp);
+       	timestamp = MetricsRegistry.now();
 		
 		// after getting all parts, assemble the key
 		byte[] assembledKey = new byte[keyPartsLength];
@@ -1277,19 +1305,19 @@ public class CandidateKeyProtocol {
 						keyParts[i].remoteRound + "/" + keyParts[i].remoteCandidateNumber + ": " +
 						new String(Hex.encodeHex(keyParts[i].keyPart)) + " with hash " +
 						new String(Hex.encodeHex(keyParts[i].hash)) +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 
 			System.arraycopy(keyParts[i].keyPart, 0, assembledKey, off, keyParts[i].keyPart.length);
 			off += keyParts[i].keyPart.length;
 		}
-       	totalListingTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+       	totalListingTime += listingTimer.stop(timestamp);
+       	timestamp = MetricsRegistry.now();
 		
 		// sanity check - is the hash really the same?
 		byte[] candidateHash = Hash.doubleSHA256(assembledKey, useJSSE);
 		if (logger.isDebugEnabled())
 			logger.debug("Checking assembled key parts with hash " + new String(Hex.encodeHex(candidateHash)) +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		/* Note: This is deliberately not using Arrays.equals, because we can not be 
 		 * sure that the hash will always have the full length.
 		 */
@@ -1297,18 +1325,16 @@ public class CandidateKeyProtocol {
 		for (int j=0; j<candidateHash.length && j<hash.length && match; j++)
 			if (candidateHash[j] != hash[j])
 				match = false;
-       	totalSearchTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+       	totalSearchTime += searchTimer.stop(timestamp);
+       	timestamp = MetricsRegistry.now();
 
 		if (match) {
-			logger.info("Could generate key with same hash" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.info("Could generate key with same hash{}", logSuffix);
 			// this just returns the same indices, but that's ok, we used them to construct the key
 			return generateKey(assembledKey, localIndices.length, localIndices, remoteIndices);
 		}
 		else {
-			logger.error("Key that has been assembled from given index tuples does not match" +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+			logger.error("Key that has been assembled from given index tuples does not match{}", logSuffix);
 			return null;
 		}
 	}
@@ -1323,12 +1349,12 @@ public class CandidateKeyProtocol {
 	 *         to wipe.
 	 */
 	public synchronized boolean wipe(Object remoteHost) {
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
 
 		if (matchingKeyParts.containsKey(remoteHost)) {
 			if (logger.isDebugEnabled())
 				logger.debug("Wiping key material for remote host " + remoteHost + 
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.remove(remoteHost);
 			// not only remove from list but really wipe
 			int numMatches=0;
@@ -1350,7 +1376,7 @@ public class CandidateKeyProtocol {
 			
 			// and call the garbage collector
 			System.gc();
-			totalListingTime += System.currentTimeMillis()-timestamp;
+			totalListingTime += listingTimer.stop(timestamp);
 			
 			return true;
 		}
@@ -1385,15 +1411,15 @@ public class CandidateKeyProtocol {
 	 * @throws InternalApplicationException 
 	 */
 	private synchronized Object[] assembleKeyFromMatches(Object remoteHost, int numParts, boolean extractAllCombinations) throws InternalApplicationException {
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
        	
 		if (! matchingKeyParts.containsKey(remoteHost))
 			throw new IllegalArgumentException("Called for a remote host where no match list has yet been created or it has already been pruned, this should not happen!" + 
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		if (logger.isDebugEnabled())
 			logger.debug("assembleKeyFromMatches called for remote host " + remoteHost + 
 					" for " + numParts + " parts, extractAllCombinations=" + extractAllCombinations + " in thread " + Thread.currentThread() +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+					logSuffix);
 		
 		MatchingKeyParts matchList = (MatchingKeyParts) matchingKeyParts.get(remoteHost);
 
@@ -1425,12 +1451,12 @@ public class CandidateKeyProtocol {
 								logger.info("Local round " + initialCombination[j].round + " has two matching candidates: " +
 										initialCombination[j].candidateNumber + " and " +
 										matchList.parts[i].candidateNumber + ", skipping latter" +
-										(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+										logSuffix);
 							else
 								logger.info("Remote round " + initialCombination[j].remoteRound + " has two matching candidates: " +
 										initialCombination[j].remoteCandidateNumber + " and " +
 										matchList.parts[i].remoteCandidateNumber + ", skipping latter" +
-										(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+										logSuffix);
 						}
 						else {
 							// instructed to copy all combinations, so remember duplicates
@@ -1447,7 +1473,7 @@ public class CandidateKeyProtocol {
 							if (logger.isDebugEnabled())
 								logger.debug("Adding candidate number " + matchList.parts[i].candidateNumber +
 										" as duplicate to local round " + round +
-										(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+										logSuffix);
 							// only remember the index in matchingKeyParts, that's all we need
 							alternatives.add(new Integer(i));
 						}
@@ -1467,9 +1493,9 @@ public class CandidateKeyProtocol {
 				}
 				logger.info("Could not assemble " + numParts + " key parts, only got " + numCopied +
 						" from " + numMatches + " matches in the list, encountered round numbers: " + roundNumbers +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : "") + " in thread " + Thread.currentThread());
+						logSuffix + " in thread " + Thread.currentThread());
 			}
-	       	totalListingTime += System.currentTimeMillis()-timestamp;
+	       	totalListingTime += listingTimer.stop(timestamp);
 			return null;
 		}
 		
@@ -1480,7 +1506,7 @@ public class CandidateKeyProtocol {
 		if (numParts != -1 && numCopied > numParts) {
 			if (logger.isDebugEnabled())
 				logger.debug("Collected " + numCopied + " rounds from the match list, but only want " + numParts +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : "") + " in thread " + Thread.currentThread());
+						logSuffix + " in thread " + Thread.currentThread());
 			
 			if (!extractAllCombinations) {
 				logger.warn("extractAllCombinations is set to false, but collected more parts than explicitly requested. " +
@@ -1531,7 +1557,7 @@ public class CandidateKeyProtocol {
 		// from here on, numParts will represent the number we should generate, and numCopied the number we collected
 
 		logger.info("Generating candidate key(s) from " + numParts + " matching key parts" +
-				(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : "") + " in thread + " + Thread.currentThread());
+				logSuffix + " in thread + " + Thread.currentThread());
 		// sort by round number, ascending
 		Arrays.sort(initialCombination, 0, numParts);
 		// and find out how long the resulting key(s) will be (all _must_ have exactly the same length)
@@ -1547,13 +1573,13 @@ public class CandidateKeyProtocol {
 			for (int ri=0; ri<roundNumbersToUse.length; ri++) {
 				if (logger.isDebugEnabled())
 					logger.debug("Generating all candidates for rounds combination " + ri +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 				
 				int numCombinations = 1;
 				Object[] roundsWithDuplicates = duplicateRounds.keySet().toArray();
 				if (logger.isDebugEnabled())
 					logger.debug("Found " + roundsWithDuplicates.length + " rounds with multiple candidates" +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 				for (int i=0; i<roundsWithDuplicates.length; i++) {
 					LinkedList alternativeIndices = (LinkedList) duplicateRounds.get(roundsWithDuplicates[i]);
 					/* (Large) Performance optimization: only use those rounds that are actually used for
@@ -1563,17 +1589,17 @@ public class CandidateKeyProtocol {
 						if (logger.isDebugEnabled())
 							logger.debug("Round " + roundsWithDuplicates[i] + " has " + alternativeIndices.size() + 
 									" alternatives to its first match" + 
-									(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+									logSuffix);
 						numCombinations *= (alternativeIndices.size()+1);
 					}
 					else
 						if (logger.isDebugEnabled())
 							logger.debug("Ignoring round " + roundsWithDuplicates[i] + " duplicates" +
-									(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+									logSuffix);
 				}
 				if (logger.isDebugEnabled())
 					logger.debug("Exploding into " + numCombinations + " different candidate combinations for this set of rounds" +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 			
 				MatchingKeyPart[][] tmpCombinations = new MatchingKeyPart[numCombinations][];
 				// seed with initial candidate
@@ -1594,7 +1620,7 @@ public class CandidateKeyProtocol {
 						// simple, just copy
 						if (logger.isDebugEnabled())
 							logger.debug("Round " + round + " does not have multiple candidates" +
-									(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+									logSuffix);
 						for (int j=1; j<numCombinations; j++)
 							tmpCombinations[j][i] = tmpCombinations[0][i];
 					}
@@ -1607,7 +1633,7 @@ public class CandidateKeyProtocol {
 							alternatives[k] = matchList.parts[((Integer) alternativeIndices.get(k-1)).intValue()];
 						if (logger.isDebugEnabled())
 							logger.debug("Round " + round + " has " + alternatives.length + " candidates" +
-									(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+									logSuffix);
 						/* This looks a bit tricky, but really isn't. If e.g. the numbers of alternatives for
 						 * 5 different rounds a, b, c, d, and e are 1, 2, 1, 3, and 2, respectively, it will
 						 * produce the following pattern:
@@ -1649,18 +1675,19 @@ public class CandidateKeyProtocol {
 					}
 					logger.debug("Following candidate keys have been assembled (candidate numbers for rounds " +
 							roundNumbers + "):" +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 					for (int j=0; j<numCombinations; j++) {
 						String candidateNumbers = "";
 						for (int i=0; i<numParts; i++)
 							candidateNumbers += tmpCombinations[j][i].candidateNumber + " ";
 						logger.debug("    " + candidateNumbers +
-								(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+								logSuffix);
 					}
 				}
 				// need to convert to a nice array now...
-				logger.debug("All combinations (explosions into outer explosion) yielded " + numAllCombinations + " candidates" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+				if (logger.isDebugEnabled())
+					logger.debug("All combinations (explosions into outer explosion) yielded " + numAllCombinations + " candidates" +
+							logSuffix);
 			}
 			allCombinations = new MatchingKeyPart[numAllCombinations][];
 			int i=0;
@@ -1682,7 +1709,7 @@ public class CandidateKeyProtocol {
 					roundNumbers += " ";
 				}
 				logger.debug("Using only first matches in each of the rounds " + roundNumbers + "to create a single candidate key" +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 			}
 			allCombinations = new MatchingKeyPart[1][];
 			allCombinations[0] = new MatchingKeyPart[numParts];
@@ -1708,7 +1735,7 @@ public class CandidateKeyProtocol {
 							allCombinations[i][j].remoteRound + "/" + allCombinations[i][j].remoteCandidateNumber + ": " +
 							new String(Hex.encodeHex(allCombinations[i][j].keyPart)) + " with hash " +
 							new String(Hex.encodeHex(allCombinations[i][j].hash)) +
-							(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+							logSuffix);
 
 				System.arraycopy(allCombinations[i][j].keyPart, 0, keyParts[i], outPos, 
 						allCombinations[i][j].keyPart.length);
@@ -1723,9 +1750,9 @@ public class CandidateKeyProtocol {
 			}
 			if (logger.isDebugEnabled()) 
 				logger.debug("Concatenated " + allCombinations[i].length + " key parts to candidate key " + i + ": " + new String(Hex.encodeHex(keyParts[i])) +
-						(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
+						logSuffix);
 		}
-       	totalListingTime += System.currentTimeMillis()-timestamp;
+       	totalListingTime += listingTimer.stop(timestamp);
 
 		// I hate Java
 		return new Object[] {keyParts, new Integer(numParts), localIndices, remoteIndices };
@@ -1834,7 +1861,7 @@ public class CandidateKeyProtocol {
 	 * by calculating the two hashes.
 	 */
 	private CandidateKey generateKey(byte[] keyParts, int numParts, int[][] localIndices, int[][] remoteIndices) throws InternalApplicationException {
-       	long timestamp = System.currentTimeMillis();
+       	long timestamp = MetricsRegistry.now();
 
 		/* do two hashes over it, one for comparing, the other for generating the
 		 * actual shared key for subsequent secure channel setup
@@ -1844,13 +1871,18 @@ public class CandidateKeyProtocol {
 		 * from searchKey)
 		 */
 		ret.hash = Hash.doubleSHA256(keyParts, useJSSE);
-		// the real shared key is <the key parts> concatenated with the MAGIC_COOKIE
+		/* the real shared key is <the key parts> concatenated with the MAGIC_COOKIE,
+		 * hashed incrementally as SHAd256(m) = SHA256( SHA256(m) | m ) without 
+		 * creating the concatenation */
 		byte[] cookie = MAGIC_COOKIE.getBytes();
-		byte[] keyPartsModified = new byte[keyParts.length + cookie.length];
-		System.arraycopy(keyParts, 0, keyPartsModified, 0, keyParts.length);
-		System.arraycopy(cookie, 0, keyPartsModified, keyParts.length,
-				cookie.length);
-		ret.key = Hash.doubleSHA256(keyPartsModified, useJSSE);
+		Hash h = Hash.getThreadInstance(useJSSE);
+		h.update(keyParts);
+		h.update(cookie);
+		ret.key = h.doFinal();
+		h.update(ret.key);
+		h.update(keyParts);
+		h.update(cookie);
+		h.hashInto(ret.key, 0);
 		ret.numParts = numParts;
 		ret.localIndices = localIndices;
 		ret.remoteIndices = remoteIndices;
@@ -1859,8 +1891,8 @@ public class CandidateKeyProtocol {
 			logger.debug("Generated key " + new String(Hex.encodeHex(ret.key)) +
 					" with hash " + new String(Hex.encodeHex(ret.hash)) +
 					" from " + ret.numParts + " assembled parts " + new String(Hex.encodeHex(keyParts)) +
-					(remoteIdentifier != null ? " [" + remoteIdentifier + "]" : ""));
-       	totalCryptoTime += System.currentTimeMillis()-timestamp;
+					logSuffix);
+       	totalCryptoTime += cryptoTimer.stop(timestamp);
 		
 		return ret;
 	}
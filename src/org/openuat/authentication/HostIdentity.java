@@ -0,0 +1,87 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-21
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.authentication;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openuat.authentication.exceptions.InternalApplicationException;
+import org.openuat.authentication.exceptions.KeyAgreementProtocolException;
+
+/** This class holds everything that HostProtocolHandler needs to know about
+ * a permanent local Diffie-Hellman key pair, computed once: the public key,
+ * its hex encoding as sent in the protocol, and the commitment to it (i.e.
+ * the pre-authentication message). It is immutable and is shared by all
+ * protocol runs of a server that uses a permanent key agreement instance,
+ * each of which only gets its own, cheap copy of the Diffie-Hellman state
+ * via createKeyAgreement.
+ *
+ * @see HostProtocolHandler#HostProtocolHandler(org.openuat.channel.main.RemoteConnection, java.util.Vector, HostIdentity, int, boolean, boolean)
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class HostIdentity {
+	/** The key agreement instance holding the permanent local key pair. It
+	 * is only used as a template for createKeyAgreement.
+	 */
+	private SimpleKeyAgreement permanentKeyAgreement;
+
+	/** Our public key. */
+	private byte[] publicKey;
+
+	/** Our public key, hex-encoded for the protocol. */
+	private String encodedPublicKey;
+
+	/** The commitment to our public key. */
+	private byte[] commitment;
+
+	/** Computes the identity for a permanent key agreement instance.
+	 * @param permanentKeyAgreement The key agreement instance to use. It
+	 *        must have been constructed with permanentLocalKeyPair=true.
+	 * @param useJSSE If set to true, the JSSE API with the default JCE provider of the JVM will be used
+	 *                for cryptographic operations. If set to false, an internal copy of the Bouncycastle
+	 *                Lightweight API classes will be used.
+	 * @throws InternalApplicationException
+	 * @throws KeyAgreementProtocolException
+	 */
+	public HostIdentity(SimpleKeyAgreement permanentKeyAgreement, boolean useJSSE)
+			throws InternalApplicationException, KeyAgreementProtocolException {
+		if (permanentKeyAgreement == null)
+			throw new IllegalArgumentException("Permanent key agreement instance can not be null");
+		this.permanentKeyAgreement = permanentKeyAgreement;
+		// fails early if the instance does not support a permanent local key pair
+		permanentKeyAgreement.createSessionCopy().wipeSession();
+		publicKey = permanentKeyAgreement.getPublicKey();
+		encodedPublicKey = new String(Hex.encodeHex(publicKey));
+		commitment = HostProtocolHandler.commitment(publicKey, useJSSE);
+	}
+
+	/** Returns our public key. The returned array is shared and must not be modified. */
+	public byte[] getPublicKey() {
+		return publicKey;
+	}
+
+	/** Returns our public key in hex encoding. */
+	public String getEncodedPublicKey() {
+		return encodedPublicKey;
+	}
+
+	/** Returns the commitment to our public key. The returned array is
+	 * shared and must not be modified. */
+	public byte[] getCommitment() {
+		return commitment;
+	}
+
+	/** Returns a new key agreement instance for one protocol run that uses
+	 * the permanent local key pair.
+	 * @see SimpleKeyAgreement#createSessionCopy
+	 */
+	public SimpleKeyAgreement createKeyAgreement()
+			throws KeyAgreementProtocolException, InternalApplicationException {
+		return permanentKeyAgreement.createSessionCopy();
+	}
+}
@@ -9,10 +9,11 @@
  */
 package org.openuat.authentication;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 import java.util.Vector;
@@ -20,6 +21,8 @@ import java.util.Vector;
 import org.openuat.authentication.exceptions.*;
 import org.openuat.channel.main.ProtocolCommandHandler;
 import org.openuat.channel.main.RemoteConnection;
+import org.openuat.util.EntropyService;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.Hash;
 import org.openuat.util.LineReaderWriter;
 import org.openuat.util.SafetyBeltTimer;
@@ -27,6 +30,10 @@ import org.openuat.util.SafetyBeltTimer;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
+import org.openuat.log.Counter;
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
+import org.openuat.log.PhaseTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -128,6 +135,15 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	 */
 	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.uacap");
 
+	/** The time spent in each message transfer of a protocol run, in ns. */
+	private static final LatencyHistogram transferTimer = MetricsRegistry.timer("uacap.transfer");
+	/** The time spent in each cryptographic step of a protocol run, in ns. */
+	private static final LatencyHistogram cryptoTimer = MetricsRegistry.timer("uacap.crypto");
+	/** The duration of successful protocol runs, in ns. */
+	private static final LatencyHistogram handshakeTimer = MetricsRegistry.timer("uacap.handshake");
+	/** The number of bytes/chars transferred in successful protocol runs. */
+	private static final Counter transferSizeCounter = MetricsRegistry.counter("uacap.transfer.size");
+
 	/** The byte length to use for keys, random nonces, and hashes. */ 
 	private static final int NonceByteLength = 16;
 
@@ -136,6 +152,12 @@ public class HostProtocolHandler extends AuthenticationEventSender {
     /** This is the protocol and version string to identify which protocol we 
      * expect. May be changed for future improvements. */
 	public final static String ProtocolTypeMaDH = "UACAP-1.0";
+    /** This is the protocol and version string that a client sends instead
+     * of ProtocolTypeMaDH to request binary framing. The request line is then
+     * directly followed by binary frames, and all further messages in both 
+     * directions are binary frames.
+     * @see #setBinaryFraming(boolean) */
+	public final static String ProtocolTypeMaDHBinary = "UACAP-2.0";
 
     /** @see #Protocol_Hello */
     public static final String Protocol_AuthenticationRequest = "AUTHREQ ";
@@ -153,6 +175,42 @@ public class HostProtocolHandler extends AuthenticationEventSender {
     public static final String Protocol_AuthenticationInputOpen = "AUTHINPOPEN ";
 
 
+    /** The message types of binary frames. Each frame starts with the type
+     * byte, followed by the length of the fields as 2 bytes in big endian. 
+     * The fields are encoded as a tag byte, 2 bytes length and the raw value.
+     * @see #ProtocolTypeMaDHBinary */
+    private static final byte Frame_AuthenticationRequest = 1;
+    /** @see #Frame_AuthenticationRequest */
+    private static final byte Frame_AuthenticationAcknowledge = 2;
+    /** @see #Frame_AuthenticationRequest */
+    private static final byte Frame_AuthenticationAcknowledge2 = 3;
+    /** @see #Frame_AuthenticationRequest */
+    private static final byte Frame_AuthenticationInputCommit = 4;
+    /** @see #Frame_AuthenticationRequest */
+    private static final byte Frame_AuthenticationInputOpen = 5;
+    /** @see #Frame_AuthenticationRequest */
+    private static final byte Frame_Error = 0x7f;
+
+    /** The field tags of binary frames. */
+    private static final int Field_Id = 1;
+    /** @see #Field_Id */
+    private static final int Field_Commitment = 2;
+    /** @see #Field_Id */
+    private static final int Field_PublicKey = 3;
+    /** @see #Field_Id */
+    private static final int Field_Param = 4;
+    /** @see #Field_Id */
+    private static final int Field_Mac = 5;
+    /** @see #Field_Id */
+    private static final int Field_Key = 6;
+    /** @see #Field_Id */
+    private static final int Field_Text = 7;
+    /** The highest field tag that is understood. Others are ignored. */
+    private static final int MaxFieldTag = 7;
+
+    /** The length of the header of a binary frame and of a field. */
+    private static final int FrameHeaderLength = 3;
+
     /** At the moment, the whole protocol consists of 5 stages. */
     public static final int AuthenticationStages = 5;
     
@@ -184,6 +242,12 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	 */
 	protected boolean dontWipeKeyAgreement = false;
 	
+	/** If set, keyAgreement, myPublicKey and the commitment are taken from
+	 * this precomputed identity, which is shared with concurrent protocol 
+	 * runs. keyAgreement is then a copy for this protocol run only.
+	 */
+	protected HostIdentity identity = null;
+	
     /** The (already opened) connection used to communicate with the remote end, for both incoming and outgoing connections. */
     protected RemoteConnection connection;
     /** If set to false, connection will be closed after the protocol finished
@@ -204,9 +268,24 @@ public class HostProtocolHandler extends AuthenticationEventSender {
     protected OutputStreamWriter toRemote;
     /** The stream to receive messages from the remote end. */
     protected InputStream fromRemote;
+    /** The raw stream to send binary frames to the remote end. */
+    protected OutputStream toRemoteRaw;
+    /** If true, binary frames are used instead of text lines. On the client
+     * side, this is set before the protocol starts to request binary 
+     * framing, on the server side it is set when the client requested it.
+     * @see #ProtocolTypeMaDHBinary */
+    protected boolean binaryFraming = false;
+    /** Binary frames (and the request line) that have been composed but not
+     * yet sent. They are sent with a single write before waiting for the 
+     * next message from the remote, so that subsequent steps are pipelined. */
+    private ByteArrayOutputStream pendingFrames = null;
+    /** The reusable buffer for receiving binary frames. */
+    private byte[] frameBuffer = null;
     /** The number of bytes that have been transferred in both directions. 
      * At the moment, this counts ASCII bytes. */
     protected int totalTransferSize = 0;
+    /** The value of totalTransferSize when the currently traced stage began. */
+    private int tracedTransferSize = 0;
 
     /** If defined, then this protocol drives the overall authentication in 
      * Hollywood style and can automatically select optional protocol steps
@@ -323,6 +402,24 @@ public class HostProtocolHandler extends AuthenticationEventSender {
     		this.dontWipeKeyAgreement = true;
     }
 
+    /** This constructor is equivalent to the one taking a permanent key 
+     * agreement instance, but uses a precomputed identity that can be shared
+     * between concurrent protocol runs. The public key, its encoding and the
+     * commitment are not recomputed, and each protocol run only creates a
+     * copy of the Diffie-Hellman state.
+     * @param identity The precomputed identity to use. May be null, in which 
+     *        case a new, ephemeral key agreement instance will be created 
+     *        during the protocol run.
+     * @see #HostProtocolHandler(RemoteConnection, Vector, SimpleKeyAgreement, int, boolean, boolean)
+     */
+    public HostProtocolHandler(RemoteConnection con, 
+    		Vector presharedShortSecrets, HostIdentity identity, 
+    		int timeoutMs, boolean keepConnected, boolean useJSSE) {
+    	this(con, timeoutMs, keepConnected, useJSSE);
+    	this.presharedShortSecrets = presharedShortSecrets;
+    	this.identity = identity;
+    }
+
 /*    public HostProtocolHandler(OOBChannel oobChannel, RemoteConnection con, int timeoutMs, 
     		boolean keepConnected, boolean useJSSE) {
     	this(con, timeoutMs, keepConnected, useJSSE);
@@ -577,6 +674,160 @@ public class HostProtocolHandler extends AuthenticationEventSender {
         return ret;
     }
 
+    /** Requests binary framing instead of text lines for the outgoing 
+     * protocol run. This must be set before the protocol starts and has no
+     * effect for incoming protocol runs, where the framing is chosen by the
+     * client. Only request binary framing from servers that support 
+     * ProtocolTypeMaDHBinary, older servers will reject the request.
+     */
+    public void setBinaryFraming(boolean binaryFraming) {
+    	this.binaryFraming = binaryFraming;
+    }
+
+    /** Returns true if binary framing is requested or has been negotiated. */
+    public boolean getBinaryFraming() {
+    	return binaryFraming;
+    }
+
+    /** Returns how binary values are encoded with the framing in use, for
+     * protocol error messages. */
+    private String valueEncoding() {
+    	return binaryFraming ? "as a binary frame field" : "hex-encoded";
+    }
+
+    /** Sends a protocol error message to the remote, as a text line or as an
+     * error frame depending on the framing in use. */
+    protected void sendError(String msg) throws IOException {
+    	if (binaryFraming) {
+    		sendFrame(Frame_Error, new int[] {Field_Text}, new byte[][] {msg.getBytes()});
+    		flushFrames();
+    	}
+    	else
+    		println(msg);
+    }
+
+    /** Composes a binary frame and appends it to the pending frames, which
+     * are sent by flushFrames.
+     * @param type The message type.
+     * @param tags The tags of the fields to send.
+     * @param values The values of the fields, in the same order as tags. 
+     *               Fields with null values are skipped.
+     */
+    protected void sendFrame(byte type, int[] tags, byte[][] values) {
+    	int len = 0;
+    	for (int i=0; i<tags.length; i++)
+    		if (values[i] != null)
+    			len += FrameHeaderLength + values[i].length;
+    	if (len > 0xffff)
+    		throw new IllegalArgumentException("Frame too long: " + len + " bytes");
+    	if (pendingFrames == null)
+    		pendingFrames = new ByteArrayOutputStream(FrameHeaderLength + len);
+    	writeHeader(type, len);
+    	for (int i=0; i<tags.length; i++) {
+    		if (values[i] != null) {
+    			writeHeader((byte) tags[i], values[i].length);
+    			pendingFrames.write(values[i], 0, values[i].length);
+    		}
+    	}
+    	totalTransferSize += FrameHeaderLength + len;
+    }
+
+    /** Appends a type or tag byte and a 2 byte length to the pending frames. */
+    private void writeHeader(byte type, int len) {
+    	pendingFrames.write(type);
+    	pendingFrames.write((len >> 8) & 0xff);
+    	pendingFrames.write(len & 0xff);
+    }
+
+    /** Sends all pending frames with a single write. */
+    protected void flushFrames() throws IOException {
+    	if (pendingFrames == null || pendingFrames.size() == 0)
+    		return;
+    	toRemoteRaw.write(pendingFrames.toByteArray());
+    	toRemoteRaw.flush();
+    	pendingFrames.reset();
+    }
+
+    /** Reads exactly len bytes from the remote into frameBuffer. */
+    private void readFully(int len) throws IOException {
+    	if (frameBuffer == null || frameBuffer.length < len)
+    		frameBuffer = new byte[len > 512 ? len : 512];
+    	int off = 0;
+    	while (off < len) {
+    		if (off == 0 && timeoutMs > 0) {
+    			// wait for the first byte with the timeout, the rest follows quickly
+    			int b = LineReaderWriter.readWithTimeout(fromRemote, timeoutMs);
+    			if (b == -1)
+    				throw new IOException("Remote closed connection while reading frame");
+    			frameBuffer[off++] = (byte) b;
+    			continue;
+    		}
+    		int r = fromRemote.read(frameBuffer, off, len-off);
+    		if (r < 0)
+    			throw new IOException("Remote closed connection while reading frame");
+    		off += r;
+    	}
+    }
+
+    /** Receives a binary frame from the remote host, after sending all 
+	 * pending frames. If the frame could not be received, is of an 
+	 * unexpected type or misses mandatory fields, an AuthenticationFailure 
+	 * event is raised.
+	 * 
+	 * @param expectedType The message type that is expected.
+	 * @param mandatoryFields The tags of the fields that must be present.
+	 * @return The received fields indexed by their tag (with null for 
+	 *         fields that were not present), or null on errors.
+	 * @throws IOException
+	 */
+    protected byte[][] receiveFrame(byte expectedType, int[] mandatoryFields) throws IOException {
+    	flushFrames();
+    	readFully(FrameHeaderLength);
+    	byte type = frameBuffer[0];
+    	int len = ((frameBuffer[1] & 0xff) << 8) | (frameBuffer[2] & 0xff);
+    	readFully(len);
+    	totalTransferSize += FrameHeaderLength + len;
+
+    	byte[][] fields = new byte[MaxFieldTag+1][];
+    	int off = 0;
+    	while (off + FrameHeaderLength <= len) {
+    		int tag = frameBuffer[off] & 0xff;
+    		int fieldLen = ((frameBuffer[off+1] & 0xff) << 8) | (frameBuffer[off+2] & 0xff);
+    		off += FrameHeaderLength;
+    		if (off + fieldLen > len)
+    			break;
+    		// unknown fields are skipped for extensibility
+    		if (tag <= MaxFieldTag) {
+    			fields[tag] = new byte[fieldLen];
+    			System.arraycopy(frameBuffer, off, fields[tag], 0, fieldLen);
+    		}
+    		off += fieldLen;
+    	}
+
+    	String err = null;
+    	if (off != len)
+    		err = "Protocol error: malformed frame of type " + type;
+    	else if (type == Frame_Error)
+    		err = "Protocol error: remote reported '" + 
+    			(fields[Field_Text] != null ? new String(fields[Field_Text]) : "") + "'";
+    	else if (type != expectedType)
+    		err = "Protocol error: unexpected frame of type " + type + " instead of " + expectedType;
+    	else
+    		for (int i=0; i<mandatoryFields.length && err == null; i++)
+    			if (fields[mandatoryFields[i]] == null)
+    				err = "Protocol error: frame of type " + type + " misses field " + mandatoryFields[i];
+    	if (err != null) {
+    		logger.warn(err);
+    		// don't answer the remote's error message with another one
+    		if (type != Frame_Error)
+    			sendError(err);
+    		raiseAuthenticationFailureEvent(connection, null, err);
+    		shutdownConnectionCleanly();
+    		return null;
+    	}
+    	return fields;
+    }
+
 	/** This method implements the simplest possible commitment scheme for
 	 * public Diffie-Hellman keys: a hash value on the key. There is no 
 	 * security proof for this scheme yet, as discussed in the original
@@ -626,6 +877,18 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 		return Hash.hmacSHA256(oobInput, oobKey, useJSSE);
 	}
     
+    /** Ends the trace of a protocol stage and begins the next one.
+     * @see PhaseTracer#ProtocolStage
+     * @param trace The handle of the current stage, may be null.
+     * @param stage The number of the stage that has just been finished.
+     * @return The handle for the next stage, or null if it is not traced.
+     */
+    private Object traceStage(Object trace, int stage) {
+    	PhaseTracer.end(trace, stage, totalTransferSize - tracedTransferSize);
+    	tracedTransferSize = totalTransferSize;
+    	return stage < AuthenticationStages ? PhaseTracer.begin(PhaseTracer.ProtocolStage) : null;
+    }
+
     /** This method depends on prior initialization and assumes to be launched
 	 * in an independent thread, i.e. it performs blocking operations. It
 	 * assumes that the socket variable already contains a valid, connected
@@ -677,8 +940,10 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	 */
     protected void performAuthenticationProtocol(boolean serverSide) {
         String inOrOut, serverToClient, clientToServer, remoteAddr=null;
-        int totalTransferTime=0, totalCryptoTime=0;
-        long timestamp=0;
+        // in ns
+        long totalTransferTime=0, totalCryptoTime=0;
+        long timestamp=0, runStart=MetricsRegistry.now();
+        Object stageTrace = traceStage(null, 0);
         
         try {
 			remoteAddr = connection.getRemoteAddress().toString();
@@ -709,7 +974,8 @@ public class HostProtocolHandler extends AuthenticationEventSender {
         {
         	fromRemote = connection.getInputStream();
             // this enables auto-flush
-            toRemote = new OutputStreamWriter(connection.getOutputStream());
+            toRemoteRaw = connection.getOutputStream();
+            toRemote = new OutputStreamWriter(toRemoteRaw);
 
             // now that we have the InputStream, bind our timer to it
             if (timeoutMs > 0)
@@ -726,17 +992,17 @@ public class HostProtocolHandler extends AuthenticationEventSender {
                     return;
                 }
         	}
+            stageTrace = traceStage(stageTrace, 1);
             raiseAuthenticationProgressEvent(connection, 1, AuthenticationStages, inOrOut + " authentication connection, " + serverToClient + " greeting");
 
-           	timestamp = System.currentTimeMillis();
+           	timestamp = MetricsRegistry.now();
            	
     		/* Both sides add a random nonce to refer to this specific session
     		 * to prevent two overlapping protocol runs with the same ida and
     		 * idb.
     		 */
-            SecureRandom r = new SecureRandom();
             byte[] nonce = new byte[NonceByteLength];
-            r.nextBytes(nonce);
+            EntropyService.nextBytes(nonce);
             // TODO: we should really add our own address to the ID!
             String myIdStr = new String(Hex.encodeHex(nonce));
 
@@ -745,120 +1011,221 @@ public class HostProtocolHandler extends AuthenticationEventSender {
             	// step 1: Alice computes her public key and sends the commitment
             	byte[] myCommitment = getPublicKeyCommitment();
             	String commitment = new String(Hex.encodeHex(myCommitment));
-               	totalCryptoTime += System.currentTimeMillis()-timestamp;
-               	timestamp = System.currentTimeMillis();
-            	println(Protocol_AuthenticationRequest + ProtocolTypeMaDH + 
+               	totalCryptoTime += cryptoTimer.stop(timestamp);
+               	timestamp = MetricsRegistry.now();
+               	if (binaryFraming) {
+               		// the request line and the first frame go out with a single write
+               		String request = Protocol_AuthenticationRequest + ProtocolTypeMaDHBinary + "\n";
+               		pendingFrames = new ByteArrayOutputStream();
+               		pendingFrames.write(request.getBytes(), 0, request.length());
+               		totalTransferSize += request.length();
+               		sendFrame(Frame_AuthenticationRequest, 
+               				new int[] {Field_Id, Field_Commitment, Field_Param}, 
+               				new byte[][] {nonce, myCommitment, 
+               				optionalParameter != null ? optionalParameter.getBytes() : null});
+               		flushFrames();
+               	}
+               	else
+               		println(Protocol_AuthenticationRequest + ProtocolTypeMaDH + 
             			" " + myIdStr + " " + commitment +
             			(optionalParameter != null ? " " + 
             			 Protocol_AuthenticationRequest_Param + " " + 
             			 optionalParameter : ""));
-               	totalTransferTime += System.currentTimeMillis()-timestamp;
+               	totalTransferTime += transferTimer.stop(timestamp);
             }
             else {
             	// step 1, part 2: Bob receives Alice's commitment
             	String expectedMsg = Protocol_AuthenticationRequest + 
    			 		ProtocolTypeMaDH;
-            	String line = getLine(expectedMsg, connection, true);
-            	Object[] parms = parseLine(line, expectedMsg, 
-            			new boolean[] {true, true, false, false}, 
-            			new String[] {null, null, Protocol_AuthenticationRequest_Param, null}, 
-            			2, connection);
-            	if (parms == null) {
-                    return;
+            	// the client chooses the framing with the protocol version
+            	binaryFraming = false;
+            	String line = getLine(Protocol_AuthenticationRequest, connection, true);
+            	if (line == null) {
+            		return;
+            	}
+            	if (line.equals(Protocol_AuthenticationRequest + ProtocolTypeMaDHBinary)) {
+            		binaryFraming = true;
+            		byte[][] fields = receiveFrame(Frame_AuthenticationRequest, 
+            				new int[] {Field_Id, Field_Commitment});
+            		if (fields == null) {
+            			return;
+            		}
+            		remoteId = fields[Field_Id];
+            		remoteCommitment = fields[Field_Commitment];
+            		if (remoteId.length != NonceByteLength) {
+            			logger.warn("Protocol error: remote ID has " + remoteId.length + " bytes instead of " + NonceByteLength);
+            			sendError("Protocol error: could not parse ID, expected " + NonceByteLength + " Bytes.");
+            			raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote ID has wrong length");
+            			shutdownConnectionCleanly();
+            			return;
+            		}
+            		optionalParameter = fields[Field_Param] != null ? 
+            				new String(fields[Field_Param]) : null;
+            	}
+            	else {
+            		if (!line.startsWith(expectedMsg)) {
+            			logger.warn("Protocol error: unkown message '" + line + "'");
+            			println("Protocol error: unknown message: '" + line + "'");
+            			raiseAuthenticationFailureEvent(connection, null, "Protocol error: unknown message");
+            			shutdownConnectionCleanly();
+            			return;
+            		}
+            		Object[] parms = parseLine(line, expectedMsg, 
+            				new boolean[] {true, true, false, false}, 
+            				new String[] {null, null, Protocol_AuthenticationRequest_Param, null}, 
+            				2, connection);
+            		if (parms == null) {
+            			return;
+            		}
+
+            		// first part is the remote ID part
+            		remoteId = (byte[]) parms[0];
+            		// next part is the commitment, which may be the last one
+            		remoteCommitment = (byte[]) parms[1];
+            		// additional parameter from the remote?
+            		optionalParameter = (String) parms[3];
+            	}
+            	// an empty or short commitment would skip the check against the public key
+            	if (remoteCommitment.length != Hash.HashByteLength) {
+            		logger.warn("Protocol error: remote commitment has " + remoteCommitment.length + " bytes instead of " + Hash.HashByteLength);
+            		sendError("Protocol error: could not parse commitment, expected " + Hash.HashByteLength + " Bytes " + valueEncoding() + ".");
+            		raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote commitment has wrong length");
+            		shutdownConnectionCleanly();
+            		return;
             	}
-            		
-            	// first part is the remote ID part
-                remoteId = (byte[]) parms[0];
-                // next part is the commitment, which may be the last one
-               	remoteCommitment = (byte[]) parms[1];
-                // additional parameter from the remote?
-               	optionalParameter = (String) parms[3];
                	if (optionalParameter != null && logger.isDebugEnabled())
                		logger.debug("Received optional parameter from client: '" + optionalParameter + "'.");
-               	totalTransferTime += System.currentTimeMillis()-timestamp;
+               	totalTransferTime += transferTimer.stop(timestamp);
             }
+            stageTrace = traceStage(stageTrace, 2);
             raiseAuthenticationProgressEvent(connection, 2, AuthenticationStages, inOrOut + " authentication connection, " + clientToServer + " public key");
 
-           	timestamp = System.currentTimeMillis();
+           	timestamp = MetricsRegistry.now();
             if (serverSide) {
             	// step 2: Bob sends his public key and ID
                 // for performance reasons: only now start the DH phase
             	getPublicKeyCommitment();
-            	String myPubKeyStr = new String(Hex.encodeHex(myPublicKey));
-               	totalCryptoTime += System.currentTimeMillis()-timestamp;
-               	timestamp = System.currentTimeMillis();
-            	println(Protocol_AuthenticationAcknowledge + myIdStr + " " + myPubKeyStr);
-               	totalTransferTime += System.currentTimeMillis()-timestamp;
+            	String myPubKeyStr = identity != null ? identity.getEncodedPublicKey() :
+            		new String(Hex.encodeHex(myPublicKey));
+               	totalCryptoTime += cryptoTimer.stop(timestamp);
+               	timestamp = MetricsRegistry.now();
+            	if (binaryFraming)
+            		// sent together with the next message or when waiting for the client
+            		sendFrame(Frame_AuthenticationAcknowledge, 
+            				new int[] {Field_Id, Field_PublicKey}, new byte[][] {nonce, myPublicKey});
+            	else
+            		println(Protocol_AuthenticationAcknowledge + myIdStr + " " + myPubKeyStr);
+               	totalTransferTime += transferTimer.stop(timestamp);
             }
             else {
             	// step 2, part 2: Alice receives Bob's ID and public key
-            	String expectedMsg = Protocol_AuthenticationAcknowledge;
-            	String line = getLine(expectedMsg, connection, false);
-            	Object[] parms = parseLine(line, expectedMsg, 
-            			new boolean[] {true, true}, null, 2, connection);
-            	if (parms == null) {
-                    return;
+            	if (binaryFraming) {
+            		byte[][] fields = receiveFrame(Frame_AuthenticationAcknowledge, 
+            				new int[] {Field_Id, Field_PublicKey});
+            		if (fields == null) {
+            			return;
+            		}
+            		remoteId = fields[Field_Id];
+            		remotePubKey = fields[Field_PublicKey];
+            		if (remoteId.length != NonceByteLength) {
+            			logger.warn("Protocol error: remote ID has " + remoteId.length + " bytes instead of " + NonceByteLength);
+            			sendError("Protocol error: could not parse ID, expected " + NonceByteLength + " Bytes.");
+            			raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote ID has wrong length");
+            			shutdownConnectionCleanly();
+            			return;
+            		}
+            	}
+            	else {
+            		String expectedMsg = Protocol_AuthenticationAcknowledge;
+            		String line = getLine(expectedMsg, connection, false);
+            		Object[] parms = parseLine(line, expectedMsg, 
+            				new boolean[] {true, true}, null, 2, connection);
+            		if (parms == null) {
+            			return;
+            		}
+
+            		// first part is the remote ID part
+            		remoteId = (byte[]) parms[0];
+            		// second part is the remote public key
+            		remotePubKey = (byte[]) parms[1];
             	}
-            	
-            	// first part is the remote ID part
-               	remoteId = (byte[]) parms[0];
-               	// second part is the remote public key
-               	remotePubKey = (byte[]) parms[1];
                 if (remotePubKey.length < 128) {
-                    logger.warn("Protocol error: could not parse public key, expected 128 Bytes hex-encoded.");
-                    println("Protocol error: could not parse public key, expected 128 Bytes hex-encoded.");
+                    logger.warn("Protocol error: could not parse public key, expected 128 Bytes " + valueEncoding() + ".");
+                    sendError("Protocol error: could not parse public key, expected 128 Bytes " + valueEncoding() + ".");
                     raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote key too short (only " + remotePubKey.length + " bytes instead of 128)");
                     shutdownConnectionCleanly();
                     return;
                 }
-                totalTransferTime += System.currentTimeMillis()-timestamp;
+                totalTransferTime += transferTimer.stop(timestamp);
             }
+            stageTrace = traceStage(stageTrace, 3);
             raiseAuthenticationProgressEvent(connection, 3, AuthenticationStages, inOrOut + " authentication connection, " + serverToClient + " public key");
 
-           	timestamp = System.currentTimeMillis();
+           	timestamp = MetricsRegistry.now();
             if (!serverSide) {
             	// step 3: Alice sends her public key
-            	String myPubKeyStr = new String(Hex.encodeHex(myPublicKey));
-            	println(Protocol_AuthenticationAcknowledge2 + myPubKeyStr);
-               	totalTransferTime += System.currentTimeMillis()-timestamp;            	
+            	String myPubKeyStr = identity != null ? identity.getEncodedPublicKey() :
+            		new String(Hex.encodeHex(myPublicKey));
+            	if (binaryFraming) {
+            		sendFrame(Frame_AuthenticationAcknowledge2, 
+            				new int[] {Field_PublicKey}, new byte[][] {myPublicKey});
+            		/* With a preshared secret, the input commitment follows 
+            		 * immediately and is sent in the same write. Otherwise, 
+            		 * there may be no further message to wait for. */
+            		if (presharedShortSecrets == null || presharedShortSecrets.size() == 0)
+            			flushFrames();
+            	}
+            	else
+            		println(Protocol_AuthenticationAcknowledge2 + myPubKeyStr);
+               	totalTransferTime += transferTimer.stop(timestamp);            	
             }
             else {
             	// step 3, part 2: Bob receives Alice's public key
-            	String expectedMsg = Protocol_AuthenticationAcknowledge2;
-            	String line = getLine(expectedMsg, connection, false);
-            	Object[] parms = parseLine(line, expectedMsg, 
-            			new boolean[] {true}, null, 1, connection);
-            	if (parms == null) {
-                    return;
+            	if (binaryFraming) {
+            		byte[][] fields = receiveFrame(Frame_AuthenticationAcknowledge2, 
+            				new int[] {Field_PublicKey});
+            		if (fields == null) {
+            			return;
+            		}
+            		remotePubKey = fields[Field_PublicKey];
+            	}
+            	else {
+            		String expectedMsg = Protocol_AuthenticationAcknowledge2;
+            		String line = getLine(expectedMsg, connection, false);
+            		Object[] parms = parseLine(line, expectedMsg, 
+            				new boolean[] {true}, null, 1, connection);
+            		if (parms == null) {
+            			return;
+            		}
+
+            		// first and only part is the remote public key
+            		remotePubKey = (byte[]) parms[0];
             	}
-            	
-            	// first and only part is the remote public key
-               	remotePubKey = (byte[]) parms[0];
                 if (remotePubKey.length < 128) {
-                    logger.warn("Protocol error: could not parse public key, expected 128 Bytes hex-encoded.");
-                    println("Protocol error: could not parse public key, expected 128 Bytes hex-encoded.");
+                    logger.warn("Protocol error: could not parse public key, expected 128 Bytes " + valueEncoding() + ".");
+                    sendError("Protocol error: could not parse public key, expected 128 Bytes " + valueEncoding() + ".");
                     raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote key too short (only " + remotePubKey.length + " bytes instead of 128)");
                     shutdownConnectionCleanly();
                     return;
                 }
                 // and check that it matches the commitment
-                totalTransferTime += System.currentTimeMillis()-timestamp;
-               	timestamp = System.currentTimeMillis();
+                totalTransferTime += transferTimer.stop(timestamp);
+               	timestamp = MetricsRegistry.now();
                	byte[] remoteCommitmentExpected = commitment(remotePubKey, useJSSE);
                	// grml, no java.util.Arrays class in J2ME - this simply sucks
                	for (int i=0; i<remoteCommitment.length && i<remoteCommitmentExpected.length; i++) {
                     if (remoteCommitment[i] != remoteCommitmentExpected[i]) {
                         logger.warn("Protocol error: remote commitment does not match public key");
-                        println("Protocol error: remote commitment does not match public key");
+                        sendError("Protocol error: remote commitment does not match public key");
                         raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote commitment does not match public key");
                         shutdownConnectionCleanly();
                         return;
                     }
                	}
-                totalCryptoTime += System.currentTimeMillis()-timestamp;
+                totalCryptoTime += cryptoTimer.stop(timestamp);
             }
             // step 3, part 3: Alice and Bob compute the out-of-band message
-           	timestamp = System.currentTimeMillis();
+           	timestamp = MetricsRegistry.now();
            	// TODO: might want to add local and remote addresses
            	int shortSecretLength = (presharedShortSecrets != null && presharedShortSecrets.size() > 0)
            							? ((byte[])presharedShortSecrets.firstElement()).length
@@ -900,6 +1267,8 @@ public class HostProtocolHandler extends AuthenticationEventSender {
             	 */
             	
             	byte[] presharedShortSecret;
+            	// the random keys K1 for all candidate secrets, generated at once
+            	byte[][] myKs = EntropyService.nextNonces(presharedShortSecrets.size(), NonceByteLength);
             	/*
             	 * Try all candidate secrets in turn
             	 */
@@ -914,32 +1283,45 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	
 	            	// another two-round commitment scheme, but now using a HMAC keyed with a random key
 	            	// 1. send HMAC_K1(oobInput)
-	                byte[] myK = new byte[NonceByteLength];
-	                r.nextBytes(myK);
+	                byte[] myK = myKs[j];
 	                System.arraycopy(myK, 0, oobKey, 
 	                		myPublicKey.length + remotePubKey.length, myK.length);
 	                byte[] myM = keyedHash(oobInput, oobKey, useJSSE);
-	                totalCryptoTime += System.currentTimeMillis()-timestamp;
-	               	timestamp = System.currentTimeMillis();
+	                totalCryptoTime += cryptoTimer.stop(timestamp);
+	               	timestamp = MetricsRegistry.now();
 	
-	                String myMStr = new String(Hex.encodeHex(myM));
-	                println(Protocol_AuthenticationInputCommit + myMStr);
-	
-	                // 2. receive M2
-	            	String line = getLine(Protocol_AuthenticationInputCommit, connection, false);
-	            	Object[] parms = parseLine(line, Protocol_AuthenticationInputCommit, 
-	            			new boolean[] {true}, null, 1, connection);
+	                Object[] parms;
+	                if (binaryFraming) {
+	                	sendFrame(Frame_AuthenticationInputCommit, 
+	                			new int[] {Field_Mac}, new byte[][] {myM});
+	                	// 2. receive M2
+	                	byte[][] fields = receiveFrame(Frame_AuthenticationInputCommit, 
+	                			new int[] {Field_Mac});
+	                	if (fields == null) {
+	                		return;
+	                	}
+	                	parms = new Object[] {fields[Field_Mac]};
+	                }
+	                else {
+	                	String myMStr = new String(Hex.encodeHex(myM));
+	                	println(Protocol_AuthenticationInputCommit + myMStr);
+
+	                	// 2. receive M2
+	                	String line = getLine(Protocol_AuthenticationInputCommit, connection, false);
+	                	parms = parseLine(line, Protocol_AuthenticationInputCommit, 
+	                			new boolean[] {true}, null, 1, connection);
+	                }
 	            	if (parms == null) {
 	                    logger.warn("Protocol error: remote did not send commitment for short shared secret.");
-	                    println("Protocol error: remote did not send input commitment for short shared secret.");
+	                    sendError("Protocol error: remote did not send input commitment for short shared secret.");
 	                    raiseAuthenticationFailureEvent(connection, null, "Protocol error: no remote commitment");
 	            		shutdownConnectionCleanly();
 	                    return;
 	            	}
 	            	byte[] remoteM = (byte[]) parms[0];
 	                if (remoteM.length < 16) {
-	                    logger.warn("Protocol error: could not parse commitment for short shared secret, expected 128 Bits hex-encoded.");
-	                    println("Protocol error: could not parse input commitment for short shared secret, expected 128 Bits hex-encoded.");
+	                    logger.warn("Protocol error: could not parse commitment for short shared secret, expected 128 Bits " + valueEncoding() + ".");
+	                    sendError("Protocol error: could not parse input commitment for short shared secret, expected 128 Bits " + valueEncoding() + ".");
 	                    raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote commitment too short (only " + remotePubKey.length + " bytes instead of 16)");
 	                    shutdownConnectionCleanly();
 	                    return;
@@ -960,26 +1342,39 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	               	// byte[] remoteShortSecret = oobChannel.receive();
 	
 	                // 3. send K1
-	                String myKStr = new String(Hex.encodeHex(myK));
-	                println(Protocol_AuthenticationInputOpen + myKStr);
-	
-	                // 4. receive K2
-	            	line = getLine(Protocol_AuthenticationInputOpen, connection, false);
-	            	parms = parseLine(line, Protocol_AuthenticationInputOpen, 
-	            			new boolean[] {true}, null, 1, connection);
+	                if (binaryFraming) {
+	                	sendFrame(Frame_AuthenticationInputOpen, 
+	                			new int[] {Field_Key}, new byte[][] {myK});
+	                	// 4. receive K2
+	                	byte[][] fields = receiveFrame(Frame_AuthenticationInputOpen, 
+	                			new int[] {Field_Key});
+	                	if (fields == null) {
+	                		return;
+	                	}
+	                	parms = new Object[] {fields[Field_Key]};
+	                }
+	                else {
+	                	String myKStr = new String(Hex.encodeHex(myK));
+	                	println(Protocol_AuthenticationInputOpen + myKStr);
+
+	                	// 4. receive K2
+	                	String line = getLine(Protocol_AuthenticationInputOpen, connection, false);
+	                	parms = parseLine(line, Protocol_AuthenticationInputOpen, 
+	                			new boolean[] {true}, null, 1, connection);
+	                }
 	            	if (parms == null) {
 	                    return;
 	            	}
 	            	byte[] remoteK = (byte[]) parms[0];
 	                if (remoteK.length < 16) {
-	                    logger.warn("Protocol error: could not parse remote K, expected 128 Bits hex-encoded.");
-	                    println("Protocol error: could not parse remote K, expected 128 Bits hex-encoded.");
+	                    logger.warn("Protocol error: could not parse remote K, expected 128 Bits " + valueEncoding() + ".");
+	                    sendError("Protocol error: could not parse remote K, expected 128 Bits " + valueEncoding() + ".");
 	                    raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote K too short (only " + remotePubKey.length + " bytes instead of 16)");
 	                    shutdownConnectionCleanly();
 	                    return;
 	                }
-	                totalTransferTime += System.currentTimeMillis()-timestamp;
-	               	timestamp = System.currentTimeMillis();
+	                totalTransferTime += transferTimer.stop(timestamp);
+	               	timestamp = MetricsRegistry.now();
 	
 	                // 5. compare M1 and M2
 	                System.arraycopy(remoteK, 0, oobKey, 
@@ -1000,13 +1395,13 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 	               	}
 	               	else if (j >= presharedShortSecrets.size() - 1) {
 	               		// all candidate secrets failed
-                        println("Protocol error: remote input commitment did not match for any candidate secret");
+                        sendError("Protocol error: remote input commitment did not match for any candidate secret");
                         raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote input commitment did not match for any candidate secret");
                         shutdownConnectionCleanly();
                         return;
                 	}
             	}
-                totalCryptoTime += System.currentTimeMillis()-timestamp;
+                totalCryptoTime += cryptoTimer.stop(timestamp);
 
                 // already authenticated!
                 oobMsg = null;
@@ -1021,13 +1416,13 @@ public class HostProtocolHandler extends AuthenticationEventSender {
                	for (int i=0; i<remotePreAuthenticationMessage.length && i<remoteCommitmentExpected.length; i++) {
                     if (remotePreAuthenticationMessage[i] != remoteCommitmentExpected[i]) {
                         logger.warn("Protocol error: remote pre-authentication does not match public key");
-                        println("Protocol error: remote pre-authentication does not match public key");
+                        sendError("Protocol error: remote pre-authentication does not match public key");
                         raiseAuthenticationFailureEvent(connection, null, "Protocol error: remote pre-authentication does not match public key");
                         shutdownConnectionCleanly();
                         return;
                     }
                	}
-                totalCryptoTime += System.currentTimeMillis()-timestamp;
+                totalCryptoTime += cryptoTimer.stop(timestamp);
 
             	// already authenticated!
             	oobMsg = null;
@@ -1042,20 +1437,28 @@ public class HostProtocolHandler extends AuthenticationEventSender {
             	// transfer or comparison case (depends on OOB channel)
                 oobMsg = keyedHash(oobInput, oobKey, useJSSE);
             }
-            totalCryptoTime += System.currentTimeMillis()-timestamp;
+            totalCryptoTime += cryptoTimer.stop(timestamp);
+            stageTrace = traceStage(stageTrace, 4);
             raiseAuthenticationProgressEvent(connection, 4, AuthenticationStages, inOrOut + " authentication connection, commitment");
 
+            // a server without preshared secret has not sent its last frame yet
+            flushFrames();
+
             // final step: finish DH computation, but _only use keys after OOB message has been accepted by both sides_
             // TODO: in Hollywood mode, don't do this until we accept
             
             // in PlainObject mode, generate the final session key and the OOB string and forward both
-            timestamp = System.currentTimeMillis();
+            timestamp = MetricsRegistry.now();
             keyAgreement.addRemotePublicKey(remotePubKey);
             Object sessKey = keyAgreement.getSessionKey();
             Object authKey = oobMsg;
-           	totalCryptoTime += System.currentTimeMillis()-timestamp;
+           	totalCryptoTime += cryptoTimer.stop(timestamp);
+            stageTrace = traceStage(stageTrace, 5);
             raiseAuthenticationProgressEvent(connection, 5, AuthenticationStages, inOrOut + " authentication connection, computed shared secret");
 
+            handshakeTimer.stop(runStart);
+            transferSizeCounter.add(totalTransferSize);
+
             // the authentication success event sent here is just an array of two keys
             if (keepConnected) {
             	logger.debug("Not closing socket as requested, but passing it to the success event.");
@@ -1079,9 +1482,9 @@ public class HostProtocolHandler extends AuthenticationEventSender {
             if (timer != null)
             	timer.stop();
             
-           	statisticsLogger.warn("Key transfers took " + totalTransferTime + 
+           	statisticsLogger.warn("Key transfers took " + MetricsRegistry.toMillis(totalTransferTime) + 
            			"ms for total " + totalTransferSize + 
-           			" chars, crypto took " + totalCryptoTime + "ms");
+           			" chars, crypto took " + MetricsRegistry.toMillis(totalCryptoTime) + "ms");
         }
         catch (InternalApplicationException e)
         {
@@ -1109,7 +1512,10 @@ public class HostProtocolHandler extends AuthenticationEventSender {
         }
         finally {
             if (keyAgreement != null) {
-            	if (!dontWipeKeyAgreement)
+            	if (identity != null)
+            		// the local key pair belongs to the identity and is shared with other protocol runs
+            		keyAgreement.wipeSession();
+            	else if (!dontWipeKeyAgreement)
             		keyAgreement.wipe();
 				else
 					try {
@@ -1152,6 +1558,13 @@ public class HostProtocolHandler extends AuthenticationEventSender {
      */
     private byte[] getPublicKeyCommitment() 
     		throws InternalApplicationException, KeyAgreementProtocolException {
+		if (identity != null) {
+			// everything but the Diffie-Hellman state has been precomputed
+			if (keyAgreement == null)
+				keyAgreement = identity.createKeyAgreement();
+			myPublicKey = identity.getPublicKey();
+			return identity.getCommitment();
+		}
 		if (keyAgreement == null) {
 			keyAgreement = new SimpleKeyAgreement(useJSSE, false);
         	myPublicKey = keyAgreement.getPublicKey();
@@ -1176,7 +1589,9 @@ public class HostProtocolHandler extends AuthenticationEventSender {
      */
     public byte[] getPreAuthenticationMessage() {
     	try {
-    		return getPublicKeyCommitment();
+    		byte[] commitment = getPublicKeyCommitment();
+    		// don't hand out the array shared with other protocol runs
+    		return identity != null ? (byte[]) commitment.clone() : commitment;
     	}
         catch (InternalApplicationException e)
         {
@@ -1242,11 +1657,11 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 		}
 		
 		if (asynchronousCall) {
-			new Thread(new AsynchronousCallHelper(this) {
+			ExecutionService.start(ExecutionService.PoolProtocol, new AsynchronousCallHelper(this) {
 				public void run() {
 					outer.performAuthenticationProtocol(true);
 				}
-			}).start();
+			});
 			logger.debug("Started incoming authentication thread handler");
 		}
 		else {
@@ -1310,6 +1725,27 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 			boolean keepConnected, 
 			String optionalParameter,
 			boolean useJSSE) throws IOException {
+    	startAuthenticationWith(remote, eventHandler, permanentKeyAgreementInstance,
+    			presharedShortSecrets, remotePreAuthenticationMessage, timeoutMs,
+    			keepConnected, optionalParameter, useJSSE, false);
+    }
+
+    /** Like the above, but allows to request binary framing.
+     * @param binaryFraming If set to true, binary framing is requested from
+     *                      the server. This is only supported by servers 
+     *                      that understand ProtocolTypeMaDHBinary.
+     * @see #setBinaryFraming(boolean)
+     */
+    static public void startAuthenticationWith(RemoteConnection remote,
+			AuthenticationProgressHandler eventHandler,
+			SimpleKeyAgreement permanentKeyAgreementInstance,
+			Vector presharedShortSecrets,
+			byte[] remotePreAuthenticationMessage,
+			int timeoutMs,
+			boolean keepConnected, 
+			String optionalParameter,
+			boolean useJSSE,
+			boolean binaryFraming) throws IOException {
     	if (logger.isInfoEnabled())
     		logger.info("Starting authentication with " + 
     				remote.getRemoteAddress() + "'/" + remote.getRemoteName() + "'");
@@ -1318,6 +1754,7 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 				remote, presharedShortSecrets, permanentKeyAgreementInstance,
 				timeoutMs, keepConnected, useJSSE);
 		tmpProtocolHandler.optionalParameter = optionalParameter;
+		tmpProtocolHandler.setBinaryFraming(binaryFraming);
 		
 		if (remotePreAuthenticationMessage != null)
 			tmpProtocolHandler.setPreAuthenticationMessage(remotePreAuthenticationMessage);
@@ -1337,12 +1774,12 @@ public class HostProtocolHandler extends AuthenticationEventSender {
 		}
 
 		// start the authentication protocol in the background
-		new Thread(tmpProtocolHandler.new AsynchronousCallHelper(
+		ExecutionService.start(ExecutionService.PoolProtocol, tmpProtocolHandler.new AsynchronousCallHelper(
 				tmpProtocolHandler) {
 			public void run() {
 				outer.performAuthenticationProtocol(false);
 			}
-		}).start();
+		});
     }
 
     /** This is a convenience wrapper setting all options to null and
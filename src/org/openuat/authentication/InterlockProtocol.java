@@ -13,13 +13,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.BitSet;
+import java.util.Vector;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
+import org.openuat.log.PhaseTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.exceptions.InternalApplicationException;
+import org.openuat.util.PhaseBarrier;
 import org.openuat.util.SafetyBeltTimer;
 import org.openuat.util.SimpleBlockCipher;
 
@@ -57,6 +62,15 @@ public class InterlockProtocol {
 	 */
 	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.interlock");
 
+	/** The time spent in each message transfer of an exchange, in ns. */
+	private static final LatencyHistogram transferTimer = MetricsRegistry.timer("interlock.transfer");
+	/** The time spent in each cryptographic step of an exchange, in ns. */
+	private static final LatencyHistogram cryptoTimer = MetricsRegistry.timer("interlock.crypto");
+	/** The time spent in each step of coding and decoding messages, in ns. */
+	private static final LatencyHistogram codingTimer = MetricsRegistry.timer("interlock.coding");
+	/** The duration of successful exchanges, in ns. */
+	private static final LatencyHistogram exchangeTimer = MetricsRegistry.timer("interlock.exchange");
+
 	/** This is the start of the line sent during initializing the interlock
 	 * exchange.
 	 * @see #interlockExchange
@@ -68,6 +82,20 @@ public class InterlockProtocol {
 	 */
 	private static final String ProtocolLine_Round = "ILCKRND";
 	
+	/** This is the start of the line sent during initializing the interlock
+	 * exchange when binary framing is used for the rounds. It differs from 
+	 * ProtocolLine_Init so that a host expecting the text framing will fail
+	 * cleanly instead of misinterpreting the binary frames.
+	 * @see #interlockExchange(byte[], InputStream, OutputStream, byte[], int, boolean, boolean, int, boolean, PhaseBarrier, boolean)
+	 */
+	private static final String ProtocolLine_InitBinary = "ILCKBINI";
+	
+	/** The length of the header of each binary round frame: 2 bytes for the 
+	 * round number and 4 bytes for the length of the part in bytes, both in
+	 * network byte order.
+	 */
+	private static final int BinaryFrameHeaderLength = 6;
+	
 	/** This may be set to distinguish multiple instances running on the same machine. */
 	private String instanceId = null;
 	
@@ -115,6 +143,33 @@ public class InterlockProtocol {
 	 */
 	private BitSet receivedRounds = null;
 	
+	/** Set by the constructor, also used for the remote instance created by
+	 * exchange().
+	 */
+	private boolean useJSSE;
+	
+	/** These buffers are only used by exchange() and are kept between its
+	 * calls, so that repeated exchanges with the same parameters don't need
+	 * to allocate them again. In the local instance, partBuffers holds the 
+	 * parts of the own cipher text and frameBuffer the binary frames of all
+	 * rounds, starting at frameOffsets[round]. In the remote instance,
+	 * partBuffers holds the received parts.
+	 * @see #exchange(byte[], InputStream, OutputStream, boolean, int, PhaseBarrier, boolean)
+	 */
+	private byte[][] partBuffers = null;
+	private byte[] frameBuffer = null;
+	private int[] frameOffsets = null;
+	
+	/** The instance that receives the remote message in exchange(). It is
+	 * re-used as long as the remote message length does not change.
+	 */
+	private InterlockProtocol remoteIp = null;
+
+	/** The phase of the interlock group that exchange() arrived at, or -1
+	 * if it has not arrived yet. It is needed to leave the group on failures.
+	 */
+	private int groupPhase = -1;
+
 	/** Initializes the interlock protocol by setting all parameters that must be 
 	 * immutable for a single instance of the protocol.
 	 * 
@@ -150,6 +205,7 @@ public class InterlockProtocol {
 		this.rounds = rounds;
 		this.numMessageBits = numMessageBits;
 		this.instanceId = instanceId;
+		this.useJSSE = useJSSE;
 		this.cipher = new SimpleBlockCipher(useJSSE);
 		cipher.instanceId = instanceId;
 
@@ -243,84 +299,101 @@ public class InterlockProtocol {
 	 * @throws InternalApplicationException 
 	 */
 	public byte[][] split(byte[] cipherText) throws InternalApplicationException {
+		// in any case, the number of parts is equal to the number of rounds
+		byte[][] parts = createPartBuffers(cipherText.length == SimpleBlockCipher.BlockByteLength ? 
+				1 : numCipherTextBlocks);
+		split(cipherText, parts);
+		return parts;
+	}
+	
+	/** Allocates the arrays for the parts that split() will produce for a
+	 * cipher text of numBlocks blocks. They can be re-used for multiple calls
+	 * to split(byte[], byte[][]) on this instance.
+	 * @return As many arrays as there are rounds in the protocol, with the 
+	 *         last ones set to null if they would not contain any bits.
+	 * @see #split(byte[], byte[][])
+	 */
+	private byte[][] createPartBuffers(int numBlocks) {
+		byte[][] parts = new byte[rounds][];
+		for (int round=0; round<rounds; round++) {
+			int partBits = getBitsInRound(round) * numBlocks;
+			parts[round] = partBits > 0 ? new byte[partBits%8 == 0 ? partBits/8 : partBits/8+1] : null;
+		}
+		return parts;
+	}
+
+	/** Allocates the arrays for the parts that split() will produce. They 
+	 * can be re-used for multiple calls to split(byte[], byte[][]) on this 
+	 * instance, so that repeated exchanges with the same parameters do not 
+	 * need to allocate new arrays for every run.
+	 * @return As many arrays as there are rounds in the protocol, with the 
+	 *         last ones set to null if they would not contain any bits.
+	 * @see #split(byte[], byte[][])
+	 */
+	public byte[][] createPartBuffers() {
+		return createPartBuffers(numCipherTextBlocks);
+	}
+	
+	/** This is a variant of split(byte[]) that puts the parts into 
+	 * pre-allocated arrays instead of allocating new ones.
+	 * @param cipherText The cipher text to split.
+	 * @param parts The arrays to put the parts into, as returned by 
+	 *              createPartBuffers().
+	 * @throws InternalApplicationException 
+	 * @see #split(byte[])
+	 * @see #createPartBuffers()
+	 */
+	public void split(byte[] cipherText, byte[][] parts) throws InternalApplicationException {
 		// sanity check
 		if (cipherText.length % SimpleBlockCipher.BlockByteLength != 0)
 			throw new IllegalArgumentException("Can only split multiples of the block cipher length" + 
 					(instanceId != null ? " [instance " + instanceId : ""));
-		// second option is necessary for when we are called recursively
+		// a single block is always accepted and split as in case 1
 		if (cipherText.length != numCipherTextBlocks * SimpleBlockCipher.BlockByteLength && cipherText.length != SimpleBlockCipher.BlockByteLength)
 			throw new IllegalArgumentException("Cipher text length differs from expected length: wanted " +
 					numCipherTextBlocks * SimpleBlockCipher.BlockByteLength + " bytes but got " + cipherText.length + 
 					(instanceId != null ? " [instance " + instanceId : ""));
+		if (parts.length != rounds)
+			throw new IllegalArgumentException("Number of part arrays does not match number of rounds, "
+					+ "expected " + rounds + " but got " + parts.length + 
+					(instanceId != null ? " [instance " + instanceId : ""));
 
-		// in any case, the number of parts is equal to the number of rounds
-		byte[][] parts = new byte[rounds][];
-		// need to explicitly check for the size length because of recursive calling
-		if (cipherText.length == SimpleBlockCipher.BlockByteLength) {
-			if (logger.isDebugEnabled())
-				logger.debug("Case 1: splitting cipher text of " + cipherText.length + " bytes with one block into " + 
-						rounds + " parts" + 
-						(instanceId != null ? " [instance " + instanceId : ""));
-			// simple case: the parts are just taken one after each other
-			for (int round=0; round<rounds; round++) {
-				int curBits = cipherBitsPerRoundPerBlock*(round+1) <= SimpleBlockCipher.BlockByteLength*8 ? 
-						cipherBitsPerRoundPerBlock : (SimpleBlockCipher.BlockByteLength*8 - cipherBitsPerRoundPerBlock*round);
-				if (curBits > 0) {
-					parts[round] = new byte[curBits%8 == 0 ? curBits/8 : curBits/8+1];
-					/*logger.debug("Part " + round + " holds " + curBits + " bits, thus " + parts.length + " bytes" + 
-							(instanceId != null ? " [instance " + instanceId : ""));*/
-					extractPart(parts[round], cipherText, round*cipherBitsPerRoundPerBlock, curBits);
-				}
-				else {
-					// no more left
-					if (logger.isDebugEnabled())
-						logger.debug("Part " + round + " is empty" + 
-								(instanceId != null ? " [instance " + instanceId : ""));
-					parts[round] = null;
-				}
+		int numBlocks = cipherText.length / SimpleBlockCipher.BlockByteLength;
+		if (logger.isDebugEnabled())
+			logger.debug("Case " + (numBlocks == 1 ? 1 : 2) + ": splitting cipher text of " + cipherText.length + 
+					" bytes with " + numBlocks + " blocks into " + rounds + " parts" + 
+					(instanceId != null ? " [instance " + instanceId : ""));
+		/* In the simple case, the parts are just taken one after each other. 
+		 * The more complicated case is the same for each block, with the slices
+		 * of all blocks for a round concatenated in the part. */
+		for (int round=0; round<rounds; round++) {
+			int curBits = getBitsInRound(round);
+			if (curBits > 0) {
+				if (parts[round] == null || parts[round].length*8 < curBits*numBlocks)
+					throw new IllegalArgumentException("Part array for round " + round + " too small" + 
+							(instanceId != null ? " [instance " + instanceId : ""));
+				for (int block=0; block<numBlocks; block++)
+					copyBits(parts[round], block*curBits, cipherText, 
+							block*SimpleBlockCipher.BlockByteLength*8 + round*cipherBitsPerRoundPerBlock, curBits);
 			}
-		}
-		else {
-			// the more complicated case is reduced to the simple case - each block split independently, then merged
-			if (logger.isDebugEnabled())
-				logger.debug("Case 2: splitting cipher text of " + cipherText.length + " bytes with " 
-						+ numCipherTextBlocks + " blocks into " + rounds + " parts" + 
-						(instanceId != null ? " [instance " + instanceId : ""));
-			for (int block=0; block<numCipherTextBlocks; block++) {
-				byte[] cipherBlock = new byte[SimpleBlockCipher.BlockByteLength];
-				System.arraycopy(cipherText, block*SimpleBlockCipher.BlockByteLength, cipherBlock, 0, SimpleBlockCipher.BlockByteLength);
-				byte[][] blockParts = split(cipherBlock);
-				if (blockParts.length != parts.length) {
-					throw new InternalApplicationException("Split of a single block did not return as many parts as we wanted. This is wrong.");
-				}
-				// and immediately merge into the output
-				for (int round=0; round<rounds; round++) {
-					// these are now the bits for each of the blocks that should belong to this round
-					int curBits = cipherBitsPerRoundPerBlock*(round+1) <= SimpleBlockCipher.BlockByteLength*8 ? 
-							cipherBitsPerRoundPerBlock : (SimpleBlockCipher.BlockByteLength*8 - cipherBitsPerRoundPerBlock*round);
-					if (curBits > 0) {
-						// if this is the first block, then we need to create the array first
-						if (block==0) {
-							int partBits = curBits*numCipherTextBlocks;
-							parts[round] = new byte[partBits%8 == 0 ? partBits/8 : partBits/8+1];
-						}
-						if (logger.isDebugEnabled())
-							logger.debug("Adding " + curBits + " bits of block " + block + " to part " + 
-									round + " at offset " + (block*cipherBitsPerRoundPerBlock) + 
-									(instanceId != null ? " [instance " + instanceId : ""));
-						addPart(parts[round], blockParts[round], block*curBits, curBits);
-					}
-					else {
-						// no more left
-						if (logger.isDebugEnabled())
-							logger.debug("Part " + round + " is empty" + 
-									(instanceId != null ? " [instance " + instanceId : ""));
-						parts[round] = null;
-					}
-				}
+			else {
+				// no more left
+				if (logger.isDebugEnabled())
+					logger.debug("Part " + round + " is empty" + 
+							(instanceId != null ? " [instance " + instanceId : ""));
+				parts[round] = null;
 			}
 		}
-		return parts;
+	}
+	
+	/** Returns the number of bits of each block that are transmitted in a 
+	 * round. This is cipherBitsPerRoundPerBlock for all but the last rounds, 
+	 * which may hold less or even no bits when the block does not split 
+	 * evenly.
+	 */
+	private int getBitsInRound(int round) {
+		return cipherBitsPerRoundPerBlock*(round+1) <= SimpleBlockCipher.BlockByteLength*8 ? 
+				cipherBitsPerRoundPerBlock : (SimpleBlockCipher.BlockByteLength*8 - cipherBitsPerRoundPerBlock*round);
 	}
 
     /** This method is the inverse of split(). All comments there apply here. 
@@ -330,6 +403,21 @@ public class InterlockProtocol {
      * @throws InternalApplicationException 
      */
 	public byte[] reassemble(byte[][] messages) throws InternalApplicationException {
+		// in any case, the reassembled cipher text will have the same length
+		byte[] cipherText = new byte[numCipherTextBlocks * SimpleBlockCipher.BlockByteLength];
+		reassemble(messages, cipherText);
+		return cipherText;
+	}
+	
+	/** This is a variant of reassemble(byte[][]) that puts the cipher text
+	 * into a pre-allocated array instead of allocating a new one.
+	 * @param messages The parts to reassemble.
+	 * @param cipherText The array to put the assembled cipher text into. It 
+	 *                   must be getCipherTextBlocks() blocks long.
+	 * @throws InternalApplicationException 
+	 * @see #reassemble(byte[][])
+	 */
+	public void reassemble(byte[][] messages, byte[] cipherText) throws InternalApplicationException {
 		// sanity check
 		if (messages.length != rounds)
 			throw new IllegalArgumentException("Number of message parts does not match number of rounds, "
@@ -339,67 +427,42 @@ public class InterlockProtocol {
 			throw new InternalApplicationException("Can not use both reassemble variants at the same time. " 
 					+ "Complete reassambly method called while iterative is active" + 
 					(instanceId != null ? " [instance " + instanceId : ""));
+		if (cipherText.length != numCipherTextBlocks * SimpleBlockCipher.BlockByteLength)
+			throw new IllegalArgumentException("Cipher text array has invalid length: wanted " +
+					numCipherTextBlocks * SimpleBlockCipher.BlockByteLength + " bytes but got " + cipherText.length + 
+					(instanceId != null ? " [instance " + instanceId : ""));
 		
-		// in any case, the reassembled cipher text will have the same length
-		byte[] cipherText = new byte[numCipherTextBlocks * SimpleBlockCipher.BlockByteLength];
-		if (numCipherTextBlocks == 1) {
-			// simple case
-			if (logger.isDebugEnabled())
-				logger.debug("Case 1: reassembling " + rounds + " parts to cipher text of " + 
-						cipherText.length + " bytes" + 
-						(instanceId != null ? " [instance " + instanceId : ""));
-			for (int round=0; round<rounds; round++) {
-				int curBits = cipherBitsPerRoundPerBlock*(round+1) <= SimpleBlockCipher.BlockByteLength*8 ? 
-						cipherBitsPerRoundPerBlock : (SimpleBlockCipher.BlockByteLength*8 - cipherBitsPerRoundPerBlock*round);
-				if (curBits > 0)
-					addPart(cipherText, messages[round], cipherBitsPerRoundPerBlock*round, curBits);
-				else  {
-					if (messages[round] != null) {
-						logger.error("Expected null part, but got some content" + 
-								(instanceId != null ? " [instance " + instanceId : ""));
-					}
-				}
+		if (logger.isDebugEnabled())
+			logger.debug("Case " + (numCipherTextBlocks == 1 ? 1 : 2) + ": reassembling " + rounds + 
+					" parts to cipher text of " + cipherText.length + " bytes with " + numCipherTextBlocks + " blocks" + 
+					(instanceId != null ? " [instance " + instanceId : ""));
+		for (int round=0; round<rounds; round++) {
+			int curBits = getBitsInRound(round);
+			if (curBits > 0) {
+				if (messages[round] == null || messages[round].length * 8 < curBits*numCipherTextBlocks)
+					throw new InternalApplicationException("Not enough bits in part " + round + 
+							", expected " + curBits*numCipherTextBlocks + " bits" + 
+							(instanceId != null ? " [instance " + instanceId : ""));
+				distributeBlockSlicesHelper(cipherText, messages[round], round, curBits);
 			}
-		} 
-		else {
-			// more complex case, need to reassemble blocks
-			if (logger.isDebugEnabled())
-				logger.debug("Case 2: reassembling " + rounds + " parts to cipher text of " + 
-						cipherText.length + " bytes with " + numCipherTextBlocks + " blocks" + 
-						(instanceId != null ? " [instance " + instanceId : ""));
-			for (int block=0; block<numCipherTextBlocks; block++) {
-				for (int round=0; round<rounds; round++) {
-					int curBits = cipherBitsPerRoundPerBlock*(round+1) <= SimpleBlockCipher.BlockByteLength*8 ? 
-							cipherBitsPerRoundPerBlock : (SimpleBlockCipher.BlockByteLength*8 - cipherBitsPerRoundPerBlock*round);
-					if (curBits > 0) {
-						distributeBlockSlicesHelper(cipherText, messages[round], round, block, curBits);
-					}
-					else { 
-						if (messages[round] != null) {
-							logger.error("Expected null part, but got some content" + 
-									(instanceId != null ? " [instance " + instanceId : ""));
-						}
-					}
+			else  {
+				if (messages[round] != null) {
+					logger.error("Expected null part, but got some content" + 
+							(instanceId != null ? " [instance " + instanceId : ""));
 				}
 			}
 		}
-		
-		return cipherText;
 	}
 	
 	/** This is only an internal helper function to add block parts correctly 
-	 * on reassambly. Called from reassamble() and addMessage.
-	 * @throws InternalApplicationException 
+	 * on reassambly. Called from reassamble() and addMessage. It copies the
+	 * slice of every block from the message of a round into the cipher text.
 	 */
 	private void distributeBlockSlicesHelper(byte[] cipherText, byte[] message,
-			int round, int block, int numBits) throws InternalApplicationException {
-		byte[] partInBlock = new byte[numBits%8 == 0 ? numBits/8 : numBits/8+1];
-		extractPart(partInBlock, message, block*numBits, numBits);
-		if (logger.isDebugEnabled())
-			logger.debug("Extracting " + numBits + " bits of block " + block + " from part " + round + 
-					(instanceId != null ? " [instance " + instanceId : ""));
-		addPart(cipherText, partInBlock, 
-				block*SimpleBlockCipher.BlockByteLength*8+round*cipherBitsPerRoundPerBlock, numBits);
+			int round, int numBits) {
+		for (int block=0; block<numCipherTextBlocks; block++)
+			copyBits(cipherText, block*SimpleBlockCipher.BlockByteLength*8+round*cipherBitsPerRoundPerBlock,
+					message, block*numBits, numBits);
 	}
 	
 	/** This method only checks that all rounds have actually been received
@@ -423,6 +486,23 @@ public class InterlockProtocol {
     	return assembledCipherText;
     }
 
+	/** Resets the iterative assembly with the addMessage methods, so that 
+	 * this instance can be re-used for another exchange with the same 
+	 * parameters. The array for assembling the cipher text is kept and
+	 * re-used, so the cipher text returned by the last reassemble() call
+	 * will be overwritten by the next exchange.
+	 */
+	public void reset() {
+		if (receivedRounds != null) {
+			for (int round=0; round<rounds; round++)
+				receivedRounds.clear(round);
+		}
+		if (assembledCipherText != null) {
+			for (int i=0; i<assembledCipherText.length; i++)
+				assembledCipherText[i] = 0;
+		}
+	}
+	
 	/** Adds a message to the cipher text assembly. This method should only
 	 * be used if not the whole message is to be transferred and/or the
 	 * application has very specific needs concerning re-assembly. Better use
@@ -475,38 +555,23 @@ public class InterlockProtocol {
 		}
 		else {
 			// the more complex one: need to split the blocks from this message and add them in slides
-			for (int block=0; block<numCipherTextBlocks; block++) {
-				distributeBlockSlicesHelper(assembledCipherText, message, round, block, numBits);
-			}
+			if (message.length * 8 < numBits*numCipherTextBlocks)
+				throw new InternalApplicationException("Not enough bits in the given array, expected " + 
+						numBits*numCipherTextBlocks + " bits but got " + message.length + " bytes" + 
+						(instanceId != null ? " [instance " + instanceId : ""));
+			distributeBlockSlicesHelper(assembledCipherText, message, round, numBits);
 		}
 		logger.info("Added message part " + round + " (" + numBits + " bits at offset " + offset + ")" + 
 				(instanceId != null ? " [instance " + instanceId : ""));
 		return true;
 	}
 	
-	/** This is very ugly, but swapLine just records the number of in and out bytes
-	 * in this variable. It is reset on each call.
-	 */
-	private static int swapSize;
-	/** This is a small helper function to exchange a line with the remote host. First,
-	 * the own line is sent, and then it waits for a line to be received.
-	 * @param command The command name that describes this line. It is prepended to the
-	 *                actual value (the two are separated by a space). Only when the other
-	 *                host sends a line staring with the same command, its line is accepted.
-	 * @param value The value to send
-	 * @return The value that the other host sent, or null if no matching line has been
-	 *         received.
-	 * @throws IOException 
-	 */
-	private static String swapLine(String command, String value, 
-			InputStream fromRemote, OutputStreamWriter toRemote) throws IOException {
-		if (logger.isDebugEnabled())
-			logger.debug("Sending line to remote host: command '" + command + "', value '" + value + "'");
-		String outStr = command + " " + value + "\n";
-		toRemote.write(outStr);
-		toRemote.flush();
-		swapSize = outStr.length();
-
+	/** Reads a single line from the remote host, byte by byte so that no more
+	 * bytes than necessary are consumed from the stream.
+	 * @return The line without the line terminator. If the stream ended before
+	 *         the end of line, the partial line is returned.
+	 */
+	private static String readLine(InputStream fromRemote) throws IOException {
 		StringBuffer remoteLine = new StringBuffer();
 		int ch = fromRemote.read();
 		while (ch != -1 && ch != '\n') {
@@ -515,11 +580,18 @@ public class InterlockProtocol {
 				remoteLine.append((char) ch);
 			ch = fromRemote.read();
 		}
-		swapSize += remoteLine.length();
+		return remoteLine.toString();
+	}
 
+	/** Checks that a line received from the remote host starts with the 
+	 * expected command.
+	 * @return The value following the command, or null if the line did not
+	 *         match.
+	 */
+	private static String checkLine(String command, String remoteLine) {
 		if (remoteLine.length() > command.length()+1 && 
-			remoteLine.toString().substring(0, command.length()+1).equals(command + " ")) {
-			String ret = remoteLine.toString().substring(command.length() + 1);
+			remoteLine.substring(0, command.length()+1).equals(command + " ")) {
+			String ret = remoteLine.substring(command.length() + 1);
 			if (logger.isDebugEnabled())
 				logger.debug("Received line from remote host: command '" + command + "', value + '" + ret + "'");
 			return ret;
@@ -530,7 +602,7 @@ public class InterlockProtocol {
 			return null;
 		}
 	}
-	
+
 	/** This method runs a complete interlock exchange with another host. To this end,
 	 * this method must be started on both sides with the same values for the number of
 	 * rounds and, obviously, for the shared key.
@@ -575,26 +647,22 @@ public class InterlockProtocol {
 	 *                  explicitly signal abort to the remote. In the case of toRemote
 	 *                  being closed, one must therefore assume any abort reason from the
 	 *                  remote including regular timeout aborts.
-	 * @param interlockGroup Setting this to a valid BitSet object and groupSize>=2 
-	 *                       allows for multiple instances of interlockExchange runs
-	 *                       to be synchronized. All instances will enter a barrier
-	 *                       just before transmitting their last round and will only
-	 *                       continue to transmit when <b>all</b> instances (the number
-	 *                       of instances in the group that are to be synchronized is
-	 *                       specified by groupSize) have reached this barrier. 
+	 * @param interlockGroup Setting this to a valid PhaseBarrier object with at least
+	 *                       2 registered parties allows for multiple instances of 
+	 *                       interlockExchange runs to be synchronized. All instances 
+	 *                       will arrive at the barrier just before transmitting their
+	 *                       last round and will only continue to transmit when 
+	 *                       <b>all</b> instances (every instance that is to be 
+	 *                       synchronized must be registered as one party of the 
+	 *                       barrier) have reached this barrier. 
 	 *                       This is necessary when the same message is used in
 	 *                       multiple interlock instances to prevent an attack where
 	 *                       multiple attackers are colluding.
 	 *                       Set to null to disable when only one interlock instance
 	 *                       is used with the same message. Using this function may
 	 *                       increase the total timeout to timeoutMs*rounds*2. 
-	 * @param groupSize When interlockGroup is set, this specifies the number of instances
-	 *                  to synchronize. Must be >=2, and all instances <b>must</b> be called
-	 *                  in parallel threads with the same interlockGroup object.
-	 * @param instanceInGroup The instance number in the group that this interlock run
-	 *                        should use. No two instances may use the same number, and
-	 *                        every number in [0; groupSize-1] must be used for exactly
-	 *                        one instance.
+	 *                       All instances <b>must</b> be called in parallel threads
+	 *                       with the same interlockGroup object.
 	 * @return The message that the remote host sent, or null if the interlock protocol 
 	 *         could not be completed successfully.
 	 * @throws IOException When reading from fromRemote or writing to toRemote failed.
@@ -603,158 +671,302 @@ public class InterlockProtocol {
 	 * @throws InternalApplicationException
 	 */
 	// TODO: implement handling of retransmit
+	public static byte[] interlockExchange(byte[] message, InputStream fromRemote, OutputStream toRemote,
+			byte[] sharedKey, int rounds, boolean protectAgainstMirrorAttack, 
+			boolean retransmit, int timeoutMs, boolean useJSSE,
+			PhaseBarrier interlockGroup) 
+			throws IOException, InternalApplicationException {
+		return interlockExchange(message, fromRemote, toRemote, sharedKey, rounds,
+				protectAgainstMirrorAttack, retransmit, timeoutMs, useJSSE,
+				interlockGroup, false);
+	}
+
+	/** The interlock groups of callers still using the BitSet variant of
+	 * interlockExchange, each with the PhaseBarrier that replaces the BitSet.
+	 * They are looked up by identity, because the hash code of a BitSet 
+	 * changes with its content.
+	 * @see #interlockExchange(byte[], InputStream, OutputStream, byte[], int, boolean, boolean, int, boolean, BitSet, int, int)
+	 */
+	private static Vector legacyGroups = new Vector();
+	
+	/** One entry of legacyGroups. */
+	private static class LegacyGroup {
+		BitSet group;
+		PhaseBarrier barrier;
+		/** The group size, the barrier may have less parties when instances failed. */
+		int size;
+		/** The number of instances that have finished with this group. It is
+		 * only removed when all of them have, because a failed instance may 
+		 * finish before the others have even started. */
+		int finished = 0;
+	}
+
+	/** This is the old variant of interlockExchange, which synchronized an
+	 * interlock group with a BitSet shared by all instances. It is kept as
+	 * an adapter for existing callers: all instances that are called with 
+	 * the same BitSet object are synchronized with one PhaseBarrier for 
+	 * groupSize parties, which is created by the first of them. The BitSet
+	 * itself is only used to identify the group and is not modified.
+	 * 
+	 * @param interlockGroup All instances of one group must use the same
+	 *                       object. Set to null to disable synchronization.
+	 * @param groupSize The number of instances in the group.
+	 * @param instanceInGroup The number of this instance, in [0, groupSize).
+	 * @deprecated Use the variant with a PhaseBarrier for groupSize parties
+	 *             instead.
+	 * @see #interlockExchange(byte[], InputStream, OutputStream, byte[], int, boolean, boolean, int, boolean, PhaseBarrier)
+	 */
 	public static byte[] interlockExchange(byte[] message, InputStream fromRemote, OutputStream toRemote,
 			byte[] sharedKey, int rounds, boolean protectAgainstMirrorAttack, 
 			boolean retransmit, int timeoutMs, boolean useJSSE,
 			BitSet interlockGroup, int groupSize, int instanceInGroup) 
 			throws IOException, InternalApplicationException {
-		if (fromRemote == null || toRemote == null)
-			throw new IllegalArgumentException("Both input and output stream must be set");
+		if (interlockGroup == null)
+			return interlockExchange(message, fromRemote, toRemote, sharedKey, rounds, 
+					protectAgainstMirrorAttack, retransmit, timeoutMs, useJSSE, 
+					(PhaseBarrier) null);
+		if (groupSize < 2 || instanceInGroup < 0 || instanceInGroup >= groupSize)
+			throw new IllegalArgumentException("Using interlock group, but either group size is <2 or this instance number is >= group size");
+
+		LegacyGroup g = null;
+		synchronized (legacyGroups) {
+			for (int i=0; i<legacyGroups.size() && g == null; i++)
+				if (((LegacyGroup) legacyGroups.elementAt(i)).group == interlockGroup)
+					g = (LegacyGroup) legacyGroups.elementAt(i);
+			if (g == null) {
+				g = new LegacyGroup();
+				g.group = interlockGroup;
+				g.barrier = new PhaseBarrier(groupSize);
+				g.size = groupSize;
+				legacyGroups.addElement(g);
+			}
+			else if (g.size != groupSize)
+				throw new IllegalArgumentException("Group size " + groupSize + 
+						" differs from the other instances of the interlock group");
+		}
+		try {
+			return interlockExchange(message, fromRemote, toRemote, sharedKey, rounds, 
+					protectAgainstMirrorAttack, retransmit, timeoutMs, useJSSE, 
+					g.barrier);
+		}
+		finally {
+			synchronized (legacyGroups) {
+				if (++g.finished == g.size)
+					legacyGroups.removeElement(g);
+			}
+		}
+	}
+
+	/** This is a variant of interlockExchange that can optionally use binary
+	 * framing for the rounds. All parameters except binaryFraming have the 
+	 * same meaning as for the text variant, and both sides must use the same 
+	 * value for binaryFraming (a mismatch is detected at the greeting, and 
+	 * both sides will abort).
+	 * 
+	 * With binary framing, every round is sent as the round number and the 
+	 * length of the part (see BinaryFrameHeaderLength), followed by the raw
+	 * bytes of the part, in a single write. Additionally, the exchange is 
+	 * pipelined: the greeting is sent before encrypting, so that encryption 
+	 * and splitting overlap with its transmission, all round frames are 
+	 * encoded in advance, and round 0 is sent without waiting for the remote 
+	 * greeting. The interlock ordering is kept: part i+1 is only released 
+	 * after part i has been received from the remote host (and, within an 
+	 * interlock group, the last part only after all members have arrived at
+	 * the barrier). This saves one round trip and the hex coding overhead.
+	 * 
+	 * @param binaryFraming If set to true, use the binary framing described 
+	 *                      above. If set to false, this is equivalent to the
+	 *                      text variant.
+	 * @see #interlockExchange(byte[], InputStream, OutputStream, byte[], int, boolean, boolean, int, boolean, PhaseBarrier)
+	 */
+	public static byte[] interlockExchange(byte[] message, InputStream fromRemote, OutputStream toRemote,
+			byte[] sharedKey, int rounds, boolean protectAgainstMirrorAttack, 
+			boolean retransmit, int timeoutMs, boolean useJSSE,
+			PhaseBarrier interlockGroup, boolean binaryFraming) 
+			throws IOException, InternalApplicationException {
 		if (message == null)
 			throw new IllegalArgumentException("message can not be null");
 		if (sharedKey == null)
 			throw new IllegalArgumentException("sharedKey can not be null");
-		if (protectAgainstMirrorAttack && message.length <= SimpleBlockCipher.BlockByteLength)
-			throw new IllegalArgumentException("Can not protect against mirror attacks with messages of only one cipher block length");
 		if (retransmit)
 			throw new IllegalArgumentException("Retransmit is currently not implemented");
-		if (interlockGroup != null && (groupSize < 2 || instanceInGroup >= groupSize))
-			throw new IllegalArgumentException("Using interlock group, but either group size is <2 or this instance number is >= group size");
 
-		if (logger.isInfoEnabled())
-			logger.info("Running interlock exchange with " + rounds + " rounds and timeout of " +
-				timeoutMs + "ms. My message is " + message.length + " bytes long");
-
-        int totalTransferTime=0, totalCryptoTime=0, totalCodingTime=0, 
-        	totalTransferSize=0, totalMessageNum=0;
-       	long timestamp = System.currentTimeMillis();
-       	
 		InterlockProtocol myIp = new InterlockProtocol(sharedKey, rounds, 
 				message.length*8, null, useJSSE);
-		byte[] localCiphertext = myIp.encrypt(message);
-		byte[][] localParts = myIp.split(localCiphertext);
-       	totalCryptoTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
+		try {
+			return myIp.exchange(message, fromRemote, toRemote, protectAgainstMirrorAttack, 
+					timeoutMs, interlockGroup, binaryFraming);
+		}
+		finally {
+			myIp.dispose();
+		}
+	}
 
-		OutputStreamWriter writer = new OutputStreamWriter(toRemote);
-		/* do not use a BufferedReader here because that would potentially mess up
-		 * the stream for other users of the socket (by consuming too many bytes)
-		 */
+	/** Runs a complete interlock exchange with this instance for the local 
+	 * message. The shared key, the number of rounds and the message length 
+	 * are those given to the constructor, and all other parameters have the
+	 * same meaning as for interlockExchange, which simply creates a new 
+	 * instance for each exchange. 
+	 * 
+	 * An instance can be used for multiple exchanges one after the other, 
+	 * e.g. with the same peer. It keeps the buffers for the parts and frames
+	 * of both sides between them, so that they are only allocated once (as 
+	 * long as the remote message length does not change). It can not be 
+	 * used for concurrent exchanges, nor together with addMessage. Call 
+	 * dispose() after the last exchange.
+	 * 
+	 * If the exchange fails for any reason (including exceptions), this
+	 * instance leaves the interlock group, so that the other members do not
+	 * wait for it. Callers that keep using the group for later exchanges 
+	 * need to register again. After a successful exchange, the instance 
+	 * stays registered.
+	 * 
+	 * @see #interlockExchange(byte[], InputStream, OutputStream, byte[], int, boolean, boolean, int, boolean, PhaseBarrier, boolean)
+	 */
+	public byte[] exchange(byte[] message, InputStream fromRemote, OutputStream toRemote,
+			boolean protectAgainstMirrorAttack, int timeoutMs, 
+			PhaseBarrier interlockGroup, boolean binaryFraming) 
+			throws IOException, InternalApplicationException {
+		if (interlockGroup == null)
+			return runExchange(message, fromRemote, toRemote, protectAgainstMirrorAttack, 
+					timeoutMs, null, binaryFraming);
+
+		groupPhase = -1;
+		byte[] ret = null;
+		try {
+			ret = runExchange(message, fromRemote, toRemote, protectAgainstMirrorAttack, 
+					timeoutMs, interlockGroup, binaryFraming);
+			return ret;
+		}
+		finally {
+			if (ret == null) {
+				if (logger.isDebugEnabled())
+					logger.debug("Interlock exchange failed, leaving interlock group");
+				if (groupPhase < 0)
+					interlockGroup.arriveAndDeregister();
+				else
+					interlockGroup.deregister(groupPhase);
+			}
+		}
+	}
+
+	/** Implements exchange, which additionally takes care of leaving the 
+	 * interlock group on failures.
+	 */
+	private byte[] runExchange(byte[] message, InputStream fromRemote, OutputStream toRemote,
+			boolean protectAgainstMirrorAttack, int timeoutMs, 
+			PhaseBarrier interlockGroup, boolean binaryFraming) 
+			throws IOException, InternalApplicationException {
+		if (fromRemote == null || toRemote == null)
+			throw new IllegalArgumentException("Both input and output stream must be set");
+		if (message == null)
+			throw new IllegalArgumentException("message can not be null");
+		if (sharedKey == null)
+			throw new IllegalArgumentException("Can not run an exchange without shared key" + 
+					(instanceId != null ? " [instance " + instanceId : ""));
+		if (protectAgainstMirrorAttack && message.length <= SimpleBlockCipher.BlockByteLength)
+			throw new IllegalArgumentException("Can not protect against mirror attacks with messages of only one cipher block length");
+		if (interlockGroup != null && interlockGroup.getRegisteredParties() < 2)
+			throw new IllegalArgumentException("Using interlock group, but group size is <2");
+		if (binaryFraming && rounds > 0xffff)
+			throw new IllegalArgumentException("Binary framing supports at most " + 0xffff + " rounds");
+
+		/* The two framings only differ in how the greeting and the rounds
+		 * are put on the wire, see FrameCodec. */
+		FrameCodec codec = binaryFraming ?
+				(FrameCodec) new BinaryFrameCodec(fromRemote, toRemote) :
+				new TextFrameCodec(fromRemote, toRemote);
+
+		if (logger.isInfoEnabled())
+			logger.info("Running " + codec.description + "interlock exchange with " + rounds +
+				" rounds and timeout of " + timeoutMs + "ms. My message is " + message.length + " bytes long");
+
+        // in ns
+        long totalCryptoTime=0;
+       	long timestamp = MetricsRegistry.now(), exchangeStart = timestamp;
 
 		// protect against timeouts, e.g. the host not responding or not sending its round
 		SafetyBeltTimer timer = null;
 		if (timeoutMs > 0)
-			timer = new SafetyBeltTimer(timeoutMs, fromRemote);
-		// first exchange length of message
-		String remoteLength = swapLine(ProtocolLine_Init, Integer.toString(message.length), 
-				fromRemote, writer);
-       	totalTransferTime += System.currentTimeMillis()-timestamp;
-       	timestamp = System.currentTimeMillis();
-		totalTransferSize += swapSize;
-		totalMessageNum++;
+			timer = new SafetyBeltTimer(timeoutMs, codec.fromRemote);
+
+		/* When pipelining, the greeting does not depend on the cipher text, so
+		 * send it right away and encrypt while it is on its way to the remote host. */
+		if (codec.pipelined)
+			codec.writeGreeting(message.length);
+
+       	timestamp = MetricsRegistry.now();
+		byte[] localCiphertext = encrypt(message);
+		if (partBuffers == null)
+			partBuffers = createPartBuffers();
+		split(localCiphertext, partBuffers);
+		byte[][] localParts = partBuffers;
+       	totalCryptoTime += cryptoTimer.stop(timestamp);
+
+		/* Encoding rounds in advance is not a problem for the interlock
+		 * ordering, because they are only released one by one below. */
+		codec.prepareRounds(this);
+
+		if (codec.pipelined) {
+			// round 0 does not depend on anything received from the remote host
+			codec.writeRound(0, localParts[0]);
+		}
+		else
+			codec.writeGreeting(message.length);
+		String remoteLength = codec.readGreeting();
 		if (remoteLength == null) {
 			logger.error("Did not receive remote message length. Can not continue.");
 			return null;
 		}
-		int remLen = Integer.parseInt(remoteLength);
+		int remLen;
+		try {
+			remLen = Integer.parseInt(remoteLength);
+		}
+		catch (NumberFormatException e) {
+			logger.error("Could not decode remote message length. Can not continue.");
+			return null;
+		}
+
+		if (remoteIp == null || remoteIp.numMessageBits != remLen*8) {
+			remoteIp = new InterlockProtocol(sharedKey, rounds, 
+					remLen*8, instanceId, useJSSE);
+			remoteIp.partBuffers = remoteIp.createPartBuffers();
+		}
+		else
+			remoteIp.reset();
 
-		InterlockProtocol remoteIp = new InterlockProtocol(sharedKey, rounds, 
-				remLen*8, null, useJSSE);
-		
 		int round=0;
 		while (round<rounds && !(timer != null && timer.isTriggered())) {
-			if (logger.isDebugEnabled())
-				logger.debug("Sending my round " + round + ", length of part is " + localParts[round].length + " bytes");
-			StringBuffer remoteTmp = new StringBuffer();
-			remoteTmp.append(round);
-			remoteTmp.append(' ');
-			remoteTmp.append(Hex.encodeHex(localParts[round]));
-	       	totalCodingTime += System.currentTimeMillis()-timestamp;
-	       	timestamp = System.currentTimeMillis();
-
-			String remotePart = swapLine(ProtocolLine_Round, 
-					remoteTmp.toString(),
-					fromRemote, writer);
-	       	totalTransferTime += System.currentTimeMillis()-timestamp;
-	       	timestamp = System.currentTimeMillis();
-			totalTransferSize += swapSize;
-			totalMessageNum++;
-			if (remotePart == null) {
-				logger.error("Did not receive round " + round + " from remote. Can not continue.");
+			Object roundTrace = PhaseTracer.begin(PhaseTracer.InterlockRound);
+			// when pipelining, round 0 has already been sent
+			if (round > 0 || !codec.pipelined)
+				codec.writeRound(round, localParts[round]);
+			if (!codec.readRound(round, remoteIp))
 				return null;
-			}
+			remoteIp.addMessage(codec.receivedPart, round);
+			PhaseTracer.end(roundTrace, round, codec.receivedPartLength);
+			round++;
+			// successfully got a new round, reset timer
+			if (timer != null)
+				timer.reset();
 
-			// first part is the round number, then the part
-			int remoteRound = Integer.parseInt(remotePart.substring(0, remotePart.indexOf(' ')));
-			if (logger.isDebugEnabled())
-				logger.debug("Received remote round " + remoteRound);
-	       	totalCodingTime += System.currentTimeMillis()-timestamp;
-	       	timestamp = System.currentTimeMillis();
-			if (remoteRound == round) {
-				try { 
-					byte[] part = Hex.decodeHex(remotePart.substring(remotePart.indexOf(' ')+1).toCharArray());
-					remoteIp.addMessage(part, round);
-					if (logger.isDebugEnabled())
-						logger.debug("Received " + part.length + " bytes from other host");
-					round++;
-					// successfully got a new round, reset timer
-					if (timer != null)
-						timer.reset();
+			/* When the second to last round has just been received and we are part
+			 * of an interlock group, then need to wait for all other members before
+			 * transmitting our last round. */
+			if (round==rounds-1 && interlockGroup != null) {
+				/* But this may potentially take a lot longer than a single round
+				 * timeout, therefore wait for the maximum possible time here. */
+				if (timer != null) {
+					timer.stop();
+					timer = new SafetyBeltTimer(timeoutMs * rounds, codec.fromRemote);
 				}
-				catch (DecoderException e) {
-					logger.error("Could not decode remote byte array. Can not continue.");
+				if (!waitForInterlockGroup(interlockGroup, timeoutMs, rounds))
 					return null;
+				// for the last round, set the timer back to normal
+				if (timer != null) {
+					timer.stop();
+					timer = new SafetyBeltTimer(timeoutMs, codec.fromRemote);
 				}
-		       	totalCodingTime += System.currentTimeMillis()-timestamp;
-
-				/* When the second to last round has just been received and we are part
-				 * of an interlock group, then need to wait for all other members before
-				 * transmitting our last round. */
-				if (round==rounds-1 && interlockGroup != null) {
-					// mark ourselves as having arrived at the barrier and waiting
-					synchronized(interlockGroup) {
-						interlockGroup.set(instanceInGroup);
-						// other protocols may already be waiting for us, wake them up
-						interlockGroup.notifyAll();
-					}
-					/* But this may potentially take a lot longer than a single round 
-					 * timeout, therefore wait for the maximum possible time here. */
-					if (timer != null) {
-						timer.stop();
-						timer = new SafetyBeltTimer(timeoutMs * rounds, fromRemote);
-					}
-				
-					synchronized(interlockGroup) {
-						boolean groupSynchronized = false;
-						while (!groupSynchronized && (timer == null || !timer.isTriggered())) {
-							groupSynchronized = true;
-							for (int i=0; i<groupSize && groupSynchronized; i++)
-								if (!interlockGroup.get(i)) groupSynchronized = false;
-							// if not all interlock protocols have arrived at the barrier, wait for a change
-							if (!groupSynchronized)
-								try {
-									interlockGroup.wait(timeoutMs);
-								} catch (InterruptedException e) {
-									// just ignore if we're interrupted, we'll just re-enter the outer loop
-								}
-						}
-						if (!groupSynchronized) {
-							logger.error("Timeout while waiting for interlock group to arrive at barrier, aborting protocol");
-							return null;
-						}
-					}
-
-					// for the last round, set the timer back to normal
-					if (timer != null) {
-						timer.stop();
-						timer = new SafetyBeltTimer(timeoutMs, fromRemote);
-					}
-				}
-		       	timestamp = System.currentTimeMillis();
-			}
-			else {
-				logger.error("Round number does not match local round. Can not continue.");
-				return null;
 			}
 		}
 
@@ -764,28 +976,20 @@ public class InterlockProtocol {
 			if (logger.isDebugEnabled())
 				logger.debug("Interlock protocol completed");
 
-	       	timestamp = System.currentTimeMillis();
-			byte[] remoteCiphertext = remoteIp.reassemble();
-			if (protectAgainstMirrorAttack) {
-				boolean equals=true;
-				// the first block of both cipher texts _must_ be different, as it is a random IV
-				for (int i=0; i<SimpleBlockCipher.BlockByteLength && equals; i++)
-					if (localCiphertext[i] != remoteCiphertext[i]) equals=false;
-				if (equals) {
-					logger.error("Mirror attack detected! Aborting interlock protocol!");
-					return null;
-				}
-			}
+	       	timestamp = MetricsRegistry.now();
+			byte[] ret = decryptRemote(remoteIp, localCiphertext, protectAgainstMirrorAttack);
+			if (ret == null)
+				return null;
+	       	totalCryptoTime += cryptoTimer.stop(timestamp);
+
+           	exchangeTimer.stop(exchangeStart);
 
-			byte[] ret = remoteIp.decrypt(remoteCiphertext); 
-	       	totalCryptoTime += System.currentTimeMillis()-timestamp;
+           	statisticsLogger.warn("Key transfers took " + MetricsRegistry.toMillis(codec.transferTime) +
+           			"ms for total " + codec.transferSize +
+           			" " + codec.sizeUnit + " in " + codec.messageNum +
+           			" messages, coding took " + MetricsRegistry.toMillis(codec.codingTime) +
+           			"ms, crypto took " + MetricsRegistry.toMillis(totalCryptoTime) + "ms");
 
-           	statisticsLogger.warn("Key transfers took " + totalTransferTime + 
-           			"ms for total " + totalTransferSize + 
-           			" chars in " + totalMessageNum + 
-           			" messages, coding took " + totalCodingTime + 
-           			"ms, crypto took " + totalCryptoTime + "ms");
-	       	
 	       	return ret;
 		}
 		else {
@@ -793,6 +997,318 @@ public class InterlockProtocol {
 			return null;
 		}
 	}
+
+	/** This is the framing of the greeting and the rounds on the wire, as
+	 * used by runExchange. It also keeps the statistics about the transfers
+	 * and the coding.
+	 */
+	private static abstract class FrameCodec {
+		/** The stream to receive from, see interlockExchange. */
+		InputStream fromRemote;
+		/** The stream to send to, see interlockExchange. */
+		OutputStream toRemote;
+		/** Used in log messages to describe the framing. */
+		String description;
+		/** The unit of transferSize, for the statistics logger. */
+		String sizeUnit;
+		/** If true, the greeting is sent before encrypting the message, and
+		 * round 0 before receiving the remote greeting. */
+		boolean pipelined;
+		/** The command of the greeting line. */
+		String greetingCommand;
+
+		/** The part received by the last successful readRound. It may be
+		 * null for an empty part. */
+		byte[] receivedPart;
+		/** The length of receivedPart in bytes. */
+		int receivedPartLength;
+
+		// in ns
+		long transferTime=0, codingTime=0;
+		int transferSize=0, messageNum=0;
+
+		FrameCodec(InputStream fromRemote, OutputStream toRemote) {
+			this.fromRemote = fromRemote;
+			this.toRemote = toRemote;
+		}
+
+		/** Sends the greeting with the local message length. */
+		void writeGreeting(int messageLength) throws IOException {
+	       	long timestamp = MetricsRegistry.now();
+			byte[] greeting = (greetingCommand + " " + messageLength + "\n").getBytes();
+			toRemote.write(greeting);
+			toRemote.flush();
+			transferSize += greeting.length;
+			messageNum++;
+			transferTime += transferTimer.stop(timestamp);
+		}
+
+		/** Receives the greeting of the remote host.
+		 * @return The remote message length as sent, or null if no matching
+		 *         greeting has been received.
+		 */
+		String readGreeting() throws IOException {
+	       	long timestamp = MetricsRegistry.now();
+			String remoteLine = readLine(fromRemote);
+			transferTime += transferTimer.stop(timestamp);
+			transferSize += remoteLine.length();
+			return checkLine(greetingCommand, remoteLine);
+		}
+
+		/** Called once with the local instance, after its parts have been put
+		 * into its partBuffers, and before any of them is sent. */
+		void prepareRounds(InterlockProtocol localIp) {
+		}
+
+		/** Sends a single round.
+		 * @param part The part to send, may be null for an empty round.
+		 */
+		abstract void writeRound(int round, byte[] part) throws IOException;
+
+		/** Receives a single round and sets receivedPart to it.
+		 * @param round The round that is expected.
+		 * @param remoteIp The instance that will assemble the remote message.
+		 *                 The part may be received into its partBuffers.
+		 * @return true if the round has been received, false on an error
+		 *         (which has already been logged).
+		 */
+		abstract boolean readRound(int round, InterlockProtocol remoteIp) throws IOException;
+	}
+
+	/** The original framing: each round is a text line with the round
+	 * number and the hex-encoded part, and every round is a full round trip.
+	 */
+	private static class TextFrameCodec extends FrameCodec {
+		/** do not use a BufferedReader here because that would potentially mess up
+		 * the stream for other users of the socket (by consuming too many bytes)
+		 */
+		private OutputStreamWriter writer;
+
+		TextFrameCodec(InputStream fromRemote, OutputStream toRemote) {
+			super(fromRemote, toRemote);
+			writer = new OutputStreamWriter(toRemote);
+			description = "";
+			sizeUnit = "chars";
+			pipelined = false;
+			greetingCommand = ProtocolLine_Init;
+		}
+
+		void writeRound(int round, byte[] part) throws IOException {
+			if (logger.isDebugEnabled())
+				logger.debug("Sending my round " + round + ", length of part is " + part.length + " bytes");
+	       	long timestamp = MetricsRegistry.now();
+			StringBuffer line = new StringBuffer();
+			line.append(ProtocolLine_Round);
+			line.append(' ');
+			line.append(round);
+			line.append(' ');
+			line.append(Hex.encodeHex(part));
+			line.append('\n');
+			codingTime += codingTimer.stop(timestamp);
+
+	       	timestamp = MetricsRegistry.now();
+			writer.write(line.toString());
+			writer.flush();
+			transferTime += transferTimer.stop(timestamp);
+			transferSize += line.length()-1;
+			messageNum++;
+		}
+
+		boolean readRound(int round, InterlockProtocol remoteIp) throws IOException {
+	       	long timestamp = MetricsRegistry.now();
+			String remoteLine = readLine(fromRemote);
+			transferTime += transferTimer.stop(timestamp);
+			transferSize += remoteLine.length();
+			String remotePart = checkLine(ProtocolLine_Round, remoteLine);
+			if (remotePart == null || remotePart.indexOf(' ') < 0) {
+				logger.error("Did not receive round " + round + " from remote. Can not continue.");
+				return false;
+			}
+
+	       	timestamp = MetricsRegistry.now();
+			try {
+				// first part is the round number, then the part
+				int remoteRound = Integer.parseInt(remotePart.substring(0, remotePart.indexOf(' ')));
+				if (logger.isDebugEnabled())
+					logger.debug("Received remote round " + remoteRound);
+				if (remoteRound != round) {
+					logger.error("Round number does not match local round. Can not continue.");
+					return false;
+				}
+				receivedPart = Hex.decodeHex(remotePart.substring(remotePart.indexOf(' ')+1).toCharArray());
+				receivedPartLength = receivedPart.length;
+				if (logger.isDebugEnabled())
+					logger.debug("Received " + receivedPartLength + " bytes from other host");
+			}
+			catch (NumberFormatException e) {
+				logger.error("Could not decode remote round number. Can not continue.");
+				return false;
+			}
+			catch (DecoderException e) {
+				logger.error("Could not decode remote byte array. Can not continue.");
+				return false;
+			}
+			finally {
+				codingTime += codingTimer.stop(timestamp);
+			}
+			return true;
+		}
+	}
+
+	/** The binary framing: each round is the header (round number and part
+	 * length) followed by the raw part, and the exchange is pipelined.
+	 */
+	private static class BinaryFrameCodec extends FrameCodec {
+		/** All rounds, encoded by prepareRounds into the frameBuffer of the 
+		 * local instance. Round i starts at frameOffsets[i]. */
+		private byte[] localFrames;
+		private int[] localFrameOffsets;
+		/** Buffer for receiving the header of a round. */
+		private byte[] header = new byte[BinaryFrameHeaderLength];
+
+		BinaryFrameCodec(InputStream fromRemote, OutputStream toRemote) {
+			super(fromRemote, toRemote);
+			description = "binary framed ";
+			sizeUnit = "bytes";
+			pipelined = true;
+			greetingCommand = ProtocolLine_InitBinary;
+		}
+
+		void prepareRounds(InterlockProtocol localIp) {
+	       	long timestamp = MetricsRegistry.now();
+			byte[][] parts = localIp.partBuffers;
+			// the part lengths only depend on the parameters of the instance
+			if (localIp.frameBuffer == null) {
+				int[] offsets = new int[parts.length+1];
+				for (int round=0; round<parts.length; round++)
+					offsets[round+1] = offsets[round] + BinaryFrameHeaderLength + 
+						(parts[round] != null ? parts[round].length : 0);
+				localIp.frameOffsets = offsets;
+				localIp.frameBuffer = new byte[offsets[parts.length]];
+			}
+			localFrames = localIp.frameBuffer;
+			localFrameOffsets = localIp.frameOffsets;
+			for (int round=0; round<parts.length; round++)
+				encodeRoundFrame(round, parts[round], localFrames, localFrameOffsets[round]);
+			codingTime += codingTimer.stop(timestamp);
+		}
+
+		void writeRound(int round, byte[] part) throws IOException {
+			int frameLength = localFrameOffsets[round+1] - localFrameOffsets[round];
+			if (logger.isDebugEnabled())
+				logger.debug("Sending my round " + round + ", length of frame is " + frameLength + " bytes");
+	       	long timestamp = MetricsRegistry.now();
+			toRemote.write(localFrames, localFrameOffsets[round], frameLength);
+			toRemote.flush();
+			transferTime += transferTimer.stop(timestamp);
+			transferSize += frameLength;
+			messageNum++;
+		}
+
+		boolean readRound(int round, InterlockProtocol remoteIp) throws IOException {
+	       	long timestamp = MetricsRegistry.now();
+			if (!readFully(fromRemote, header)) {
+				logger.error("Did not receive round " + round + " from remote. Can not continue.");
+				return false;
+			}
+			int remoteRound = ((header[0] & 0xff) << 8) | (header[1] & 0xff);
+			int partLength = ((header[2] & 0xff) << 24) | ((header[3] & 0xff) << 16) | 
+				((header[4] & 0xff) << 8) | (header[5] & 0xff);
+			if (logger.isDebugEnabled())
+				logger.debug("Received remote round " + remoteRound + " with " + partLength + " bytes");
+			if (remoteRound != round) {
+				logger.error("Round number does not match local round. Can not continue.");
+				return false;
+			}
+			// the remote host splits with the same parameters, so the length is known exactly
+			receivedPart = remoteIp.partBuffers[round];
+			int expectedLength = receivedPart != null ? receivedPart.length : 0;
+			if (partLength != expectedLength) {
+				logger.error("Invalid part length " + partLength + " in round " + round + 
+						", expected " + expectedLength + ". Can not continue.");
+				return false;
+			}
+			if (partLength > 0) {
+				if (!readFully(fromRemote, receivedPart)) {
+					logger.error("Did not receive complete round " + round + " from remote. Can not continue.");
+					return false;
+				}
+			}
+			receivedPartLength = partLength;
+			transferTime += transferTimer.stop(timestamp);
+			transferSize += BinaryFrameHeaderLength + partLength;
+			return true;
+		}
+	}
+
+	/** Encodes a single round for binary framing: round number, part length
+	 * and the raw part, so that it can be sent with a single write.
+	 * @param part The part to send, may be null for an empty round.
+	 * @param frame The array to encode into, which must have room for
+	 *              BinaryFrameHeaderLength + part.length bytes at offset.
+	 */
+	private static void encodeRoundFrame(int round, byte[] part, byte[] frame, int offset) {
+		int partLength = part != null ? part.length : 0;
+		frame[offset] = (byte) (round >> 8);
+		frame[offset+1] = (byte) round;
+		frame[offset+2] = (byte) (partLength >> 24);
+		frame[offset+3] = (byte) (partLength >> 16);
+		frame[offset+4] = (byte) (partLength >> 8);
+		frame[offset+5] = (byte) partLength;
+		if (part != null)
+			System.arraycopy(part, 0, frame, offset + BinaryFrameHeaderLength, partLength);
+	}
+
+	/** Reads exactly buffer.length bytes from the remote host.
+	 * @return true if the buffer has been filled, false if the stream ended before.
+	 */
+	private static boolean readFully(InputStream fromRemote, byte[] buffer) throws IOException {
+		int off = 0;
+		while (off < buffer.length) {
+			int read = fromRemote.read(buffer, off, buffer.length-off);
+			if (read == -1)
+				return false;
+			off += read;
+		}
+		return true;
+	}
+
+	/** Reassembles the remote cipher text after all rounds have been received,
+	 * checks for the mirror attack if requested, and decrypts it.
+	 * @return The remote plain text, or null if a mirror attack was detected.
+	 */
+	private static byte[] decryptRemote(InterlockProtocol remoteIp, byte[] localCiphertext, 
+			boolean protectAgainstMirrorAttack) throws InternalApplicationException {
+		byte[] remoteCiphertext = remoteIp.reassemble();
+		if (protectAgainstMirrorAttack) {
+			boolean equals=true;
+			// the first block of both cipher texts _must_ be different, as it is a random IV
+			for (int i=0; i<SimpleBlockCipher.BlockByteLength && equals; i++)
+				if (localCiphertext[i] != remoteCiphertext[i]) equals=false;
+			if (equals) {
+				logger.error("Mirror attack detected! Aborting interlock protocol!");
+				return null;
+			}
+		}
+
+		return remoteIp.decrypt(remoteCiphertext); 
+	}
+	
+	/** Arrives at the barrier of the interlock group and waits until all 
+	 * other instances of the group have arrived as well.
+	 * @param timeoutMs The timeout for a single round, waiting is limited to
+	 *                  timeoutMs*rounds. Set to 0 to wait without a timeout.
+	 * @return true if all instances arrived, false on a timeout.
+	 */
+	private boolean waitForInterlockGroup(PhaseBarrier interlockGroup, 
+			int timeoutMs, int rounds) {
+		groupPhase = interlockGroup.arrive();
+		if (interlockGroup.awaitAdvance(groupPhase, timeoutMs > 0 ? timeoutMs * rounds : 0) < 0) {
+			logger.error("Timeout while waiting for interlock group to arrive at barrier, aborting protocol");
+			return false;
+		}
+		return true;
+	}
 		
 	/** Adds a message to the cipher text assemply. This is a convenience
 	 * wrapper around the other addMessage method, which computes offset and
@@ -853,23 +1369,7 @@ public class InterlockProtocol {
 			throw new InternalApplicationException("Target array not long enough, requested to copy " + bitLen + 
 					" bits into a target array of " + dest.length + " bytes length");
 		
-		int bytePos = bitOffset / 8; // the byte to read from
-		int bitPos = bitOffset % 8;  // the bit (within the byte) to read from
-		// this could be more performant when bitOffset % 8 = 0 (i.e. when the byte boundaries match), but don't care about that right now
-		for (int i=0; i<bitLen; i++) {
-			// first get the current bit to copy from src
-			boolean bit = ((src[bytePos]) & (1 << bitPos)) != 0;
-			// and copy it to dest
-			if (bit)
-				dest[i/8] |= 1 << i%8;
-			else
-				dest[i/8] &= ~(1 << i%8);
-			bitPos++;
-			if (bitPos == 8) {
-				bytePos++;
-				bitPos = 0;
-			}
-		}
+		copyBits(dest, 0, src, bitOffset, bitLen);
 	}
 
 	/** Small helper function to add a part to a byte array.
@@ -889,25 +1389,113 @@ public class InterlockProtocol {
 			throw new InternalApplicationException("Target array not long enough, requested to copy " + bitLen + 
 					" bits starting at offset " + bitOffset + " into a target array of " + dest.length + " bytes length");
 		
-		int bytePos = bitOffset / 8; // the byte to write to
-		int bitPos = bitOffset % 8;  // the bit (within the byte) to write to
-		// this could be more performant when bitOffset % 8 = 0 (i.e. when the byte boundaries match), but don't care about that right now
-		for (int i=0; i<bitLen; i++) {
-			// first get the current bit to copy from src
-			boolean bit = ((src[i/8]) & (1 << (i%8))) != 0;
-			// and copy it to dest
-			if (bit)
-				dest[bytePos] |= 1 << bitPos;
-			else
-				dest[bytePos] &= ~(1 << bitPos);
-			bitPos++;
-			if (bitPos == 8) {
-				bytePos++;
-				bitPos = 0;
+		copyBits(dest, bitOffset, src, 0, bitLen);
+	}
+	
+	/** The maximum number of bits that copyBits moves in one step. With a 
+	 * bit offset of up to 7 within the first byte, this still fits into a 
+	 * single 64 bit word on both the source and the destination side.
+	 */
+	private static final int MaxBitsPerWord = 56;
+	
+	/** Copies bitLen bits from src to dest. Bits are numbered from the LSB of
+	 * the first byte, and all bits in dest outside of the copied range are
+	 * left untouched. Instead of moving single bits, this works on up to 
+	 * MaxBitsPerWord bits at a time, loaded into a 64 bit word. Array bounds
+	 * must have been checked by the caller.
+	 */
+	private static void copyBits(byte[] dest, int destBitOffset, byte[] src, int srcBitOffset, int bitLen) {
+		// when the byte boundaries match, whole bytes can simply be copied
+		if (destBitOffset % 8 == 0 && srcBitOffset % 8 == 0 && bitLen >= 8) {
+			int numBytes = bitLen / 8;
+			System.arraycopy(src, srcBitOffset / 8, dest, destBitOffset / 8, numBytes);
+			srcBitOffset += numBytes * 8;
+			destBitOffset += numBytes * 8;
+			bitLen -= numBytes * 8;
+		}
+		
+		while (bitLen > 0) {
+			int curBits = bitLen < MaxBitsPerWord ? bitLen : MaxBitsPerWord;
+			long mask = (1L << curBits) - 1;
+			
+			int srcPos = srcBitOffset >>> 3, srcShift = srcBitOffset & 7;
+			long word = srcPos + 8 <= src.length ? loadLong(src, srcPos) : 
+				loadWord(src, srcPos, (srcShift + curBits + 7) >>> 3);
+			word = (word >>> srcShift) & mask;
+			
+			/* Away from the end of dest, always load and store the full 8 bytes.
+			 * The bytes outside of the mask are written back unchanged. */
+			int destPos = destBitOffset >>> 3, destShift = destBitOffset & 7;
+			if (destPos + 8 <= dest.length) {
+				long destWord = loadLong(dest, destPos);
+				storeLong(dest, destPos, (destWord & ~(mask << destShift)) | (word << destShift));
 			}
+			else {
+				int destBytes = (destShift + curBits + 7) >>> 3;
+				long destWord = loadWord(dest, destPos, destBytes);
+				storeWord(dest, destPos, destBytes, (destWord & ~(mask << destShift)) | (word << destShift));
+			}
+			
+			srcBitOffset += curBits;
+			destBitOffset += curBits;
+			bitLen -= curBits;
+		}
+	}
+	
+	/** Loads the 8 bytes starting at pos into a word, with the first byte as
+	 * the least significant one. This is unrolled, as there is no way to load
+	 * a long from a byte array on J2ME.
+	 */
+	private static long loadLong(byte[] a, int pos) {
+		return (a[pos] & 0xffL) | ((a[pos+1] & 0xffL) << 8) | 
+			((a[pos+2] & 0xffL) << 16) | ((a[pos+3] & 0xffL) << 24) | 
+			((a[pos+4] & 0xffL) << 32) | ((a[pos+5] & 0xffL) << 40) | 
+			((a[pos+6] & 0xffL) << 48) | ((long) a[pos+7] << 56);
+	}
+	
+	/** The inverse of loadLong. */
+	private static void storeLong(byte[] a, int pos, long word) {
+		a[pos] = (byte) word;
+		a[pos+1] = (byte) (word >>> 8);
+		a[pos+2] = (byte) (word >>> 16);
+		a[pos+3] = (byte) (word >>> 24);
+		a[pos+4] = (byte) (word >>> 32);
+		a[pos+5] = (byte) (word >>> 40);
+		a[pos+6] = (byte) (word >>> 48);
+		a[pos+7] = (byte) (word >>> 56);
+	}
+	
+	/** Loads numBytes (less than 8) bytes starting at pos into a word, with 
+	 * the first byte as the least significant one. This is only used at the
+	 * end of an array, where loadLong would read past it.
+	 */
+	private static long loadWord(byte[] a, int pos, int numBytes) {
+		long word = 0;
+		for (int i=numBytes-1; i>=0; i--)
+			word = (word << 8) | (a[pos+i] & 0xff);
+		return word;
+	}
+
+	/** The inverse of loadWord. */
+	private static void storeWord(byte[] a, int pos, int numBytes, long word) {
+		for (int i=0; i<numBytes; i++) {
+			a[pos+i] = (byte) word;
+			word >>>= 8;
 		}
 	}
 
+	/** Wipes the cipher contexts that hold the expanded shared key, both of
+	 * this instance and of the instance created for the remote message by
+	 * exchange(). This should be called when the instance is no longer 
+	 * needed, so that the key schedule does not stay in memory longer than
+	 * the protocol run.
+	 */
+	public void dispose() {
+		cipher.clear();
+		if (remoteIp != null)
+			remoteIp.dispose();
+	}
+
 	/** Returns the number of cipher text blocks necessary to encode the message. */ 
 	public int getCipherTextBlocks() {
 		return numCipherTextBlocks;
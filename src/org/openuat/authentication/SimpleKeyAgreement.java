@@ -9,10 +9,10 @@
 package org.openuat.authentication;
 
 import org.openuat.authentication.exceptions.*;
+import org.openuat.util.EntropyService;
 import org.openuat.util.Hash;
 
 import java.math.BigInteger;
-import java.security.SecureRandom;
 
 /** This class implements a simple key agreement protocol. Simple refers to the 
  * interface of this class, not its security. For a complete key agreement, the 
@@ -174,6 +174,10 @@ public class SimpleKeyAgreement {
 		this(useJSSE, false);
 	}
 
+	/** Only used by createSessionCopy. */
+	private SimpleKeyAgreement() {
+	}
+
 	public SimpleKeyAgreement(byte[] localKeyPair) {
 		// TODO: implement deserializing of local key pair!
 	}
@@ -217,7 +221,7 @@ public class SimpleKeyAgreement {
 
 			javax.crypto.spec.DHParameterSpec ps = new javax.crypto.spec.DHParameterSpec(skip1024Modulus,
 					skip1024Base);
-			kg.initialize(ps);
+			kg.initialize(ps, EntropyService.getRandom());
 			myKeypair = kg.generateKeyPair();
 
 			initFromLocalKeyPair_JSSE();
@@ -242,7 +246,7 @@ public class SimpleKeyAgreement {
 		wipe();
 
 		org.bouncycastle.crypto.generators.DHBasicKeyPairGenerator kg = new org.bouncycastle.crypto.generators.DHBasicKeyPairGenerator();
-		kg.init(new org.bouncycastle.crypto.params.DHKeyGenerationParameters(new SecureRandom(), 
+		kg.init(new org.bouncycastle.crypto.params.DHKeyGenerationParameters(EntropyService.getRandom(), 
 				new org.bouncycastle.crypto.params.DHParameters(skip1024Modulus, skip1024Base)));
 		myKeypair = kg.generateKeyPair();
 
@@ -349,6 +353,49 @@ public class SimpleKeyAgreement {
 		state = STATE_INTRANSIT;
 	}
 
+	/** Creates a new key agreement instance that uses the same local key 
+	 * pair as this one, but has its own Diffie-Hellman state. This allows 
+	 * multiple concurrent key agreement rounds with a permanent local key 
+	 * pair, while this instance itself remains untouched. The key pair 
+	 * objects are never modified and can thus be shared between threads.
+	 * Calling this method is only supported when this instance has been 
+	 * constructed with permanentLocalKeyPair=true.
+	 * @return A key agreement instance that is ready to get the remote 
+	 *         public key added.
+	 * @throws KeyAgreementProtocolException 
+	 * @throws InternalApplicationException 
+	 */
+	public SimpleKeyAgreement createSessionCopy() throws KeyAgreementProtocolException, InternalApplicationException {
+		if (!permanentLocalKeyPair)
+			throw new KeyAgreementProtocolException(
+					"Key agreement can only be copied when it has been constructed" +
+					" to support a permanent local key pair. This one has not." +
+					" Refusing to copy.");
+		if (myKeypair == null)
+			throw new KeyAgreementProtocolException(
+					"Key agreement has already been wiped, can not copy its local key pair.");
+
+		SimpleKeyAgreement copy = new SimpleKeyAgreement();
+		copy.useJSSE = useJSSE;
+		copy.permanentLocalKeyPair = true;
+		copy.myKeypair = myKeypair;
+		copy.initFromLocalKeyPair();
+		copy.state = STATE_INTRANSIT;
+		return copy;
+	}
+
+	/** Wipes the shared key and the Diffie-Hellman state of a session copy
+	 * created by createSessionCopy, without touching the local key pair that
+	 * it shares with other instances. The instance can not be used afterwards.
+	 * In contrast to wipe, this does not trigger the garbage collector.
+	 */
+	public void wipeSession() {
+		wipeSharedKeys();
+		dh = null;
+		myKeypair = null;
+		state = 0;
+	}
+
 	/** Get the public key for the key agreement protocol. This byte array 
 	 * should be transmitted to the remote side. This method can only be 
 	 * called in state initialized and changes it to inTransit. */
@@ -14,10 +14,11 @@
 package org.openuat.authentication.accelerometer;
 
 import java.io.IOException;
-import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.DHWithVerification;
@@ -28,11 +29,15 @@ import org.openuat.channel.main.HostAuthenticationServer;
 import org.openuat.channel.main.ProtocolCommandHandler;
 import org.openuat.channel.main.RemoteConnection;
 import org.openuat.features.Coherence;
+import org.openuat.features.CoherenceEngine;
+import org.openuat.features.Coherence_Int;
 import org.openuat.features.TimeSeriesUtil;
 import org.openuat.sensors.SegmentsSink;
 import org.openuat.sensors.SegmentsSink_Int;
 import org.openuat.sensors.TimeSeriesAggregator;
+import org.openuat.util.Clock;
 import org.openuat.util.LineReaderWriter;
+import org.openuat.util.PhaseBarrier;
 
 /** This is the first variant of the motion authentication protocol. It
  * uses Diffie-Hellman key agreement with verification that the shared keys
@@ -53,6 +58,13 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 */
 	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.shake1");
 
+	/** The time spent in each step of coding the segments, in ns. */
+	private static final LatencyHistogram codingTimer = MetricsRegistry.timer("shake1.coding");
+	/** The duration of each interlock exchange, in ns. */
+	private static final LatencyHistogram interlockTimer = MetricsRegistry.timer("shake1.interlock");
+	/** The duration of each coherence comparison, in ns. */
+	private static final LatencyHistogram comparisonTimer = MetricsRegistry.timer("shake1.comparison");
+
 	/** The TCP port we use for this protocol, if running over TCP. */
 	public static final int TcpPort = 54322;
 	
@@ -96,13 +108,23 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 * check in the interlock helpers? 
 	 */
 	private double[] localSegment = null;
+	/** If the last local segment has been received as integer samples via
+	 * SegmentsSink_Int, this holds them, and with fixedPointCoherence the 
+	 * segments are compared with Coherence_Int. localSegment always
+	 * holds the same values as doubles, for transmission (the wire format
+	 * encodes doubles) and for the double comparison. It is set and read together with localSegment.
+	 * @see #addSegment(int[], int)
+	 */
+	private int[] localSegment_Int = null;
 	/** This is only used as a synchronization lock for accessing localSegment from
 	 * different threads, and has no other use.
 	 */
 	private Object localSegmentLock = new Object();
 	
-	/** The window size for the coherence computation. */
-	private int windowSize;
+	/** The engine for the coherence computation with the window size passed
+	 * to the constructor. It keeps its buffers between segments. It is locked while in use, because verification may run
+	 * concurrently for multiple remote hosts. */
+	private CoherenceEngine coherenceEngine;
 	
 	/** The current threshold for the coherence. If it is higher, the two segments
 	 * are considered similar enough.
@@ -126,6 +148,23 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 */ 
 	protected byte[] staticAuthenticationKey;
 	
+	/** If set to true, the interlock exchange uses binary framing for its 
+	 * rounds. Both hosts need to use the same setting.
+	 * @see InterlockProtocol#interlockExchange(byte[], java.io.InputStream, java.io.OutputStream, byte[], int, boolean, boolean, int, boolean, PhaseBarrier, boolean)
+	 */
+	private boolean binaryInterlockFraming = false;
+	
+	/** If set to true, local segments that have been received as integer 
+	 * samples are compared with the fixed-point Coherence_Int, e.g. on 
+	 * gateways without floating point unit. Its mean differs slightly from 
+	 * the double coherence, so a segment close to the threshold could be 
+	 * accepted by one host and rejected by the other. Both hosts therefore
+	 * need to use the same setting. By default, all segments are compared 
+	 * with doubles.
+	 * @see #localSegment_Int
+	 */
+	private boolean fixedPointCoherence = false;
+	
 	/** This is only used to remember the coherence mean that has been computed last.
 	 * It should only be used for debugging, because the decision if verification 
 	 * succeeded or not is made within this class.
@@ -151,7 +190,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 * protocol runs when we are trying to verify multiple devices at the same
 	 * time.
 	 */
-	private BitSet interlockGroup = null;
+	private PhaseBarrier interlockGroup = null;
 	
 	/** Contains all RemoteDevice objects to represent hosts with which a key
 	 * verification is currently active, i.e. to which a channel is open for
@@ -160,6 +199,12 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 */
 	private Hashtable verificationsRunning = new Hashtable();
 	
+	/** The clock for the timeouts of the protocol, or null to use the
+	 * default clock.
+	 * @see #setClock(Clock)
+	 */
+	private Clock clock = null;
+	
 	/** Initializes the object, only setting useJSSE at the moment.
 	 * 
 	 * @param coherenceThreshold A good value is 0.65 for samplerate=512 or 0.82 for samplerate=128.
@@ -178,7 +223,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		server.addProtocolCommandHandler(MotionVerificationCommand, new MotionVerificationCommandHandler());
 		this.coherenceThresholdSucceed = coherenceThresholdSucceed;
 		this.coherenceThresholdFailHard = coherenceThresholdFailHard;
-		this.windowSize = windowSize;
+		this.coherenceEngine = createCoherenceEngine(windowSize);
 	}
 	
 	/** Called by the base class when the whole authentication protocol succeeded. 
@@ -236,8 +281,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		synchronized (interlockRunners) {
 			if (interlockRunners.isEmpty()) {
 				interlockGroup = null; // no synchronization necessary
-				Thread runner = new AsyncInterlockHelper(toRemote, false, sharedAuthenticationKey,
-						0, 0);
+				Thread runner = new AsyncInterlockHelper(toRemote, false, sharedAuthenticationKey, null);
 				interlockRunners.addElement(runner); 
 				runner.start();
 			}
@@ -259,8 +303,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		
 		synchronized (interlockRunners) {
 			if (interlockRunners.isEmpty()) {
-				interlockGroup = new BitSet();
-				int groupSize = toRemotes.length, instanceNum=0;
+				int groupSize = toRemotes.length;
 				// sanity check
 				for (int i=0; i<toRemotes.length; i++) {
 					if (keyManager.getState(toRemotes[i]) != KeyManager.STATE_VERIFICATION) {
@@ -274,12 +317,13 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 							groupSize + " will actually bs started, thus not using any locking");
 					interlockGroup = null;
 				}
+				else
+					interlockGroup = new PhaseBarrier(groupSize);
 				
 				for (int i=0; i<toRemotes.length; i++) {
-					if (toRemotes != null) {
+					if (toRemotes[i] != null) {
 						Thread runner = new AsyncInterlockHelper(toRemotes[i], openChannels, 
-							keyManager.getAuthenticationKey(toRemotes[i]),
-							groupSize, instanceNum++);
+							keyManager.getAuthenticationKey(toRemotes[i]), interlockGroup);
 						interlockRunners.addElement(runner); 
 						runner.start();
 					}
@@ -292,37 +336,101 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		}
 	}
 	
-	private static double coherence(double[] segment1, double[] segment2, int windowSize) {
+	/** Creates the engine for comparing segments with the given window size. */
+	private static CoherenceEngine createCoherenceEngine(int windowSize) {
+		return new CoherenceEngine(windowSize, 
+				(int) (ShakeWellBeforeUseParameters.coherenceWindowOverlapFactor * windowSize));
+	}
+	
+	private static double coherence(double[] segment1, double[] segment2, CoherenceEngine engine) {
 		if (segment1 == null || segment2 == null) {
 			throw new RuntimeException("Did not yet receive both segments, skipping comparing for now");
 		}
 
 		double[][] equalizedSeries = TimeSeriesUtil.cutSegmentsToEqualLength(segment1, segment2);
-		double[] coherence = Coherence.cohere(equalizedSeries[0], equalizedSeries[1], windowSize, 
-				(int) (ShakeWellBeforeUseParameters.coherenceWindowOverlapFactor * windowSize));
-		if (coherence == null) {
-			logger.warn("Coherence not computed, no match");
+		if (equalizedSeries[0].length < 2*engine.getWindowSize() - engine.getOverlap()) {
+			logger.warn("Segments of length " + equalizedSeries[0].length + 
+					" are too short to compute coherence, no match");
 			return -1;
 		}
+		// only the coefficients up to the cut-off are used, so don't compute the others
+		double[] coherence;
+		synchronized (engine) {
+			coherence = engine.cohere(equalizedSeries[0], equalizedSeries[1],
+					ShakeWellBeforeUseParameters.coherenceCutOffFrequency);
+		}
 
 		return Coherence.mean(coherence, ShakeWellBeforeUseParameters.coherenceCutOffFrequency);
 	}
 
+	/** This is the fixed-point variant of coherence(double[], double[], CoherenceEngine)
+	 * for local segments with integer samples. It uses the window size and 
+	 * overlap of the engine, but not its buffers. */
+	private static double coherence(int[] segment1, double[] segment2, CoherenceEngine engine) {
+		if (segment1 == null || segment2 == null) {
+			throw new RuntimeException("Did not yet receive both segments, skipping comparing for now");
+		}
+
+		int[][] equalizedSeries = TimeSeriesUtil.cutSegmentsToEqualLength(segment1, toFixedPoint(segment2));
+		if (equalizedSeries[0].length < 2*engine.getWindowSize() - engine.getOverlap()) {
+			logger.warn("Segments of length " + equalizedSeries[0].length + 
+					" are too short to compute coherence, no match");
+			return -1;
+		}
+		// only the coefficients up to the cut-off are used, so don't compute the others
+		int[] coherence = Coherence_Int.cohere(equalizedSeries[0], equalizedSeries[1],
+				engine.getWindowSize(), engine.getOverlap(), 
+				ShakeWellBeforeUseParameters.coherenceCutOffFrequency);
+
+		return Coherence_Int.mean(coherence, ShakeWellBeforeUseParameters.coherenceCutOffFrequency) /
+			(double) Coherence_Int.FixedPointOne;
+	}
+
+	/** Converts a received segment to integer samples for Coherence_Int.
+	 * The coherence does not depend on the scale of the signals, so the 
+	 * samples are scaled by a power of two to use 24 bits. This keeps 
+	 * integer samples sent by a remote host with the same sensor exact, 
+	 * and also works for normalized samples in [-1;1]. */
+	private static int[] toFixedPoint(double[] segment) {
+		double max = 0;
+		for (int i=0; i<segment.length; i++) {
+			double v = segment[i] < 0 ? -segment[i] : segment[i];
+			if (v > max)
+				max = v;
+		}
+		double scale = 1;
+		if (max > 0) {
+			while (max * scale > 1 << 24)
+				scale /= 2;
+			while (max * scale * 2 <= 1 << 24)
+				scale *= 2;
+		}
+		int[] ret = new int[segment.length];
+		for (int i=0; i<segment.length; i++)
+			ret[i] = (int) Math.floor(segment[i] * scale + 0.5);
+		return ret;
+	}
+
 	/** This helper function calls Coherence.cohere on localSegment and remoteSegment,
 	 * but only on the first part of both with the minimum length. That is, it trims the
 	 * larger of the two to have the same length as the smaller. 
 	 * @return true if the mean of the coherence function is larger than the threshold,
 	 *         false otherwise.
 	 * @see #coherenceThreshold
+	 * @see #fixedPointCoherence
 	 */
-	private boolean checkCoherence(double[] remoteSegment) {
+	protected boolean checkCoherence(double[] remoteSegment) {
 		// computing coherence can take some time, so take a copy of the pointer in case it gets modified in between
 		double[] mySegment;
+		int[] mySegment_Int;
 		synchronized (localSegmentLock) {
 			mySegment = localSegment;
+			mySegment_Int = localSegment_Int;
 		}
 		
-		double c = coherence(mySegment, remoteSegment, windowSize);
+		double c = fixedPointCoherence && mySegment_Int != null ? 
+				coherence(mySegment_Int, remoteSegment, coherenceEngine) :
+				coherence(mySegment, remoteSegment, coherenceEngine);
 		if (c < 0)
 			return false;
 		
@@ -342,22 +450,27 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		logger.info("Received segment of size " + segment.length + " starting at index " + startIndex);
 		synchronized (localSegmentLock) {
 			localSegment = segment;
+			localSegment_Int = null;
 			localSegmentLock.notify();
 		}
 	}
 
 	/** The implementation of SegmentsSink_Int.addSegment. It will be called whenever
 	 * a significant active segment has been sampled completely, i.e. when the
-	 * source has become quiescent again.
+	 * source has become quiescent again. The segment is converted to doubles
+	 * for transmission, and also for comparing unless fixedPointCoherence is set.
 	 * @see #localSegment
+	 * @see #localSegment_Int
 	 * @see #localSegmentLock
 	 */
 	public void addSegment(int[] segment, int startIndex) {
 		logger.info("Received segment of size " + segment.length + " starting at index " + startIndex);
+		double[] forWire = new double[segment.length];
+		for (int i=0; i<segment.length; i++)
+			forWire[i] = segment[i];
 		synchronized (localSegmentLock) {
-			localSegment = new double[segment.length];
-			for (int i=0; i<segment.length; i++)
-				localSegment[i] = segment[i];
+			localSegment = forWire;
+			localSegment_Int = segment;
 			localSegmentLock.notify();
 		}
 	}
@@ -405,6 +518,51 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		return continuousChecking;
 	}
 	
+	/** Enable or disable binary framing for the interlock exchange.
+	 * @param binaryInterlockFraming Must be set to the same value on both hosts.
+	 * @see #binaryInterlockFraming
+	 */
+	public void setBinaryInterlockFraming(boolean binaryInterlockFraming) {
+		this.binaryInterlockFraming = binaryInterlockFraming;
+	}
+	
+	/** Returns the current value of binaryInterlockFraming.
+	 * @see #binaryInterlockFraming
+	 */
+	public boolean getBinaryInterlockFraming() {
+		return binaryInterlockFraming;
+	}
+	
+	/** Enable or disable the fixed-point comparison of integer segments.
+	 * @param fixedPointCoherence Must be set to the same value on both hosts.
+	 * @see #fixedPointCoherence
+	 */
+	public void setFixedPointCoherence(boolean fixedPointCoherence) {
+		this.fixedPointCoherence = fixedPointCoherence;
+	}
+	
+	/** Returns the current value of fixedPointCoherence.
+	 * @see #fixedPointCoherence
+	 */
+	public boolean getFixedPointCoherence() {
+		return fixedPointCoherence;
+	}
+	
+	/** Sets the clock for the timeouts of the protocol, e.g. waiting for the
+	 * local segment and retrying to open the verification channel. When 
+	 * replaying recorded sensor data in virtual time, this should be the
+	 * clock that the SamplesSource advances.
+	 * @param clock The clock to use, or null to use Clock.getDefault().
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+	
+	/** Returns the clock set with setClock, or the default clock. */
+	public Clock getClock() {
+		return clock != null ? clock : Clock.getDefault();
+	}
+	
 	/** Returns the last coherence mean value that has been computed locally.
 	 * It is valid after protocolSucceededHook has been called and might be valid
 	 * after protocolFailedHook has been called.
@@ -427,6 +585,9 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 * local and remote segments via interlock* and uses coherence to check their
 	 * similarity. It will call all the necessary hooks, but expects localSegment
 	 * to be set.
+	 * @param group The interlock group that the calling runner is registered
+	 *              with, or null. The runner stays registered when the 
+	 *              exchange fails.
 	 * @return true if continuous checking should continue, false on a fatal error.
 	 *         <b>Note</b>: This is <b>not</b> the decision! If authentication
 	 *         failed or succeeded will be communicated with events.
@@ -434,10 +595,11 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	 * @throws IOException 
 	 */
 	private boolean keyVerification(RemoteConnection remote, 
-			byte[] sharedAuthenticationKey, int groupSize, int instanceNum) 
+			byte[] sharedAuthenticationKey, PhaseBarrier group) 
 			throws IOException, InternalApplicationException {
 		int rounds = 2;
-		int totalCodingTime=0, totalInterlockTime=0, totalComparisonTime=0;
+		// in ns
+		long totalCodingTime=0, totalInterlockTime=0, totalComparisonTime=0;
 		long timestamp=0;
 
 		synchronized (verificationsRunning) {
@@ -464,9 +626,9 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 						return false;
 					}
 				}*/
-				timestamp = System.currentTimeMillis();
+				timestamp = MetricsRegistry.now();
 				localPlainText = TimeSeriesUtil.encodeVector(localSegment);
-				totalCodingTime += System.currentTimeMillis()-timestamp;
+				totalCodingTime += codingTimer.stop(timestamp);
 			}
 			if (localPlainText == null) {
 				verificationFailure(true, remote, null, null, null, "Interlock exchange aborted: encoding segment to a string failed");
@@ -476,17 +638,26 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 				logger.debug("My segment is " + localPlainText.length + " bytes long");
 
 			// exchange with the remote host
-			timestamp = System.currentTimeMillis();
+			timestamp = MetricsRegistry.now();
 
-			byte[] remotePlainText = InterlockProtocol.interlockExchange(localPlainText, 
+			byte[] remotePlainText = null;
+			try {
+				remotePlainText = InterlockProtocol.interlockExchange(localPlainText, 
 					remote.getInputStream(), remote.getOutputStream(),
 					// TODO: enable mirror attack prevention after testing
 					sharedAuthenticationKey, rounds, false, 
 					// TODO: activate timeout again!
 					false, -1 /*RemoteInterlockExchangeTimeout*/, useJSSE,
-					interlockGroup, groupSize, instanceNum);
+					group, binaryInterlockFraming);
+			}
+			finally {
+				/* A failed exchange has left the group so that the others can
+				 * continue, but the runner is a member until it exits. */
+				if (remotePlainText == null && group != null)
+					group.register();
+			}
 
-			totalInterlockTime += System.currentTimeMillis()-timestamp;
+			totalInterlockTime += interlockTimer.stop(timestamp);
 			if (remotePlainText == null) {
 				logger.warn("Interlock protocol failed, can not continue to compare with remote segment");
 				verificationFailure(true, remote, null, null, null, "Interlock protocol failed");
@@ -498,16 +669,16 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 			if (logger.isDebugEnabled())
 				logger.debug("Remote segment is " + remotePlainText.length + " bytes long");
 			// count the tokens
-			timestamp = System.currentTimeMillis();
+			timestamp = MetricsRegistry.now();
 			double[] remoteSegment = TimeSeriesUtil.decodeVector(remotePlainText);
-			totalCodingTime += System.currentTimeMillis()-timestamp;
+			totalCodingTime += codingTimer.stop(timestamp);
 
 			if (remoteSegment != null) {
 				if (logger.isDebugEnabled())
 					logger.debug("remote segment is " + remoteSegment.length + " elements long");
-				timestamp = System.currentTimeMillis();
+				timestamp = MetricsRegistry.now();
 				decision = checkCoherence(remoteSegment);
-				totalComparisonTime += System.currentTimeMillis()-timestamp;
+				totalComparisonTime += comparisonTimer.stop(timestamp);
 				if (logger.isInfoEnabled())
 					logger.info("COHERENCE MATCH: " + decision + "(computed " + 
 						lastCoherenceMean + " and threshold is " + coherenceThresholdSucceed + ")");
@@ -526,6 +697,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 					// need to to that here, as we don't call the cleanup/finished method in this case
 					synchronized (localSegmentLock) {
 						localSegment = null;
+						localSegment_Int = null;
 					}
 				}
 			}
@@ -541,13 +713,14 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 					// need to to that here, as we don't call the cleanup/finished method in this case
 					synchronized (localSegmentLock) {
 						localSegment = null;
+						localSegment_Int = null;
 					}
 				}
 			}
 
-			statisticsLogger.warn("Segment coding took " + totalCodingTime + 
-						"ms, interlock took " + totalInterlockTime + 
-						"ms, coherence comparison took" + totalComparisonTime + "ms");
+			statisticsLogger.warn("Segment coding took " + MetricsRegistry.toMillis(totalCodingTime) + 
+						"ms, interlock took " + MetricsRegistry.toMillis(totalInterlockTime) + 
+						"ms, coherence comparison took" + MetricsRegistry.toMillis(totalComparisonTime) + "ms");
 	        return true;
 		}
 		finally {
@@ -562,21 +735,20 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 	private class AsyncInterlockHelper extends Thread {
 		private byte[] sharedAuthenticationKey;
 		private RemoteConnection remote;
-		private int groupSize, instanceNum;
 		private boolean openChannel;
+		/** The interlock group this runner is registered with, or null. */
+		private PhaseBarrier group;
 		
 		AsyncInterlockHelper(RemoteConnection remote, boolean openChannel, byte[] authKey,
-				int groupSize, int instanceNum) {
+				PhaseBarrier group) {
 			this.remote = remote;
 			this.sharedAuthenticationKey = authKey;
-			this.groupSize = groupSize;
-			this.instanceNum = instanceNum;
 			this.openChannel = openChannel;
+			this.group = group;
 
 			if (logger.isDebugEnabled())
 				logger.debug("Creating AsyncInterlockHelper for " + 
 					remote.toString() + " with auth key " + authKey +
-					", instance " + instanceNum + " out of " + groupSize +
 					(openChannel ? ", about to open channel" : ", re-using already opened channel"));
 		}
 		
@@ -584,8 +756,8 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 			boolean cleanup = false;
 			
 			if (logger.isDebugEnabled())
-				logger.debug("AsyncInterlockHelper thread " + instanceNum + 
-					"/" + groupSize + " starting for remote " + remote.toString());
+				logger.debug("AsyncInterlockHelper thread starting for remote " + remote.toString() +
+					(group != null ? " in interlock group of " + group.getRegisteredParties() : ""));
 			
 			try {
 				outer: do {
@@ -610,7 +782,8 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 					// if we need to open the channel here, there's some work to do
 					if (openChannel) {
 						logger.info("Trying to establish key verification channel to " + remote);
-						long startTime = System.currentTimeMillis();
+						Clock c = getClock();
+						long startTime = c.currentTimeMillis();
 						boolean opened = false;
 						int numRetries=0;
 
@@ -624,14 +797,14 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 									}
 									do {
 										try {
-											Thread.sleep(100);
+											c.sleep(100);
 										}
 										catch (InterruptedException e1) {
 											// just ignore, it will only make the wait shorter but won't hurt
 										}
 										// re-check, an incoming verification request might have been started
 										synchronized (verificationsRunning) { alreadyVerifying = verificationsRunning.containsKey(remote); }
-									} while (System.currentTimeMillis()-startTime < holdoff && 
+									} while (c.currentTimeMillis()-startTime < holdoff && 
 											!alreadyVerifying);
 								}
 
@@ -649,10 +822,10 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 								logger.info("Could not establish channel for key verification to " +
 										remote + " (" +	e + ") on try " + (numRetries+1) + 
 										", but will retry for another " + 
-										(VerificationConnectionEstablishmentTimeout+startTime-System.currentTimeMillis()) +
+										(VerificationConnectionEstablishmentTimeout+startTime-c.currentTimeMillis()) +
 										"ms");
 								try {
-									Thread.sleep(VerificationConnectionEstablishmentRetryDelay);
+									c.sleep(VerificationConnectionEstablishmentRetryDelay);
 								}
 								catch (InterruptedException e1) {
 									// just ignore, it will only make the wait shorter but won't hurt
@@ -660,7 +833,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 								numRetries++;
 							}
 						} while (!opened && 
-								System.currentTimeMillis()-startTime < VerificationConnectionEstablishmentTimeout);
+								c.currentTimeMillis()-startTime < VerificationConnectionEstablishmentTimeout);
 						if (!opened) {
 							logger.error("Unable to establish channel for key verification to " +
 									remote + ", aborting now");
@@ -679,8 +852,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 					
 					logger.info("now really starting key verification in AsyncInterlockHelper thread");
 					
-					if (!keyVerification(remote, sharedAuthenticationKey,
-							groupSize, instanceNum) && !continuousChecking) {
+					if (!keyVerification(remote, sharedAuthenticationKey, group) && !continuousChecking) {
 						/* If keyVerification returns false, then it will already
 						 * have fired an AuthenticationFailure event and closed
 						 * fromRemote. So any derived classes can already react
@@ -702,6 +874,11 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 				e.printStackTrace();
 				verificationFailure(true, remote, null, null, e, "Background verification aborted");
 			}
+			finally {
+				// don't let the other members of the group wait for us
+				if (group != null)
+					group.arriveAndDeregister();
+			}
 
 			// thread finished, so remove ourselves from the list of threads
 			synchronized (interlockRunners) {
@@ -712,7 +889,10 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 					// removed the last one now, clean up - this allows startVerification to be called again
 					interlockGroup = null;
 					// ant don't re-use the segment (if it has been used)
-					if (cleanup) localSegment = null;
+					if (cleanup) {
+						localSegment = null;
+						localSegment_Int = null;
+					}
 				}
 			}
 		}
@@ -744,12 +924,13 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 				/* If we don't have a local segment (yet) when being contacted, 
 				 * wait for some time before aborting. The segment may just be
 				 * finished and thus available shortly. */
-				long start = System.currentTimeMillis();
+				Clock c = getClock();
+				long start = c.currentTimeMillis();
 				while (localSegment == null && 
-						System.currentTimeMillis() - start <= 
+						c.currentTimeMillis() - start <= 
 							IncomingConnectionWaitForLocalSegmentTimeout) {
 					try {
-						localSegmentLock.wait(IncomingConnectionWaitForLocalSegmentTimeout);
+						c.waitOn(localSegmentLock, IncomingConnectionWaitForLocalSegmentTimeout);
 					} catch (InterruptedException e) {
 						// just ignore - it will drop into the loop and try again
 					}
@@ -769,9 +950,8 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 				if (!continuousChecking) {
 					// incoming key verification, so need to retrieve the authentication key
 					byte[] authKey = keyManager.getAuthenticationKey(remote);
-					keyVerification(remote, authKey, 
-						0, 0 // incoming request, so it can't be an interlock group
-						);
+					// incoming request, so it can't be an interlock group
+					keyVerification(remote, authKey, null);
 				}
 				else {
 					byte[] authKey;
@@ -783,8 +963,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 						authKey = keyManager.getAuthenticationKey(remote);
 					}
 					// this is rather hackish, but stay connected and verifying...
-					AsyncInterlockHelper h = new AsyncInterlockHelper(remote, false, 
-							authKey, 0, 0);
+					AsyncInterlockHelper h = new AsyncInterlockHelper(remote, false, authKey, null);
 					interlockRunners.addElement(h);
 					/* can call the run method directly in here, because 
 					 * protocol handlers are started in a separate thread anywys
@@ -834,7 +1013,7 @@ public class ShakeWellBeforeUseProtocol1 extends DHWithVerification
 		if (args.length == 4 && args[0].equals("check")) {
 			double[] segment1 = TimeSeriesUtil.decodeVector(args[1].getBytes());
 			double[] segment2 = TimeSeriesUtil.decodeVector(args[2].getBytes());
-			System.out.println(coherence(segment1, segment2, Integer.parseInt(args[3])));
+			System.out.println(coherence(segment1, segment2, createCoherenceEngine(Integer.parseInt(args[3]))));
 			return;
 		}
 		
@@ -14,15 +14,17 @@
 package org.openuat.authentication.accelerometer;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedList;
 
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.CKPOverUDP;
 import org.openuat.authentication.exceptions.InternalApplicationException;
 import org.openuat.features.QuantizedFFTCoefficients;
+import org.openuat.features.SlidingDFT;
 import org.openuat.features.TimeSeriesUtil;
+import org.openuat.sensors.SamplesBuffer;
 import org.openuat.sensors.SamplesSink;
 import org.openuat.sensors.TimeSeriesAggregator;
 
@@ -41,6 +43,9 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 	 */
 	private static Logger statisticsLogger = LoggerFactory.getLogger("statistics.shake2");
 
+	/** The time spent in each FFT and quantization step, in ns. */
+	private static final LatencyHistogram fftTimer = MetricsRegistry.timer("shake2.fft");
+
 	/** The TCP port we use for this protocol. */
 	public static final int UdpPort = 54322;
 	
@@ -68,16 +73,30 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 	/** Keep the match history for each remote host for 5 minutes - should really be enough. */
 	public final static int MaximumMatchingCandidatesAge = 300;
 
-	/** This keeps the current segment while it is still being collected. It is only set after a
-	 * call to segmentStart and before the next call to segmentEnd.
+	/** This keeps the samples of the current segment that have not yet been added to
+	 * window. It is only set after a call to segmentStart and before the next call to 
+	 * segmentEnd. The buffer is reused for all segments.
+	 */
+	private SamplesBuffer curSegment = null;
+	
+	/** The buffer used for curSegment, allocated by the first segmentStart. */
+	private SamplesBuffer segmentBuffer = null;
+	
+	/** The transform of the current FFT window. The windows overlap, so the samples
+	 * in curSegment are added to it whenever the next window is complete, and only 
+	 * they need to be transformed. Allocated by the first segmentStart.
 	 */
-	private LinkedList curSegment = null;
+	private SlidingDFT window = null;
+	
+	/** The number of samples in curSegment that complete the next window. */
+	private int nextWindowSize;
 	
 	/** Used to keep track of the number of windows that have been collected. */
 	int numWindows = 0;
 
 	/** These are only for keeping statistics on time spent for FFT. */
-    protected int totalFFTTime=0;
+    /** In ns. */
+    protected long totalFFTTime=0;
 	
 	/** Initializes the object, only setting useJSSE at the moment. This constructor sets
 	 * default values for udpSendPort, udpReceivePort and multicastGroup.
@@ -144,29 +163,30 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 			return;
 		}
 
-		long timestamp = System.currentTimeMillis();
+		// without any shift, there is only a single window per segment
+		if (nextWindowSize <= 0)
+			return;
+
+		long timestamp = MetricsRegistry.now();
 
-		curSegment.add(new Double(sample));
+		curSegment.add(sample);
 		
-		if (curSegment.size() == fftPoints) {
+		if (curSegment.size() == nextWindowSize) {
 			// ok, got a full window to work on
-			
-			// convert to array
-			double[] segment = new double[fftPoints];
-			Iterator iter = curSegment.iterator();
-			for (int i=0; i<fftPoints; i++)
-				segment[i] = ((Double) iter.next()).doubleValue();
-			totalCodingTime += System.currentTimeMillis()-timestamp;
-			timestamp = System.currentTimeMillis();
+			totalCodingTime += codingTimer.stop(timestamp);
+			timestamp = MetricsRegistry.now();
 			
 			// only compare until the cutoff frequency
 			int max_ind = TimeSeriesUtil.getMaxInd(fftPoints, sampleRate, cutOffFrequency); 
 
+			// move the window by the new samples
+			window.addSamples(curSegment.getArray(), curSegment.getOffset(), curSegment.size());
+			curSegment.clear();
 			// compute the type 4 match: pairwise sums of exponentially quantized FFT-coefficients
-			int[][] cand = QuantizedFFTCoefficients.computeFFTCoefficientsCandidates(segment,
-					0, fftPoints, max_ind, numQuantLevels, numCandidates, true, true);
-			totalFFTTime += System.currentTimeMillis()-timestamp;
-			timestamp = System.currentTimeMillis();
+			int[][] cand = QuantizedFFTCoefficients.computeFFTCoefficientsCandidates(window,
+					max_ind, numQuantLevels, numCandidates, true, true);
+			totalFFTTime += fftTimer.stop(timestamp);
+			timestamp = MetricsRegistry.now();
 			
 			// and transform to byte array - we certainly use less than 256 quantization stages, so just byte-cast
 			byte[][] candBytes = new byte[numCandidates][];
@@ -175,7 +195,7 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 				for (int j=0; j<cand[i].length; j++)
 					candBytes[i][j] = (byte) cand[i][j];
 			}
-			totalCodingTime += System.currentTimeMillis()-timestamp;
+			totalCodingTime += codingTimer.stop(timestamp);
 
 			// TODO: estimate entropy
 			try {
@@ -192,12 +212,19 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 			logger.info("Finished adding window " + numWindows + " as new candidates, now shifting" +
 					(instanceId != null ? " [" + instanceId + "]" : ""));
 
-			// and remove the overlap from the front
-			for (int i=0; i<windowOverlap; i++)
-				curSegment.removeFirst();
+			// and shift the next window by the overlap
+			nextWindowSize = windowOverlap;
 		}
 	}
 	
+	/** The implementation of SamplesSink.addSamples, which simply calls 
+	 * addSample for each sample, as each complete window is processed on its own.
+	 */
+	public void addSamples(double[] samples, int off, int len, int firstNumSample) {
+		for (int i=0; i<len; i++)
+			addSample(samples[off+i], firstNumSample+i);
+	}
+	
 	public void segmentStart(int numSample) {
 		if (curSegment != null) {
 			logger.warn("Received segment start event while still in active phase, ignoring" +
@@ -205,7 +232,16 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 			return;
 		}
 		
-		curSegment = new LinkedList();
+		if (segmentBuffer == null) {
+			segmentBuffer = new SamplesBuffer(fftPoints);
+			// the pairwise sums need one coefficient more than compared
+			window = new SlidingDFT(fftPoints, Math.min(fftPoints, 
+					TimeSeriesUtil.getMaxInd(fftPoints, sampleRate, cutOffFrequency) + 1));
+		}
+		segmentBuffer.clear();
+		window.reset();
+		curSegment = segmentBuffer;
+		nextWindowSize = fftPoints;
 		numWindows = 0;
 	}
 	
@@ -229,9 +265,9 @@ public class ShakeWellBeforeUseProtocol2 extends CKPOverUDP implements SamplesSi
 		logger.info("CKP succeeded with remote " + remote + " with " + matchingRoundsFraction + 
 				" matching rounds, shared key is now " + sharedSessionKey.toString() +
 				(instanceId != null ? " [" + instanceId + "]" : ""));
-		statisticsLogger.warn("Data coding took " + totalCodingTime + 
-				"ms, CKP took " + totalCKPTime + 
-				"ms, FFT and quantization took" + totalFFTTime + 
+		statisticsLogger.warn("Data coding took " + MetricsRegistry.toMillis(totalCodingTime) + 
+				"ms, CKP took " + MetricsRegistry.toMillis(totalCKPTime) + 
+				"ms, FFT and quantization took" + MetricsRegistry.toMillis(totalFFTTime) + 
 				"ms with " + totalMessageSize + " bytes in " +
 				totalMessageNum + " messages");
 	}
@@ -315,6 +315,69 @@ public class HostProtocolHandlerTest extends TestCase {
         h.shutdownSocketsCleanly();
     }
     
+    public void testCompleteAuthentication_ServerPermanentConcurrentClients() throws UnknownHostException, IOException, InterruptedException, InternalApplicationException
+    {
+    	final int numClients = 4;
+    	// the server side can not use EventHelper, which only keeps two results
+    	final int[] serverResults = new int[2];
+    	server.addAuthenticationProgressHandler(new AuthenticationProgressHandler() {
+			public void AuthenticationSuccess(Object sender, Object remote, Object result) {
+				synchronized (serverResults) {
+					serverResults[0]++;
+				}
+			}
+			public void AuthenticationFailure(Object sender, Object remote, Exception e, String msg) {
+				synchronized (serverResults) {
+					serverResults[1]++;
+				}
+			}
+			public void AuthenticationProgress(Object sender, Object remote, int cur, int max, String msg) {
+			}
+			public boolean AuthenticationStarted(Object sender, Object remote) {
+				return true;
+			}
+    	});
+		SimpleKeyAgreement serverKa = new SimpleKeyAgreement(useJSSEServer, true);
+		server.setPermanentKeyAgreementInstance(serverKa);
+        byte[] serverPreAuthentication = server.getPermanentPreAuthenticationMessage();
+        // the commitment is computed only once, but must not be shared with callers
+        byte[] serverPreAuthentication2 = server.getPermanentPreAuthenticationMessage();
+        Assert.assertNotSame(serverPreAuthentication, serverPreAuthentication2);
+        Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(serverPreAuthentication, serverPreAuthentication2));
+
+        // all clients run concurrently with the same server key pair
+        EventHelper[] h = new EventHelper[numClients];
+        Socket[] sockets = new Socket[numClients];
+        for (int c=0; c<numClients; c++) {
+        	h[c] = new EventHelper();
+        	sockets[c] = new Socket("127.0.0.1", PORT);
+        	HostProtocolHandler.startAuthenticationWith(new RemoteTCPConnection(sockets[c]), h[c], 
+        			null, null, serverPreAuthentication,
+        			10000, false, "", useJSSEClient);
+        }
+        for (int c=0; c<numClients; c++) {
+        	int i = 0;
+        	while (i < 50 && h[c].getReceivedSecrets() != 1 && h[c].getReceivedFailures() == 0)
+        	{
+        		Thread.sleep(100);
+        		i++;
+        	}
+        	Assert.assertEquals("Client " + c + " failed", 0, h[c].getReceivedFailures());
+        	Assert.assertEquals("Client " + c + " did not finish", 1, h[c].getReceivedSecrets());
+        }
+        int i = 0;
+        while (i < 50 && serverResults[0] + serverResults[1] != numClients)
+        {
+        	Thread.sleep(100);
+        	i++;
+        }
+        Assert.assertEquals(0, serverResults[1]);
+        Assert.assertEquals(numClients, serverResults[0]);
+
+        for (int c=0; c<numClients; c++)
+        	sockets[c].close();
+    }
+
     public void testCompleteAuthenticationWithParam() throws UnknownHostException, IOException, InterruptedException
     {
         EventHelper h = new EventHelper();
@@ -373,6 +436,145 @@ public class HostProtocolHandlerTest extends TestCase {
         h.shutdownSocketsCleanly();
     }
   
+    public void testCompleteAuthentication_BinaryFraming() throws UnknownHostException, IOException, InterruptedException
+    {
+        EventHelper h = new EventHelper();
+        // need to listen for both the server and the client authentication events
+        server.addAuthenticationProgressHandler(h);
+        client = new Socket("127.0.0.1", PORT);
+        HostProtocolHandler.startAuthenticationWith(new RemoteTCPConnection(client), h, 
+        		null, null, null, 10000, true, "TEST_PARAMETER", useJSSEClient, true);
+        // this should be enough time for the authentication to complete
+        // localhost authentication within the same process, therefore we should receive 2 success messages
+        int i = 0;
+        while (i < 50 && h.getReceivedSecrets() != 2 && h.getReceivedFailures() == 0)
+        {
+            Thread.sleep(100);
+            i++;
+        }
+        Assert.assertEquals(0, h.getReceivedFailures());
+        Assert.assertEquals(2*HostProtocolHandler.AuthenticationStages, h.getReceivedProgress());
+        Assert.assertEquals(2, h.getReceivedStarted());
+
+        Assert.assertEquals(2, h.getReceivedSecrets());
+        Assert.assertTrue(h.areSharedSecretsEqual());
+
+        Assert.assertTrue(h.areOptionalParametersSet());
+        Assert.assertTrue(h.areOptionalParametersEqual());
+        
+        Assert.assertTrue(h.areSocketsConnectedToEachOther());
+
+        h.shutdownSocketsCleanly();
+    }
+
+    public void testCompleteAuthentication_BinaryFramingSecretPreInputMode() throws UnknownHostException, IOException, InterruptedException
+    {
+    	byte[] presharedShortSecret = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+    	Vector serverSecrets = new Vector(), clientSecrets = new Vector();
+    	serverSecrets.addElement(new byte[] {9, 8, 7, 6, 5, 4, 3, 2, 1, 0});
+    	serverSecrets.addElement(presharedShortSecret);
+    	clientSecrets.addElement(new byte[] {5, 5, 5, 5, 5, 5, 5, 5, 5, 5});
+    	clientSecrets.addElement(presharedShortSecret);
+    	
+        EventHelper h = new EventHelper();
+        // need to listen for both the server and the client authentication events
+        server.addAuthenticationProgressHandler(h);
+        server.setPresharedShortSecrets(serverSecrets);
+        client = new Socket("127.0.0.1", PORT);
+        // the first candidate secrets do not match, which takes a second round
+        HostProtocolHandler.startAuthenticationWith(new RemoteTCPConnection(client), h, 
+        		null, clientSecrets, null,
+        		10000, false, "", useJSSEClient, true);
+        int i = 0;
+        while (i < 50 && h.getReceivedSecrets() != 2 && h.getReceivedFailures() == 0)
+        {
+            Thread.sleep(100);
+            i++;
+        }
+        Assert.assertEquals(0, h.getReceivedFailures());
+        Assert.assertEquals(2*HostProtocolHandler.AuthenticationStages, h.getReceivedProgress());
+        Assert.assertEquals(2, h.getReceivedSecrets());
+        Assert.assertTrue(h.areSessionKeysEqual() && h.areOObMsgsEmpty());
+
+        h.shutdownSocketsCleanly();
+    }
+
+    public void testCompleteAuthentication_BinaryFramingLongPreAuthenticationMode() throws UnknownHostException, IOException, InterruptedException, InternalApplicationException
+    {
+        EventHelper h = new EventHelper();
+        server.addAuthenticationProgressHandler(h);
+        server.setPermanentKeyAgreementInstance(new SimpleKeyAgreement(useJSSEServer, true));
+        byte[] preAuthMsg = server.getPermanentPreAuthenticationMessage();
+        client = new Socket("127.0.0.1", PORT);
+        HostProtocolHandler.startAuthenticationWith(new RemoteTCPConnection(client), h, 
+        		null, null, preAuthMsg, 10000, false, "", useJSSEClient, true);
+        int i = 0;
+        while (i < 50 && h.getReceivedSecrets() != 2 && h.getReceivedFailures() == 0)
+        {
+            Thread.sleep(100);
+            i++;
+        }
+        Assert.assertEquals(0, h.getReceivedFailures());
+        Assert.assertEquals(2*HostProtocolHandler.AuthenticationStages, h.getReceivedProgress());
+        Assert.assertEquals(2, h.getReceivedSecrets());
+        Assert.assertTrue(h.areSessionKeysEqual());
+
+        h.shutdownSocketsCleanly();
+    }
+
+    public void testMixedFramingClients() throws UnknownHostException, IOException, InterruptedException
+    {
+        EventHelper h = new EventHelper();
+        server.addAuthenticationProgressHandler(h);
+        for (int c=0; c<2; c++) {
+        	h.reset();
+        	client = new Socket("127.0.0.1", PORT);
+        	// the same server serves text and binary clients
+        	HostProtocolHandler.startAuthenticationWith(new RemoteTCPConnection(client), h, 
+        			null, null, null, 10000, false, "", useJSSEClient, c == 1);
+        	int i = 0;
+        	while (i < 50 && h.getReceivedSecrets() != 2 && h.getReceivedFailures() == 0)
+        	{
+        		Thread.sleep(100);
+        		i++;
+        	}
+        	Assert.assertEquals(0, h.getReceivedFailures());
+        	Assert.assertEquals(2, h.getReceivedSecrets());
+        	Assert.assertTrue(h.areSharedSecretsEqual());
+        }
+        h.shutdownSocketsCleanly();
+    }
+
+    public void testBinaryFramingRejectsEmptyCommitment() throws UnknownHostException, IOException, InterruptedException
+    {
+        EventHelper h = new EventHelper();
+        server.addAuthenticationProgressHandler(h);
+        client = new Socket("127.0.0.1", PORT);
+        sr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        Assert.assertEquals(HostProtocolHandler.Protocol_Hello, sr.readLine());
+
+        // authentication request frame: a 16 byte ID and a commitment of length 0
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write((HostProtocolHandler.Protocol_AuthenticationRequest +
+        		HostProtocolHandler.ProtocolTypeMaDHBinary + "\n").getBytes());
+        frame.write(new byte[] {1, 0, 22});
+        frame.write(new byte[] {1, 0, 16});
+        frame.write(new byte[16]);
+        frame.write(new byte[] {2, 0, 0});
+        OutputStream out = client.getOutputStream();
+        out.write(frame.toByteArray());
+        out.flush();
+
+        int i = 0;
+        while (i < 50 && h.getReceivedFailures() == 0)
+        {
+            Thread.sleep(100);
+            i++;
+        }
+        Assert.assertEquals(1, h.getReceivedFailures());
+        Assert.assertEquals(0, h.getReceivedSecrets());
+    }
+
     // TODO: test Hollywood style with all 5 different OOB check modes
     
     private class EventHelper implements AuthenticationProgressHandler
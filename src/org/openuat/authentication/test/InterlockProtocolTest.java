@@ -17,6 +17,7 @@ import java.util.BitSet;
 
 import org.openuat.authentication.InterlockProtocol;
 import org.openuat.authentication.exceptions.*;
+import org.openuat.util.PhaseBarrier;
 
 import junit.framework.*;
 
@@ -127,6 +128,74 @@ public class InterlockProtocolTest extends TestCase {
 		Assert.assertEquals((byte) 0x01, dst2[1]);
 	}
 
+	// reference implementation that copies bit by bit
+	private static void copyBitsReference(byte[] dest, int destOffset, byte[] src, int srcOffset, int len) {
+		for (int i=0; i<len; i++) {
+			boolean bit = (src[(srcOffset+i)/8] & (1 << ((srcOffset+i)%8))) != 0;
+			if (bit)
+				dest[(destOffset+i)/8] |= 1 << ((destOffset+i)%8);
+			else
+				dest[(destOffset+i)/8] &= ~(1 << ((destOffset+i)%8));
+		}
+	}
+	
+	public void testAddAndExtractPartRandom() throws InternalApplicationException {
+		java.util.Random r = new java.util.Random(42);
+		for (int i=0; i<2000; i++) {
+			byte[] src = new byte[1 + r.nextInt(40)];
+			r.nextBytes(src);
+			int len = r.nextInt(src.length*8 + 1);
+			int offset = r.nextInt(64);
+			byte[] dest1 = new byte[(offset+len+7)/8 + r.nextInt(3)];
+			r.nextBytes(dest1);
+			byte[] dest2 = new byte[dest1.length];
+			System.arraycopy(dest1, 0, dest2, 0, dest1.length);
+			
+			InterlockProtocol.addPart(dest1, src, offset, len);
+			copyBitsReference(dest2, offset, src, 0, len);
+			Assert.assertTrue("addPart differs at offset " + offset + " with " + len + " bits", 
+					SimpleKeyAgreementTest.compareByteArray(dest1, dest2));
+
+			int srcOffset = r.nextInt(src.length*8 - len + 1);
+			byte[] dest3 = new byte[(len+7)/8 + r.nextInt(3)];
+			r.nextBytes(dest3);
+			byte[] dest4 = new byte[dest3.length];
+			System.arraycopy(dest3, 0, dest4, 0, dest3.length);
+			InterlockProtocol.extractPart(dest3, src, srcOffset, len);
+			copyBitsReference(dest4, 0, src, srcOffset, len);
+			Assert.assertTrue("extractPart differs at offset " + srcOffset + " with " + len + " bits", 
+					SimpleKeyAgreementTest.compareByteArray(dest3, dest4));
+		}
+	}
+	
+	public void testReusedBuffers() throws InternalApplicationException {
+		byte[] sharedKey = new byte[32];
+		for (int rounds=2; rounds<=17; rounds+=5) {
+			InterlockProtocol p1 = new InterlockProtocol(sharedKey, rounds, 37*8, null, useJSSE);
+			InterlockProtocol p2 = new InterlockProtocol(sharedKey, rounds, 37*8, null, useJSSE2);
+			InterlockProtocol p3 = new InterlockProtocol(sharedKey, rounds, 37*8, null, useJSSE2);
+			byte[][] parts = p1.createPartBuffers();
+			byte[] cipherText2 = new byte[p2.getCipherTextBlocks() * 16];
+			for (int run=0; run<3; run++) {
+				byte[] plainText = new byte[37];
+				for (int i=0; i<plainText.length; i++)
+					plainText[i] = (byte) (i*run + rounds);
+				byte[] cipherText = p1.encrypt(plainText);
+				p1.split(cipherText, parts);
+				
+				p2.reassemble(parts, cipherText2);
+				Assert.assertTrue("reassembled cipher text does not match", SimpleKeyAgreementTest.compareByteArray(cipherText, cipherText2));
+				
+				for (int i=0; i<parts.length; i++)
+					p3.addMessage(parts[i], i);
+				Assert.assertTrue("reassembled cipher text does not match", SimpleKeyAgreementTest.compareByteArray(cipherText, p3.reassemble()));
+				Assert.assertTrue("decrypted plain text does not match original", SimpleKeyAgreementTest.compareByteArray(plainText, p3.decrypt(p3.reassemble())));
+				p3.reset();
+				Assert.assertNull("reset did not clear received rounds", p3.reassemble());
+			}
+		}
+	}
+	
 	public void testParameterCheckConstructor1() {
 		// this should not work with incorrect parameters
 		try {
@@ -626,7 +695,13 @@ public class InterlockProtocolTest extends TestCase {
 	}
 
 	// this starts, from the point of view of one host, 3 parallel runs
-	private void testExchangeHelperInterlockGroup(int timeoutMs) throws IOException, InterruptedException {
+	private void testExchangeHelperInterlockGroup(int timeoutMs, boolean binaryFraming, boolean legacyGroup) throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(timeoutMs, binaryFraming, legacyGroup, false);
+	}
+
+	// with firstFails set, the remote of the first run closes its connection right away
+	private void testExchangeHelperInterlockGroup(int timeoutMs, boolean binaryFraming, boolean legacyGroup, 
+			boolean firstFails) throws IOException, InterruptedException {
 		PipedOutputStream[] myWritePipes = new PipedOutputStream[3];
 		for (int i=0; i<myWritePipes.length; i++) {
 			myWritePipes[i] = new PipedOutputStream();
@@ -648,6 +723,7 @@ public class InterlockProtocolTest extends TestCase {
 		for (int i=0; i<sharedKey.length; i++)
 			sharedKey[i] = (byte) i;
 		final int timeout = timeoutMs;
+		final boolean binary = binaryFraming;
 		
 		class Helper implements Runnable {
 			byte[] myMsg;
@@ -655,23 +731,32 @@ public class InterlockProtocolTest extends TestCase {
 			InputStream in;
 			OutputStream out;
 			boolean myUseJSSE;
-			BitSet group = null;
-			int groupSize = 0;
-			int instanceNum = 0;
+			PhaseBarrier group = null;
+			BitSet legacyGroup = null;
+			int instance;
+			boolean mayFail = false;
 			
 			public void run() {
 				try {
-					remoteMsg = InterlockProtocol.interlockExchange(myMsg, in, out, 
-							sharedKey, 2, true, false, timeout, myUseJSSE,
-							group, groupSize, instanceNum);
+					if (legacyGroup != null)
+						remoteMsg = InterlockProtocol.interlockExchange(myMsg, in, out, 
+								sharedKey, 2, true, false, timeout, myUseJSSE,
+								legacyGroup, 3, instance);
+					else
+						remoteMsg = InterlockProtocol.interlockExchange(myMsg, in, out, 
+								sharedKey, 2, true, false, timeout, myUseJSSE,
+								group, binary);
 				} catch (Exception e) {
-					e.printStackTrace();
-					Assert.fail();
+					if (!mayFail) {
+						e.printStackTrace();
+						Assert.fail();
+					}
 				}
 			}
 		}
 
-		final BitSet interlockGroup = new BitSet();
+		final PhaseBarrier interlockGroup = new PhaseBarrier(3);
+		final BitSet legacyInterlockGroup = new BitSet();
 		byte[] myMsg = new byte[25];
 		for (int i=0; i<myMsg.length; i++)
 			myMsg[i] = (byte) (myMsg.length-1-i);
@@ -681,9 +766,12 @@ public class InterlockProtocolTest extends TestCase {
 			myHelpers[i].in = myReadPipes[i];
 			myHelpers[i].out = myWritePipes[i];
 			myHelpers[i].myUseJSSE = useJSSE;
-			myHelpers[i].group = interlockGroup;
-			myHelpers[i].groupSize = 3;
-			myHelpers[i].instanceNum = i;
+			if (legacyGroup) {
+				myHelpers[i].legacyGroup = legacyInterlockGroup;
+				myHelpers[i].instance = i;
+			}
+			else
+				myHelpers[i].group = interlockGroup;
 			myHelpers[i].myMsg = myMsg;
 		}
 		Helper theirHelpers[] = new Helper[3];
@@ -697,34 +785,215 @@ public class InterlockProtocolTest extends TestCase {
 				theirHelpers[i].myMsg[j] = (byte) (theirHelpers[i].myMsg.length-2-j+2*i);
 		}
 
+		if (firstFails) {
+			myHelpers[0].mayFail = true;
+			theirWritePipes[0].close();
+		}
+
 		Thread[] threads = new Thread[6];
 		for (int i=0; i<threads.length; i++) {
 			if (i<3) threads[i] = new Thread(myHelpers[i]);
 			else threads[i] = new Thread(theirHelpers[i-3]);
-			threads[i].start();
+			if (!firstFails || i != 3)
+				threads[i].start();
 		}
 		for (int i=0; i<threads.length; i++) {
-			threads[i].join();
+			threads[i].join(10000);
+			Assert.assertFalse("run " + i + " did not finish", threads[i].isAlive());
 		}
 		
-		for (int i=0; i<myHelpers.length; i++) {
+		if (firstFails) {
+			Assert.assertNull("first run should have failed", myHelpers[0].remoteMsg);
+			if (!legacyGroup)
+				Assert.assertEquals(2, interlockGroup.getRegisteredParties());
+		}
+		for (int i=firstFails ? 1 : 0; i<myHelpers.length; i++) {
 			Assert.assertNotNull("did not get their message from " + i, myHelpers[i].remoteMsg);
 		}
-		for (int i=0; i<theirHelpers.length; i++) {
+		for (int i=firstFails ? 1 : 0; i<theirHelpers.length; i++) {
 			Assert.assertNotNull("they did not get my message to " + i, theirHelpers[i].remoteMsg);
 		}
-		for (int i=0; i<myHelpers.length; i++) {
+		for (int i=firstFails ? 1 : 0; i<myHelpers.length; i++) {
 			Assert.assertTrue("my message does not match their received " + i, SimpleKeyAgreementTest.compareByteArray(myHelpers[i].myMsg, theirHelpers[i].remoteMsg));
 			Assert.assertTrue("their message does not match my received " + i, SimpleKeyAgreementTest.compareByteArray(myHelpers[i].remoteMsg, theirHelpers[i].myMsg));
 		}
 	}
 
 	public void testExchangeHelperInterlockGroupNoTimeout() throws IOException, InterruptedException {
-		testExchangeHelperInterlockGroup(0);
+		testExchangeHelperInterlockGroup(0, false, false);
 	}
 
 	public void testExchangeHelperInterlockGroupWithTimeout() throws IOException, InterruptedException {
-		testExchangeHelperInterlockGroup(500);
+		testExchangeHelperInterlockGroup(500, false, false);
+	}
+
+	public void testBinaryExchangeHelperInterlockGroupWithTimeout() throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(500, true, false);
+	}
+
+	public void testExchangeHelperLegacyInterlockGroup() throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(500, false, true);
+	}
+
+	public void testExchangeHelperInterlockGroupFailingMemberNoTimeout() throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(0, false, false, true);
+	}
+
+	public void testBinaryExchangeHelperInterlockGroupFailingMember() throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(500, true, false, true);
+	}
+
+	public void testExchangeHelperLegacyInterlockGroupFailingMember() throws IOException, InterruptedException {
+		testExchangeHelperInterlockGroup(0, false, true, true);
+	}
+	
+	// runs an exchange between two hosts, which may use different framing
+	private void runBinaryExchange(int rounds, int timeoutMs, boolean binaryFraming1, 
+			boolean binaryFraming2, boolean shouldSucceed) throws IOException, InterruptedException {
+		PipedOutputStream writePipe1 = new PipedOutputStream();
+		PipedOutputStream writePipe2 = new PipedOutputStream();
+		PipedInputStream readPipe1 = new PipedInputStream(writePipe2);
+		PipedInputStream readPipe2 = new PipedInputStream(writePipe1);
+		
+		final byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) i;
+		final int myRounds = rounds, timeout = timeoutMs;
+		
+		class Helper implements Runnable {
+			byte[] myMsg;
+			byte[] remoteMsg;
+			InputStream in;
+			OutputStream out;
+			boolean myUseJSSE;
+			boolean myBinaryFraming;
+			
+			public void run() {
+				try {
+					remoteMsg = InterlockProtocol.interlockExchange(myMsg, in, out, 
+							sharedKey, myRounds, true, false, timeout, myUseJSSE,
+							null, myBinaryFraming);
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		}
+		
+		Helper h1 = new Helper();
+		Helper h2 = new Helper();
+		h1.in = readPipe1;
+		h1.out = writePipe1;
+		h1.myMsg = new byte[25];
+		h1.myUseJSSE = useJSSE;
+		h1.myBinaryFraming = binaryFraming1;
+		for (int i=0; i<h1.myMsg.length; i++)
+			h1.myMsg[i] = (byte) (h1.myMsg.length-1-i);
+		h2.in = readPipe2;
+		h2.out = writePipe2;
+		h2.myMsg = new byte[57];
+		h2.myUseJSSE = useJSSE2;
+		h2.myBinaryFraming = binaryFraming2;
+		for (int i=0; i<h2.myMsg.length; i++)
+			h2.myMsg[i] = (byte) (3*i+1);
+
+		Thread t1 = new Thread(h1);
+		Thread t2 = new Thread(h2);
+		
+		t1.start();
+		t2.start();
+		t1.join();
+		t2.join();
+		
+		if (shouldSucceed) {
+			Assert.assertNotNull(h1.remoteMsg);
+			Assert.assertNotNull(h2.remoteMsg);
+			Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(h1.myMsg, h2.remoteMsg));
+			Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(h2.myMsg, h1.remoteMsg));
+		}
+		else {
+			Assert.assertNull(h1.remoteMsg);
+			Assert.assertNull(h2.remoteMsg);
+		}
+	}
+
+	public void testBinaryExchangeHelper() throws IOException, InterruptedException {
+		runBinaryExchange(2, 0, true, true, true);
+	}
+
+	public void testBinaryExchangeHelperManyRounds() throws IOException, InterruptedException {
+		runBinaryExchange(13, 500, true, true, true);
+		// this is the maximum, with one bit per round
+		runBinaryExchange(128, 500, true, true, true);
+	}
+
+	public void testBinaryExchangeHelperFramingMismatch() throws IOException, InterruptedException {
+		runBinaryExchange(2, 500, true, false, false);
+	}
+
+	// runs several exchanges in a row on the same two instances, which re-use their buffers
+	public void testExchangeReusedInstance() throws IOException, InterruptedException {
+		PipedOutputStream writePipe1 = new PipedOutputStream();
+		PipedOutputStream writePipe2 = new PipedOutputStream();
+		PipedInputStream readPipe1 = new PipedInputStream(writePipe2);
+		PipedInputStream readPipe2 = new PipedInputStream(writePipe1);
+		
+		final byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) i;
+		final int runs = 4;
+		
+		class Helper implements Runnable {
+			InterlockProtocol ip;
+			byte[][] myMsgs = new byte[runs][];
+			byte[][] remoteMsgs = new byte[runs][];
+			InputStream in;
+			OutputStream out;
+			
+			public void run() {
+				try {
+					// alternate between binary and text framing
+					for (int run=0; run<runs; run++)
+						remoteMsgs[run] = ip.exchange(myMsgs[run], in, out, 
+								true, 500, null, run % 2 == 0);
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		}
+		
+		Helper h1 = new Helper();
+		Helper h2 = new Helper();
+		h1.in = readPipe1;
+		h1.out = writePipe1;
+		h1.ip = new InterlockProtocol(sharedKey, 5, 25*8, null, useJSSE);
+		h2.in = readPipe2;
+		h2.out = writePipe2;
+		h2.ip = new InterlockProtocol(sharedKey, 5, 57*8, null, useJSSE2);
+		for (int run=0; run<runs; run++) {
+			h1.myMsgs[run] = new byte[25];
+			for (int i=0; i<h1.myMsgs[run].length; i++)
+				h1.myMsgs[run][i] = (byte) (7*run + i);
+			h2.myMsgs[run] = new byte[57];
+			for (int i=0; i<h2.myMsgs[run].length; i++)
+				h2.myMsgs[run][i] = (byte) (3*run - i);
+		}
+
+		Thread t1 = new Thread(h1);
+		Thread t2 = new Thread(h2);
+		
+		t1.start();
+		t2.start();
+		t1.join();
+		t2.join();
+		
+		for (int run=0; run<runs; run++) {
+			Assert.assertNotNull("run " + run + " failed", h1.remoteMsgs[run]);
+			Assert.assertNotNull("run " + run + " failed", h2.remoteMsgs[run]);
+			Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(h1.myMsgs[run], h2.remoteMsgs[run]));
+			Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(h2.myMsgs[run], h1.remoteMsgs[run]));
+		}
 	}
 
 	// this tries to copy the steps performed in DongleProtocolHandler
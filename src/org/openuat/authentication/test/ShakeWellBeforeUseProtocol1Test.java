@@ -9,13 +9,22 @@
 package org.openuat.authentication.test;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.Vector;
+
+import junit.framework.Assert;
 
 import org.openuat.authentication.accelerometer.ShakeWellBeforeUseParameters;
 import org.openuat.authentication.accelerometer.ShakeWellBeforeUseProtocol1;
 import org.openuat.channel.main.RemoteConnection;
 import org.openuat.channel.main.ip.RemoteTCPConnection;
 import org.openuat.channel.main.ip.TCPPortServer;
+import org.openuat.sensors.AsciiLineReaderBase;
+import org.openuat.sensors.ParallelPortPWMReader;
+import org.openuat.sensors.SegmentsSink;
+import org.openuat.sensors.TimeSeriesAggregator;
+import org.openuat.sensors.test.DataFilesHelper;
 
 public class ShakeWellBeforeUseProtocol1Test extends ShakeWellBeforeUseProtocolTestBase {
 	private Protocol1Hooks prot1_a, prot1_b;
@@ -54,6 +63,65 @@ public class ShakeWellBeforeUseProtocol1Test extends ShakeWellBeforeUseProtocolT
 		prot1_a.stopListening();
 	}
 	
+	/* The fixed-point comparison of integer segments must decide like the 
+	 * double comparison on the other host, except for segments that are 
+	 * closer to the threshold than the difference of the two means. */
+	public void testFixedPointDecisionAgreesWithDouble() throws IOException {
+		Protocol1Hooks h = new Protocol1Hooks();
+		String[] dirs = new String[] {"tests/motionauth/positive/", "tests/motionauth/negative/"};
+		int compared = 0;
+		for (int d=0; d<dirs.length; d++) {
+			String[] testFiles = DataFilesHelper.getTestFiles(dirs[d]);
+			for (int i=0; i<testFiles.length; i++) {
+				Vector segments_a = new Vector(), segments_b = new Vector();
+				TimeSeriesAggregator a = createAggregator(), b = createAggregator();
+				a.addNextStageSegmentsSink(new SegmentCollector(segments_a));
+				b.addNextStageSegmentsSink(new SegmentCollector(segments_b));
+				InputStream in = DataFilesHelper.openTestFile(dirs[d] + testFiles[i]);
+				AsciiLineReaderBase reader = new ParallelPortPWMReader(in, ShakeWellBeforeUseParameters.samplerate);
+				reader.addSink(new int[] { 0, 1, 2 }, a.getInitialSinks());
+				reader.addSink(new int[] { 4, 5, 6 }, b.getInitialSinks());
+				reader.simulateSampling();
+				in.close();
+
+				for (int k=0; k<segments_a.size() && k<segments_b.size(); k++) {
+					double[] local = (double[]) segments_a.elementAt(k);
+					double[] remote = (double[]) segments_b.elementAt(k);
+					// integer samples with 16 fractional bits
+					int[] local_Int = new int[local.length];
+					for (int j=0; j<local.length; j++)
+						local_Int[j] = (int) Math.floor(local[j] * (1 << 16) + 0.5);
+
+					boolean doubleDecision = h.decide(local_Int, remote, false);
+					double doubleMean = h.getLastCoherenceMean();
+					boolean fixedDecision = h.decide(local_Int, remote, true);
+					double fixedMean = h.getLastCoherenceMean();
+					Assert.assertEquals("Coherence means differ for " + dirs[d] + testFiles[i], 
+							doubleMean, fixedMean, 1e-3);
+					if (Math.abs(doubleMean - h.getCoherenceThreshold()) > 1e-3)
+						Assert.assertEquals("Decisions differ for " + dirs[d] + testFiles[i], 
+								doubleDecision, fixedDecision);
+					compared++;
+				}
+			}
+		}
+		Assert.assertTrue("No segments found in the recorded data", compared > 0);
+		// the default is to compare with doubles on both hosts
+		Assert.assertFalse(new Protocol1Hooks().getFixedPointCoherence());
+	}
+	
+	private static class SegmentCollector implements SegmentsSink {
+		private Vector segments;
+		
+		SegmentCollector(Vector segments) {
+			this.segments = segments;
+		}
+		
+		public void addSegment(double[] segment, int startIndex) {
+			segments.addElement(segment);
+		}
+	}
+	
 	private class Protocol1Hooks extends ShakeWellBeforeUseProtocol1 {
 		protected Protocol1Hooks() {
 			super(new TCPPortServer(ShakeWellBeforeUseProtocol1.TcpPort, 
@@ -65,6 +133,13 @@ public class ShakeWellBeforeUseProtocol1Test extends ShakeWellBeforeUseProtocolT
 					ShakeWellBeforeUseParameters.coherenceThreshold, 0.0, ShakeWellBeforeUseParameters.coherenceWindowSize, false);
 		}
 		
+		/** Compares an integer local segment with a remote segment. */
+		boolean decide(int[] localSegment, double[] remoteSegment, boolean fixedPoint) {
+			addSegment(localSegment, 0);
+			setFixedPointCoherence(fixedPoint);
+			return checkCoherence(remoteSegment);
+		}
+		
 		//@SuppressWarnings("unused")
 		@Override
 		protected void protocolSucceededHook(RemoteConnection remote, Object optionalVerificationId,
@@ -8,9 +8,8 @@
  */
 package org.openuat.authentication.test;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
+import java.io.InputStream;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -32,18 +31,20 @@ public class ShakeWellBeforeUseProtocolTestBase extends TestCase {
 	
 	protected boolean classIsReadyForTests = false;
 	
+	/** Creates an aggregator for one side of the recorded data sets. */
+	protected static TimeSeriesAggregator createAggregator() {
+		TimeSeriesAggregator aggr = new TimeSeriesAggregator(3, ShakeWellBeforeUseParameters.activityDetectionWindowSize, ShakeWellBeforeUseParameters.activityMinimumSegmentSize, -1);
+		aggr.setOffset(0);
+		aggr.setMultiplicator(1 / 128f);
+		aggr.setSubtractTotalMean(true);
+		aggr.setActiveVarianceThreshold(ShakeWellBeforeUseParameters.activityVarianceThreshold);
+		return aggr;
+	}
+	
 	@Override
 	public void setUp() throws IOException {
-		aggr_a = new TimeSeriesAggregator(3, ShakeWellBeforeUseParameters.activityDetectionWindowSize, ShakeWellBeforeUseParameters.activityMinimumSegmentSize, -1);
-		aggr_b = new TimeSeriesAggregator(3, ShakeWellBeforeUseParameters.activityDetectionWindowSize, ShakeWellBeforeUseParameters.activityMinimumSegmentSize, -1);
-		aggr_a.setOffset(0);
-		aggr_a.setMultiplicator(1 / 128f);
-		aggr_a.setSubtractTotalMean(true);
-		aggr_a.setActiveVarianceThreshold(ShakeWellBeforeUseParameters.activityVarianceThreshold);
-		aggr_b.setOffset(0);
-		aggr_b.setMultiplicator(1 / 128f);
-		aggr_b.setSubtractTotalMean(true);
-		aggr_b.setActiveVarianceThreshold(ShakeWellBeforeUseParameters.activityVarianceThreshold);
+		aggr_a = createAggregator();
+		aggr_b = createAggregator();
 		
 		numSucceeded = 0;
 		numFailed = 0;
@@ -63,8 +64,8 @@ public class ShakeWellBeforeUseProtocolTestBase extends TestCase {
 			System.out.println("Data set is " + dataSetLength + " seconds long");
 			int timeout = (dataSetLength + MAX_PROTOCOL_LATENCY_SECONDS) * 1000;
 			// just read from the file
-			FileInputStream in = new FileInputStream(filename);
-			AsciiLineReaderBase reader1 = new ParallelPortPWMReader(new GZIPInputStream(in), ShakeWellBeforeUseParameters.samplerate);
+			InputStream in = DataFilesHelper.openTestFile(filename);
+			AsciiLineReaderBase reader1 = new ParallelPortPWMReader(in, ShakeWellBeforeUseParameters.samplerate);
 
 			reader1.addSink(new int[] { 0, 1, 2 }, aggr_a.getInitialSinks());
 			reader1.addSink(new int[] { 4, 5, 6 }, aggr_b.getInitialSinks());
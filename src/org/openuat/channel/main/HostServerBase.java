@@ -15,9 +15,12 @@ import java.util.Vector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.AuthenticationEventSender;
+import org.openuat.authentication.HostIdentity;
 import org.openuat.authentication.HostProtocolHandler;
 import org.openuat.authentication.SimpleKeyAgreement;
 import org.openuat.authentication.exceptions.*;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
 
 /** This is a base class for listening to connections and spawning 
  * HostProtocolHandler objects upon incoming connections. It takes care of
@@ -33,7 +36,7 @@ public abstract class HostServerBase extends AuthenticationEventSender
 
 	/** this is a private thread object instead of the whole class being derived
 	   from thread to prevent other classes from fiddling with this thread */
-	private Thread listenerThread = null;
+	private BackgroundTask listenerThread = null;
 
 	/** Used to signal the listening thread to stop itself. */
 	protected boolean running = false;
@@ -69,6 +72,12 @@ public abstract class HostServerBase extends AuthenticationEventSender
      */
     protected SimpleKeyAgreement permanentKeyAgreementInstance = null;
 
+    /** The identity derived from permanentKeyAgreementInstance, computed on
+     * first use and shared by all HostProtocolHandler objects.
+     * @see #getPermanentIdentity()
+     */
+    private HostIdentity permanentIdentity = null;
+
 	/** This only keeps the command handlers so that they can be pre-registered
 	 * and then be passed onto HostProtocolHandler objects when they are 
 	 * instantiated.
@@ -173,8 +182,9 @@ public abstract class HostServerBase extends AuthenticationEventSender
      * long public key commitments when those need to be static (e.g. printed
      * on the case of a device).
      */
-    public void setPermanentKeyAgreementInstance(SimpleKeyAgreement keyAgreement) {
+    public synchronized void setPermanentKeyAgreementInstance(SimpleKeyAgreement keyAgreement) {
     	this.permanentKeyAgreementInstance = keyAgreement;
+    	this.permanentIdentity = null;
     }
     
     /** Returns the permanent key agreement instance. 
@@ -185,18 +195,30 @@ public abstract class HostServerBase extends AuthenticationEventSender
     }
     
     public byte[] getPermanentPreAuthenticationMessage() {
-    	/* This is a bad hack, but at least we only need the commitment
-    	 * implementation in HostProtocolHandler. Just construct a temporary
-    	 * object for the sake of getting the commitment from the key
-    	 * agreement instance.
-    	 */
     	if (permanentKeyAgreementInstance == null) {
     		logger.warn("Can not derive permanent pre-authentication commitment when no permanent key agreement instance has been set");
     		return null;
     	}
-    	return new HostProtocolHandler(null, 
-				presharedShortSecrets, permanentKeyAgreementInstance, 
-				protocolTimeoutMs, keepConnected, useJSSE).getPreAuthenticationMessage();
+    	HostIdentity identity = getPermanentIdentity();
+    	return identity != null ? (byte[]) identity.getCommitment().clone() : null;
+    }
+
+    /** Returns the identity (public key, its encoding and the commitment) 
+     * of the permanent key agreement instance, computing it on first use.
+     * @return The identity, or null if no permanent key agreement instance
+     *         has been set or it could not be computed.
+     */
+    protected synchronized HostIdentity getPermanentIdentity() {
+    	if (permanentIdentity == null && permanentKeyAgreementInstance != null) {
+    		try {
+    			permanentIdentity = new HostIdentity(permanentKeyAgreementInstance, useJSSE);
+    		} catch (InternalApplicationException e) {
+    			logger.error("Can not derive identity from permanent key agreement instance: " + e);
+    		} catch (KeyAgreementProtocolException e) {
+    			logger.error("Can not derive identity from permanent key agreement instance: " + e);
+    		}
+    	}
+    	return permanentIdentity;
     }
 
 	/** Starts a background thread (using the run() method of this class) that will listen for incoming connections. */
@@ -205,8 +227,7 @@ public abstract class HostServerBase extends AuthenticationEventSender
 		if (!running) {
 			running = true;
 			logger.debug("Starting listening thread for server socket");
-			listenerThread = new Thread(this);
-			listenerThread.start();
+			listenerThread = ExecutionService.start(ExecutionService.PoolListener, this);
 			logger.debug("Started listening thread for server socket");
 		}
 	}
@@ -243,9 +264,15 @@ public abstract class HostServerBase extends AuthenticationEventSender
 	 * @param remote The (already opened) remote connection to use.
 	 */
 	protected void startProtocol(RemoteConnection remote) {
-		HostProtocolHandler h = new HostProtocolHandler(remote, 
-				presharedShortSecrets, permanentKeyAgreementInstance, 
-				protocolTimeoutMs, keepConnected, useJSSE);
+		HostProtocolHandler h;
+		HostIdentity identity = getPermanentIdentity();
+		if (identity != null)
+			h = new HostProtocolHandler(remote, presharedShortSecrets, identity, 
+					protocolTimeoutMs, keepConnected, useJSSE);
+		else
+			h = new HostProtocolHandler(remote, 
+					presharedShortSecrets, permanentKeyAgreementInstance, 
+					protocolTimeoutMs, keepConnected, useJSSE);
 		// before starting the background thread, register all our own listeners with this new event sender
 		h.setAuthenticationProgressHandlers(eventsHandlers);
 		h.setProtocolCommandHandlers(protocolCommandHandlers);
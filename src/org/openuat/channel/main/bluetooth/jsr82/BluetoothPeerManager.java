@@ -27,6 +27,8 @@ import javax.bluetooth.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.channel.main.bluetooth.BluetoothSupport;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.LoggingHelper;
 
 /** This class implements a Bluetooth peer device manager that handles 
@@ -108,7 +110,7 @@ public class BluetoothPeerManager {
 	private DiscoveryEventsHandler eventsHandler = new DiscoveryEventsHandler(null);
 	
 	/** A reference to the background inquiry thread when it is running, or null if not running. */
-	private Thread inquiryThread = null;
+	private BackgroundTask inquiryThread = null;
 	
 	/** Use for randomized sleeps. */
 	private Random random = new Random();
@@ -232,8 +234,7 @@ public class BluetoothPeerManager {
 			return startInquiry();
 		}
 		else {
-			inquiryThread = new Thread(new InquiryThread() );
-			inquiryThread.start();
+			inquiryThread = ExecutionService.start(ExecutionService.PoolDiscovery, new InquiryThread());
 			return true;
 		}
 	}
@@ -249,7 +250,7 @@ public class BluetoothPeerManager {
 	 */
 	public boolean stopInquiry(boolean force) {
 		if (inquiryThread != null) {
-			Thread tmp = inquiryThread;
+			BackgroundTask tmp = inquiryThread;
 			inquiryThread = null;
 			tmp.interrupt();
 			try {
@@ -77,6 +77,11 @@ public class BluetoothRFCOMMChannel implements RemoteConnection {
 	/** Initialized by @see #open.
 	 */
 	private OutputStream toRemote = null;
+	/** The decorators of fromRemote and toRemote returned by getInputStream
+	 * and getOutputStream, created once per open channel.
+	 */
+	private InputStream recordedFromRemote = null;
+	private OutputStream recordedToRemote = null;
 	
 	/** Returns all BluetoothRFCOMMChannel objects whose channel is currently
 	 * open or is being tried to be opened.
@@ -281,6 +286,12 @@ public class BluetoothRFCOMMChannel implements RemoteConnection {
 		logger.debug("Closing RFCOMM channel to remote device '" + remoteDeviceAddress + 
 				"' with port " + remoteChannelNumber);
 		
+//#if cfg.includeJSSESupport
+		org.openuat.util.WireRecorder.closeTap(recordedFromRemote);
+		org.openuat.util.WireRecorder.closeTap(recordedToRemote);
+//#endif
+		recordedFromRemote = null;
+		recordedToRemote = null;
     	try {
     		if (fromRemote != null)
     			fromRemote.close();
@@ -364,11 +375,17 @@ public class BluetoothRFCOMMChannel implements RemoteConnection {
 			throw new IOException("RFCOMM channel has not been opened properly");
 		}
 		
+		if (recordedFromRemote == null) {
+			recordedFromRemote = fromRemote;
+//#if cfg.includeJSSESupport
+			recordedFromRemote = org.openuat.util.WireRecorder.wrap(fromRemote, getTapName());
+//#endif
+		}
 		// maybe apply decorator
 		if (logger.isDebugEnabled())
-			return new DebugInputStream(fromRemote, "org.openuat.util.BluetoothRFCOMMChannel_IN");
+			return new DebugInputStream(recordedFromRemote, "org.openuat.util.BluetoothRFCOMMChannel_IN");
 			
-		return fromRemote;
+		return recordedFromRemote;
 	}
 
 	/** Returns the OutputStream object for writing to the remote Bluetooth device.
@@ -382,11 +399,22 @@ public class BluetoothRFCOMMChannel implements RemoteConnection {
 			throw new IOException("RFCOMM channel has not been opened properly");
 		}
 		
+		if (recordedToRemote == null) {
+			recordedToRemote = toRemote;
+//#if cfg.includeJSSESupport
+			recordedToRemote = org.openuat.util.WireRecorder.wrap(toRemote, getTapName());
+//#endif
+		}
 		// maybe apply decorator
 		if (logger.isDebugEnabled())
-			return new DebugOutputStream(toRemote, "org.openuat.util.BluetoothRFCOMMChannel_OUT");
+			return new DebugOutputStream(recordedToRemote, "org.openuat.util.BluetoothRFCOMMChannel_OUT");
 			
-		return toRemote;
+		return recordedToRemote;
+	}
+	
+	/** Returns the name of this channel in wire captures. */
+	private String getTapName() {
+		return "rfcomm " + remoteDeviceAddress + ":" + remoteChannelNumber;
 	}
 
 	/** Implementation of RemoteConnection.getRemoteAddress.
@@ -18,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import org.openuat.channel.main.RemoteConnection;
 import org.openuat.util.DebugInputStream;
 import org.openuat.util.DebugOutputStream;
+import org.openuat.util.WireRecorder;
 
 /** This is a private implementation of RemoteConnection for TCP. */
 public class RemoteTCPConnection implements RemoteConnection {
@@ -27,6 +28,13 @@ public class RemoteTCPConnection implements RemoteConnection {
 	/** Just a reference to the Socket object wrapped by this class. */
 	private Socket socket = null;
 	
+	/** The streams returned by getInputStream and getOutputStream. They are
+	 * only created once, so that a recorded connection uses a single tap in
+	 * each direction.
+	 */
+	private InputStream in = null;
+	private OutputStream out = null;
+	
 	/** Only stores the Socket reference s in socket. */
 	public RemoteTCPConnection(Socket s) {
 		socket = s;
@@ -36,22 +44,31 @@ public class RemoteTCPConnection implements RemoteConnection {
 	 * @see RemoteConnection.getInputStream
 	 */
 	public InputStream getInputStream() throws IOException {
+		if (in == null)
+			in = WireRecorder.wrap(socket.getInputStream(), getTapName());
 		// maybe apply decorator
 		if (logger.isTraceEnabled())
-			return new DebugInputStream(socket.getInputStream(), "org.openuat.util.RemoteTCPConnection_IN");
+			return new DebugInputStream(in, "org.openuat.util.RemoteTCPConnection_IN");
 			
-		return socket.getInputStream();
+		return in;
 	}
 
 	/** Implementation of RemoteConnection.getOutputStream.
 	 * @see RemoteConnection.getOutputStream
 	 */
 	public OutputStream getOutputStream() throws IOException {
+		if (out == null)
+			out = WireRecorder.wrap(socket.getOutputStream(), getTapName());
 		// maybe apply decorator
 		if (logger.isTraceEnabled())
-			return new DebugOutputStream(socket.getOutputStream(), "org.openuat.util.RemoteTCPConnection_OUT");
+			return new DebugOutputStream(out, "org.openuat.util.RemoteTCPConnection_OUT");
 			
-		return socket.getOutputStream();
+		return out;
+	}
+	
+	/** Returns the name of this connection in wire captures. */
+	private String getTapName() {
+		return "tcp " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
 	}
 
 	/** Implementation of RemoteConnection.getRemoteAddress.
@@ -80,6 +97,8 @@ public class RemoteTCPConnection implements RemoteConnection {
 	 * @see RemoteConnection.close
 	 */
 	public void close() {
+		WireRecorder.closeTap(in);
+		WireRecorder.closeTap(out);
     	try {
     		if (socket != null && socket.isConnected())
     		{
@@ -23,9 +23,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
 import org.openuat.channel.main.MessageListener;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
+import org.openuat.util.WireRecorder;
 
 /** This class offers unicast and multicast UDP communication. It binds one
  * MulticastSocket to each network interface address found in the system and sends
@@ -37,7 +40,7 @@ import org.openuat.channel.main.MessageListener;
  */
 public class UDPMulticastSocket {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger(UDPMulticastSocket.class.getName());
+	private static Log logger = LogFactory.getLogger(UDPMulticastSocket.class.getName());
 
 	/** A list of network interface names <b>not</b> to use for communication.
 	 * All other network interfaces not matching these names are used to multicast
@@ -100,21 +103,30 @@ public class UDPMulticastSocket {
      * @see #stopListening()
      * @see #shouldExit 
      */
-    private Thread listenerThread = null;
+    private BackgroundTask listenerThread = null;
     
     /** Set to true to signal the listener thread to exit. 
      * @see #stopListening() 
      */
     private boolean shouldExit = false;
     
+    /** The taps recording received and sent datagrams, or null when this
+     * socket has been created while no recording was active. Sending may
+     * happen from different threads, so recording to sendTap is done while
+     * holding its lock.
+     * @see WireRecorder
+     */
+    private WireRecorder.Tap receiveTap, sendTap;
+    
     /** Creates an UDPMulticastSocket object.
      * 
      * @param port The UDP port to use for communication.
      * @param multicastGroup The multicast group to use.
      */
 	public UDPMulticastSocket(int receivePort, int sendPort, String multicastGroup) throws IOException {
-		logger.debug("Constructing UDPMulticastSocket with receive port " + receivePort + 
-				", send port " + sendPort + ", multicast group " + multicastGroup);
+		if (logger.isDebugEnabled())
+			logger.debug("Constructing UDPMulticastSocket with receive port " + receivePort + 
+					", send port " + sendPort + ", multicast group " + multicastGroup);
 		this.receivePort = receivePort;
 		this.sendPort = sendPort;
 		
@@ -142,7 +154,8 @@ public class UDPMulticastSocket {
 		int addressIndex = 0;
 		while (ifaces.hasMoreElements()) {
 			NetworkInterface iface = (NetworkInterface) ifaces.nextElement();
-			logger.debug("Found local interface " + iface.getName());
+			if (logger.isDebugEnabled())
+				logger.debug("Found local interface " + iface.getName());
 			// check if that interface name is blacklisted
 			boolean blacklisted = false;
 			for (int i=0; i<Interface_Names_Blacklist.length; i++) {
@@ -157,9 +170,11 @@ public class UDPMulticastSocket {
 				while (addrs.hasMoreElements()) {
 					InetAddress addr = (InetAddress) addrs.nextElement();
 					if (addr instanceof Inet6Address) {
-						logger.debug("Ignoring IPv6 address " + addr + " for now");
+						if (logger.isDebugEnabled())
+							logger.debug("Ignoring IPv6 address " + addr + " for now");
 					} else {
-						logger.debug("Found address " + addr);
+						if (logger.isDebugEnabled())
+							logger.debug("Found address " + addr);
 						allAddrs.add(addr);
 						// if this is not the first address on the interface, mark it as alias
 						if (alreadyAddedAddr)
@@ -175,7 +190,8 @@ public class UDPMulticastSocket {
 		
 		// start the responders
 		if (usingMulticast) {
-			logger.debug("Using " + allAddrs.size() + " addresses, starting one multicast sending socket for each");
+			if (logger.isDebugEnabled())
+				logger.debug("Using " + allAddrs.size() + " addresses, starting one multicast sending socket for each");
 
 			multicastSendSockets = new MulticastSocket[allAddrs.size()];
 			Iterator iter = allAddrs.iterator();
@@ -200,6 +216,10 @@ public class UDPMulticastSocket {
 			multicastSendSockets[0] = new MulticastSocket();
 			multicastSendSockets[0].setSoTimeout(Timeout_Receive);
 		}
+		
+		// only open the taps when nothing can fail anymore, so that they are not leaked
+		receiveTap = WireRecorder.openTap("udp " + groupAddress.getHostAddress() + ":" + receivePort, false);
+		sendTap = WireRecorder.openTap("udp " + groupAddress.getHostAddress() + ":" + sendPort, true);
 	}
 	
 	/** Sends a multicast message to the group. This will send at exactly one packet 
@@ -211,16 +231,19 @@ public class UDPMulticastSocket {
         DatagramPacket packet = new DatagramPacket(message, 0, message.length);
 		packet.setAddress(groupAddress);
 		packet.setPort(sendPort);
+		record(message);
 		for (int i=0; i<multicastSendSockets.length; i++) {
 			if (! addressIsAlias.get(i)) {
-				logger.debug("Sending packet with " + message.length + " bytes to multicast group " + 
-						groupAddress + ", port " + sendPort + " on multicast socket bound to address " + 
-						multicastSendSockets[i].getLocalAddress());
+				if (logger.isDebugEnabled())
+					logger.debug("Sending packet with " + message.length + " bytes to multicast group " + 
+							groupAddress + ", port " + sendPort + " on multicast socket bound to address " + 
+							multicastSendSockets[i].getLocalAddress());
 				multicastSendSockets[i].send(packet);
 			}
 			else {
-				logger.debug("Not using multicast socket bound to alias address " + 
-						multicastSendSockets[i].getLocalAddress());
+				if (logger.isDebugEnabled())
+					logger.debug("Not using multicast socket bound to alias address " + 
+							multicastSendSockets[i].getLocalAddress());
 			}
 		}
 	}
@@ -234,11 +257,22 @@ public class UDPMulticastSocket {
         DatagramPacket packet = new DatagramPacket(message, 0, message.length);
 		packet.setAddress(target);
 		packet.setPort(sendPort);
-		logger.debug("Sending packet with " + message.length + " bytes to address " + 
-				target + ", port " + sendPort);
+		record(message);
+		if (logger.isDebugEnabled())
+			logger.debug("Sending packet with " + message.length + " bytes to address " + 
+					target + ", port " + sendPort);
 		unicastSendSocket.send(packet);
 	}
 
+	/** Records a sent message if a recording is active. */
+	private void record(byte[] message) {
+		if (sendTap != null) {
+			synchronized (sendTap) {
+				sendTap.record(message, 0, message.length);
+			}
+		}
+	}
+
     /** Register a listener for receiving messages. */
     public void addIncomingMessageListener(MessageListener l) {
     	if (! messageHandlers.contains(l))
@@ -253,6 +287,10 @@ public class UDPMulticastSocket {
 	/** Leaves the multicast group on all sockets. */
 	public void dispose() {
 		stopListening();
+		if (receiveTap != null)
+			receiveTap.close();
+		if (sendTap != null)
+			sendTap.close();
 		try {
 			if (groupAddress.isMulticastAddress()) {
 				multicastReceiveSocket.leaveGroup(groupAddress);
@@ -270,8 +308,7 @@ public class UDPMulticastSocket {
 	 */
 	public void startListening() {
 		if (listenerThread == null) {
-			listenerThread = new Thread(new RunHelper());
-			listenerThread.start();
+			listenerThread = ExecutionService.start(ExecutionService.PoolListener, new RunHelper());
 		}
 	}
 	
@@ -301,9 +338,12 @@ public class UDPMulticastSocket {
 	            
 				try {
 					multicastReceiveSocket.receive(packet);
-		            logger.debug("Received packet of length " + packet.getLength() + " from " + 
-		            		packet.getAddress() + " at socket bound to " + packet.getSocketAddress() +
-		            		", port " + receivePort);
+		            if (logger.isDebugEnabled())
+			            logger.debug("Received packet of length " + packet.getLength() + " from " + 
+			            		packet.getAddress() + " at socket bound to " + packet.getSocketAddress() +
+			            		", port " + receivePort);
+		            if (receiveTap != null)
+		            	receiveTap.record(packet.getData(), packet.getOffset(), packet.getLength());
 					
 			    	if (messageHandlers != null) {
 			    		for (ListIterator i = messageHandlers.listIterator(); i.hasNext(); ) {
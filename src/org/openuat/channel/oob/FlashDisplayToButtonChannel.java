@@ -11,6 +11,7 @@ package org.openuat.channel.oob;
 import org.openuat.authentication.OOBChannel;
 import org.openuat.channel.oob.ButtonChannelImpl;
 import org.openuat.log.LogFactory;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.IntervalList;
 
 /**
@@ -110,7 +111,7 @@ public class FlashDisplayToButtonChannel extends ButtonChannel {
 		intervals.addFirst(initInterval);
 		
 		// now run the transmission in a separate thread
-		Thread t = new Thread(new Runnable() {
+		ExecutionService.start(ExecutionService.PoolChannel, new Runnable() {
 			public void run() {
 				int signalCount = 0;
 				impl.setSignalCount(signalCount);
@@ -164,7 +165,6 @@ public class FlashDisplayToButtonChannel extends ButtonChannel {
 				}
 			}
 		});
-		t.start();
 	}
 
 }
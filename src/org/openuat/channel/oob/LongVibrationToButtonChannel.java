@@ -11,6 +11,7 @@ package org.openuat.channel.oob;
 import org.openuat.authentication.OOBChannel;
 import org.openuat.channel.oob.ButtonChannelImpl;
 import org.openuat.log.LogFactory;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.IntervalList;
 
 /**
@@ -115,7 +116,7 @@ public class LongVibrationToButtonChannel extends ButtonChannel {
 		}
 		
 		// now run the transmission in a separate thread
-		Thread t = new Thread(new Runnable() {
+		ExecutionService.start(ExecutionService.PoolChannel, new Runnable() {
 			public void run() {
 				int signalCount = 0;
 				impl.setSignalCount(signalCount);
@@ -174,7 +175,6 @@ public class LongVibrationToButtonChannel extends ButtonChannel {
 				}
 			}
 		});
-		t.start();
 	}
 
 }
@@ -14,6 +14,7 @@ import java.util.TimerTask;
 import org.openuat.authentication.OOBChannel;
 import org.openuat.channel.oob.ButtonChannelImpl;
 import org.openuat.log.LogFactory;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.IntervalList;
 
 /**
@@ -125,7 +126,7 @@ public class PowerBarToButtonChannel extends ButtonChannel {
 			}
 		};
 		
-		Thread t = new Thread(new Runnable() {
+		ExecutionService.start(ExecutionService.PoolChannel, new Runnable() {
 			public void run() {
 				impl.showTransmitGui(transmitDisplayText, ButtonChannelImpl.TRANSMIT_PLAIN);
 				try {
@@ -140,7 +141,6 @@ public class PowerBarToButtonChannel extends ButtonChannel {
 				timer.scheduleAtFixedRate(task, 0, deltaT);
 			}
 		});
-		t.start();
 	}
 
 }
@@ -11,6 +11,7 @@ package org.openuat.channel.oob;
 import org.openuat.authentication.OOBChannel;
 import org.openuat.channel.oob.ButtonChannelImpl;
 import org.openuat.log.LogFactory;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.IntervalList;
 
 /**
@@ -107,7 +108,7 @@ public class ShortVibrationToButtonChannel extends ButtonChannel {
 		}
 		intervals.addFirst(initInterval);
 		
-		Thread t = new Thread(new Runnable() {
+		ExecutionService.start(ExecutionService.PoolChannel, new Runnable() {
 			public void run() {
 				int signalCount = 0;
 				impl.setSignalCount(signalCount);
@@ -168,7 +169,6 @@ public class ShortVibrationToButtonChannel extends ButtonChannel {
 				}
 			}
 		});
-		t.start();
 	}
 
 }
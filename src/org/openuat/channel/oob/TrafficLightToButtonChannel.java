@@ -11,6 +11,7 @@ package org.openuat.channel.oob;
 import org.openuat.authentication.OOBChannel;
 import org.openuat.channel.oob.ButtonChannelImpl;
 import org.openuat.log.LogFactory;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.IntervalList;
 
 /**
@@ -93,7 +94,7 @@ public class TrafficLightToButtonChannel extends ButtonChannel {
 		intervals.addFirst(initInterval);
 		
 		// now run the transmission in a separate thread
-		Thread t = new Thread(new Runnable() {
+		ExecutionService.start(ExecutionService.PoolChannel, new Runnable() {
 			public void run() {
 				int signalCount = 0;
 				impl.setSignalCount(signalCount);
@@ -139,7 +140,6 @@ public class TrafficLightToButtonChannel extends ButtonChannel {
 				}
 			}
 		});
-		t.start();
 	}
 
 }
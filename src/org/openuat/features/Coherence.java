@@ -22,7 +22,11 @@ import org.slf4j.LoggerFactory;
  * The coherence is estimated as the power spectrum correlation between two
  * signals split into overlapping slices. For each slice, the Fourier 
  * coefficients are computed and the magnitudes of these slices are averaged
- * to compute the power spectra.
+ * to compute the power spectra. As the slices overlap, the coefficients are
+ * kept up to date with SlidingDFT while moving from one slice to the next.
+ * The computation itself is done by CoherenceEngine, which callers that 
+ * compare many signals with the same parameters should use directly to 
+ * reuse its buffers.
  * 
  * <b>Note:</b> This class does not yet implement estimation of confidence
  * intervals or de-trending like the Matlab/Octave implementations do. It is
@@ -60,6 +64,22 @@ public class Coherence {
 	 * @return The coherence coefficients.
 	 */
 	public static double[] cohere(double[] s1, double[] s2, int windowsize, int overlap) {
+		return cohere(s1, s2, windowsize, overlap, -1);
+	}
+
+	/** Compute the coherence between two signals, but only up to a maximum
+	 * index. This is the same as cohere(s1, s2, windowsize, overlap), but
+	 * cheaper when the higher frequencies are not used anyway.
+	 * 
+	 * @param s1 Signal 1. Both signals must have equal length.
+	 * @param s2 Signal 2. Both signals must have equal length.
+	 * @param windowsize The window size to use, i.e. the number of FFT coefficients to compute. Defaults to
+	 *                   min(256, s1.length) if set to <= 0.
+	 * @param overlap The overlap of the windows to compute. Defaults to windowsize/2 when set to < 0.
+	 * @param max_ind The number of coherence coefficients to compute, or -1 for all of them.
+	 * @return The coherence coefficients.
+	 */
+	public static double[] cohere(double[] s1, double[] s2, int windowsize, int overlap, int max_ind) {
 		if (s1.length != s2.length)
 			throw new IllegalArgumentException("Signals have different length");
 		
@@ -80,75 +100,7 @@ public class Coherence {
 		logger.info("Computing coherence between two signals of length " + s1.length + 
 				" with a window size/number of FFT coefficients of " + windowsize + " and " +
 				overlap + " overlap");
-		
-		double[] hann = hann(windowsize);	
-		// sanity check
-		if (hann.length != windowsize) {
-			logger.error("FFT window size is different from than the hanning window size, can not cope");
-			return null;
-		}
-		// normalize the hanning window
-		double hannNorm = l2Norm(hann);
-		for (int i=0; i<windowsize; i++)
-			hann[i] = hann[i] / hannNorm;
-		if (logger.isDebugEnabled() && Math.abs(l2Norm(hann) - 1) > 0.00001)
-			logger.debug("Norm of normalized hann window is not 1");
-		
-		// the self- and cross-correlations of the frequency power spectra of the signals
-		// they are initialized to 0 by the JVM
-		double[] Pxx = new double[windowsize];
-		double[] Pyy = new double[windowsize];
-		Complex[] Pxy = new Complex[windowsize];
-		for (int i=0; i<windowsize; i++)
-			Pxy[i] = new Complex(0, 0);
-		
-		// this calculates the average of the P** over all slices
-		int slices=0;
-		for (int offset=0; offset<s1.length-windowsize+1; offset+=windowsize-overlap) {
-			logger.debug("Using slice " + slices + " at offset " + offset);
-			slices++;
-
-			// create the slices and mask them with hanning
-			Complex[] a = new Complex[windowsize];
-			for (int i=0; i<windowsize; i++)
-				a[i] = new Complex(s1[offset+i] * hann[i], 0);
-			Complex[] b = new Complex[windowsize];
-			for (int i=0; i<windowsize; i++)
-				b[i] = new Complex(s2[offset+i] * hann[i], 0);
-			/* no padding is necessary because we set the hanning window to the same size 
-			 * as the number of FFT coefficients anyway */
-			a = FFT.fft(a);
-			b = FFT.fft(b);
-			// and add the slice to the power spectrum averages
-			for (int i=0; i<windowsize; i++) {
-				// this is just the sqare of the magnitude
-				//Pxx[i] += a[i].times(a[i].conjugate()).abs();
-				// quicker - saves unnecessary multiplicates (imaginary part becomes zero), copying and sqrt
-				Pxx[i] += a[i].getRe() * a[i].getRe() + a[i].getIm() * a[i].getIm(); 
-				Pyy[i] += b[i].getRe() * b[i].getRe() + b[i].getIm() * b[i].getIm();
-				// here we need to do the full thing
-				Pxy[i] = Pxy[i].plus(a[i].times(b[i].conjugate()));
-			}
-		}
-		// sanity check
-		if (slices != getNumSlices(s1.length, windowsize, overlap))
-			throw new RuntimeException("Error: did not compute as many slices as expected. This should not happen.");
-
-		/* No need to divide P** by the number of slices here, it would cancel itself out below.
-		   Also no need to divide P** by the norm of the hanning window, it would also cancel itself out
-		   (the second one should be suggested by Bendat & Piersol Sec 11.5.2, according to
-		   http://mail.python.org/pipermail/python-list/2003-January/142831.html ). */ 
-
-		// this is the coherence
-		// the number of values to return - only half of the power spectrum is significant (+1 for even)
-		int retSize = windowsize%2 == 1 ? (windowsize+1) / 2 : windowsize/2 + 1;
-		double[] P = new double[retSize];
-		for (int i=0; i<retSize; i++) {
-			// again: P = Pxy.*conj(Pxy)./Pxx./Pyy; gives the sqared magnitude 
-			P[i] = (Pxy[i].getRe() * Pxy[i].getRe() + Pxy[i].getIm() * Pxy[i].getIm()) / (Pxx[i] * Pyy[i]);
-		}
-			
-		return P;
+		return new CoherenceEngine(windowsize, overlap).cohere(s1, s2, max_ind);
 	}
 	
 	/** This function just generates a von-Hann window of specified size, as defined
@@ -204,6 +156,6 @@ public class Coherence {
 	 * @return The coherence coefficients.
 	 */
 	public static double weightedCoherenceMean(double[] s1, double[] s2, int windowsize, int overlap, int max_ind) {
-		return mean(cohere(s1, s2, windowsize, overlap), max_ind) * Math.sqrt(getNumSlices(s1.length, windowsize, overlap));
+		return mean(cohere(s1, s2, windowsize, overlap, max_ind), max_ind) * Math.sqrt(getNumSlices(s1.length, windowsize, overlap));
 	}
 }
@@ -0,0 +1,312 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features;
+
+import org.openuat.log.PhaseTracer;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class computes the coherence between pairs of signals for a fixed
+ * window size and overlap, like Coherence.cohere does, but keeps its work
+ * buffers between calls. It is meant for callers that compare many
+ * segments with the same parameters, like ShakeWellBeforeUseProtocol1.
+ * <br>
+ * For long signals, the slices are split into consecutive ranges that are
+ * processed in parallel. Each range is handled by a worker with its own
+ * sliding transforms and its own Pxx, Pyy and Pxy accumulators, which are
+ * summed up when all workers have finished. The first range is processed
+ * by the calling thread, the others are run in ExecutionService.PoolCompute.
+ * As every worker has to transform its first window from scratch and
+ * handing a task to another thread takes much longer than a slice,
+ * additional workers are only used when each of them gets at least
+ * MinSlicesPerWorker slices.
+ * <br>
+ * This class is not thread safe, i.e. each thread that computes coherence
+ * needs its own instance.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class CoherenceEngine {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.features.CoherenceEngine" /*CoherenceEngine.class*/);
+
+	/** The minimum number of slices that each additional worker must get. */
+	public static final int MinSlicesPerWorker = 64;
+
+	/** The window size, i.e. the number of FFT coefficients. */
+	private int windowsize;
+
+	/** The overlap of the slices. */
+	private int overlap;
+
+	/** The maximum number of workers to split the slices across. */
+	private int maxWorkers;
+
+	/** The workers, created on first use. A worker is created again when
+	 * the number of coherence coefficients changes. */
+	private Worker[] workers = null;
+
+	/** Creates an engine that uses as many workers as there are processors.
+	 * @param windowsize The window size to use, i.e. the number of FFT coefficients to compute.
+	 * @param overlap The overlap of the windows to compute.
+	 */
+	public CoherenceEngine(int windowsize, int overlap) {
+		this(windowsize, overlap, getDefaultNumWorkers());
+	}
+
+	/** Creates an engine.
+	 * @param windowsize The window size to use, i.e. the number of FFT coefficients to compute.
+	 * @param overlap The overlap of the windows to compute.
+	 * @param maxWorkers The maximum number of workers to split the slices of
+	 *                   a single computation across. Set to 1 to compute
+	 *                   all slices in the calling thread.
+	 */
+	public CoherenceEngine(int windowsize, int overlap, int maxWorkers) {
+		if (windowsize <= 0)
+			throw new IllegalArgumentException("Window size must be > 0");
+		if (overlap < 0 || windowsize-overlap <= 0)
+			throw new IllegalArgumentException("Overlap must be >= 0 and less than the window size");
+		if (maxWorkers <= 0)
+			throw new IllegalArgumentException("Number of workers must be > 0");
+		this.windowsize = windowsize;
+		this.overlap = overlap;
+		this.maxWorkers = maxWorkers;
+	}
+
+	/** Returns the number of processors where it is known, and 1 otherwise. */
+	public static int getDefaultNumWorkers() {
+		int num = 1;
+//#if cfg.includeJSSESupport
+		num = Runtime.getRuntime().availableProcessors();
+//#endif
+		return num;
+	}
+
+	/** Returns the window size. */
+	public int getWindowSize() {
+		return windowsize;
+	}
+
+	/** Returns the overlap of the slices. */
+	public int getOverlap() {
+		return overlap;
+	}
+
+	/** Returns the maximum number of workers. */
+	public int getMaxWorkers() {
+		return maxWorkers;
+	}
+
+	/** Compute the coherence between two signals, see Coherence.cohere.
+	 *
+	 * @param s1 Signal 1. Both signals must have equal length.
+	 * @param s2 Signal 2. Both signals must have equal length.
+	 * @param max_ind The number of coherence coefficients to compute, or -1 for all of them.
+	 * @return The coherence coefficients.
+	 */
+	public double[] cohere(double[] s1, double[] s2, int max_ind) {
+		if (s1.length != s2.length)
+			throw new IllegalArgumentException("Signals have different length");
+		int numSlices = Coherence.getNumSlices(s1.length, windowsize, overlap);
+
+		Object trace = PhaseTracer.begin(PhaseTracer.CoherenceCompute);
+
+		// the number of values to return - only half of the power spectrum is significant (+1 for even)
+		int retSize = windowsize%2 == 1 ? (windowsize+1) / 2 : windowsize/2 + 1;
+		if (max_ind >= 0 && max_ind < retSize)
+			retSize = max_ind;
+
+		int numWorkers = Math.min(maxWorkers, Math.max(1, numSlices / MinSlicesPerWorker));
+		if (workers == null || workers.length < numWorkers) {
+			Worker[] w = new Worker[numWorkers];
+			if (workers != null)
+				System.arraycopy(workers, 0, w, 0, workers.length);
+			workers = w;
+		}
+		for (int i=0; i<numWorkers; i++)
+			if (workers[i] == null || workers[i].retSize != retSize)
+				workers[i] = new Worker(retSize);
+
+		// split the slices into consecutive ranges of nearly equal size
+		int first = 0;
+		for (int i=0; i<numWorkers; i++) {
+			int num = numSlices / numWorkers + (i < numSlices % numWorkers ? 1 : 0);
+			workers[i].prepare(s1, s2, first, num);
+			first += num;
+		}
+		if (numWorkers > 1 && logger.isDebugEnabled())
+			logger.debug("Splitting " + numSlices + " slices across " + numWorkers + " workers");
+
+		BackgroundTask[] tasks = new BackgroundTask[numWorkers];
+		for (int i=1; i<numWorkers; i++)
+			tasks[i] = ExecutionService.start(ExecutionService.PoolCompute, workers[i]);
+		workers[0].run();
+		boolean interrupted = false;
+		for (int i=1; i<numWorkers; i++) {
+			while (tasks[i].isAlive()) {
+				try {
+					tasks[i].join();
+				}
+				catch (InterruptedException e) {
+					// the workers don't check for interrupts, so just wait for them
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		// reduce the accumulators into those of the first worker
+		Worker w0 = workers[0];
+		for (int j=0; j<numWorkers; j++) {
+			Worker w = workers[j];
+			w.release();
+			if (w.failure != null)
+				throw w.failure;
+			if (j == 0)
+				continue;
+			for (int i=0; i<retSize; i++) {
+				w0.Pxx[i] += w.Pxx[i];
+				w0.Pyy[i] += w.Pyy[i];
+				w0.PxyRe[i] += w.PxyRe[i];
+				w0.PxyIm[i] += w.PxyIm[i];
+			}
+		}
+
+		/* No need to divide P** by the number of slices here, it would cancel itself out below.
+		   Also no need to divide P** by the norm of the hanning window, it would also cancel itself out
+		   (the second one should be suggested by Bendat & Piersol Sec 11.5.2, according to
+		   http://mail.python.org/pipermail/python-list/2003-January/142831.html ). */
+
+		// this is the coherence
+		double[] P = new double[retSize];
+		for (int i=0; i<retSize; i++) {
+			// again: P = Pxy.*conj(Pxy)./Pxx./Pyy; gives the sqared magnitude
+			P[i] = (w0.PxyRe[i] * w0.PxyRe[i] + w0.PxyIm[i] * w0.PxyIm[i]) / (w0.Pxx[i] * w0.Pyy[i]);
+		}
+		PhaseTracer.end(trace, windowsize, s1.length);
+
+		return P;
+	}
+
+	/** Computes the average over the coherence values, weighted by the
+	 * number of slices, see Coherence.weightedCoherenceMean.
+	 *
+	 * @param s1 Signal 1. Both signals must have equal length.
+	 * @param s2 Signal 2. Both signals must have equal length.
+	 * @param max_ind The maximum index of the FFT coefficient vectors to compare to, or -1 for all of them.
+	 * @return The weighted mean of the coherence coefficients.
+	 */
+	public double weightedCoherenceMean(double[] s1, double[] s2, int max_ind) {
+		return Coherence.mean(cohere(s1, s2, max_ind), max_ind) *
+			Math.sqrt(Coherence.getNumSlices(s1.length, windowsize, overlap));
+	}
+
+	/** Computes the accumulated spectra of a range of slices. */
+	private class Worker implements Runnable {
+		/** The number of coherence coefficients. */
+		final int retSize;
+
+		/** The sliding transforms of both signals. */
+		private SlidingDFT a, b;
+
+		/** The hanning masked coefficients of the current slice. */
+		private double[] aRe, aIm, bRe, bIm;
+
+		/** The self- and cross-correlations of the frequency power spectra of
+		 * the slices in the range. */
+		double[] Pxx, Pyy, PxyRe, PxyIm;
+
+		/** The signals, only set between prepare and release. */
+		private double[] s1, s2;
+
+		/** The range of slices to process. */
+		private int firstSlice, numSlices;
+
+		/** Set when run failed. */
+		RuntimeException failure;
+
+		Worker(int retSize) {
+			this.retSize = retSize;
+			/* The slices are masked with hanning in the frequency domain, which needs one more
+			   coefficient. The hanning window is not normalized, because the norm would cancel
+			   itself out. */
+			a = new SlidingDFT(windowsize, Math.min(retSize+1, windowsize));
+			b = new SlidingDFT(windowsize, Math.min(retSize+1, windowsize));
+			aRe = new double[retSize];
+			aIm = new double[retSize];
+			bRe = new double[retSize];
+			bIm = new double[retSize];
+			Pxx = new double[retSize];
+			Pyy = new double[retSize];
+			PxyRe = new double[retSize];
+			PxyIm = new double[retSize];
+		}
+
+		void prepare(double[] s1, double[] s2, int firstSlice, int numSlices) {
+			this.s1 = s1;
+			this.s2 = s2;
+			this.firstSlice = firstSlice;
+			this.numSlices = numSlices;
+			failure = null;
+		}
+
+		/** Drops the references to the signals. */
+		void release() {
+			s1 = null;
+			s2 = null;
+		}
+
+		public void run() {
+			try {
+				accumulate();
+			}
+			catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+
+		private void accumulate() {
+			for (int i=0; i<retSize; i++) {
+				Pxx[i] = 0;
+				Pyy[i] = 0;
+				PxyRe[i] = 0;
+				PxyIm[i] = 0;
+			}
+			a.reset();
+			b.reset();
+
+			int offset = firstSlice * (windowsize-overlap);
+			// the number of samples that have already been added to a and b
+			int added = offset;
+			for (int slice=0; slice<numSlices; slice++, offset+=windowsize-overlap) {
+				// move the windows to the slice, only adding the samples that are new
+				a.addSamples(s1, added, offset+windowsize-added);
+				b.addSamples(s2, added, offset+windowsize-added);
+				added = offset+windowsize;
+				/* no padding is necessary because we set the hanning window to the same size
+				 * as the number of FFT coefficients anyway */
+				a.getHannSpectrum(aRe, aIm, retSize);
+				b.getHannSpectrum(bRe, bIm, retSize);
+				// and add the slice to the power spectrum averages
+				for (int i=0; i<retSize; i++) {
+					// this is just the sqare of the magnitude
+					Pxx[i] += aRe[i] * aRe[i] + aIm[i] * aIm[i];
+					Pyy[i] += bRe[i] * bRe[i] + bIm[i] * bIm[i];
+					// a times conjugate of b
+					PxyRe[i] += aRe[i] * bRe[i] + aIm[i] * bIm[i];
+					PxyIm[i] += aIm[i] * bRe[i] - aRe[i] * bIm[i];
+				}
+			}
+		}
+	}
+}
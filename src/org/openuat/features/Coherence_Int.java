@@ -28,7 +28,14 @@ import org.slf4j.LoggerFactory;
  * intervals or de-trending like the Matlab/Octave implementations do. It is
  * not necessary in the current use cases and has thus been omitted.
  * 
- * This class implements coherence with integers.
+ * This class implements coherence with integers: cohere(int[], int[], ...)
+ * masks, transforms and accumulates the slices only with integer arithmetic,
+ * using FPIntFFT, and returns the coherence as fixed-point values, so that
+ * it can be used on hardware without floating point support. The samples
+ * are scaled to the 16 bit range of FPIntFFT, which limits the accuracy to
+ * about 1e-2 for signals with a reasonable amount of energy in each 
+ * frequency band. cohere(double[], double[], ...) is the floating point
+ * implementation.
  * 
  * @author Rene Mayrhofer
  * @version 1.0
@@ -37,6 +44,22 @@ public class Coherence_Int {
 	/** Our logger. */
 	private static Logger logger = LoggerFactory.getLogger("org.openuat.features.Coherence" /*Coherence.class*/);
 	
+	/** The fixed-point value of a coherence of 1, as returned by 
+	 * cohere(int[], int[], int, int, int). */
+	public static final int FixedPointOne = 1 << 15;
+	
+	/** The samples are scaled to at most this magnitude before masking them,
+	 * which leaves one bit of headroom for FPIntFFT. */
+	private static final int MaxSampleMagnitude = 16383;
+	
+	/** The power spectra are shifted down to less than 2^FixedPointPowerBits
+	 * before dividing them, so that the products fit into a long. */
+	private static final int FixedPointPowerBits = 22;
+	
+	/** The von-Hann windows computed with FPIntFFT.fix_hann, by log2 of their
+	 * size. They are created on first use. */
+	private static short[][] fixedPointHann = new short[11][];
+	
 	/** This is a small helper function to compute how many slices will be used. */
 	public static int getNumSlices(int signalLength, int windowsize, int overlap) {
 		if (windowsize-overlap <= 0)
@@ -96,13 +119,20 @@ public class Coherence_Int {
 		if (logger.isDebugEnabled() && Math.abs(l2Norm(hann) - 1) > 0.00001)
 			logger.debug("Norm of normalized hann window is not 1");
 		
+		// the number of values to return - only half of the power spectrum is significant (+1 for even)
+		int retSize = windowsize%2 == 1 ? (windowsize+1) / 2 : windowsize/2 + 1;
+
 		// the self- and cross-correlations of the frequency power spectra of the signals
 		// they are initialized to 0 by the JVM
-		double[] Pxx = new double[windowsize];
-		double[] Pyy = new double[windowsize];
-		Complex[] Pxy = new Complex[windowsize];
-		for (int i=0; i<windowsize; i++)
-			Pxy[i] = new Complex(0, 0);
+		double[] Pxx = new double[retSize];
+		double[] Pyy = new double[retSize];
+		double[] PxyRe = new double[retSize];
+		double[] PxyIm = new double[retSize];
+		
+		// the masked slices and their coefficients, reused for all slices
+		double[] slice = new double[windowsize];
+		double[] aRe = new double[windowsize/2+1], aIm = new double[windowsize/2+1];
+		double[] bRe = new double[windowsize/2+1], bIm = new double[windowsize/2+1];
 		
 		// this calculates the average of the P** over all slices
 		int slices=0;
@@ -111,25 +141,22 @@ public class Coherence_Int {
 			slices++;
 
 			// create the slices and mask them with hanning
-			Complex[] a = new Complex[windowsize];
-			for (int i=0; i<windowsize; i++)
-				a[i] = new Complex(s1[offset+i] * hann[i], 0);
-			Complex[] b = new Complex[windowsize];
-			for (int i=0; i<windowsize; i++)
-				b[i] = new Complex(s2[offset+i] * hann[i], 0);
 			/* no padding is necessary because we set the hanning window to the same size 
 			 * as the number of FFT coefficients anyway */
-			a = FFT.fft(a);
-			b = FFT.fft(b);
+			for (int i=0; i<windowsize; i++)
+				slice[i] = s1[offset+i] * hann[i];
+			FFT.realFFT(slice, 0, windowsize, aRe, aIm);
+			for (int i=0; i<windowsize; i++)
+				slice[i] = s2[offset+i] * hann[i];
+			FFT.realFFT(slice, 0, windowsize, bRe, bIm);
 			// and add the slice to the power spectrum averages
-			for (int i=0; i<windowsize; i++) {
+			for (int i=0; i<retSize; i++) {
 				// this is just the sqare of the magnitude
-				//Pxx[i] += a[i].times(a[i].conjugate()).abs();
-				// quicker - saves unnecessary multiplicates (imaginary part becomes zero), copying and sqrt
-				Pxx[i] += a[i].getRe() * a[i].getRe() + a[i].getIm() * a[i].getIm(); 
-				Pyy[i] += b[i].getRe() * b[i].getRe() + b[i].getIm() * b[i].getIm();
-				// here we need to do the full thing
-				Pxy[i] = Pxy[i].plus(a[i].times(b[i].conjugate()));
+				Pxx[i] += aRe[i] * aRe[i] + aIm[i] * aIm[i]; 
+				Pyy[i] += bRe[i] * bRe[i] + bIm[i] * bIm[i];
+				// a times conjugate of b
+				PxyRe[i] += aRe[i] * bRe[i] + aIm[i] * bIm[i];
+				PxyIm[i] += aIm[i] * bRe[i] - aRe[i] * bIm[i];
 			}
 		}
 		// sanity check
@@ -142,17 +169,181 @@ public class Coherence_Int {
 		   http://mail.python.org/pipermail/python-list/2003-January/142831.html ). */ 
 
 		// this is the coherence
-		// the number of values to return - only half of the power spectrum is significant (+1 for even)
-		int retSize = windowsize%2 == 1 ? (windowsize+1) / 2 : windowsize/2 + 1;
 		double[] P = new double[retSize];
 		for (int i=0; i<retSize; i++) {
 			// again: P = Pxy.*conj(Pxy)./Pxx./Pyy; gives the sqared magnitude 
-			P[i] = (Pxy[i].getRe() * Pxy[i].getRe() + Pxy[i].getIm() * Pxy[i].getIm()) / (Pxx[i] * Pyy[i]);
+			P[i] = (PxyRe[i] * PxyRe[i] + PxyIm[i] * PxyIm[i]) / (Pxx[i] * Pyy[i]);
 		}
 			
 		return P;
 	}
 	
+	/** Compute the coherence between two integer signals with fixed-point
+	 * arithmetic. This is the same as cohere(double[], double[], windowsize, 
+	 * overlap), but does not need floating point support. Each signal is 
+	 * shifted as a whole to use the range of FPIntFFT, as the coherence does
+	 * not depend on the scale of the signals.
+	 * 
+	 * @param s1 Signal 1. Both signals must have equal length.
+	 * @param s2 Signal 2. Both signals must have equal length.
+	 * @param windowsize The window size to use, i.e. the number of FFT coefficients to compute. Must be
+	 *                   a power of 2 between 2 and 1024. Defaults to 256 if set to <= 0.
+	 * @param overlap The overlap of the windows to compute. Defaults to windowsize/2 when set to < 0.
+	 * @param max_ind The number of coherence coefficients to compute, or -1 for all of them.
+	 * @return The coherence coefficients, with FixedPointOne representing 1. Coefficients
+	 *         for which one of the signals has no power are 0.
+	 */
+	public static int[] cohere(int[] s1, int[] s2, int windowsize, int overlap, int max_ind) {
+		if (s1.length != s2.length)
+			throw new IllegalArgumentException("Signals have different length");
+		
+		// default for windowsize
+		if (windowsize <= 0)
+			windowsize = 256;
+		// default for overlap
+		if (overlap < 0)
+			overlap = windowsize / 2;
+		short m = 0;
+		while (1 << m < windowsize)
+			m++;
+		if (1 << m != windowsize || m < 1 || m > 10)
+			throw new IllegalArgumentException("Window size must be a power of 2 between 2 and 1024, but got " + windowsize);
+
+		if (s1.length < 2*windowsize - overlap) {
+			logger.error("Signals are too short to compute coherence. Need at least 2 slices: " +
+					(2*windowsize - overlap) + " samples necessary for window size " + windowsize +
+					" with overlap " + overlap + ", but got only " + s1.length);
+			return null;
+		}
+
+		logger.info("Computing fixed-point coherence between two signals of length " + s1.length + 
+				" with a window size/number of FFT coefficients of " + windowsize + " and " +
+				overlap + " overlap");
+		
+		/* The hanning window is not normalized, because the norm would cancel itself out 
+		   below. */
+		short[] hann = getFixedPointHann(m);
+		int shift1 = getScaleShift(s1), shift2 = getScaleShift(s2);
+		
+		// the number of values to return - only half of the power spectrum is significant (+1)
+		int retSize = windowsize/2 + 1;
+		if (max_ind >= 0 && max_ind < retSize)
+			retSize = max_ind;
+
+		// the self- and cross-correlations of the frequency power spectra of the signals
+		long[] Pxx = new long[retSize];
+		long[] Pyy = new long[retSize];
+		long[] PxyRe = new long[retSize];
+		long[] PxyIm = new long[retSize];
+		
+		// the masked slices and their coefficients, reused for all slices
+		short[] slice = new short[windowsize], work = new short[windowsize];
+		int[] aRe = new int[windowsize/2+1], aIm = new int[windowsize/2+1];
+		int[] bRe = new int[windowsize/2+1], bIm = new int[windowsize/2+1];
+		
+		int slices=0;
+		for (int offset=0; offset<s1.length-windowsize+1; offset+=windowsize-overlap) {
+			slices++;
+
+			maskSlice(s1, offset, shift1, hann, slice);
+			FPIntFFT.fix_realfft(slice, 0, m, work, aRe, aIm);
+			maskSlice(s2, offset, shift2, hann, slice);
+			FPIntFFT.fix_realfft(slice, 0, m, work, bRe, bIm);
+			// and add the slice to the power spectrum sums
+			for (int i=0; i<retSize; i++) {
+				Pxx[i] += (long) aRe[i] * aRe[i] + (long) aIm[i] * aIm[i]; 
+				Pyy[i] += (long) bRe[i] * bRe[i] + (long) bIm[i] * bIm[i];
+				// a times conjugate of b
+				PxyRe[i] += (long) aRe[i] * bRe[i] + (long) aIm[i] * bIm[i];
+				PxyIm[i] += (long) aIm[i] * bRe[i] - (long) aRe[i] * bIm[i];
+			}
+		}
+		// sanity check
+		if (slices != getNumSlices(s1.length, windowsize, overlap))
+			throw new RuntimeException("Error: did not compute as many slices as expected. This should not happen.");
+
+		// this is the coherence, P = Pxy.*conj(Pxy)./Pxx./Pyy
+		int[] P = new int[retSize];
+		for (int i=0; i<retSize; i++)
+			P[i] = fixedPointCoherence(Pxx[i], Pyy[i], PxyRe[i], PxyIm[i]);
+		return P;
+	}
+	
+	/** Returns the von-Hann window with 2^m points for the fixed-point 
+	 * coherence. */
+	private static synchronized short[] getFixedPointHann(short m) {
+		if (fixedPointHann[m] == null)
+			fixedPointHann[m] = FPIntFFT.fix_hann(m);
+		return fixedPointHann[m];
+	}
+	
+	/** Returns by how many bits the samples need to be shifted to the left
+	 * (or to the right if negative) so that the largest magnitude is at most
+	 * MaxSampleMagnitude, but as close to it as possible. */
+	private static int getScaleShift(int[] s) {
+		long max = 0;
+		for (int i=0; i<s.length; i++) {
+			long v = s[i] < 0 ? -(long) s[i] : s[i];
+			if (v > max)
+				max = v;
+		}
+		if (max == 0)
+			return 0;
+		int shift = 0;
+		while (max > MaxSampleMagnitude) {
+			max >>= 1;
+			shift--;
+		}
+		while (max << 1 <= MaxSampleMagnitude) {
+			max <<= 1;
+			shift++;
+		}
+		return shift;
+	}
+	
+	/** Scales a slice of a signal and masks it with the window. */
+	private static void maskSlice(int[] s, int offset, int shift, short[] hann, short[] slice) {
+		for (int i=0; i<slice.length; i++) {
+			int v = shift >= 0 ? s[offset+i] << shift : s[offset+i] >> -shift;
+			slice[i] = (short) ((v * hann[i]) >> 15);
+		}
+	}
+	
+	/** Computes |Pxy|^2/(Pxx*Pyy) as a fixed-point value with FixedPointOne
+	 * representing 1. Pxx and Pyy are shifted down separately to keep their
+	 * precision, and Pxy by half of both shifts. */
+	private static int fixedPointCoherence(long Pxx, long Pyy, long PxyRe, long PxyIm) {
+		if (Pxx == 0 || Pyy == 0)
+			return 0;
+		int shift = 0;
+		while (Pxx >= 1L << FixedPointPowerBits) {
+			Pxx >>= 1;
+			shift++;
+		}
+		while (Pyy >= 1L << FixedPointPowerBits) {
+			Pyy >>= 1;
+			shift++;
+		}
+		PxyRe >>= shift >> 1;
+		PxyIm >>= shift >> 1;
+		long num = PxyRe * PxyRe + PxyIm * PxyIm;
+		if ((shift & 1) == 1)
+			num >>= 1;
+		// |Pxy|^2 <= Pxx*Pyy < 2^(2*FixedPointPowerBits), so this does not overflow
+		return (int) ((num << 15) / (Pxx * Pyy));
+	}
+	
+	/** Helper function: calculates the mean of fixed-point coherence values, 
+	 * up to a maximum index (or the whole vector if max_ind is set to -1 or 
+	 * larger than the vector length). */
+	public static int mean(int[] vector, int max_ind) {
+		long ret = 0;
+		int len = (max_ind == -1 || max_ind > vector.length) ? vector.length : max_ind;
+		for (int i=0; i<len; i++)
+			ret += vector[i];
+		return (int) (ret / len);
+	}
+	
 	/** This function just generates a von-Hann window of specified size, as defined
 	 * at http://www.mathworks.com/access/helpdesk/help/toolbox/signal/hann.html
 	 * 
@@ -18,49 +18,152 @@ package org.openuat.features;
 
 
 /** Compute the FFT and inverse FFT of a length N complex sequence.
- *  Bare bones implementation that runs in O(N log N) time. Our goal
- *  is to optimize the clarity of the code, rather than performance.
+ *  Runs in O(N log N) time.
+ *
+ *  The work is done by an iterative radix 2 Cooley-Tukey FFT that 
+ *  transforms parallel arrays of real and imaginary parts in place, with
+ *  the bit reversal permutation and the twiddle factors cached per size.
+ *  realFFT transforms real signals with a complex FFT of half the size.
+ *  The methods working on Complex objects are kept for convenience.
  *
  *  Limitations
  *  -----------
  *   -  assumes N is a power of 2
- *
- *   -  not the most memory efficient algorithm (because it uses
- *      an object type for representing complex numbers and because
- *      it re-allocates memory for the subarray, instead of doing
- *      in-place or reusing a single temporary array)
  *  
  * @author Adapted by Rene Mayrhofer, very heavily based on code by Robert Sedgewick and Kevin Wayne
  */
 public class FFT {
-    /** compute the FFT of x[], assuming its length is a power of 2. */
-    public static Complex[] fft(Complex[] x) {
-        int N = x.length;
+    /** The tables needed for an FFT of a specific size. */
+    private static class Tables {
+        /** The index each element is swapped with before the butterflies. */
+        int[] bitReverse;
+        /** cos(2*pi*k/N) and sin(2*pi*k/N) for k=0..N/2-1. */
+        double[] cos, sin;
+    }
 
-        // base case
-        if (N == 1) return new Complex[] { x[0] };
+    /** The cached tables, indexed by log2(N). */
+    private static Tables[] tables = new Tables[31];
+
+    /** Returns the tables for an FFT of size N, computing them on first use. */
+    private static synchronized Tables getTables(int N) {
+        int log2 = 0;
+        while (1 << log2 < N) log2++;
+        if (1 << log2 != N) throw new RuntimeException("N is not a power of 2");
+
+        if (tables[log2] == null) {
+            Tables t = new Tables();
+            t.bitReverse = new int[N];
+            for (int i = 0; i < N; i++) {
+                int r = 0;
+                for (int b = 0; b < log2; b++)
+                    if ((i & (1 << b)) != 0) r |= 1 << (log2 - 1 - b);
+                t.bitReverse[i] = r;
+            }
+            t.cos = new double[N/2];
+            t.sin = new double[N/2];
+            for (int k = 0; k < N/2; k++) {
+                t.cos[k] = Math.cos(2 * k * Math.PI / N);
+                t.sin[k] = Math.sin(2 * k * Math.PI / N);
+            }
+            tables[log2] = t;
+        }
+        return tables[log2];
+    }
 
-        // radix 2 Cooley-Tukey FFT
-        if (N % 2 != 0) throw new RuntimeException("N is not a power of 2");
+    /** compute the FFT of the first N elements of re[] and im[] in place,
+     * assuming N is a power of 2. */
+    public static void fft(double[] re, double[] im, int N) {
+        Tables t = getTables(N);
 
-        // fft of even terms
-        Complex[] even = new Complex[N/2];
-        for (int k = 0; k < N/2; k++) even[k] = x[2*k];
-        Complex[] q = fft(even);
+        // bit reversal permutation
+        int[] rev = t.bitReverse;
+        for (int i = 0; i < N; i++) {
+            int j = rev[i];
+            if (i < j) {
+                double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+                tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+            }
+        }
 
-        // fft of odd terms
-        Complex[] odd  = even;  // reuse the array
-        for (int k = 0; k < N/2; k++) odd[k]  = x[2*k + 1];
-        Complex[] r = fft(odd);
+        // radix 2 Cooley-Tukey butterflies, combining transforms of size half
+        for (int size = 2; size <= N; size <<= 1) {
+            int half = size / 2, step = N / size;
+            for (int k = 0; k < half; k++) {
+                // wk = e^(-j*2*pi*k/size)
+                double wr = t.cos[k*step], wi = -t.sin[k*step];
+                for (int i = k; i < N; i += size) {
+                    int j = i + half;
+                    double tr = re[j] * wr - im[j] * wi;
+                    double ti = re[j] * wi + im[j] * wr;
+                    re[j] = re[i] - tr;
+                    im[j] = im[i] - ti;
+                    re[i] += tr;
+                    im[i] += ti;
+                }
+            }
+        }
+    }
 
-        // combine
-        Complex[] y = new Complex[N];
-        for (int k = 0; k < N/2; k++) {
-            double kth = -2 * k * Math.PI / N;
-            Complex wk = new Complex(Math.cos(kth), Math.sin(kth));
-            y[k]       = q[k].plus(wk.times(r[k]));
-            y[k + N/2] = q[k].minus(wk.times(r[k]));
+    /** compute the first N/2+1 coefficients of the FFT of N real values,
+     * assuming N is a power of 2. The others follow from X[N-k] = conj(X[k]).
+     * This packs the even and odd values into one complex sequence of 
+     * length N/2, so it needs half the work of a complex FFT.
+     * 
+     * @param x The real values.
+     * @param offset The values are taken from x starting at this offset.
+     * @param N The number of values to transform.
+     * @param re Receives the real parts of the coefficients, must have room for N/2+1.
+     * @param im Receives the imaginary parts of the coefficients, must have room for N/2+1.
+     */
+    public static void realFFT(double[] x, int offset, int N, double[] re, double[] im) {
+        if (N <= 0 || (N & (N-1)) != 0) throw new RuntimeException("N is not a power of 2");
+        if (N == 1) {
+            re[0] = x[offset];
+            im[0] = 0;
+            return;
+        }
+        int h = N / 2;
+        // z[m] = x[2m] + j*x[2m+1]
+        for (int m = 0; m < h; m++) {
+            re[m] = x[offset + 2*m];
+            im[m] = x[offset + 2*m + 1];
         }
+        fft(re, im, h);
+
+        /* With E and O the transforms of the even and odd values, 
+           E[k] = (Z[k] + conj(Z[h-k])) / 2, O[k] = (Z[k] - conj(Z[h-k])) / 2j, and
+           X[k] = E[k] + wk*O[k], X[h-k] = conj(E[k] - wk*O[k]) with wk = e^(-j*2*pi*k/N). */
+        Tables t = getTables(N);
+        double z0 = re[0];
+        re[0] = z0 + im[0];
+        re[h] = z0 - im[0];
+        im[0] = 0;
+        im[h] = 0;
+        for (int k = 1; k <= h/2; k++) {
+            double a = re[k], b = im[k], c = re[h-k], d = im[h-k];
+            double er = (a + c) / 2, ei = (b - d) / 2;
+            double or = (b + d) / 2, oi = (c - a) / 2;
+            double wr = t.cos[k], wi = -t.sin[k];
+            double tr = wr * or - wi * oi, ti = wr * oi + wi * or;
+            re[k] = er + tr;
+            im[k] = ei + ti;
+            re[h-k] = er - tr;
+            im[h-k] = ti - ei;
+        }
+    }
+
+    /** compute the FFT of x[], assuming its length is a power of 2. */
+    public static Complex[] fft(Complex[] x) {
+        int N = x.length;
+        double[] re = new double[N], im = new double[N];
+        for (int i = 0; i < N; i++) {
+            re[i] = x[i].getRe();
+            im[i] = x[i].getIm();
+        }
+        fft(re, im, N);
+        Complex[] y = new Complex[N];
+        for (int i = 0; i < N; i++)
+            y[i] = new Complex(re[i], im[i]);
         return y;
     }
 
@@ -140,9 +243,9 @@ public class FFT {
     }
     
     /** This is a helper function which computes the FFT power spectrum coefficients
-     * of a signal in time domain. It first creates a Complex array out of the double
-     * array (with imaginary parts set to 0), then computes the complex FFT coefficients
-     * and finally returns the power spectrum of these coefficients. 
+     * of a signal in time domain. It computes the FFT coefficients with realFFT
+     * and returns the power spectrum of these coefficients, filling the second half
+     * by symmetry. 
      * 
      * @param x The input time series.
      * @param offset Values will be taken from the time series starting at this offset.
@@ -154,10 +257,16 @@ public class FFT {
     	if (offset < 0 || offset > x.length-len+1)
     		throw new IllegalArgumentException("offset must be >= 0 and <= x.length-len+1");
     	
-    	Complex[] x1 = new Complex[len];
-    	for (int i=0; i<len; i++)
-    		x1[i] = new Complex(x[offset+i], 0);
-    	return powerSpectrum(fft(x1));
+    	double[] re = new double[len/2+1], im = new double[len/2+1];
+    	realFFT(x, offset, len, re, im);
+    	// the definition is Pff = x .* conj(x) / fftpoints, symmetric for real signals
+    	double[] powspec = new double[len];
+    	for (int i=0; i<=len/2; i++) {
+    		powspec[i] = (re[i] * re[i] + im[i] * im[i]) / len;
+    		if (i > 0)
+    			powspec[len-i] = powspec[i];
+    	}
+    	return powspec;
     }
 
 
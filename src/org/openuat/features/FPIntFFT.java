@@ -315,4 +315,81 @@ public class FPIntFFT {
 			scale = fix_fft(f, f, m, off_fi, off_fr, inverse);
 		return scale;
 	}
+
+	/** fix_realfft() - forward FFT of 2**m real samples.
+  In contrast to fix_fftr, which leaves the result of the half-size
+  complex FFT in place, this unpacks it into the first 2**(m-1)+1
+  coefficients of the real signal, i.e. those that are not redundant.
+  The even and odd samples are copied into the two halves of work and
+  transformed as the real and imaginary parts of a complex signal with
+  fix_fft, and the coefficients are then split into those of the even
+  and odd samples with integer arithmetic. The result is scaled like that
+  of fix_fft, i.e. re[k]+j*im[k] is the k-th coefficient divided by the
+  number of samples. x, the window and work are all short integers, and
+  2**m must be between 2 and N_WAVE. Returns 0, or -1 on errors. */
+	public final static int fix_realfft(short x[], int off, short m, short work[], int re[], int im[]) {
+		int n = 1 << m, h = n >> 1, i, k, ar, ai, br, bi, c, s, step;
+
+		if (m < 1 || n > N_WAVE) {
+			logger.error("Can only compute real FFT windows of 2 to " + N_WAVE + 
+					" samples, but requested " + n);
+			return -1;
+		}
+		if (x.length < n+off || work.length < n || re.length < h+1 || im.length < h+1) {
+			logger.error("Arrays are too short for " + n + " samples");
+			return -1;
+		}
+
+		for (i=0; i<h; i++) {
+			work[i] = x[off+2*i];
+			work[h+i] = x[off+2*i+1];
+		}
+		if (fix_fft(work, work, (short) (m-1), 0, h, false) < 0)
+			return -1;
+
+		/* the first and the middle coefficients are real and only need the first 
+		   coefficient of the half-size transform */
+		re[0] = (work[0] + work[h]) >> 1;
+		im[0] = 0;
+		re[h] = (work[0] - work[h]) >> 1;
+		im[h] = 0;
+		step = N_WAVE / n;
+		for (k=1; k<h; k++) {
+			/* with Z=work, A=Z[k]+conj(Z[h-k]) are the coefficients of the even 
+			   samples, and B=Z[k]-conj(Z[h-k]) those of the odd samples times j */
+			ar = work[k] + work[h-k];
+			ai = work[h+k] - work[h+h-k];
+			br = work[k] - work[h-k];
+			bi = work[h+k] + work[h+h-k];
+			/* the twiddle factor is c-j*s */
+			c = Sinewave[k*step + N_WAVE/4];
+			s = Sinewave[k*step];
+			/* X[k] = (A + (c-j*s)*B/j)/4, with the rounding bit of the last shift;
+			   the sums of the products need more than 32 bits */
+			re[k] = (int) ((((long) ar << 15) + (long) c*bi - (long) s*br + (1 << 16)) >> 17);
+			im[k] = (int) ((((long) ai << 15) - (long) c*br - (long) s*bi + (1 << 16)) >> 17);
+		}
+		return 0;
+	}
+
+	/** fix_hann() - von-Hann window of 2**m points.
+  The window is 0.5-0.5*cos(2*pi*i/2**m) as in Coherence.hann, with 32767
+  representing 1.0, so that samples can be masked with (x*w[i])>>15.
+  2**m must be between 2 and N_WAVE. */
+	public final static short[] fix_hann(short m) {
+		int n = 1 << m, step, i;
+
+		if (m < 1 || n > N_WAVE)
+			throw new IllegalArgumentException("Can only compute windows of 2 to " + N_WAVE + 
+					" points, but requested " + n);
+		short[] w = new short[n];
+		step = N_WAVE / n;
+		/* the second half mirrors the first one */
+		for (i=0; i<=n/2; i++) {
+			w[i] = (short) ((32767 - (i < n/2 ? Sinewave[i*step + N_WAVE/4] : -32767)) >> 1);
+			if (i > 0)
+				w[n-i] = w[i];
+		}
+		return w;
+	}
 }
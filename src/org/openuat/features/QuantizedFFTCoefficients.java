@@ -12,6 +12,8 @@
  */
 package org.openuat.features;
 
+import org.openuat.log.PhaseTracer;
+
 /** This class computes quantized FFT coefficients from time series / sensor 
  * signals. There are 4 types that can be computed, a combination of:
  * - linear or exponential quantization bands
@@ -85,8 +87,24 @@ public class QuantizedFFTCoefficients {
 			int offset, int numFFTPoints, int numFFTCoeffCompared, int numQuantLevels, 
 			int numCandidates, boolean doDirect, boolean doPairwise, 
 			boolean doLinear, boolean doExponential) {
+		Object trace = PhaseTracer.begin(PhaseTracer.QuantizedFFT);
 		double[] allCoeff = FFT.fftPowerSpectrum(segment, offset, numFFTPoints);
+		int[][][] ret = quantizeCoefficients(allCoeff, numFFTCoeffCompared, numQuantLevels,
+				numCandidates, doDirect, doPairwise, doLinear, doExponential);
+		PhaseTracer.end(trace, numFFTPoints, numCandidates);
+		return ret;
+	}
 
+	/** This is the second half of the main method, which quantizes the
+	 * already computed FFT power spectrum.
+	 * @param allCoeff The power spectrum, with at least numFFTCoeffCompared+1
+	 *                 coefficients when doPairwise is set, otherwise with at
+	 *                 least numFFTCoeffCompared.
+	 */
+	private static int[][][] quantizeCoefficients(double[] allCoeff, 
+			int numFFTCoeffCompared, int numQuantLevels, 
+			int numCandidates, boolean doDirect, boolean doPairwise, 
+			boolean doLinear, boolean doExponential) {
 		double[][] toQuantize = new double[2][];
 		if (doDirect) {
 			// for better performance, only use the first max_ind coefficients since the others will not be compared anyway
@@ -144,6 +162,36 @@ public class QuantizedFFTCoefficients {
 				!exponentialBands, exponentialBands)[retInd];
 	}
 
+	/** Computes cofficient vector candidates like 
+	 * computeFFTCoefficientsCandidates(double[], int, int, int, int, int, boolean, boolean),
+	 * but from the current window of a sliding DFT instead of transforming
+	 * a segment.
+	 * @param window The transform of the window to use. It must keep at 
+	 *               least numFFTCoeffCompared+1 coefficients.
+	 * @param numFFTCoeffCompared The number of FFT coefficients to output.
+	 * @param numQuantLevels The number of quantization levels to use.
+	 * @param numCandidates The number of candidates to generate with 
+	 *                      different quantization offsets.
+	 * @param addPairwise If true, then the FFT coefficients will be added 
+	 *                    pairwise before quantization.
+	 * @param exponentialBands If true, then exponential quantization bands 
+	 *                         will be used, otherwise linear bands.
+	 * @return An array of numCandidates arrays of numFFTCoeffCompared integers.
+	 */
+	public static int[][] computeFFTCoefficientsCandidates(SlidingDFT window, 
+			int numFFTCoeffCompared, int numQuantLevels, 
+			int numCandidates, boolean addPairwise, boolean exponentialBands) {
+		Object trace = PhaseTracer.begin(PhaseTracer.QuantizedFFT);
+		double[] allCoeff = new double[numFFTCoeffCompared+1];
+		window.getPowerSpectrum(allCoeff, allCoeff.length);
+		int retInd = (addPairwise ? 2 : 0) + (exponentialBands ? 1 : 0);  
+		int[][] ret = quantizeCoefficients(allCoeff, numFFTCoeffCompared, numQuantLevels, numCandidates, 
+				!addPairwise, addPairwise, 
+				!exponentialBands, exponentialBands)[retInd];
+		PhaseTracer.end(trace, window.getWindowSize(), numCandidates);
+		return ret;
+	}
+
 	/** This is a helper function to compute and compare all 4 types.
 	 * @return An boolean array of 4 elements, true when the respective
 	 *         type contains at least one match among the candidates.
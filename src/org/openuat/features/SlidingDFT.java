@@ -0,0 +1,329 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features;
+
+import java.util.Hashtable;
+
+/** This class keeps the discrete Fourier transform of a window that slides
+ * over a stream of real samples up to date. It is meant for analysis
+ * windows that overlap, like the slices in Coherence.cohere or the
+ * windows in ShakeWellBeforeUseProtocol2: instead of transforming each
+ * window from scratch, only the samples that have been added since the
+ * last window need to be processed.
+ * <br>
+ * Only the first numCoefficients coefficients X_0 to X_{numCoefficients-1}
+ * are kept, as many users only compare coefficients up to a cut-off
+ * frequency. The others follow from the symmetry of the transform of real
+ * signals, X_{N-k} = conj(X_k), as far as they are needed.
+ * <br>
+ * New samples are either slid into the window one by one with the
+ * sliding DFT recurrence, which costs numCoefficients complex
+ * multiplications per sample, or, when that would be more expensive than
+ * transforming the whole window (e.g. when many samples are added at once
+ * or many coefficients are kept), the window is transformed from scratch.
+ * The coefficients are also recomputed from time to time to remove the
+ * rounding errors accumulated by the recurrence.
+ * <br>
+ * The window starts filled with zeros, so the coefficients are only those
+ * of the last windowSize samples after at least that many have been added
+ * (see isFull). This class is not thread safe.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class SlidingDFT {
+	/** After this many windows worth of samples have been slid in with the
+	 * recurrence, the coefficients are recomputed from the window. */
+	private static final int ResyncWindows = 16;
+
+	/** The cos and sin tables by window size, as double[2][] arrays. */
+	private static Hashtable twiddles = new Hashtable();
+
+	/** The number of samples in the window, N. */
+	private int windowSize;
+
+	/** The number of coefficients that are kept. */
+	private int numCoefficients;
+
+	/** The samples in the window, used as a ring. The oldest sample is at
+	 * position pos. */
+	private double[] window;
+
+	/** The position of the oldest sample in window, where the next one will
+	 * be written. */
+	private int pos = 0;
+
+	/** The number of samples added since construction or the last reset. */
+	private long numSamples = 0;
+
+	/** The number of samples slid in since the coefficients were last
+	 * recomputed from the window. */
+	private int sinceResync = 0;
+
+	/** The real and imaginary parts of the coefficients. */
+	private double[] re, im;
+
+	/** cos(2*pi*j/N) and sin(2*pi*j/N) for j=0..N-1, shared by all instances
+	 * with the same window size. */
+	private double[] cos, sin;
+
+	/** log2(N), or -1 when N is not a power of 2 and the FFT can not be used. */
+	private int log2;
+
+	/** The work buffers for transforming the whole window with the FFT: the
+	 * samples in order and the first N/2+1 coefficients. */
+	private double[] fftIn, fftRe, fftIm;
+
+	/** The maximum number of samples times numCoefficients for which sliding
+	 * them in is cheaper than transforming the whole window. */
+	private long slideCostLimit;
+
+	/** Creates a transform of an empty (all zero) window.
+	 * @param windowSize The number of samples in the window, i.e. the number
+	 *                   of DFT points. Should be a power of 2, because
+	 *                   then the FFT can be used for transforming the whole
+	 *                   window.
+	 * @param numCoefficients The number of coefficients to keep, between 1
+	 *                        and windowSize.
+	 */
+	public SlidingDFT(int windowSize, int numCoefficients) {
+		if (windowSize <= 0)
+			throw new IllegalArgumentException("Window size must be > 0");
+		if (numCoefficients <= 0 || numCoefficients > windowSize)
+			throw new IllegalArgumentException("Number of coefficients must be between 1 and the window size");
+		this.windowSize = windowSize;
+		this.numCoefficients = numCoefficients;
+		window = new double[windowSize];
+		re = new double[numCoefficients];
+		im = new double[numCoefficients];
+		double[][] t = getTwiddles(windowSize);
+		cos = t[0];
+		sin = t[1];
+
+		log2 = -1;
+		for (int i=0; i<31; i++)
+			if (1 << i == windowSize)
+				log2 = i;
+		// a direct transform costs N*numCoefficients, the FFT of real values about 
+		// N/2*log2(N) butterflies, each of which costs about as much as two to three 
+		// steps of the recurrence for a single coefficient
+		if (log2 >= 0 && log2 < 2*numCoefficients) {
+			slideCostLimit = (long) windowSize * log2;
+			fftIn = new double[windowSize];
+			fftRe = new double[windowSize/2+1];
+			fftIm = new double[windowSize/2+1];
+		}
+		else
+			slideCostLimit = (long) windowSize * numCoefficients;
+	}
+
+	/** Returns cos(2*pi*j/N) and sin(2*pi*j/N) for j=0..N-1, computing them
+	 * only on first use for each N. The arrays are shared and must not be
+	 * modified. */
+	private static synchronized double[][] getTwiddles(int N) {
+		Integer key = new Integer(N);
+		double[][] t = (double[][]) twiddles.get(key);
+		if (t == null) {
+			t = new double[2][N];
+			for (int j=0; j<N; j++) {
+				t[0][j] = Math.cos(2 * Math.PI * j / N);
+				t[1][j] = Math.sin(2 * Math.PI * j / N);
+			}
+			twiddles.put(key, t);
+		}
+		return t;
+	}
+
+	/** Empties the window, i.e. sets all samples to zero. */
+	public void reset() {
+		for (int i=0; i<windowSize; i++)
+			window[i] = 0;
+		for (int k=0; k<numCoefficients; k++) {
+			re[k] = 0;
+			im[k] = 0;
+		}
+		pos = 0;
+		numSamples = 0;
+		sinceResync = 0;
+	}
+
+	/** Returns the number of samples in the window. */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/** Returns the number of coefficients that are kept. */
+	public int getNumCoefficients() {
+		return numCoefficients;
+	}
+
+	/** Returns true when at least windowSize samples have been added, i.e.
+	 * when the window holds only samples that have been added. */
+	public boolean isFull() {
+		return numSamples >= windowSize;
+	}
+
+	/** Adds a sample at the end of the window and removes the oldest one. */
+	public void addSample(double sample) {
+		slide(sample);
+		numSamples++;
+		if (++sinceResync >= ResyncWindows * windowSize)
+			recompute();
+	}
+
+	/** Adds samples at the end of the window and removes as many of the
+	 * oldest ones.
+	 * @param samples The array holding the samples to add.
+	 * @param off The position of the first sample in samples.
+	 * @param len The number of samples to add.
+	 */
+	public void addSamples(double[] samples, int off, int len) {
+		if (len <= 0)
+			return;
+		if ((long) len * numCoefficients < slideCostLimit) {
+			for (int i=0; i<len; i++)
+				slide(samples[off+i]);
+			sinceResync += len;
+			if (sinceResync >= ResyncWindows * windowSize)
+				recompute();
+		}
+		else {
+			// cheaper to transform the window from scratch, and only the
+			// last windowSize samples can end up in the window anyway
+			int skip = len > windowSize ? len - windowSize : 0;
+			for (int i=skip; i<len; i++) {
+				window[pos] = samples[off+i];
+				pos = pos+1 < windowSize ? pos+1 : 0;
+			}
+			recompute();
+		}
+		numSamples += len;
+	}
+
+	/** Slides a single sample into the window without updating the counters. */
+	private void slide(double sample) {
+		double delta = sample - window[pos];
+		window[pos] = sample;
+		pos = pos+1 < windowSize ? pos+1 : 0;
+		// X_k = (X_k - oldest + sample) * e^(j*2*pi*k/N)
+		for (int k=0; k<numCoefficients; k++) {
+			double a = re[k] + delta, b = im[k];
+			re[k] = a * cos[k] - b * sin[k];
+			im[k] = a * sin[k] + b * cos[k];
+		}
+	}
+
+	/** Computes the coefficients from the samples in the window. */
+	private void recompute() {
+		if (fftIn != null) {
+			System.arraycopy(window, pos, fftIn, 0, windowSize-pos);
+			System.arraycopy(window, 0, fftIn, windowSize-pos, pos);
+			FFT.realFFT(fftIn, 0, windowSize, fftRe, fftIm);
+			for (int k=0; k<numCoefficients; k++) {
+				// the second half follows from the symmetry of real signals
+				if (k <= windowSize/2) {
+					re[k] = fftRe[k];
+					im[k] = fftIm[k];
+				}
+				else {
+					re[k] = fftRe[windowSize-k];
+					im[k] = -fftIm[windowSize-k];
+				}
+			}
+		}
+		else {
+			for (int k=0; k<numCoefficients; k++) {
+				double sumRe = 0, sumIm = 0;
+				// the index into the twiddle tables, k*m mod N
+				int j = 0;
+				for (int m=0; m<windowSize; m++) {
+					double x = window[(pos+m) % windowSize];
+					sumRe += x * cos[j];
+					sumIm -= x * sin[j];
+					j += k;
+					if (j >= windowSize)
+						j -= windowSize;
+				}
+				re[k] = sumRe;
+				im[k] = sumIm;
+			}
+		}
+		sinceResync = 0;
+	}
+
+	/** Returns the real part of coefficient k, 0 <= k < getNumCoefficients(). */
+	public double getRe(int k) {
+		return re[k];
+	}
+
+	/** Returns the imaginary part of coefficient k, 0 <= k < getNumCoefficients(). */
+	public double getIm(int k) {
+		return im[k];
+	}
+
+	/** Computes the power spectrum of the window, like
+	 * FFT.fftPowerSpectrum does for the whole window.
+	 * @param dest The array to write the first num values of the power
+	 *             spectrum to.
+	 * @param num The number of values to compute, at most
+	 *            getNumCoefficients().
+	 */
+	public void getPowerSpectrum(double[] dest, int num) {
+		if (num > numCoefficients)
+			throw new IllegalArgumentException("Only " + numCoefficients + " coefficients are kept");
+		for (int k=0; k<num; k++)
+			dest[k] = (re[k] * re[k] + im[k] * im[k]) / windowSize;
+	}
+
+	/** Computes the coefficients of the window multiplied with a periodic
+	 * von-Hann window, 0.5 - 0.5*cos(2*pi*i/N) like Coherence.hann. This
+	 * is done in the frequency domain as
+	 * Y_k = X_k/2 - X_{k-1}/4 - X_{k+1}/4, so it needs coefficient num
+	 * (or the matching one of the second half of the spectrum) as well.
+	 * @param destRe The array to write the real parts to.
+	 * @param destIm The array to write the imaginary parts to.
+	 * @param num The number of coefficients to compute, at most
+	 *            getNumCoefficients(), and less than that unless
+	 *            num > getWindowSize()/2.
+	 */
+	public void getHannSpectrum(double[] destRe, double[] destIm, int num) {
+		for (int k=0; k<num; k++) {
+			destRe[k] = 0.5 * re[k] - 0.25 * (coefficientRe(k-1) + coefficientRe(k+1));
+			destIm[k] = 0.5 * im[k] - 0.25 * (coefficientIm(k-1) + coefficientIm(k+1));
+		}
+	}
+
+	/** Returns the real part of any coefficient j, -N < j < 2N, using the
+	 * symmetry of real signals for those that are not kept. */
+	private double coefficientRe(int j) {
+		return re[keptIndex(j)];
+	}
+
+	/** Returns the imaginary part of any coefficient j, -N < j < 2N, using
+	 * the symmetry of real signals for those that are not kept. */
+	private double coefficientIm(int j) {
+		int k = keptIndex(j);
+		j = j < 0 ? j + windowSize : (j >= windowSize ? j - windowSize : j);
+		return j == k ? im[k] : -im[k];
+	}
+
+	/** Maps coefficient j to the index of the kept coefficient that is
+	 * either equal or conjugate to it. */
+	private int keptIndex(int j) {
+		if (j < 0)
+			j += windowSize;
+		else if (j >= windowSize)
+			j -= windowSize;
+		if (j < numCoefficients)
+			return j;
+		if (windowSize - j < numCoefficients)
+			return windowSize - j;
+		throw new IllegalArgumentException("Coefficient " + j + " is not kept");
+	}
+}
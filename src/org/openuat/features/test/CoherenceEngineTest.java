@@ -0,0 +1,83 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features.test;
+
+import java.util.Random;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.CoherenceEngine;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class CoherenceEngineTest extends TestCase {
+	private double[] s1, s2;
+
+	public void setUp() {
+		Random r = new Random(11);
+		// long enough for 4 workers with the minimum number of slices each
+		int len = 32 * (4 * CoherenceEngine.MinSlicesPerWorker + 7) + 224;
+		s1 = new double[len];
+		s2 = new double[len];
+		double prev = 0;
+		for (int i=0; i<len; i++) {
+			s1[i] = Math.sin(i / 5.0) + 0.5 * r.nextGaussian();
+			s2[i] = 0.6 * s1[i] + 0.4 * prev + 0.2 * r.nextGaussian();
+			prev = s1[i];
+		}
+	}
+
+	private static void assertCoherence(double[] expected, double[] actual) {
+		Assert.assertEquals(expected.length, actual.length);
+		for (int i=0; i<expected.length; i++)
+			Assert.assertEquals("Coefficient " + i, expected[i], actual[i], 1e-9);
+	}
+
+	public void testParallelEqualsSequential() {
+		CoherenceEngine sequential = new CoherenceEngine(256, 224, 1);
+		double[] expected = sequential.cohere(s1, s2, -1);
+		assertCoherence(expected, Coherence.cohere(s1, s2, 256, 224));
+		for (int w=2; w<=5; w++)
+			assertCoherence(expected, new CoherenceEngine(256, 224, w).cohere(s1, s2, -1));
+	}
+
+	public void testReuse() {
+		CoherenceEngine e = new CoherenceEngine(256, 224, 3);
+		double[] all = new CoherenceEngine(256, 224, 1).cohere(s1, s2, -1);
+		// alternate between the number of coefficients and the signal length
+		// so that the buffers are both reused and created again
+		for (int round=0; round<3; round++) {
+			assertCoherence(all, e.cohere(s1, s2, -1));
+			double[] first = e.cohere(s1, s2, 40);
+			Assert.assertEquals(40, first.length);
+			for (int i=0; i<40; i++)
+				Assert.assertEquals(all[i], first[i], 1e-9);
+			double[] shortS1 = new double[768], shortS2 = new double[768];
+			System.arraycopy(s1, 0, shortS1, 0, 768);
+			System.arraycopy(s2, 0, shortS2, 0, 768);
+			assertCoherence(Coherence.cohere(shortS1, shortS2, 256, 224, 40), e.cohere(shortS1, shortS2, 40));
+		}
+	}
+
+	public void testWeightedMean() {
+		CoherenceEngine e = new CoherenceEngine(128, 64, 2);
+		Assert.assertEquals(Coherence.weightedCoherenceMean(s1, s2, 128, 64, 20),
+				e.weightedCoherenceMean(s1, s2, 20), 1e-9);
+	}
+
+	public void testTooShort() {
+		try {
+			new CoherenceEngine(256, 128).cohere(new double[300], new double[300], -1);
+			Assert.fail("Should need at least 2 slices");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features.test;
+
+import java.util.Random;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.Coherence_Int;
+
+/** This class compares the throughput of the fixed-point coherence with 
+ * the floating point implementation. It only prints the times, because 
+ * they depend on the hardware: on virtual machines with hardware floating
+ * point support, the double version is faster.
+ * 
+ * Usage: Coherence_IntRunner [rounds]
+ */
+public class Coherence_IntRunner {
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		Random r = new Random(7);
+		int[][] s = Coherence_IntTest.createSignals(r, 768, 1000);
+		double[] d1 = Coherence_IntTest.toDouble(s[0]), d2 = Coherence_IntTest.toDouble(s[1]);
+		long fixed = 0, floating = 0;
+		// the first pass warms up the virtual machine
+		for (int pass=0; pass<2; pass++) {
+			long start = System.currentTimeMillis();
+			for (int i=0; i<rounds; i++)
+				Coherence_Int.cohere(s[0], s[1], 256, 224, -1);
+			fixed = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i=0; i<rounds; i++)
+				Coherence.cohere(d1, d2, 256, 224);
+			floating = System.currentTimeMillis() - start;
+		}
+		System.out.println("Coherence of " + rounds + " segments took " + fixed +
+				"ms with fixed-point and " + floating + "ms with floating point arithmetic");
+	}
+}
@@ -0,0 +1,88 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features.test;
+
+import java.util.Random;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.Coherence_Int;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class Coherence_IntTest extends TestCase {
+	/** Creates two related signals like 3 s segments of accelerometer samples,
+	 * with the given amplitude. */
+	static int[][] createSignals(Random r, int len, int amplitude) {
+		int[][] s = new int[2][len];
+		double prev = 0;
+		for (int i=0; i<len; i++) {
+			double v = Math.sin(i / 6.0) + 0.7 * r.nextGaussian();
+			s[0][i] = (int) Math.round(amplitude * v);
+			s[1][i] = (int) Math.round(amplitude * (0.6 * v + 0.4 * prev + 0.3 * r.nextGaussian()));
+			prev = v;
+		}
+		return s;
+	}
+
+	static double[] toDouble(int[] s) {
+		double[] d = new double[s.length];
+		for (int i=0; i<s.length; i++)
+			d[i] = s[i];
+		return d;
+	}
+
+	public void testAccuracy() {
+		Random r = new Random(5);
+		// from barely above the quantization to more than the 16 bit range
+		int[] amplitudes = {10, 100, 1000, 100000, 10000000};
+		for (int a=0; a<amplitudes.length; a++) {
+			int[][] s = createSignals(r, 768, amplitudes[a]);
+			double[] expected = Coherence.cohere(toDouble(s[0]), toDouble(s[1]), 256, 224);
+			int[] actual = Coherence_Int.cohere(s[0], s[1], 256, 224, -1);
+			Assert.assertEquals(expected.length, actual.length);
+			double sum = 0;
+			for (int i=0; i<expected.length; i++) {
+				double e = Math.abs(expected[i] - actual[i] / (double) Coherence_Int.FixedPointOne);
+				Assert.assertTrue("Error " + e + " of coefficient " + i + " too large for amplitude " +
+						amplitudes[a], e < 0.02);
+				sum += e;
+			}
+			Assert.assertTrue("Average error too large for amplitude " + amplitudes[a],
+					sum / expected.length < 0.005);
+			Assert.assertEquals(Coherence.mean(expected, 40),
+					Coherence_Int.mean(actual, 40) / (double) Coherence_Int.FixedPointOne, 0.002);
+		}
+	}
+
+	public void testMaxIndAndSilence() {
+		Random r = new Random(6);
+		int[][] s = createSignals(r, 1024, 500);
+		int[] all = Coherence_Int.cohere(s[0], s[1], 128, 64, -1);
+		int[] first = Coherence_Int.cohere(s[0], s[1], 128, 64, 20);
+		Assert.assertEquals(65, all.length);
+		Assert.assertEquals(20, first.length);
+		for (int i=0; i<first.length; i++)
+			Assert.assertEquals(all[i], first[i]);
+
+		// a signal without power has no coherence instead of dividing by 0
+		int[] zero = Coherence_Int.cohere(new int[1024], s[1], 128, 64, -1);
+		for (int i=0; i<zero.length; i++)
+			Assert.assertEquals(0, zero[i]);
+
+		Assert.assertNull(Coherence_Int.cohere(new int[100], new int[100], 128, 64, -1));
+		try {
+			Coherence_Int.cohere(s[0], s[1], 96, 48, -1);
+			Assert.fail("Should only accept powers of 2");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
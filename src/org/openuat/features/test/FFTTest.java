@@ -0,0 +1,98 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features.test;
+
+import java.util.Random;
+
+import org.openuat.features.Complex;
+import org.openuat.features.FFT;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class FFTTest extends TestCase {
+	private Random r = new Random(7);
+
+	/** Computes the DFT by its definition. */
+	private static double[][] dft(double[] re, double[] im, int n) {
+		double[][] ret = new double[2][n];
+		for (int k=0; k<n; k++)
+			for (int m=0; m<n; m++) {
+				double c = Math.cos(2 * Math.PI * k * m / n), s = -Math.sin(2 * Math.PI * k * m / n);
+				ret[0][k] += re[m] * c - im[m] * s;
+				ret[1][k] += re[m] * s + im[m] * c;
+			}
+		return ret;
+	}
+
+	public void testComplexInPlace() {
+		for (int n=1; n<=512; n*=2) {
+			double[] re = new double[n], im = new double[n];
+			for (int i=0; i<n; i++) {
+				re[i] = r.nextGaussian();
+				im[i] = r.nextGaussian();
+			}
+			double[][] expected = dft(re, im, n);
+			FFT.fft(re, im, n);
+			for (int k=0; k<n; k++) {
+				Assert.assertEquals("n=" + n + ", k=" + k, expected[0][k], re[k], 1e-9);
+				Assert.assertEquals("n=" + n + ", k=" + k, expected[1][k], im[k], 1e-9);
+			}
+		}
+	}
+
+	public void testReal() {
+		for (int n=1; n<=512; n*=2) {
+			double[] x = new double[n+3];
+			for (int i=0; i<x.length; i++)
+				x[i] = r.nextGaussian();
+			double[] slice = new double[n];
+			System.arraycopy(x, 3, slice, 0, n);
+			double[][] expected = dft(slice, new double[n], n);
+			double[] re = new double[n/2+1], im = new double[n/2+1];
+			FFT.realFFT(x, 3, n, re, im);
+			for (int k=0; k<=n/2; k++) {
+				Assert.assertEquals("n=" + n + ", k=" + k, expected[0][k], re[k], 1e-9);
+				Assert.assertEquals("n=" + n + ", k=" + k, expected[1][k], im[k], 1e-9);
+			}
+			double[] pow = FFT.fftPowerSpectrum(x, 3, n);
+			for (int k=0; k<n; k++)
+				Assert.assertEquals((expected[0][k] * expected[0][k] + expected[1][k] * expected[1][k]) / n,
+						pow[k], 1e-9);
+		}
+	}
+
+	public void testInverse() {
+		Complex[] x = new Complex[64];
+		for (int i=0; i<x.length; i++)
+			x[i] = new Complex(r.nextGaussian(), r.nextGaussian());
+		Complex[] y = FFT.ifft(FFT.fft(x));
+		for (int i=0; i<x.length; i++) {
+			Assert.assertEquals(x[i].getRe(), y[i].getRe(), 1e-12);
+			Assert.assertEquals(x[i].getIm(), y[i].getIm(), 1e-12);
+		}
+	}
+
+	public void testNotPowerOf2() {
+		try {
+			FFT.realFFT(new double[12], 0, 12, new double[7], new double[7]);
+			Assert.fail("Should only accept powers of 2");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+		try {
+			FFT.fft(new double[5], new double[5], 5);
+			Assert.fail("Should only accept powers of 2");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+	}
+}
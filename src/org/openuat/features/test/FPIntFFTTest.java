@@ -10,6 +10,10 @@ package org.openuat.features.test;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.Random;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.FFT;
 import org.openuat.features.FPIntFFT;
 
 import junit.framework.Assert;
@@ -101,4 +105,37 @@ public class FPIntFFTTest extends TestCase {
 			}
 		}
 	}
+
+	public void testRealFFTMatchesFloatingPoint() {
+		Random r = new Random(3);
+		for (short m=1; m<=10; m++) {
+			int n = 1 << m;
+			short[] xs = new short[n+5];
+			double[] xd = new double[n+5];
+			for (int i=0; i<xs.length; i++) {
+				xs[i] = (short) Math.max(-32767, Math.min(32767, 8000 * r.nextGaussian()));
+				xd[i] = xs[i];
+			}
+			int[] re = new int[n/2+1], im = new int[n/2+1];
+			Assert.assertEquals(0, FPIntFFT.fix_realfft(xs, 5, m, new short[n], re, im));
+			double[] expRe = new double[n/2+1], expIm = new double[n/2+1];
+			FFT.realFFT(xd, 5, n, expRe, expIm);
+			// the fixed-point coefficients are scaled by 1/n
+			for (int k=0; k<=n/2; k++) {
+				Assert.assertEquals("n=" + n + ", k=" + k, expRe[k] / n, re[k], 4);
+				Assert.assertEquals("n=" + n + ", k=" + k, expIm[k] / n, im[k], 4);
+			}
+		}
+		Assert.assertEquals(-1, FPIntFFT.fix_realfft(new short[2048], 0, (short) 11, 
+				new short[2048], new int[1025], new int[1025]));
+	}
+
+	public void testHann() {
+		for (short m=1; m<=10; m++) {
+			short[] w = FPIntFFT.fix_hann(m);
+			double[] expected = Coherence.hann(1 << m);
+			for (int i=0; i<w.length; i++)
+				Assert.assertEquals(expected[i], w[i] / 32767.0, 1e-4);
+		}
+	}
 }
@@ -0,0 +1,142 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.features.test;
+
+import java.util.Random;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.Complex;
+import org.openuat.features.FFT;
+import org.openuat.features.SlidingDFT;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class SlidingDFTTest extends TestCase {
+	private double[] signal;
+
+	public void setUp() {
+		Random r = new Random(42);
+		signal = new double[3000];
+		for (int i=0; i<signal.length; i++)
+			signal[i] = Math.sin(i / 7.0) + 0.5 * r.nextGaussian();
+	}
+
+	/** Compares the power spectrum of the window ending at end. */
+	private void assertSpectrum(SlidingDFT d, int end) {
+		int n = d.getWindowSize();
+		double[] expected = FFT.fftPowerSpectrum(signal, end-n, n);
+		double[] actual = new double[d.getNumCoefficients()];
+		d.getPowerSpectrum(actual, actual.length);
+		for (int k=0; k<actual.length; k++)
+			Assert.assertEquals("Coefficient " + k + " at " + end, expected[k], actual[k], 1e-9);
+	}
+
+	public void testSingleSamples() {
+		SlidingDFT d = new SlidingDFT(64, 10);
+		// long enough to also recompute the coefficients in between
+		for (int i=0; i<signal.length; i++) {
+			d.addSample(signal[i]);
+			Assert.assertEquals(i >= 63, d.isFull());
+			if (i >= 63 && i % 13 == 0)
+				assertSpectrum(d, i+1);
+		}
+	}
+
+	public void testHops() {
+		// small hops are slid in, large ones transformed from scratch
+		int[] hops = {1, 3, 8, 32, 64, 100};
+		for (int h=0; h<hops.length; h++) {
+			SlidingDFT d = new SlidingDFT(64, 33);
+			d.addSamples(signal, 0, 64);
+			assertSpectrum(d, 64);
+			for (int end=64+hops[h]; end<=signal.length; end+=hops[h]) {
+				d.addSamples(signal, end-hops[h], hops[h]);
+				assertSpectrum(d, end);
+			}
+		}
+	}
+
+	public void testNotPowerOf2() {
+		SlidingDFT d = new SlidingDFT(48, 5);
+		d.addSamples(signal, 0, 100);
+		d.addSamples(signal, 100, 7);
+		// compare with the definition of the DFT
+		for (int k=0; k<5; k++) {
+			double re = 0, im = 0;
+			for (int m=0; m<48; m++) {
+				re += signal[107-48+m] * Math.cos(2 * Math.PI * k * m / 48);
+				im -= signal[107-48+m] * Math.sin(2 * Math.PI * k * m / 48);
+			}
+			Assert.assertEquals(re, d.getRe(k), 1e-9);
+			Assert.assertEquals(im, d.getIm(k), 1e-9);
+		}
+	}
+
+	public void testHannSpectrum() {
+		int n = 32;
+		double[] hann = Coherence.hann(n);
+		SlidingDFT d = new SlidingDFT(n, n/2+1);
+		d.addSamples(signal, 0, 50);
+		Complex[] x = new Complex[n];
+		for (int i=0; i<n; i++)
+			x[i] = new Complex(signal[50-n+i] * hann[i], 0);
+		x = FFT.fft(x);
+		double[] re = new double[n/2+1], im = new double[n/2+1];
+		d.getHannSpectrum(re, im, n/2+1);
+		for (int k=0; k<=n/2; k++) {
+			Assert.assertEquals(x[k].getRe(), re[k], 1e-9);
+			Assert.assertEquals(x[k].getIm(), im[k], 1e-9);
+		}
+	}
+
+	public void testCoherence() {
+		double[] s2 = new double[768];
+		for (int i=0; i<s2.length; i++)
+			s2[i] = signal[i] * 0.7 + signal[i+5] * 0.3;
+		double[] s1 = new double[768];
+		System.arraycopy(signal, 0, s1, 0, s1.length);
+
+		double[] expected = referenceCoherence(s1, s2, 256, 224);
+		double[] all = Coherence.cohere(s1, s2, 256, 224);
+		Assert.assertEquals(expected.length, all.length);
+		for (int i=0; i<all.length; i++)
+			Assert.assertEquals(expected[i], all[i], 1e-9);
+		double[] first = Coherence.cohere(s1, s2, 256, 224, 40);
+		Assert.assertEquals(40, first.length);
+		for (int i=0; i<first.length; i++)
+			Assert.assertEquals(expected[i], first[i], 1e-9);
+	}
+
+	/** Coherence computed by transforming each slice on its own. */
+	private static double[] referenceCoherence(double[] s1, double[] s2, int n, int overlap) {
+		double[] hann = Coherence.hann(n);
+		double[] pxx = new double[n], pyy = new double[n], pxyRe = new double[n], pxyIm = new double[n];
+		for (int off=0; off<s1.length-n+1; off+=n-overlap) {
+			Complex[] a = new Complex[n], b = new Complex[n];
+			for (int i=0; i<n; i++) {
+				a[i] = new Complex(s1[off+i] * hann[i], 0);
+				b[i] = new Complex(s2[off+i] * hann[i], 0);
+			}
+			a = FFT.fft(a);
+			b = FFT.fft(b);
+			for (int i=0; i<n; i++) {
+				pxx[i] += a[i].getRe() * a[i].getRe() + a[i].getIm() * a[i].getIm();
+				pyy[i] += b[i].getRe() * b[i].getRe() + b[i].getIm() * b[i].getIm();
+				Complex c = a[i].times(b[i].conjugate());
+				pxyRe[i] += c.getRe();
+				pxyIm[i] += c.getIm();
+			}
+		}
+		double[] p = new double[n/2+1];
+		for (int i=0; i<p.length; i++)
+			p[i] = (pxyRe[i] * pxyRe[i] + pxyIm[i] * pxyIm[i]) / (pxx[i] * pyy[i]);
+		return p;
+	}
+}
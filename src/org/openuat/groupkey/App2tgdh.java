@@ -16,6 +16,8 @@ import tgdh.tree.BasicTree;
 import tgdh.tree.LeafNode;
 import tgdh.tree.Node;
 import tgdh.tree.TreeInfo;
+
+import org.openuat.util.ExecutionService;
  
 /**
  * @author Martijn Sack
@@ -44,8 +46,7 @@ public class App2tgdh  implements StringEventListener  {
 	
 	public App2tgdh(GroupKeyMessageHandler _communicator){
 		communicator = _communicator;
-		Thread commThread = new Thread(communicator);
-		commThread.start();
+		ExecutionService.start(ExecutionService.PoolGroupKey, communicator);
 		
 //		communicator.sendMsg("tree", "beuh", this);
 	};
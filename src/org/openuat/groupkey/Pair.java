@@ -18,6 +18,7 @@ import net.mypapit.java.StringTokenizer;
 import org.apache.commons.codec.binary.Hex;
 import org.openuat.authentication.SimpleKeyAgreement;
 import org.openuat.authentication.exceptions.KeyAgreementProtocolException;
+import org.openuat.util.ExecutionService;
 import org.openuat.util.SimpleBlockCipher;
 
 /**
@@ -66,8 +67,7 @@ public class Pair implements PairwiseKeyHandler
 		init=true;
 		comm = _comm;
 		if (comm != null) {
-			Thread commThread = new Thread(comm);
-			commThread.start();
+			ExecutionService.start(ExecutionService.PoolGroupKey, comm);
 		}
 		cipher = new SimpleBlockCipher(true);			
 	}
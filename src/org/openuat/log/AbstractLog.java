@@ -0,0 +1,215 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/**
+ * This is the base class for the wrappers around logging frameworks. It
+ * implements the parameterized methods of {@link Log} on top of the plain
+ * ones. When enabled with {@link LogFactory#setLevelCaching}, it also
+ * caches the enabled levels, so that isDebugEnabled and friends only read
+ * a field instead of walking e.g. the log4j logger hierarchy. The cache is
+ * then refreshed after {@link LogFactory#levelsChanged} has been called.
+ * 
+ * @see Log
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public abstract class AbstractLog implements Log {
+	/** The log levels, used as bit positions in the level cache. */
+	protected static final int Trace = 0;
+	protected static final int Debug = 1;
+	protected static final int Info = 2;
+	protected static final int Warn = 3;
+	protected static final int Error = 4;
+	protected static final int Fatal = 5;
+	
+	/** The number of bits used for the levels in levelCache. */
+	private static final int LevelBits = 6;
+	
+	/* The enabled levels in the lower LevelBits bits and the 
+	 * LogFactory generation they were queried in above them. This is a 
+	 * single int so that it is always read and written atomically. */
+	private int levelCache = -1;
+	
+	/**
+	 * Queries the underlying logging framework if a level is enabled.
+	 * 
+	 * @param level One of the level constants.
+	 * @return <code>true</code> if the level is enabled.
+	 */
+	protected abstract boolean isLevelEnabled(int level);
+	
+	/**
+	 * Returns if a level is enabled, using the cached value when level
+	 * caching is enabled and the logging configuration has not changed 
+	 * since the last query.
+	 * 
+	 * @param level One of the level constants.
+	 * @return <code>true</code> if the level is enabled.
+	 */
+	protected boolean isEnabled(int level) {
+		if (!LogFactory.isLevelCaching())
+			return isLevelEnabled(level);
+		int cache = levelCache;
+		int generation = LogFactory.getGeneration();
+		if (cache == -1 || (cache >>> LevelBits) != generation) {
+			cache = generation << LevelBits;
+			for (int l=Trace; l<=Fatal; l++)
+				if (isLevelEnabled(l))
+					cache |= 1 << l;
+			levelCache = cache;
+		}
+		return (cache & (1 << level)) != 0;
+	}
+	
+	// @Override
+	public boolean isTraceEnabled() {
+		return isEnabled(Trace);
+	}
+
+	// @Override
+	public boolean isDebugEnabled() {
+		return isEnabled(Debug);
+	}
+
+	// @Override
+	public boolean isInfoEnabled() {
+		return isEnabled(Info);
+	}
+
+	// @Override
+	public boolean isWarnEnabled() {
+		return isEnabled(Warn);
+	}
+
+	// @Override
+	public boolean isErrorEnabled() {
+		return isEnabled(Error);
+	}
+
+	// @Override
+	public boolean isFatalEnabled() {
+		return isEnabled(Fatal);
+	}
+
+	// @Override
+	public void trace(String message, Throwable t) {
+		trace((Object) message, t);
+	}
+
+	// @Override
+	public void trace(String format, Object arg) {
+		if (isEnabled(Trace))
+			trace(MessageFormatter.format(format, 1, arg, null, null));
+	}
+
+	// @Override
+	public void trace(String format, Object arg1, Object arg2) {
+		if (isEnabled(Trace))
+			trace(MessageFormatter.format(format, 2, arg1, arg2, null));
+	}
+
+	// @Override
+	public void trace(String format, Object[] args) {
+		if (isEnabled(Trace))
+			trace(MessageFormatter.format(format, 0, null, null, args));
+	}
+
+	// @Override
+	public void debug(String message, Throwable t) {
+		debug((Object) message, t);
+	}
+
+	// @Override
+	public void debug(String format, Object arg) {
+		if (isEnabled(Debug))
+			debug(MessageFormatter.format(format, 1, arg, null, null));
+	}
+
+	// @Override
+	public void debug(String format, Object arg1, Object arg2) {
+		if (isEnabled(Debug))
+			debug(MessageFormatter.format(format, 2, arg1, arg2, null));
+	}
+
+	// @Override
+	public void debug(String format, Object[] args) {
+		if (isEnabled(Debug))
+			debug(MessageFormatter.format(format, 0, null, null, args));
+	}
+
+	// @Override
+	public void info(String message, Throwable t) {
+		info((Object) message, t);
+	}
+
+	// @Override
+	public void info(String format, Object arg) {
+		if (isEnabled(Info))
+			info(MessageFormatter.format(format, 1, arg, null, null));
+	}
+
+	// @Override
+	public void info(String format, Object arg1, Object arg2) {
+		if (isEnabled(Info))
+			info(MessageFormatter.format(format, 2, arg1, arg2, null));
+	}
+
+	// @Override
+	public void info(String format, Object[] args) {
+		if (isEnabled(Info))
+			info(MessageFormatter.format(format, 0, null, null, args));
+	}
+
+	// @Override
+	public void warn(String message, Throwable t) {
+		warn((Object) message, t);
+	}
+
+	// @Override
+	public void warn(String format, Object arg) {
+		if (isEnabled(Warn))
+			warn(MessageFormatter.format(format, 1, arg, null, null));
+	}
+
+	// @Override
+	public void warn(String format, Object arg1, Object arg2) {
+		if (isEnabled(Warn))
+			warn(MessageFormatter.format(format, 2, arg1, arg2, null));
+	}
+
+	// @Override
+	public void warn(String format, Object[] args) {
+		if (isEnabled(Warn))
+			warn(MessageFormatter.format(format, 0, null, null, args));
+	}
+
+	// @Override
+	public void error(String message, Throwable t) {
+		error((Object) message, t);
+	}
+
+	// @Override
+	public void error(String format, Object arg) {
+		if (isEnabled(Error))
+			error(MessageFormatter.format(format, 1, arg, null, null));
+	}
+
+	// @Override
+	public void error(String format, Object arg1, Object arg2) {
+		if (isEnabled(Error))
+			error(MessageFormatter.format(format, 2, arg1, arg2, null));
+	}
+
+	// @Override
+	public void error(String format, Object[] args) {
+		if (isEnabled(Error))
+			error(MessageFormatter.format(format, 0, null, null, args));
+	}
+}
@@ -0,0 +1,85 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-23
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/** A monotonic counter, e.g. for the number of messages or bytes sent or
+ * the number of successful protocol runs. Counters are created and looked up
+ * with MetricsRegistry.counter. Where atomic variables are available (i.e.
+ * everywhere except J2ME), counting does not take a lock.
+ *
+ * @see MetricsRegistry
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class Counter {
+	/** The name under which this counter is registered. */
+	private String name;
+
+//#if cfg.includeJSSESupport
+	/** The current value, updated without locking. */
+	private java.util.concurrent.atomic.AtomicLong atomicCount = 
+		new java.util.concurrent.atomic.AtomicLong(0);
+//#endif
+
+	/** The current value on platforms without atomic variables, guarded by
+	 * the counter monitor. */
+	private long count = 0;
+
+	/** Only MetricsRegistry creates counters. */
+	Counter(String name) {
+		this.name = name;
+	}
+
+	/** Returns the name under which this counter is registered. */
+	public String getName() {
+		return name;
+	}
+
+	/** Increments the counter by one. */
+	public void increment() {
+		add(1);
+	}
+
+	/** Adds a value to the counter. */
+	public void add(long value) {
+//#if cfg.includeJSSESupport
+		if (atomicCount != null) {
+			atomicCount.addAndGet(value);
+			return;
+		}
+//#endif
+		synchronized (this) {
+			count += value;
+		}
+	}
+
+	/** Returns the current value. */
+	public synchronized long getCount() {
+//#if cfg.includeJSSESupport
+		if (atomicCount != null)
+			return atomicCount.get();
+//#endif
+		return count;
+	}
+
+	/** Resets the counter to 0. */
+	public synchronized void reset() {
+//#if cfg.includeJSSESupport
+		if (atomicCount != null) {
+			atomicCount.set(0);
+			return;
+		}
+//#endif
+		count = 0;
+	}
+
+	public String toString() {
+		return name + ": " + getCount();
+	}
+}
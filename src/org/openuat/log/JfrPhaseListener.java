@@ -0,0 +1,146 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** This listener turns the phases reported to PhaseTracer into Java Flight
+ * Recorder events, one event type per phase with its duration, step and size.
+ * Since JFR records the thread of each event, they can be correlated with GC
+ * pauses and lock contention (e.g. jdk.JavaMonitorEnter) in the same
+ * recording.
+ * <br>
+ * When no recording is running or the respective event type is disabled in
+ * the recording settings, begin returns null without allocating anything.
+ * <br>
+ * This class is only available on J2SE with JFR (Java 8u262 or 11 and newer).
+ *
+ * @see PhaseTracer
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class JfrPhaseListener implements PhaseListener {
+	@Category({"OpenUAT", "Phases"})
+	@StackTrace(false)
+	private static abstract class PhaseEvent extends Event {
+		@Label("Step")
+		@Description("The step within the protocol or pipeline, e.g. stage or round number")
+		int step;
+
+		@Label("Size")
+		@Description("The amount of data processed, e.g. bytes or samples")
+		long size;
+	}
+
+	@Name("org.openuat.ProtocolStage")
+	@Label("UACAP Protocol Stage")
+	@Category({"OpenUAT", "Authentication"})
+	private static class ProtocolStageEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.InterlockRound")
+	@Label("Interlock Round")
+	@Category({"OpenUAT", "Authentication"})
+	private static class InterlockRoundEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.CandidateKeyMatch")
+	@Label("Candidate Key Match")
+	@Category({"OpenUAT", "Authentication"})
+	private static class CandidateKeyMatchEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.CandidateKeySearch")
+	@Label("Candidate Key Search")
+	@Category({"OpenUAT", "Authentication"})
+	private static class CandidateKeySearchEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.CandidateKeyGenerate")
+	@Label("Candidate Key Generate")
+	@Category({"OpenUAT", "Authentication"})
+	private static class CandidateKeyGenerateEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.Coherence")
+	@Label("Coherence")
+	@Category({"OpenUAT", "Features"})
+	private static class CoherenceEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.QuantizedFFT")
+	@Label("Quantized FFT Coefficients")
+	@Category({"OpenUAT", "Features"})
+	private static class QuantizedFFTEvent extends PhaseEvent {
+	}
+
+	@Name("org.openuat.Segment")
+	@Label("Active Segment")
+	@Category({"OpenUAT", "Sensors"})
+	private static class SegmentEvent extends PhaseEvent {
+	}
+
+	/** The event types, indexed by the phase constants of PhaseTracer. */
+	private final EventType[] types = new EventType[PhaseTracer.NumPhases];
+
+	/** Registers the event types with JFR. Use install() instead of
+	 * constructing this directly. */
+	public JfrPhaseListener() {
+		types[PhaseTracer.ProtocolStage] = EventType.getEventType(ProtocolStageEvent.class);
+		types[PhaseTracer.InterlockRound] = EventType.getEventType(InterlockRoundEvent.class);
+		types[PhaseTracer.CandidateKeyMatch] = EventType.getEventType(CandidateKeyMatchEvent.class);
+		types[PhaseTracer.CandidateKeySearch] = EventType.getEventType(CandidateKeySearchEvent.class);
+		types[PhaseTracer.CandidateKeyGenerate] = EventType.getEventType(CandidateKeyGenerateEvent.class);
+		types[PhaseTracer.CoherenceCompute] = EventType.getEventType(CoherenceEvent.class);
+		types[PhaseTracer.QuantizedFFT] = EventType.getEventType(QuantizedFFTEvent.class);
+		types[PhaseTracer.Segment] = EventType.getEventType(SegmentEvent.class);
+	}
+
+	/** Installs a new JfrPhaseListener with PhaseTracer. */
+	public static JfrPhaseListener install() {
+		JfrPhaseListener l = new JfrPhaseListener();
+		PhaseTracer.setListener(l);
+		return l;
+	}
+
+	public Object begin(int phase) {
+		if (phase < 0 || phase >= types.length || !types[phase].isEnabled())
+			return null;
+
+		PhaseEvent e;
+		switch (phase) {
+		case PhaseTracer.ProtocolStage: e = new ProtocolStageEvent(); break;
+		case PhaseTracer.InterlockRound: e = new InterlockRoundEvent(); break;
+		case PhaseTracer.CandidateKeyMatch: e = new CandidateKeyMatchEvent(); break;
+		case PhaseTracer.CandidateKeySearch: e = new CandidateKeySearchEvent(); break;
+		case PhaseTracer.CandidateKeyGenerate: e = new CandidateKeyGenerateEvent(); break;
+		case PhaseTracer.CoherenceCompute: e = new CoherenceEvent(); break;
+		case PhaseTracer.QuantizedFFT: e = new QuantizedFFTEvent(); break;
+		default: e = new SegmentEvent(); break;
+		}
+		e.begin();
+		return e;
+	}
+
+	public void end(Object handle, int step, long size) {
+		PhaseEvent e = (PhaseEvent) handle;
+		e.end();
+		if (e.shouldCommit()) {
+			e.step = step;
+			e.size = size;
+			e.commit();
+		}
+	}
+}
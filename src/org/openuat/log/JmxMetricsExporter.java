@@ -0,0 +1,138 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-23
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+import java.lang.management.ManagementFactory;
+import java.util.Vector;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/** This class exports all metrics of MetricsRegistry as attributes of a
+ * single MBean, so that they can be scraped via JMX. For each latency
+ * histogram, the attributes &lt;name&gt;.count, .mean, .p50, .p99, .p999
+ * and .max are exported in nanoseconds; for each counter, the attribute
+ * &lt;name&gt;. Metrics that are created after registration show up
+ * automatically. The operation "reset" resets all metrics.
+ * <br>
+ * This class is only available on J2SE.
+ *
+ * @see MetricsRegistry
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class JmxMetricsExporter implements DynamicMBean {
+	/** The default name under which the MBean is registered. */
+	public static final String DefaultObjectName = "org.openuat:type=Metrics";
+
+	/** The suffixes of the attributes exported for each histogram. */
+	private static final String[] HistogramAttributes = {".count", ".mean", ".p50", ".p99", ".p999", ".max"};
+
+	/** Registers the exporter with the platform MBean server under
+	 * DefaultObjectName. */
+	public static ObjectName register() throws JMException {
+		return register(new ObjectName(DefaultObjectName));
+	}
+
+	/** Registers the exporter with the platform MBean server. */
+	public static ObjectName register(ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxMetricsExporter(), name);
+		return name;
+	}
+
+	/** Returns the current value of an attribute, or null if no metric
+	 * with this name exists. */
+	private static Long getValue(String attribute) {
+		Counter[] counters = MetricsRegistry.getCounters();
+		for (int i=0; i<counters.length; i++)
+			if (counters[i].getName().equals(attribute))
+				return new Long(counters[i].getCount());
+		LatencyHistogram[] timers = MetricsRegistry.getTimers();
+		for (int i=0; i<timers.length; i++) {
+			String name = timers[i].getName();
+			if (!attribute.startsWith(name) || attribute.length() <= name.length())
+				continue;
+			String suffix = attribute.substring(name.length());
+			if (suffix.equals(".count"))
+				return new Long(timers[i].getCount());
+			if (suffix.equals(".mean"))
+				return new Long(timers[i].getMean());
+			if (suffix.equals(".p50"))
+				return new Long(timers[i].getValueAtPercentile(50));
+			if (suffix.equals(".p99"))
+				return new Long(timers[i].getValueAtPercentile(99));
+			if (suffix.equals(".p999"))
+				return new Long(timers[i].getValueAtPercentile(99.9));
+			if (suffix.equals(".max"))
+				return new Long(timers[i].getMax());
+		}
+		return null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = getValue(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException("No metric named " + attribute);
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (int i=0; i<attributes.length; i++) {
+			Long value = getValue(attributes[i]);
+			if (value != null)
+				list.add(new Attribute(attributes[i], value));
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if (!actionName.equals("reset"))
+			throw new ReflectionException(new NoSuchMethodException(actionName), "Unknown operation " + actionName);
+		MetricsRegistry.reset();
+		return null;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		Vector attributes = new Vector();
+		LatencyHistogram[] timers = MetricsRegistry.getTimers();
+		for (int i=0; i<timers.length; i++)
+			for (int j=0; j<HistogramAttributes.length; j++)
+				attributes.addElement(new MBeanAttributeInfo(timers[i].getName() + HistogramAttributes[j],
+						"java.lang.Long", "Latency in ns", true, false, false));
+		Counter[] counters = MetricsRegistry.getCounters();
+		for (int i=0; i<counters.length; i++)
+			attributes.addElement(new MBeanAttributeInfo(counters[i].getName(),
+					"java.lang.Long", "Counter", true, false, false));
+		MBeanAttributeInfo[] attributeInfos = new MBeanAttributeInfo[attributes.size()];
+		attributes.copyInto(attributeInfos);
+
+		return new MBeanInfo(getClass().getName(), "OpenUAT metrics", attributeInfos, null,
+				new MBeanOperationInfo[] {new MBeanOperationInfo("reset", "Resets all metrics",
+						new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)},
+				null);
+	}
+}
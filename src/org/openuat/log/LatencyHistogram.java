@@ -0,0 +1,271 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-23
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/** This class records a distribution of latencies in nanoseconds with a
+ * fixed relative precision, in the style of an HDR histogram: values below
+ * SubBuckets are counted exactly, larger values are counted in buckets
+ * whose width doubles with every power of two, each split into SubBuckets/2
+ * linear sub-buckets. This keeps the relative error of reported percentiles
+ * below 2/SubBuckets over the whole range of long values, with a fixed
+ * amount of memory and without allocating anything when recording.
+ * <br>
+ * Recording does not take a lock where atomic variables are available
+ * (i.e. everywhere except J2ME): each bucket, the total and the extremes
+ * are updated atomically and independently of each other, so that timing
+ * on a hot path from many threads does not serialize them. Only the getters
+ * lock, against each other. A getter that runs concurrently with recording
+ * may therefore see a value in the buckets that is not yet in the total,
+ * and a reset that runs concurrently with recording may keep some of the
+ * values recorded at the same time. On J2ME, recording synchronizes on the
+ * histogram.
+ * <br>
+ * Histograms are created and looked up with MetricsRegistry.timer. Typical
+ * use is:
+ * <pre>
+ * long start = MetricsRegistry.now();
+ * // ... the operation to time
+ * timer.stop(start);
+ * </pre>
+ *
+ * @see MetricsRegistry
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class LatencyHistogram {
+	/** The number of bits used for the sub-buckets. */
+	private static final int SubBucketBits = 7;
+
+	/** The number of exactly counted values and twice the number of
+	 * sub-buckets per power of two. */
+	public static final int SubBuckets = 1 << SubBucketBits;
+
+	/** The number of sub-buckets per power of two. */
+	private static final int HalfSubBuckets = SubBuckets / 2;
+
+	/** The number of powers of two above SubBuckets that fit into a long. */
+	private static final int Exponents = 63 - SubBucketBits + 1;
+
+	/** The name under which this histogram is registered. */
+	private String name;
+
+	/** The number of buckets. */
+	private static final int NumBuckets = SubBuckets + Exponents * HalfSubBuckets;
+
+	/** If the atomic variables are used. */
+	private boolean lockFree = false;
+
+//#if cfg.includeJSSESupport
+	/** The bucket counts, total and extremes, updated without locking. */
+	private java.util.concurrent.atomic.AtomicLongArray atomicCounts;
+	private java.util.concurrent.atomic.AtomicLong atomicTotal;
+	private java.util.concurrent.atomic.AtomicLong atomicMin;
+	private java.util.concurrent.atomic.AtomicLong atomicMax;
+//#endif
+
+	/** The bucket counts, total and extremes on platforms without atomic
+	 * variables, guarded by the histogram monitor. */
+	private int[] counts = null;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/** Only MetricsRegistry creates histograms. */
+	LatencyHistogram(String name) {
+		this.name = name;
+//#if cfg.includeJSSESupport
+		atomicCounts = new java.util.concurrent.atomic.AtomicLongArray(NumBuckets);
+		atomicTotal = new java.util.concurrent.atomic.AtomicLong(0);
+		atomicMin = new java.util.concurrent.atomic.AtomicLong(Long.MAX_VALUE);
+		atomicMax = new java.util.concurrent.atomic.AtomicLong(0);
+		lockFree = true;
+//#endif
+		if (!lockFree)
+			counts = new int[NumBuckets];
+	}
+
+	/** Returns the name under which this histogram is registered. */
+	public String getName() {
+		return name;
+	}
+
+	/** Returns the index of the bucket for a value. */
+	static int bucketIndex(long value) {
+		if (value < SubBuckets)
+			return (int) value;
+		// the position of the highest bit, at least SubBucketBits
+		int exponent = 63;
+		while ((value & (1L << exponent)) == 0)
+			exponent--;
+		int shift = exponent - SubBucketBits + 1;
+		// this is in [HalfSubBuckets, SubBuckets)
+		int subBucket = (int) (value >>> shift);
+		return SubBuckets + (shift - 1) * HalfSubBuckets + subBucket - HalfSubBuckets;
+	}
+
+	/** Returns the highest value that falls into a bucket. */
+	static long bucketHighestValue(int index) {
+		if (index < SubBuckets)
+			return index;
+		int shift = (index - SubBuckets) / HalfSubBuckets + 1;
+		long subBucket = (index - SubBuckets) % HalfSubBuckets + HalfSubBuckets;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/** Records a value, usually a latency in nanoseconds. Negative values
+	 * (e.g. from clock adjustments) are recorded as 0. */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		int index = bucketIndex(value);
+//#if cfg.includeJSSESupport
+		if (lockFree) {
+			atomicCounts.incrementAndGet(index);
+			atomicTotal.addAndGet(value);
+			// the extremes rarely change, so this is usually only a read
+			for (long m = atomicMin.get(); value < m; m = atomicMin.get())
+				if (atomicMin.compareAndSet(m, value))
+					break;
+			for (long m = atomicMax.get(); value > m; m = atomicMax.get())
+				if (atomicMax.compareAndSet(m, value))
+					break;
+			return;
+		}
+//#endif
+		synchronized (this) {
+			counts[index]++;
+			total += value;
+			if (value < min)
+				min = value;
+			if (value > max)
+				max = value;
+		}
+	}
+
+	/** Records the time since start, which must have been taken with
+	 * MetricsRegistry.now.
+	 * @return The recorded time in nanoseconds.
+	 */
+	public long stop(long start) {
+		long elapsed = MetricsRegistry.now() - start;
+		record(elapsed);
+		return elapsed;
+	}
+
+	/** Returns the count of a bucket. */
+	private long bucketCount(int index) {
+//#if cfg.includeJSSESupport
+		if (lockFree)
+			return atomicCounts.get(index);
+//#endif
+		return counts[index];
+	}
+
+	/** Returns the number of recorded values. */
+	public synchronized long getCount() {
+		long count = 0;
+		for (int i=0; i<NumBuckets; i++)
+			count += bucketCount(i);
+		return count;
+	}
+
+	/** Returns the sum of all recorded values. */
+	public synchronized long getTotal() {
+//#if cfg.includeJSSESupport
+		if (lockFree)
+			return atomicTotal.get();
+//#endif
+		return total;
+	}
+
+	/** Returns the smallest recorded value, or 0 if none has been recorded. */
+	public synchronized long getMin() {
+		long m = min;
+//#if cfg.includeJSSESupport
+		if (lockFree)
+			m = atomicMin.get();
+//#endif
+		return m != Long.MAX_VALUE ? m : 0;
+	}
+
+	/** Returns the largest recorded value, or 0 if none has been recorded. */
+	public synchronized long getMax() {
+//#if cfg.includeJSSESupport
+		if (lockFree)
+			return atomicMax.get();
+//#endif
+		return max;
+	}
+
+	/** Returns the mean of all recorded values, or 0 if none has been recorded. */
+	public synchronized long getMean() {
+		long count = getCount();
+		return count > 0 ? getTotal() / count : 0;
+	}
+
+	/** Returns the value below or at which the given percentage of all
+	 * recorded values lie, within the precision of the histogram.
+	 * @param percentile The percentile in [0, 100], e.g. 99 or 99.9.
+	 * @return The value at the percentile, or 0 if no value has been recorded.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be in [0, 100], got " + percentile);
+		// one pass over the buckets, so that counts and rank match
+		long[] snapshot = new long[NumBuckets];
+		long count = 0;
+		for (int i=0; i<NumBuckets; i++) {
+			snapshot[i] = bucketCount(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long max = getMax();
+		// the rank of the value, at least 1
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i=0; i<NumBuckets; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				long v = bucketHighestValue(i);
+				return v < max ? v : max;
+			}
+		}
+		return max;
+	}
+
+	/** Forgets all recorded values. */
+	public synchronized void reset() {
+//#if cfg.includeJSSESupport
+		if (lockFree) {
+			for (int i=0; i<NumBuckets; i++)
+				atomicCounts.set(i, 0);
+			atomicTotal.set(0);
+			atomicMin.set(Long.MAX_VALUE);
+			atomicMax.set(0);
+			return;
+		}
+//#endif
+		for (int i=0; i<NumBuckets; i++)
+			counts[i] = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/** Returns a summary with the values in ms, for logging. */
+	public synchronized String toString() {
+		return name + ": count " + getCount() + ", mean " + MetricsRegistry.toMillis(getMean()) +
+			"ms, p50 " + MetricsRegistry.toMillis(getValueAtPercentile(50)) +
+			"ms, p99 " + MetricsRegistry.toMillis(getValueAtPercentile(99)) +
+			"ms, max " + MetricsRegistry.toMillis(getMax()) + "ms";
+	}
+}
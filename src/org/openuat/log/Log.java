@@ -18,6 +18,14 @@ package org.openuat.log;
  * configuration file (e.g. log4j.properties, microlog.properties).<br/>
  * This interface provides the following log levels (from low to high severity):<br/>
  * trace, debug, info, warn, error, fatal.<br/>
+ * Messages can be given as objects or, for all levels except fatal, as 
+ * parameterized strings in the style of slf4j:
+ * <pre>
+ * logger.debug("Received packet from {}{}", remoteHost, instanceSuffix);
+ * </pre>
+ * These are only formatted when the level is enabled. Arguments of 
+ * primitive types would need to be boxed, so for those it is still better
+ * to check the level first with e.g. isDebugEnabled, which is cheap.<br/>
  * For a usage example see {@link LogFactory}.
  * 
  * @author Lukas Huser
@@ -121,6 +129,196 @@ public interface Log {
 	 */
 	public void fatal(Object message, Throwable t);
 	
+	/**
+	 * Logs a message at log level trace. This overload is more specific than
+	 * the parameterized ones, so that passing an exception is not ambiguous.
+	 * 
+	 * @param message The message to log.
+	 * @param t The cause of the error.
+	 */
+	public void trace(String message, Throwable t);
+
+	/**
+	 * Logs a parameterized message at log level trace. The first occurrence
+	 * of <code>{}</code> in format is replaced by arg. The message is only
+	 * formatted when the level is enabled.
+	 * 
+	 * @param format The message with a placeholder.
+	 * @param arg The argument.
+	 */
+	public void trace(String format, Object arg);
+
+	/**
+	 * Logs a parameterized message at log level trace, see
+	 * {@link #trace(String, Object)}.
+	 * 
+	 * @param format The message with two placeholders.
+	 * @param arg1 The first argument.
+	 * @param arg2 The second argument.
+	 */
+	public void trace(String format, Object arg1, Object arg2);
+
+	/**
+	 * Logs a parameterized message at log level trace, see
+	 * {@link #trace(String, Object)}.
+	 * 
+	 * @param format The message with placeholders.
+	 * @param args The arguments.
+	 */
+	public void trace(String format, Object[] args);
+
+	/**
+	 * Logs a message at log level debug. This overload is more specific than
+	 * the parameterized ones, so that passing an exception is not ambiguous.
+	 * 
+	 * @param message The message to log.
+	 * @param t The cause of the error.
+	 */
+	public void debug(String message, Throwable t);
+
+	/**
+	 * Logs a parameterized message at log level debug. The first occurrence
+	 * of <code>{}</code> in format is replaced by arg. The message is only
+	 * formatted when the level is enabled.
+	 * 
+	 * @param format The message with a placeholder.
+	 * @param arg The argument.
+	 */
+	public void debug(String format, Object arg);
+
+	/**
+	 * Logs a parameterized message at log level debug, see
+	 * {@link #debug(String, Object)}.
+	 * 
+	 * @param format The message with two placeholders.
+	 * @param arg1 The first argument.
+	 * @param arg2 The second argument.
+	 */
+	public void debug(String format, Object arg1, Object arg2);
+
+	/**
+	 * Logs a parameterized message at log level debug, see
+	 * {@link #debug(String, Object)}.
+	 * 
+	 * @param format The message with placeholders.
+	 * @param args The arguments.
+	 */
+	public void debug(String format, Object[] args);
+
+	/**
+	 * Logs a message at log level info. This overload is more specific than
+	 * the parameterized ones, so that passing an exception is not ambiguous.
+	 * 
+	 * @param message The message to log.
+	 * @param t The cause of the error.
+	 */
+	public void info(String message, Throwable t);
+
+	/**
+	 * Logs a parameterized message at log level info. The first occurrence
+	 * of <code>{}</code> in format is replaced by arg. The message is only
+	 * formatted when the level is enabled.
+	 * 
+	 * @param format The message with a placeholder.
+	 * @param arg The argument.
+	 */
+	public void info(String format, Object arg);
+
+	/**
+	 * Logs a parameterized message at log level info, see
+	 * {@link #info(String, Object)}.
+	 * 
+	 * @param format The message with two placeholders.
+	 * @param arg1 The first argument.
+	 * @param arg2 The second argument.
+	 */
+	public void info(String format, Object arg1, Object arg2);
+
+	/**
+	 * Logs a parameterized message at log level info, see
+	 * {@link #info(String, Object)}.
+	 * 
+	 * @param format The message with placeholders.
+	 * @param args The arguments.
+	 */
+	public void info(String format, Object[] args);
+
+	/**
+	 * Logs a message at log level warn. This overload is more specific than
+	 * the parameterized ones, so that passing an exception is not ambiguous.
+	 * 
+	 * @param message The message to log.
+	 * @param t The cause of the error.
+	 */
+	public void warn(String message, Throwable t);
+
+	/**
+	 * Logs a parameterized message at log level warn. The first occurrence
+	 * of <code>{}</code> in format is replaced by arg. The message is only
+	 * formatted when the level is enabled.
+	 * 
+	 * @param format The message with a placeholder.
+	 * @param arg The argument.
+	 */
+	public void warn(String format, Object arg);
+
+	/**
+	 * Logs a parameterized message at log level warn, see
+	 * {@link #warn(String, Object)}.
+	 * 
+	 * @param format The message with two placeholders.
+	 * @param arg1 The first argument.
+	 * @param arg2 The second argument.
+	 */
+	public void warn(String format, Object arg1, Object arg2);
+
+	/**
+	 * Logs a parameterized message at log level warn, see
+	 * {@link #warn(String, Object)}.
+	 * 
+	 * @param format The message with placeholders.
+	 * @param args The arguments.
+	 */
+	public void warn(String format, Object[] args);
+
+	/**
+	 * Logs a message at log level error. This overload is more specific than
+	 * the parameterized ones, so that passing an exception is not ambiguous.
+	 * 
+	 * @param message The message to log.
+	 * @param t The cause of the error.
+	 */
+	public void error(String message, Throwable t);
+
+	/**
+	 * Logs a parameterized message at log level error. The first occurrence
+	 * of <code>{}</code> in format is replaced by arg. The message is only
+	 * formatted when the level is enabled.
+	 * 
+	 * @param format The message with a placeholder.
+	 * @param arg The argument.
+	 */
+	public void error(String format, Object arg);
+
+	/**
+	 * Logs a parameterized message at log level error, see
+	 * {@link #error(String, Object)}.
+	 * 
+	 * @param format The message with two placeholders.
+	 * @param arg1 The first argument.
+	 * @param arg2 The second argument.
+	 */
+	public void error(String format, Object arg1, Object arg2);
+
+	/**
+	 * Logs a parameterized message at log level error, see
+	 * {@link #error(String, Object)}.
+	 * 
+	 * @param format The message with placeholders.
+	 * @param args The arguments.
+	 */
+	public void error(String format, Object[] args);
+
 	/**
 	 * Is log level trace enabled?
 	 * 
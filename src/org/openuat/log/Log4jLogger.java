@@ -22,7 +22,7 @@ import org.apache.log4j.Priority;
  * @author Lukas Huser
  * @version 1.0
  */
-public class Log4jLogger implements Log {
+public class Log4jLogger extends AbstractLog {
 	
 	/* The internal logger */
 	private Logger logger;
@@ -95,33 +95,15 @@ public class Log4jLogger implements Log {
 	}
 
 	// @Override
-	public boolean isDebugEnabled() {
-		return logger.isDebugEnabled();
-	}
-
-	// @Override
-	public boolean isErrorEnabled() {
-		return logger.isEnabledFor(Priority.ERROR);
-	}
-
-	// @Override
-	public boolean isFatalEnabled() {
-		return logger.isEnabledFor(Level.FATAL);
-	}
-
-	// @Override
-	public boolean isInfoEnabled() {
-		return logger.isInfoEnabled();
-	}
-
-	// @Override
-	public boolean isTraceEnabled() {
-		return logger.isTraceEnabled();
-	}
-
-	// @Override
-	public boolean isWarnEnabled() {
-		return logger.isEnabledFor(Level.WARN);
+	protected boolean isLevelEnabled(int level) {
+		switch (level) {
+		case Trace: return logger.isTraceEnabled();
+		case Debug: return logger.isDebugEnabled();
+		case Info: return logger.isInfoEnabled();
+		case Warn: return logger.isEnabledFor(Level.WARN);
+		case Error: return logger.isEnabledFor(Priority.ERROR);
+		default: return logger.isEnabledFor(Level.FATAL);
+		}
 	}
 
 	// @Override
@@ -13,8 +13,10 @@ package org.openuat.log;
  * <code>init</code> and <code>getLogger</code>, which conveniently
  * allow to receive a suitable logger for the current system. It is
  * important that <code>init</code> is called <b>before</b> the first
- * call to <code>getLogger</code>, else it will return a default empty
- * logger that just does nothing.<br/>
+ * call to <code>getLogger</code>, else it will return a default logger:
+ * On J2SE, this logs via slf4j like most of the other OpenUAT classes
+ * (see {@link Slf4jFactory}). On J2ME, where slf4j is not available, it
+ * is an empty logger that discards all messages.<br/>
  * Usage and code example:<br/>
  * Initialize the <code>LogFactory</code> in the applications main class,
  * e.g. in the class inheriting from <code>MIDlet</code> (J2ME) or the class
@@ -26,6 +28,10 @@ package org.openuat.log;
  * <pre>
  * LogFactory.init(new MicrologFactory());
  * </pre>
+ * or
+ * <pre>
+ * LogFactory.init(new Slf4jFactory());
+ * </pre>
  * Then you can obtain a <code>Log</code> instance in any other class with:
  * <pre>
  * Log logger = LogFactory.getLogger("my.named.logger");
@@ -40,6 +46,18 @@ public abstract class LogFactory {
 	/* Internal reference to the currently used LogFactory instance. */
 	private static LogFactory instance;
 	
+	/* Incremented whenever the log levels may have changed, which 
+	 * invalidates the level caches of all AbstractLog instances. */
+	private static int generation = 0;
+	
+//#if cfg.includeJSSESupport
+	/* The factory used on J2SE when init has not been called. */
+	private static final LogFactory DefaultFactory = new Slf4jFactory();
+//#endif
+	
+	/* If AbstractLog instances may cache their enabled levels. */
+	private static boolean levelCaching = false;
+	
 	/**
 	 * Initializes the <code>LogFactory</code>.<br/>
 	 * This method should be called only once, at application startup,
@@ -51,6 +69,48 @@ public abstract class LogFactory {
 	 */
 	public static void init(LogFactory FactoryInstance) {
 		instance = FactoryInstance;
+		levelsChanged();
+	}
+	
+	/**
+	 * Enables or disables caching of the enabled levels in the loggers.
+	 * It is disabled by default, so that levels changed at runtime through
+	 * the underlying logging framework (a configuration reload, 
+	 * <code>Logger.setLevel</code>, a JMX console) take effect immediately.
+	 * With caching enabled, isDebugEnabled and friends only read a field,
+	 * but the application must then call {@link #levelsChanged} after 
+	 * every such change, since neither log4j nor slf4j notify about it.
+	 * 
+	 * @param enabled <code>true</code> to cache the enabled levels.
+	 */
+	public static void setLevelCaching(boolean enabled) {
+		levelCaching = enabled;
+		levelsChanged();
+	}
+	
+	/**
+	 * Returns if the loggers may cache their enabled levels.
+	 */
+	static boolean isLevelCaching() {
+		return levelCaching;
+	}
+	
+	/**
+	 * Notifies all loggers that the configuration of the underlying
+	 * logging framework has changed at runtime. When level caching has been
+	 * enabled with {@link #setLevelCaching}, this must be called after 
+	 * changing levels for the change to take effect on isDebugEnabled etc.
+	 */
+	public static synchronized void levelsChanged() {
+		// AbstractLog keeps the generation in the upper 26 bits of an int
+		generation = (generation + 1) & 0x3ffffff;
+	}
+	
+	/**
+	 * Returns the current configuration generation.
+	 */
+	static int getGeneration() {
+		return generation;
 	}
 	
 	/**
@@ -58,11 +118,19 @@ public abstract class LogFactory {
 	 * returns it, wrapped in a <code>Log</code> instance.
 	 * 
 	 * @param name The name of the requested logger.
-	 * @return The requested named logger or the default empty logger if
+	 * @return The requested named logger or the default logger if
 	 * <code>LogFactory</code> has not been initialized.
 	 */
 	public static Log getLogger(String name) {
-		return instance == null ? new EmptyLogger() : instance.newLogger(name);
+		if (instance != null)
+			return instance.newLogger(name);
+		Log log = null;
+//#if cfg.includeJSSESupport
+		log = DefaultFactory.newLogger(name);
+//#endif
+		if (log == null)
+			log = new EmptyLogger();
+		return log;
 	}
 	
 	/**
@@ -72,16 +140,19 @@ public abstract class LogFactory {
 	 * @return The 
 	 */
 	protected abstract Log newLogger(String name);
+
 	
 	/*
 	 * This class is an empty logger, it implements all methods of the
 	 * Log interface and leaves them empty. Its main purpose is robustness:
-	 * It is only used in the case where LogFactory.init was not called, but
+	 * It is only used on J2ME in the case where LogFactory.init was not called, but
 	 * a class which uses the LogFactory interface is used somewhere. The
 	 * getLogger method will then return a new EmptyLogger instance instead of null,
 	 * such that existing code will not fail with a NullPointerException.
+	 * All levels are disabled, so the parameterized methods of AbstractLog
+	 * return without formatting.
 	 */
-	private static class EmptyLogger implements Log {
+	private static class EmptyLogger extends AbstractLog {
 		
 		/**
 		 * Creates a new empty logger instance.
@@ -90,6 +161,11 @@ public abstract class LogFactory {
 			// Do nothing
 		}
 		
+		// @Override
+		protected boolean isLevelEnabled(int level) {
+			return false;
+		}
+		
 		// @Override
 		public void debug(Object message, Throwable t) {
 			// Do nothing
@@ -99,6 +175,7 @@ public abstract class LogFactory {
 		public void debug(Object message) {
 			// Do nothing
 		}
+		
 		// @Override
 		public void fine(Object message) {
 			// Do nothing
@@ -113,9 +190,16 @@ public abstract class LogFactory {
 		public void error(Object message) {
 			// Do nothing
 		}
+		
+		// @Override
 		public void severe(Object message) {
 			// Do nothing
 		}
+		
+		// @Override
+		public void severe(Object message, Throwable t) {
+			// Do nothing
+		}
 
 		// @Override
 		public void fatal(Object message, Throwable t) {
@@ -137,36 +221,6 @@ public abstract class LogFactory {
 			// Do nothing
 		}
 
-		// @Override
-		public boolean isDebugEnabled() {
-			return false;
-		}
-
-		// @Override
-		public boolean isErrorEnabled() {
-			return false;
-		}
-
-		// @Override
-		public boolean isFatalEnabled() {
-			return false;
-		}
-
-		// @Override
-		public boolean isInfoEnabled() {
-			return false;
-		}
-
-		// @Override
-		public boolean isTraceEnabled() {
-			return false;
-		}
-
-		// @Override
-		public boolean isWarnEnabled() {
-			return false;
-		}
-
 		// @Override
 		public void trace(Object message, Throwable t) {
 			// Do nothing
@@ -176,30 +230,31 @@ public abstract class LogFactory {
 		public void trace(Object message) {
 			// Do nothing
 		}
+		
+		// @Override
 		public void finest(Object message) {
 			// Do nothing
 		}
 
 		// @Override
 		public void warn(Object message, Throwable t) {
-			// do nothing
-		}
-		public void warning(Object message, Throwable t) {
-			// do nothing
+			// Do nothing
 		}
 
 		// @Override
 		public void warn(Object message) {
 			// Do nothing
 		}
+		
+		// @Override
 		public void warning(Object message) {
 			// Do nothing
 		}
-
-		@Override
-		public void severe(Object message, Throwable t) {
+		
+		// @Override
+		public void warning(Object message, Throwable t) {
 			// Do nothing
 		}
 	}
-	
+
 }
@@ -0,0 +1,55 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/**
+ * This class formats the parameterized messages of {@link Log}: each
+ * <code>{}</code> in the format is replaced by the next argument. Surplus
+ * placeholders are left as they are, surplus arguments are ignored.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+class MessageFormatter {
+	/** This class only has static methods. */
+	private MessageFormatter() {
+	}
+
+	/**
+	 * Formats a message.
+	 *
+	 * @param format The message with placeholders.
+	 * @param numArgs The number of arguments passed in arg1 and arg2, used
+	 *                when args is null.
+	 * @param arg1 The first argument, used when args is null.
+	 * @param arg2 The second argument, used when args is null.
+	 * @param args All arguments. If null, arg1 and arg2 are used.
+	 * @return The formatted message.
+	 */
+	static String format(String format, int numArgs, Object arg1, Object arg2, Object[] args) {
+		if (format == null)
+			return null;
+		if (args != null)
+			numArgs = args.length;
+		StringBuffer ret = new StringBuffer(format.length() + 32);
+		int start = 0, argIndex = 0;
+		while (argIndex < numArgs) {
+			int pos = format.indexOf("{}", start);
+			if (pos < 0)
+				break;
+			ret.append(format.substring(start, pos));
+			Object arg = args != null ? args[argIndex] : (argIndex == 0 ? arg1 : arg2);
+			ret.append(arg);
+			argIndex++;
+			start = pos + 2;
+		}
+		ret.append(format.substring(start));
+		return ret.toString();
+	}
+}
@@ -0,0 +1,140 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-23
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/** This is the central registry for counters and latency histograms. The
+ * protocols record their timings here instead of only summing them up for
+ * the statistics loggers, so that an application can query e.g. the 99th
+ * percentile of handshake or matching latencies, either with this API or
+ * via JMX (see JmxMetricsExporter).
+ * <br>
+ * Metrics are created on first lookup and live as long as the registry, so
+ * classes usually look them up once and keep them in static fields:
+ * <pre>
+ * private static final LatencyHistogram cryptoTimer = MetricsRegistry.timer("uacap.crypto");
+ * </pre>
+ * Names are dot-separated, starting with the protocol name.
+ *
+ * @see LatencyHistogram
+ * @see Counter
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class MetricsRegistry {
+	/** All latency histograms by name. */
+	private static Hashtable timers = new Hashtable();
+
+	/** All counters by name. */
+	private static Hashtable counters = new Hashtable();
+
+	/** This class only has static methods. */
+	private MetricsRegistry() {
+	}
+
+	/** Returns the current time in nanoseconds, for use with
+	 * LatencyHistogram.stop. Only differences between two values are
+	 * meaningful. On platforms without a nanosecond clock, the resolution
+	 * is one millisecond.
+	 */
+	public static long now() {
+		long now = 0;
+		boolean haveNanoTime = false;
+//#if cfg.includeJSSESupport
+		now = System.nanoTime();
+		haveNanoTime = true;
+//#endif
+		if (!haveNanoTime)
+			now = System.currentTimeMillis() * 1000000;
+		return now;
+	}
+
+	/** Converts nanoseconds to milliseconds. */
+	public static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	/** Returns the latency histogram with the given name, creating it if
+	 * necessary. */
+	public static synchronized LatencyHistogram timer(String name) {
+		LatencyHistogram h = (LatencyHistogram) timers.get(name);
+		if (h == null) {
+			h = new LatencyHistogram(name);
+			timers.put(name, h);
+		}
+		return h;
+	}
+
+	/** Returns the counter with the given name, creating it if necessary. */
+	public static synchronized Counter counter(String name) {
+		Counter c = (Counter) counters.get(name);
+		if (c == null) {
+			c = new Counter(name);
+			counters.put(name, c);
+		}
+		return c;
+	}
+
+	/** Returns all latency histograms, sorted by name. */
+	public static synchronized LatencyHistogram[] getTimers() {
+		String[] names = sortedNames(timers);
+		LatencyHistogram[] ret = new LatencyHistogram[names.length];
+		for (int i=0; i<names.length; i++)
+			ret[i] = (LatencyHistogram) timers.get(names[i]);
+		return ret;
+	}
+
+	/** Returns all counters, sorted by name. */
+	public static synchronized Counter[] getCounters() {
+		String[] names = sortedNames(counters);
+		Counter[] ret = new Counter[names.length];
+		for (int i=0; i<names.length; i++)
+			ret[i] = (Counter) counters.get(names[i]);
+		return ret;
+	}
+
+	/** Resets all metrics, but keeps them registered. */
+	public static synchronized void reset() {
+		for (Enumeration e = timers.elements(); e.hasMoreElements(); )
+			((LatencyHistogram) e.nextElement()).reset();
+		for (Enumeration e = counters.elements(); e.hasMoreElements(); )
+			((Counter) e.nextElement()).reset();
+	}
+
+	/** Returns a summary of all metrics, one per line, for logging. */
+	public static String getSummary() {
+		StringBuffer s = new StringBuffer();
+		LatencyHistogram[] t = getTimers();
+		for (int i=0; i<t.length; i++)
+			s.append(t[i]).append('\n');
+		Counter[] c = getCounters();
+		for (int i=0; i<c.length; i++)
+			s.append(c[i]).append('\n');
+		return s.toString();
+	}
+
+	/** Returns the keys of a Hashtable sorted, with insertion sort because
+	 * J2ME has no java.util.Arrays. */
+	private static String[] sortedNames(Hashtable table) {
+		Vector names = new Vector(table.size());
+		for (Enumeration e = table.keys(); e.hasMoreElements(); ) {
+			String name = (String) e.nextElement();
+			int i = names.size();
+			while (i > 0 && ((String) names.elementAt(i-1)).compareTo(name) > 0)
+				i--;
+			names.insertElementAt(name, i);
+		}
+		String[] ret = new String[names.size()];
+		names.copyInto(ret);
+		return ret;
+	}
+}
@@ -0,0 +1,36 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/** This interface is implemented by profilers that want to be notified of
+ * protocol phases and sensor pipeline stages, e.g. JfrPhaseListener. Both
+ * methods are called on the thread that executes the phase.
+ *
+ * @see PhaseTracer
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public interface PhaseListener {
+	/** Called when a phase begins.
+	 * @param phase One of the phase constants defined in PhaseTracer.
+	 * @return A handle that is passed to end, or null if this phase is
+	 *         currently not recorded. In the latter case, end will not be
+	 *         called.
+	 */
+	public Object begin(int phase);
+
+	/** Called when a phase ends.
+	 * @param handle The handle returned by begin.
+	 * @param step The step within the protocol or pipeline, e.g. the stage
+	 *             or round number. Its meaning depends on the phase.
+	 * @param size The amount of data processed in this phase, e.g. the
+	 *             number of bytes or samples. Its meaning depends on the phase.
+	 */
+	public void end(Object handle, int step, long size);
+}
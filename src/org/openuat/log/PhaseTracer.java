@@ -0,0 +1,100 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/** This class marks the beginning and end of protocol phases and sensor
+ * pipeline stages, so that a profiler can attribute time, GC pauses and lock
+ * contention to them. By default, no listener is installed and begin/end do
+ * nothing but check a static flag. On J2SE with Java Flight Recorder,
+ * JfrPhaseListener.install() turns the phases into JFR events.
+ * <br>
+ * Typical use is:
+ * <pre>
+ * Object trace = PhaseTracer.begin(PhaseTracer.CoherenceCompute);
+ * // ... the phase
+ * PhaseTracer.end(trace, windowSize, signalLength);
+ * </pre>
+ * When a phase is left with an exception, end is simply not called.
+ *
+ * @see PhaseListener
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class PhaseTracer {
+	/** A stage of the UACAP protocol in HostProtocolHandler. The step is the
+	 * stage number (1 to 5), the size the number of bytes transferred in this
+	 * stage. */
+	public static final int ProtocolStage = 0;
+	/** A round of an interlock exchange. The step is the round number, the
+	 * size the number of bytes received in this round. */
+	public static final int InterlockRound = 1;
+	/** CandidateKeyProtocol.matchCandidates. The step is the number of
+	 * matches, the size the number of incoming candidates. */
+	public static final int CandidateKeyMatch = 2;
+	/** CandidateKeyProtocol.searchKey. The step is 1 if a key was found and
+	 * 0 otherwise, the size the number of key parts. */
+	public static final int CandidateKeySearch = 3;
+	/** CandidateKeyProtocol.generateKey. The step is the last local round,
+	 * the size the number of key parts. */
+	public static final int CandidateKeyGenerate = 4;
+	/** Coherence.cohere. The step is the window size, the size the number
+	 * of samples in each signal. */
+	public static final int CoherenceCompute = 5;
+	/** Computation of quantized FFT coefficients. The step is the number of
+	 * FFT points, the size the number of candidates. */
+	public static final int QuantizedFFT = 6;
+	/** An active segment in TimeSeriesAggregator, from its start to its end.
+	 * The step is the index of the last sample, the size the number of
+	 * samples in the segment. */
+	public static final int Segment = 7;
+	/** The number of phases defined above. */
+	public static final int NumPhases = 8;
+
+	/** The currently installed listener, or null. */
+	private static PhaseListener listener = null;
+
+	/** This class only has static methods. */
+	private PhaseTracer() {
+	}
+
+	/** Installs a listener, replacing the previous one. Set to null to
+	 * disable tracing. */
+	public static void setListener(PhaseListener l) {
+		listener = l;
+	}
+
+	/** Returns the currently installed listener, or null. */
+	public static PhaseListener getListener() {
+		return listener;
+	}
+
+	/** Marks the beginning of a phase.
+	 * @param phase One of the phase constants.
+	 * @return A handle to pass to end, or null if the phase is not traced.
+	 */
+	public static Object begin(int phase) {
+		PhaseListener l = listener;
+		return l != null ? l.begin(phase) : null;
+	}
+
+	/** Marks the end of a phase.
+	 * @param handle The handle returned by begin. If it is null, nothing is
+	 *               done.
+	 * @param step The step within the protocol or pipeline, see the phase
+	 *             constants.
+	 * @param size The amount of data processed, see the phase constants.
+	 */
+	public static void end(Object handle, int step, long size) {
+		if (handle == null)
+			return;
+		PhaseListener l = listener;
+		if (l != null)
+			l.end(handle, step, size);
+	}
+}
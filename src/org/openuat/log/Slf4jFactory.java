@@ -0,0 +1,34 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+/**
+ * This is a <code>LogFactory</code> that creates loggers which log via 
+ * slf4j, like most of the other OpenUAT classes. On J2SE, it is used by
+ * default when <code>LogFactory.init</code> has not been called.<br/>
+ * For a usage example, see {@link LogFactory}.
+ * 
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class Slf4jFactory extends LogFactory {
+
+	/**
+	 * Creates a new factory instance.
+	 */
+	public Slf4jFactory() {
+		// empty constructor
+	}
+	
+	//@Override
+	protected Log newLogger(String name) {
+		return new Slf4jLogger(name);
+	}
+
+}
@@ -0,0 +1,146 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a thin wrapper around an slf4j logger. It is created by
+ * {@link Slf4jFactory}, so that classes using {@link Log} log to the same
+ * place as those using slf4j directly. slf4j has no fatal level, fatal messages are logged as errors.
+ *
+ * @see Log
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class Slf4jLogger extends AbstractLog {
+
+	/* The internal logger */
+	private Logger logger;
+
+	/**
+	 * Creates a new instance which will wrap a new named logger.
+	 *
+	 * @param name The name of the new logger.
+	 */
+	public Slf4jLogger(String name) {
+		this.logger = LoggerFactory.getLogger(name);
+	}
+
+	/**
+	 * Returns the native logger.
+	 *
+	 * @return The native logger.
+	 */
+	public Logger getNativeLogger() {
+		return logger;
+	}
+
+	//@Override
+	protected boolean isLevelEnabled(int level) {
+		switch (level) {
+		case Trace: return logger.isTraceEnabled();
+		case Debug: return logger.isDebugEnabled();
+		case Info: return logger.isInfoEnabled();
+		case Warn: return logger.isWarnEnabled();
+		default: return logger.isErrorEnabled();
+		}
+	}
+
+	// @Override
+	public void trace(Object message) {
+		logger.trace(String.valueOf(message));
+	}
+
+	// @Override
+	public void trace(Object message, Throwable t) {
+		logger.trace(String.valueOf(message), t);
+	}
+
+	// @Override
+	public void finest(Object message) {
+		trace(message);
+	}
+
+	// @Override
+	public void debug(Object message) {
+		logger.debug(String.valueOf(message));
+	}
+
+	// @Override
+	public void debug(Object message, Throwable t) {
+		logger.debug(String.valueOf(message), t);
+	}
+
+	// @Override
+	public void fine(Object message) {
+		debug(message);
+	}
+
+	// @Override
+	public void info(Object message) {
+		logger.info(String.valueOf(message));
+	}
+
+	// @Override
+	public void info(Object message, Throwable t) {
+		logger.info(String.valueOf(message), t);
+	}
+
+	// @Override
+	public void warn(Object message) {
+		logger.warn(String.valueOf(message));
+	}
+
+	// @Override
+	public void warn(Object message, Throwable t) {
+		logger.warn(String.valueOf(message), t);
+	}
+
+	// @Override
+	public void warning(Object message) {
+		warn(message);
+	}
+
+	// @Override
+	public void warning(Object message, Throwable t) {
+		warn(message, t);
+	}
+
+	// @Override
+	public void error(Object message) {
+		logger.error(String.valueOf(message));
+	}
+
+	// @Override
+	public void error(Object message, Throwable t) {
+		logger.error(String.valueOf(message), t);
+	}
+
+	// @Override
+	public void severe(Object message) {
+		error(message);
+	}
+
+	// @Override
+	public void severe(Object message, Throwable t) {
+		error(message, t);
+	}
+
+	// @Override
+	public void fatal(Object message) {
+		error(message);
+	}
+
+	// @Override
+	public void fatal(Object message, Throwable t) {
+		error(message, t);
+	}
+}
@@ -0,0 +1,157 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log.test;
+
+import java.util.Vector;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openuat.log.AbstractLog;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
+import org.openuat.log.Slf4jLogger;
+import org.openuat.sensors.TimeSeriesAggregator;
+import org.slf4j.LoggerFactory;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AbstractLogTest extends TestCase {
+	/** Records all messages and counts the level queries. */
+	private static class RecordingLog extends AbstractLog {
+		Vector messages = new Vector();
+		int minLevel = Info;
+		int queries = 0;
+
+		protected boolean isLevelEnabled(int level) {
+			queries++;
+			return level >= minLevel;
+		}
+
+		public void trace(Object message) { messages.addElement(message); }
+		public void trace(Object message, Throwable t) { messages.addElement(message); }
+		public void finest(Object message) { trace(message); }
+		public void debug(Object message) { messages.addElement(message); }
+		public void debug(Object message, Throwable t) { messages.addElement(message); }
+		public void fine(Object message) { debug(message); }
+		public void info(Object message) { messages.addElement(message); }
+		public void info(Object message, Throwable t) { messages.addElement(message); }
+		public void warn(Object message) { messages.addElement(message); }
+		public void warn(Object message, Throwable t) { messages.addElement(message); }
+		public void warning(Object message) { warn(message); }
+		public void warning(Object message, Throwable t) { warn(message, t); }
+		public void error(Object message) { messages.addElement(message); }
+		public void error(Object message, Throwable t) { messages.addElement(message); }
+		public void severe(Object message) { error(message); }
+		public void severe(Object message, Throwable t) { error(message, t); }
+		public void fatal(Object message) { messages.addElement(message); }
+		public void fatal(Object message, Throwable t) { messages.addElement(message); }
+	}
+
+	/** Fails when formatted, to check that disabled levels don't format. */
+	private static class Unformattable {
+		public String toString() {
+			Assert.fail("Argument of disabled log statement was formatted");
+			return null;
+		}
+	}
+
+	public void testParameterizedMessages() {
+		RecordingLog log = new RecordingLog();
+		log.info("one {}", "arg");
+		log.warn("{} and {}", "first", new Integer(2));
+		log.error("{}-{}-{}", new Object[] {"a", "b", "c"});
+		log.info("no placeholder", "ignored");
+		log.info("{} missing {}", "only");
+		Assert.assertEquals("one arg", log.messages.elementAt(0));
+		Assert.assertEquals("first and 2", log.messages.elementAt(1));
+		Assert.assertEquals("a-b-c", log.messages.elementAt(2));
+		Assert.assertEquals("no placeholder", log.messages.elementAt(3));
+		Assert.assertEquals("only missing {}", log.messages.elementAt(4));
+	}
+
+	public void testDisabledLevelsDoNotFormat() {
+		RecordingLog log = new RecordingLog();
+		log.debug("{}", new Unformattable());
+		log.trace("{} {}", new Unformattable(), new Unformattable());
+		log.debug("{}", new Object[] {new Unformattable()});
+		Assert.assertEquals(0, log.messages.size());
+	}
+
+	public void testThrowableIsNotAnArgument() {
+		RecordingLog log = new RecordingLog();
+		// must resolve to the (String, Throwable) overload
+		log.warn("failed {}", new RuntimeException("x"));
+		Assert.assertEquals("failed {}", log.messages.elementAt(0));
+	}
+
+	public void testLevelsAreNotCachedByDefault() {
+		RecordingLog log = new RecordingLog();
+		Assert.assertFalse(log.isDebugEnabled());
+		// a level changed at runtime is picked up immediately
+		log.minLevel = 0;
+		Assert.assertTrue(log.isDebugEnabled());
+	}
+
+	public void testLevelsAreCached() {
+		LogFactory.setLevelCaching(true);
+		try {
+			RecordingLog log = new RecordingLog();
+			Assert.assertFalse(log.isDebugEnabled());
+			int queries = log.queries;
+			for (int i=0; i<10; i++) {
+				Assert.assertFalse(log.isDebugEnabled());
+				Assert.assertTrue(log.isInfoEnabled());
+			}
+			Assert.assertEquals(queries, log.queries);
+
+			// changes are only picked up after levelsChanged
+			log.minLevel = 0;
+			Assert.assertFalse(log.isDebugEnabled());
+			LogFactory.levelsChanged();
+			Assert.assertTrue(log.isDebugEnabled());
+		}
+		finally {
+			LogFactory.setLevelCaching(false);
+		}
+	}
+
+	public void testDefaultFactory() {
+		Log log = LogFactory.getLogger("org.openuat.log.test.AbstractLogTest");
+		// without init, J2SE loggers log via slf4j
+		Assert.assertTrue(log instanceof Slf4jLogger);
+		Assert.assertEquals("org.openuat.log.test.AbstractLogTest", 
+				((Slf4jLogger) log).getNativeLogger().getName());
+	}
+
+	public void testMigratedClassLogsViaSlf4j() {
+		// only check the output when slf4j is bound to log4j, as in the test classpath
+		if (!LoggerFactory.getILoggerFactory().getClass().getName().equals("org.slf4j.impl.Log4jLoggerFactory"))
+			return;
+		final Vector events = new Vector();
+		AppenderSkeleton appender = new AppenderSkeleton() {
+			protected void append(LoggingEvent event) {
+				events.addElement(event.getRenderedMessage());
+			}
+			public boolean requiresLayout() { return false; }
+			public void close() {}
+		};
+		Logger log4j = Logger.getLogger("org.openuat.sensors.TimeSeriesBundle");
+		log4j.addAppender(appender);
+		try {
+			// the static logger of TimeSeriesBundle is bound without an explicit init
+			new TimeSeriesAggregator(3, 64, 128, -1).setSubtractTotalMean(true);
+			Assert.assertFalse("TimeSeriesBundle did not log via slf4j", events.isEmpty());
+		}
+		finally {
+			log4j.removeAppender(appender);
+		}
+	}
+}
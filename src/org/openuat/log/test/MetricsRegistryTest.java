@@ -0,0 +1,147 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-23
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log.test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openuat.log.Counter;
+import org.openuat.log.JmxMetricsExporter;
+import org.openuat.log.LatencyHistogram;
+import org.openuat.log.MetricsRegistry;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+	public void testLookupReturnsSameInstance() {
+		Assert.assertSame(MetricsRegistry.timer("test.lookup"), MetricsRegistry.timer("test.lookup"));
+		Assert.assertSame(MetricsRegistry.counter("test.lookup"), MetricsRegistry.counter("test.lookup"));
+	}
+
+	public void testSmallValuesAreExact() {
+		LatencyHistogram h = MetricsRegistry.timer("test.small");
+		h.reset();
+		for (int i=1; i<=100; i++)
+			h.record(i);
+		Assert.assertEquals(100, h.getCount());
+		Assert.assertEquals(1, h.getMin());
+		Assert.assertEquals(100, h.getMax());
+		Assert.assertEquals(50, h.getMean());
+		Assert.assertEquals(50, h.getValueAtPercentile(50));
+		Assert.assertEquals(99, h.getValueAtPercentile(99));
+		Assert.assertEquals(100, h.getValueAtPercentile(100));
+	}
+
+	public void testRelativePrecision() {
+		LatencyHistogram h = MetricsRegistry.timer("test.precision");
+		h.reset();
+		// 1ms to 1000ms in ns
+		for (int i=1; i<=1000; i++)
+			h.record(i * 1000000L);
+		double[] percentiles = {50, 99, 99.9};
+		long[] expected = {500000000L, 990000000L, 999000000L};
+		for (int i=0; i<percentiles.length; i++) {
+			long v = h.getValueAtPercentile(percentiles[i]);
+			long exact = expected[i];
+			Assert.assertTrue("p" + percentiles[i] + " is " + v, v >= exact);
+			Assert.assertTrue("p" + percentiles[i] + " is " + v, v - exact <= exact * 2 / LatencyHistogram.SubBuckets);
+		}
+		Assert.assertEquals(1000000000L, h.getValueAtPercentile(100));
+	}
+
+	public void testLargeAndNegativeValues() {
+		LatencyHistogram h = MetricsRegistry.timer("test.large");
+		h.reset();
+		h.record(Long.MAX_VALUE);
+		h.record(-5);
+		Assert.assertEquals(0, h.getMin());
+		Assert.assertEquals(Long.MAX_VALUE, h.getMax());
+		Assert.assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+	}
+
+	public void testStop() throws InterruptedException {
+		LatencyHistogram h = MetricsRegistry.timer("test.stop");
+		h.reset();
+		long start = MetricsRegistry.now();
+		Thread.sleep(20);
+		long elapsed = h.stop(start);
+		Assert.assertTrue(MetricsRegistry.toMillis(elapsed) >= 15);
+		Assert.assertEquals(1, h.getCount());
+		Assert.assertEquals(elapsed, h.getTotal());
+	}
+
+	public void testCounterAndReset() {
+		Counter c = MetricsRegistry.counter("test.counter");
+		c.reset();
+		c.increment();
+		c.add(41);
+		Assert.assertEquals(42, c.getCount());
+		MetricsRegistry.reset();
+		Assert.assertEquals(0, c.getCount());
+	}
+
+	public void testConcurrentRecording() throws InterruptedException {
+		final LatencyHistogram h = MetricsRegistry.timer("test.concurrent");
+		final Counter c = MetricsRegistry.counter("test.concurrent");
+		h.reset();
+		c.reset();
+		Thread[] threads = new Thread[4];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=1; i<=10000; i++) {
+						h.record(i);
+						c.increment();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t=0; t<threads.length; t++)
+			threads[t].join();
+		Assert.assertEquals(40000, h.getCount());
+		Assert.assertEquals(4 * 10000L * 10001 / 2, h.getTotal());
+		Assert.assertEquals(1, h.getMin());
+		Assert.assertEquals(10000, h.getMax());
+		Assert.assertEquals(40000, c.getCount());
+	}
+
+	public void testSortedNames() {
+		MetricsRegistry.timer("test.sort.b");
+		MetricsRegistry.timer("test.sort.a");
+		LatencyHistogram[] timers = MetricsRegistry.getTimers();
+		for (int i=1; i<timers.length; i++)
+			Assert.assertTrue(timers[i-1].getName().compareTo(timers[i].getName()) < 0);
+	}
+
+	public void testJmxExport() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.openuat:type=Metrics,name=test");
+		JmxMetricsExporter.register(name);
+		try {
+			LatencyHistogram h = MetricsRegistry.timer("test.jmx");
+			h.reset();
+			h.record(1000);
+			Counter c = MetricsRegistry.counter("test.jmx.counter");
+			c.reset();
+			c.add(7);
+			Assert.assertEquals(new Long(1), server.getAttribute(name, "test.jmx.count"));
+			Assert.assertEquals(new Long(7), server.getAttribute(name, "test.jmx.counter"));
+			Assert.assertTrue(((Long) server.getAttribute(name, "test.jmx.p99")).longValue() >= 1000);
+			server.invoke(name, "reset", new Object[0], new String[0]);
+			Assert.assertEquals(new Long(0), server.getAttribute(name, "test.jmx.count"));
+		}
+		finally {
+			server.unregisterMBean(name);
+		}
+	}
+}
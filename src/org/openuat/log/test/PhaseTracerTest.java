@@ -0,0 +1,90 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-24
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.log.test;
+
+import java.util.Vector;
+
+import org.openuat.features.Coherence;
+import org.openuat.features.QuantizedFFTCoefficients;
+import org.openuat.log.PhaseListener;
+import org.openuat.log.PhaseTracer;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class PhaseTracerTest extends TestCase {
+	/** Records all ended phases as {phase, step, size}. */
+	private static class RecordingListener implements PhaseListener {
+		Vector ended = new Vector();
+		int begun = 0;
+
+		public Object begin(int phase) {
+			begun++;
+			return new long[] {phase};
+		}
+
+		public void end(Object handle, int step, long size) {
+			ended.addElement(new long[] {((long[]) handle)[0], step, size});
+		}
+	}
+
+	private RecordingListener listener;
+
+	public void setUp() {
+		listener = new RecordingListener();
+		PhaseTracer.setListener(listener);
+	}
+
+	public void tearDown() {
+		PhaseTracer.setListener(null);
+	}
+
+	public void testDisabledByDefault() {
+		PhaseTracer.setListener(null);
+		Object trace = PhaseTracer.begin(PhaseTracer.Segment);
+		Assert.assertNull(trace);
+		// must not fail
+		PhaseTracer.end(trace, 1, 2);
+		PhaseTracer.end(new Object(), 1, 2);
+	}
+
+	public void testBeginEnd() {
+		Object trace = PhaseTracer.begin(PhaseTracer.InterlockRound);
+		PhaseTracer.end(trace, 3, 42);
+		Assert.assertEquals(1, listener.ended.size());
+		long[] e = (long[]) listener.ended.elementAt(0);
+		Assert.assertEquals(PhaseTracer.InterlockRound, e[0]);
+		Assert.assertEquals(3, e[1]);
+		Assert.assertEquals(42, e[2]);
+	}
+
+	public void testCoherenceIsTraced() {
+		double[] s = new double[256];
+		for (int i=0; i<s.length; i++)
+			s[i] = Math.sin(i / 10.0);
+		Coherence.cohere(s, s, 64, 32);
+		Assert.assertEquals(1, listener.ended.size());
+		long[] e = (long[]) listener.ended.elementAt(0);
+		Assert.assertEquals(PhaseTracer.CoherenceCompute, e[0]);
+		Assert.assertEquals(64, e[1]);
+		Assert.assertEquals(256, e[2]);
+	}
+
+	public void testQuantizedFFTIsTraced() {
+		double[] s = new double[128];
+		for (int i=0; i<s.length; i++)
+			s[i] = Math.sin(i / 10.0);
+		QuantizedFFTCoefficients.computeFFTCoefficientsCandidates(s, 0, 128, 10, 8, 4, false, false);
+		Assert.assertEquals(1, listener.ended.size());
+		long[] e = (long[]) listener.ended.elementAt(0);
+		Assert.assertEquals(PhaseTracer.QuantizedFFT, e[0]);
+		Assert.assertEquals(128, e[1]);
+		Assert.assertEquals(4, e[2]);
+	}
+}
@@ -27,6 +27,12 @@ import org.slf4j.LoggerFactory;
  * expected to call the emitSample method to send out the samples to all
  * registered sinks.
  * 
+ * Alternatively, derived classes that read lines of numbers can call 
+ * setFieldSeparators and implement the fieldParsed and lineParsed methods.
+ * The lines are then read as bytes directly from port into a reusable
+ * buffer and the numbers are parsed from there, without creating a String
+ * for each line and each field.
+ * 
  * @author Rene Mayrhofer
  * @version 1.0
  */
@@ -60,6 +66,34 @@ public abstract class AsciiLineReaderBase extends SamplesSource {
 	 */
 	protected File reopenStreamFrom = null;
 	
+	/** The line read by the last call to nextLine when not using the field
+	 * parser.
+	 */
+	private String line = null;
+
+	/** For each byte value, true if it separates fields. Set when using the
+	 * field parser, null otherwise.
+	 * @see #setFieldSeparators(String)
+	 */
+	private boolean[] separators = null;
+	
+	/** The buffer the field parser reads from port into. */
+	private byte[] inBuffer = null;
+	
+	/** The position of the next byte to parse and the number of valid bytes
+	 * in inBuffer.
+	 */
+	private int inPos = 0, inLen = 0;
+	
+	/** Holds lines that do not fit into inBuffer as a whole. */
+	private byte[] lineBuffer = null;
+	
+	/** The line read by the last call to nextLine when using the field 
+	 * parser. lineBytes is either inBuffer or lineBuffer.
+	 */
+	private byte[] lineBytes;
+	private int lineOff, lineLen;
+	
 	/** Initializes the reader base object. It only saves the
 	 * passed parameters, but the member variable @see {@link #port} needs to
 	 * be initialized separately before starting and sampling.
@@ -151,16 +185,33 @@ public abstract class AsciiLineReaderBase extends SamplesSource {
 	//@Override
 	protected boolean handleSample() {
 		try {
-			String line = reader.readLine();
-			if (line == null) 
+			if (!nextLine()) 
 				// no more lines to read, thus no more samples left
 				return false;
-			parseLine(line);
+			if (!reopenBeforeRead && getSleepBetweenReads() == 0 && isLineBuffered()) {
+				// more lines are already buffered (e.g. when replaying a log
+				// file), parse them in one go and deliver the samples as a block
+				beginBlock();
+				try {
+					parseCurrentLine();
+					for (int i=1; i<MaxBlockSize && isLineBuffered(); i++) {
+						if (!nextLine())
+							break;
+						parseCurrentLine();
+					}
+				}
+				finally {
+					endBlock();
+				}
+				return true;
+			}
+			parseCurrentLine();
 
 			try {
 				if (reopenBeforeRead) {
 					port = new FileInputStream(reopenStreamFrom);
 					reader = new BufferedReader(new InputStreamReader(port));
+					inPos = inLen = 0;
 				}
 			}
 			catch (IOException e) {
@@ -192,10 +243,167 @@ public abstract class AsciiLineReaderBase extends SamplesSource {
 		}
 	}
 
+	/** Reads the next line, either with reader or, when using the field 
+	 * parser, from port.
+	 * @return false if there are no more lines.
+	 */
+	private boolean nextLine() throws IOException {
+		if (separators == null) {
+			line = reader.readLine();
+			return line != null;
+		}
+		
+		int len = 0;
+		while (true) {
+			if (inPos == inLen) {
+				inPos = 0;
+				inLen = port.read(inBuffer, 0, inBuffer.length);
+				if (inLen <= 0) {
+					inLen = 0;
+					// the last line may end without a newline
+					lineBytes = lineBuffer;
+					lineOff = 0;
+					lineLen = len;
+					return len > 0;
+				}
+			}
+			int start = inPos;
+			while (inPos < inLen && inBuffer[inPos] != '\n')
+				inPos++;
+			if (inPos < inLen && len == 0) {
+				// the common case: the whole line is in inBuffer
+				lineBytes = inBuffer;
+				lineOff = start;
+				lineLen = inPos - start;
+				inPos++;
+				return true;
+			}
+			// collect the parts of the line in lineBuffer
+			if (lineBuffer.length < len + inPos - start) {
+				byte[] tmp = new byte[(len + inPos - start) * 2];
+				System.arraycopy(lineBuffer, 0, tmp, 0, len);
+				lineBuffer = tmp;
+			}
+			System.arraycopy(inBuffer, start, lineBuffer, len, inPos - start);
+			len += inPos - start;
+			if (inPos < inLen) {
+				inPos++;
+				lineBytes = lineBuffer;
+				lineOff = 0;
+				lineLen = len;
+				return true;
+			}
+		}
+	}
+	
+	/** Returns true if the next line can (probably) be read without blocking. */
+	private boolean isLineBuffered() throws IOException {
+		if (separators == null)
+			return reader.ready();
+		return inPos < inLen;
+	}
+	
+	/** Parses the line read by the last call to nextLine. */
+	private void parseCurrentLine() {
+		if (separators == null)
+			parseLine(line);
+		else
+			parseFields(lineBytes, lineOff, lineLen);
+	}
+	
+	/** Switches to the field parser. handleSample will then read bytes from 
+	 * port, split each line into fields at the given separators and call
+	 * fieldParsed or textFieldParsed for each field and lineParsed at the 
+	 * end of each line, instead of parseLine. Carriage returns are always 
+	 * treated as separators.
+	 * @param fieldSeparators The ASCII characters that separate fields, e.g. 
+	 *                        " " or " .".
+	 */
+	protected void setFieldSeparators(String fieldSeparators) {
+		separators = new boolean[256];
+		for (int i=0; i<fieldSeparators.length(); i++)
+			separators[fieldSeparators.charAt(i) & 0xff] = true;
+		separators['\r'] = true;
+		if (inBuffer == null) {
+			inBuffer = new byte[8192];
+			lineBuffer = new byte[256];
+		}
+	}
+	
+	/** Splits a line into fields and calls the field callbacks. Fields that
+	 * consist of decimal digits with an optional sign are parsed as numbers.
+	 * @param buffer The buffer holding the line.
+	 * @param off The start of the line in buffer.
+	 * @param len The length of the line, without the newline.
+	 */
+	protected void parseFields(byte[] buffer, int off, int len) {
+		int field = 0;
+		int i = off, end = off + len;
+		while (true) {
+			while (i < end && separators[buffer[i] & 0xff])
+				i++;
+			if (i == end)
+				break;
+			int start = i;
+			while (i < end && !separators[buffer[i] & 0xff])
+				i++;
+			
+			int j = start;
+			boolean negative = buffer[j] == '-';
+			if (negative || buffer[j] == '+')
+				j++;
+			// more digits could overflow
+			boolean numeric = j < i && i - j <= 18;
+			long value = 0;
+			for (; numeric && j < i; j++) {
+				int digit = buffer[j] - '0';
+				if (digit < 0 || digit > 9)
+					numeric = false;
+				value = value * 10 + digit;
+			}
+			if (numeric)
+				fieldParsed(field, negative ? -value : value);
+			else
+				textFieldParsed(field, buffer, start, i - start);
+			field++;
+		}
+		lineParsed(field);
+	}
+	
 	/** This method must be implemented to parse each line of sensor data, and
 	 * call emitSample after successful parsing to send samples to all 
-	 * registered listeners.
+	 * registered listeners. The default implementation passes the line to 
+	 * the field parser, which must have been set up with setFieldSeparators.
 	 * @param line The line that should be parsed.
 	 */
-	protected abstract void parseLine(String line);
+	protected void parseLine(String line) {
+		byte[] bytes = line.getBytes();
+		parseFields(bytes, 0, bytes.length);
+	}
+	
+	/** Called by the field parser for each numeric field of a line. Does 
+	 * nothing by default.
+	 * @param field The index of the field within the line, starting with 0.
+	 * @param value The value of the field.
+	 */
+	protected void fieldParsed(int field, long value) {
+	}
+
+	/** Called by the field parser for each field of a line that is not a 
+	 * number. Does nothing by default.
+	 * @param field The index of the field within the line, starting with 0.
+	 * @param buffer The buffer holding the field. Its contents are only 
+	 *               valid during this call.
+	 * @param off The start of the field in buffer.
+	 * @param len The length of the field.
+	 */
+	protected void textFieldParsed(int field, byte[] buffer, int off, int len) {
+	}
+
+	/** Called by the field parser after all fields of a line have been 
+	 * parsed, also for empty lines. Does nothing by default.
+	 * @param numFields The number of fields in the line.
+	 */
+	protected void lineParsed(int numFields) {
+	}
 }
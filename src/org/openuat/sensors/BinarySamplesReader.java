@@ -0,0 +1,279 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class replays samples from the binary format written by
+ * BinarySamplesWriter. The file is memory-mapped and the samples are
+ * emitted in blocks, so that replaying a recording is much faster than
+ * parsing the text logs it has been converted from.
+ *
+ * The format is little-endian and consists of a header of HeaderSize bytes,
+ * followed by the columns of the samples: first the timestamps of all
+ * samples in microseconds (64 bit), then all values of line 0, then all
+ * values of line 1, and so on. Values are stored with the width of the
+ * value type and are scaled with value = raw * scale + offset. The header
+ * holds, at the Offset* positions:
+ * <ul>
+ * <li>the magic bytes and the format version,</li>
+ * <li>the value type, one of Type*, and the number of lines,</li>
+ * <li>the number of samples and the sample rate in Hz,</li>
+ * <li>the scale and offset of the values,</li>
+ * <li>the parameters of the original reader for normalizing the values,
+ *     returned by getParameters and getParameters_Int.</li>
+ * </ul>
+ *
+ * @see BinarySamplesWriter
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class BinarySamplesReader extends SamplesSource {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.BinarySamplesReader" /*BinarySamplesReader.class*/);
+
+	/** The first bytes of each file. */
+	public static final byte[] Magic = {'O', 'U', 'S', 'M', 'P'};
+	/** The version of the format described above. */
+	public static final int Version = 1;
+
+	/** Values stored as signed 16 bit integers. */
+	public static final int TypeInt16 = 1;
+	/** Values stored as signed 32 bit integers. */
+	public static final int TypeInt32 = 2;
+	/** Values stored as 32 bit floating point numbers. */
+	public static final int TypeFloat32 = 3;
+	/** Values stored as 64 bit floating point numbers. */
+	public static final int TypeFloat64 = 4;
+
+	/** The positions of the header fields. */
+	static final int OffsetVersion = 5;
+	static final int OffsetValueType = 6;
+	static final int OffsetNumLines = 8;
+	static final int OffsetNumSamples = 12;
+	static final int OffsetSampleRate = 20;
+	static final int OffsetScale = 28;
+	static final int OffsetOffset = 36;
+	static final int OffsetParMultiplicator = 44;
+	static final int OffsetParOffset = 48;
+	static final int OffsetParIntMultiplicator = 52;
+	static final int OffsetParIntDivisor = 56;
+	static final int OffsetParIntOffset = 60;
+	/** The size of the header, the timestamps start here. */
+	public static final int HeaderSize = 64;
+
+	/** The mapped file. */
+	private ByteBuffer buffer;
+
+	/** The number of samples in the file. */
+	private int numSamples;
+
+	/** The value type, one of Type*. */
+	private int valueType;
+
+	/** The size of a value in bytes. */
+	private int valueSize;
+
+	/** The scaling of the values. */
+	private double scale, offset;
+
+	/** The sample rate in Hz. */
+	private double sampleRate;
+
+	/** The parameters of the original reader. */
+	private float parMultiplicator, parOffset;
+	private int parIntMultiplicator, parIntDivisor, parIntOffset;
+
+	/** The next sample to emit. */
+	private int nextSample = 0;
+
+	/** The time of the sample emitted last, in microseconds. */
+	private long sampleTime = -1;
+
+	/** The sample that is emitted, reused for all samples. */
+	private double[] sample;
+
+	/** Opens a file for replaying as fast as possible.
+	 * @param filename The file to read.
+	 * @throws IOException If the file can not be mapped or is not in the
+	 *                     format described above.
+	 */
+	public BinarySamplesReader(String filename) throws IOException {
+		this(filename, 0);
+	}
+
+	/** Opens a file.
+	 * @param filename The file to read.
+	 * @param sleepBetweenReads The number of milliseconds to sleep between
+	 *                          two samples. Set to 0 to replay as fast as
+	 *                          possible, in blocks of samples.
+	 * @throws IOException If the file can not be mapped or is not in the
+	 *                     format described above.
+	 */
+	public BinarySamplesReader(String filename, int sleepBetweenReads) throws IOException {
+		this(map(filename), sleepBetweenReads);
+		logger.info("Replaying " + numSamples + " samples of " + maxNumLines +
+				" lines at " + sampleRate + " Hz from " + filename);
+	}
+
+	/** Checks the header and initializes the reader from it. */
+	private BinarySamplesReader(ByteBuffer buffer, int sleepBetweenReads) throws IOException {
+		super(buffer.getInt(OffsetNumLines), sleepBetweenReads);
+		this.buffer = buffer;
+
+		valueType = buffer.get(OffsetValueType);
+		valueSize = getValueSize(valueType);
+		long num = buffer.getLong(OffsetNumSamples);
+		if (maxNumLines < 1 || num < 0 ||
+				HeaderSize + num * (8 + (long) maxNumLines * valueSize) > buffer.capacity())
+			throw new IOException("Inconsistent header, the file may be truncated");
+		numSamples = (int) num;
+		sampleRate = buffer.getDouble(OffsetSampleRate);
+		scale = buffer.getDouble(OffsetScale);
+		offset = buffer.getDouble(OffsetOffset);
+		parMultiplicator = buffer.getFloat(OffsetParMultiplicator);
+		parOffset = buffer.getFloat(OffsetParOffset);
+		parIntMultiplicator = buffer.getInt(OffsetParIntMultiplicator);
+		parIntDivisor = buffer.getInt(OffsetParIntDivisor);
+		parIntOffset = buffer.getInt(OffsetParIntOffset);
+		sample = new double[maxNumLines];
+	}
+
+	/** Maps a file and checks its magic bytes and version. */
+	private static ByteBuffer map(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.capacity() < HeaderSize)
+				throw new IOException("Not a binary samples file");
+			for (int i=0; i<Magic.length; i++)
+				if (buffer.get(i) != Magic[i])
+					throw new IOException("Not a binary samples file");
+			if (buffer.get(OffsetVersion) != Version)
+				throw new IOException("Unsupported binary samples version " + buffer.get(OffsetVersion));
+			return buffer;
+		}
+		finally {
+			// the mapping stays valid after closing the channel
+			in.close();
+		}
+	}
+
+	/** Returns the size of values of the given type in bytes. */
+	static int getValueSize(int valueType) throws IOException {
+		switch (valueType) {
+		case TypeInt16: return 2;
+		case TypeInt32: return 4;
+		case TypeFloat32: return 4;
+		case TypeFloat64: return 8;
+		default: throw new IOException("Unknown value type " + valueType);
+		}
+	}
+
+	/** Returns the number of samples in the file. */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/** Returns the sample rate in Hz. */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/** Returns the timestamp of a sample in microseconds.
+	 * @param index The index of the sample, between 0 and getNumSamples()-1.
+	 */
+	public long getTimestamp(int index) {
+		return buffer.getLong(HeaderSize + index*8);
+	}
+
+	/** Returns a value of a sample.
+	 * @param index The index of the sample, between 0 and getNumSamples()-1.
+	 * @param line The line, between 0 and getMaxNumLines()-1.
+	 */
+	public double getValue(int index, int line) {
+		int pos = HeaderSize + numSamples*8 + (line*numSamples + index)*valueSize;
+		double raw;
+		switch (valueType) {
+		case TypeInt16: raw = buffer.getShort(pos); break;
+		case TypeInt32: raw = buffer.getInt(pos); break;
+		case TypeFloat32: raw = buffer.getFloat(pos); break;
+		default: raw = buffer.getDouble(pos);
+		}
+		return raw * scale + offset;
+	}
+
+	/** Returns the timestamp of the sample that is currently being emitted. */
+	//@Override
+	public long getSampleTime() {
+		return sampleTime;
+	}
+
+	/** Emits the next samples, as a block unless sleeping between reads. */
+	//@Override
+	protected boolean handleSample() {
+		int end = getSleepBetweenReads() > 0 ? nextSample+1 : nextSample+MaxBlockSize;
+		if (end > numSamples)
+			end = numSamples;
+		beginBlock();
+		try {
+			for (; nextSample<end; nextSample++) {
+				for (int i=0; i<maxNumLines; i++)
+					sample[i] = getValue(nextSample, i);
+				sampleTime = getTimestamp(nextSample);
+				emitSample(sample);
+			}
+		}
+		finally {
+			endBlock();
+		}
+		return nextSample < numSamples;
+	}
+
+	/** Returns the parameters of the reader the file has been converted from. */
+	//@Override
+	public TimeSeries.Parameters getParameters() {
+		return new TimeSeries.Parameters() {
+			public float getMultiplicator() {
+				return parMultiplicator;
+			}
+
+			public float getOffset() {
+				return parOffset;
+			}
+		};
+	}
+
+	/** Returns the parameters of the reader the file has been converted from. */
+	//@Override
+	public TimeSeries_Int.Parameters getParameters_Int() {
+		return new TimeSeries_Int.Parameters() {
+			public int getMultiplicator() {
+				return parIntMultiplicator;
+			}
+
+			public int getDivisor() {
+				return parIntDivisor;
+			}
+
+			public int getOffset() {
+				return parIntOffset;
+			}
+		};
+	}
+}
@@ -0,0 +1,276 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class writes samples in the binary format read by
+ * BinarySamplesReader. Because the values are stored in columns, the number
+ * of samples must be known when creating the file: the file is created with
+ * its final size and memory-mapped, and each sample is written to its
+ * positions in the columns.
+ *
+ * The convert method (and main) converts the text logs read by
+ * ParallelPortPWMReader and XsensLogReader. It reads the log twice, first to
+ * count the samples and to find the most compact value type that represents
+ * all values exactly, and then to write them.
+ *
+ * @see BinarySamplesReader
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class BinarySamplesWriter {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.BinarySamplesWriter" /*BinarySamplesWriter.class*/);
+
+	/** The file being written. */
+	private RandomAccessFile file;
+
+	/** The mapped file. */
+	private MappedByteBuffer buffer;
+
+	/** The number of lines and samples of the file. */
+	private int numLines, numSamples;
+
+	/** The value type, one of BinarySamplesReader.Type*. */
+	private int valueType;
+
+	/** The size of a value in bytes. */
+	private int valueSize;
+
+	/** The scaling of the values. */
+	private double scale, offset;
+
+	/** The number of samples written so far. */
+	private int written = 0;
+
+	/** Creates the file and writes the header.
+	 *
+	 * @param filename The file to write, it is overwritten if it exists.
+	 * @param numLines The number of lines of each sample.
+	 * @param numSamples The number of samples that will be added.
+	 * @param valueType The type to store the values as, one of
+	 *                  BinarySamplesReader.TypeInt16, TypeInt32, TypeFloat32
+	 *                  and TypeFloat64.
+	 * @param scale The values are stored as (value - offset) / scale, rounded
+	 *              for integer types.
+	 * @param offset See scale.
+	 * @param sampleRate The sample rate in Hz.
+	 * @param parameters The parameters for normalizing the values, as
+	 *                   returned by the original SamplesSource.
+	 * @param parameters_Int The integer parameters for normalizing the
+	 *                       values, as returned by the original SamplesSource.
+	 * @throws IOException If the file can not be created or would be larger
+	 *                     than can be mapped.
+	 */
+	public BinarySamplesWriter(String filename, int numLines, int numSamples,
+			int valueType, double scale, double offset, double sampleRate,
+			TimeSeries.Parameters parameters, TimeSeries_Int.Parameters parameters_Int) throws IOException {
+		if (numLines < 1 || numSamples < 0)
+			throw new IllegalArgumentException("Need at least one line and a positive number of samples");
+		this.numLines = numLines;
+		this.numSamples = numSamples;
+		this.valueType = valueType;
+		this.valueSize = BinarySamplesReader.getValueSize(valueType);
+		this.scale = scale;
+		this.offset = offset;
+
+		long size = BinarySamplesReader.HeaderSize + numSamples * (8 + (long) numLines * valueSize);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Can not write " + numSamples + " samples into one file, it would be too large");
+		file = new RandomAccessFile(filename, "rw");
+		try {
+			file.setLength(size);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i=0; i<BinarySamplesReader.Magic.length; i++)
+			buffer.put(i, BinarySamplesReader.Magic[i]);
+		buffer.put(BinarySamplesReader.OffsetVersion, (byte) BinarySamplesReader.Version);
+		buffer.put(BinarySamplesReader.OffsetValueType, (byte) valueType);
+		buffer.putInt(BinarySamplesReader.OffsetNumLines, numLines);
+		buffer.putLong(BinarySamplesReader.OffsetNumSamples, numSamples);
+		buffer.putDouble(BinarySamplesReader.OffsetSampleRate, sampleRate);
+		buffer.putDouble(BinarySamplesReader.OffsetScale, scale);
+		buffer.putDouble(BinarySamplesReader.OffsetOffset, offset);
+		buffer.putFloat(BinarySamplesReader.OffsetParMultiplicator, parameters.getMultiplicator());
+		buffer.putFloat(BinarySamplesReader.OffsetParOffset, parameters.getOffset());
+		buffer.putInt(BinarySamplesReader.OffsetParIntMultiplicator, parameters_Int.getMultiplicator());
+		buffer.putInt(BinarySamplesReader.OffsetParIntDivisor, parameters_Int.getDivisor());
+		buffer.putInt(BinarySamplesReader.OffsetParIntOffset, parameters_Int.getOffset());
+	}
+
+	/** Writes the next sample.
+	 *
+	 * @param timestamp The time of the sample in microseconds.
+	 * @param sample The values of the sample, with at least numLines values.
+	 */
+	public void addSample(long timestamp, double[] sample) {
+		if (written == numSamples)
+			throw new IllegalStateException("Already wrote all " + numSamples + " samples");
+		buffer.putLong(BinarySamplesReader.HeaderSize + written*8, timestamp);
+		int pos = BinarySamplesReader.HeaderSize + numSamples*8 + written*valueSize;
+		for (int i=0; i<numLines; i++, pos+=numSamples*valueSize) {
+			double raw = (sample[i] - offset) / scale;
+			switch (valueType) {
+			case BinarySamplesReader.TypeInt16: buffer.putShort(pos, (short) Math.round(raw)); break;
+			case BinarySamplesReader.TypeInt32: buffer.putInt(pos, (int) Math.round(raw)); break;
+			case BinarySamplesReader.TypeFloat32: buffer.putFloat(pos, (float) raw); break;
+			default: buffer.putDouble(pos, raw);
+			}
+		}
+		written++;
+	}
+
+	/** Flushes the samples to the file and closes it.
+	 * @throws IOException If fewer samples than announced have been written,
+	 *                     or if the file can not be written.
+	 */
+	public void close() throws IOException {
+		buffer.force();
+		file.close();
+		if (written < numSamples)
+			throw new IOException("Only wrote " + written + " of " + numSamples + " samples");
+	}
+
+	/** Collects what is needed for choosing the value type in the first pass
+	 * of convert. */
+	private static class Scan implements VectorSamplesSink {
+		int numLines;
+		int numSamples = 0;
+		boolean integral = true;
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+
+		Scan(int numLines) {
+			this.numLines = numLines;
+		}
+
+		public void addSample(double[] sample, int index) {
+			for (int i=0; i<numLines; i++) {
+				if (sample[i] != Math.floor(sample[i]))
+					integral = false;
+				if (sample[i] < min)
+					min = sample[i];
+				if (sample[i] > max)
+					max = sample[i];
+			}
+			numSamples++;
+		}
+
+		public void segmentStart(int index) {
+		}
+
+		public void segmentEnd(int index) {
+		}
+	}
+
+	/** Opens one of the text log readers. */
+	private static AsciiLineReaderBase openReader(String readerName, String input, int samplerate) throws IOException {
+		InputStream in = new FileInputStream(input);
+		if (input.endsWith(".gz"))
+			in = new GZIPInputStream(in);
+		if (readerName.equals("ParallelPortPWMReader"))
+			return new ParallelPortPWMReader(in, samplerate);
+		else if (readerName.equals("XsensLogReader"))
+			return new XsensLogReader(in);
+		in.close();
+		throw new IllegalArgumentException("Unknown reader " + readerName);
+	}
+
+	/** Converts a text log to the binary format. Integer values are stored
+	 * as 16 or 32 bit integers when their range allows it, all others as
+	 * 64 bit floating point numbers, so that replaying the converted file
+	 * yields exactly the same samples as replaying the log.
+	 *
+	 * @param readerName "ParallelPortPWMReader" or "XsensLogReader".
+	 * @param input The log to convert, it is decompressed if the name ends
+	 *              with ".gz".
+	 * @param output The file to write.
+	 * @param samplerate The sample rate in Hz for ParallelPortPWMReader,
+	 *                   ignored for XsensLogReader.
+	 * @return The number of samples written.
+	 * @throws IOException If the log can not be read or the file can not be
+	 *                     written.
+	 */
+	public static int convert(String readerName, String input, String output, int samplerate) throws IOException {
+		AsciiLineReaderBase reader = openReader(readerName, input, samplerate);
+		Scan scan = new Scan(reader.getMaxNumLines());
+		reader.addSink(scan);
+		reader.simulateSampling();
+		reader.dispose();
+
+		int valueType = BinarySamplesReader.TypeFloat64;
+		double offset = 0;
+		if (scan.numSamples > 0 && scan.integral && scan.max - scan.min <= 0xffffffffL) {
+			if (scan.max - scan.min <= 0xffff) {
+				valueType = BinarySamplesReader.TypeInt16;
+				if (scan.min < Short.MIN_VALUE || scan.max > Short.MAX_VALUE)
+					offset = scan.min - Short.MIN_VALUE;
+			}
+			else {
+				valueType = BinarySamplesReader.TypeInt32;
+				if (scan.min < Integer.MIN_VALUE || scan.max > Integer.MAX_VALUE)
+					offset = scan.min - Integer.MIN_VALUE;
+			}
+		}
+		logger.info("Converting " + scan.numSamples + " samples from " + input + " to " + output +
+				" with value type " + valueType + " and offset " + offset);
+
+		final AsciiLineReaderBase secondPass = openReader(readerName, input, samplerate);
+		final BinarySamplesWriter writer = new BinarySamplesWriter(output, secondPass.getMaxNumLines(),
+				scan.numSamples, valueType, 1, offset,
+				readerName.equals("XsensLogReader") ? XsensLogReader.SAMPLE_RATE : samplerate,
+				secondPass.getParameters(), secondPass.getParameters_Int());
+		try {
+			secondPass.addSink(new VectorSamplesSink() {
+				public void addSample(double[] sample, int index) {
+					writer.addSample(secondPass.getSampleTime(), sample);
+				}
+
+				public void segmentStart(int index) {
+				}
+
+				public void segmentEnd(int index) {
+				}
+			});
+			secondPass.simulateSampling();
+		}
+		finally {
+			secondPass.dispose();
+			writer.close();
+		}
+		return scan.numSamples;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: BinarySamplesWriter <ParallelPortPWMReader|XsensLogReader> <log> <output> [samplerate]");
+			System.exit(1);
+		}
+		int samplerate = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+		long start = System.currentTimeMillis();
+		int num = convert(args[0], args[1], args[2], samplerate);
+		System.out.println("Converted " + num + " samples in " + (System.currentTimeMillis()-start) + " ms");
+	}
+}
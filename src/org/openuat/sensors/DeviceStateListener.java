@@ -18,6 +18,13 @@ import org.slf4j.LoggerFactory;
  * It calls the abstract functions toActive and toPassive when the device state
  * changes, and forwards all samples via calls to addSample.
  * 
+ * The lines may also deliver their samples as blocks, one line after the
+ * other. In this case, samples and segment events are queued per line and
+ * passed on in the same order as if all lines had delivered one sample at a
+ * time: for each sample index, the sample and segment events of the first
+ * line, then those of the second line, and so on. For this to work, all
+ * lines must receive the same number of samples.
+ * 
  * @author Rene Mayrhofer
  * @version 1.0
  */
@@ -31,6 +38,17 @@ public abstract class DeviceStateListener {
 	/** The listener objects, one for each line/time series. */
 	private TimeSeriesEventListener[] lineListeners;
 	
+	/** The samples and events of each line that have not yet been passed on. */
+	private LineQueue[] queues;
+	
+	/** The line whose next sample is passed on next. */
+	private int cursor = 0;
+	
+	/** True if the sample of the cursor line has been passed on, but the
+	 * cursor can not yet move on to the next line.
+	 */
+	private boolean cursorDone = false;
+	
 	/** Constructs the device listener objects.
 	 * 
 	 * @param numLines The number of lines/time series this device has.
@@ -38,8 +56,10 @@ public abstract class DeviceStateListener {
 	public DeviceStateListener(int numLines) {
 		this.lineActive = new boolean[numLines];
 		this.lineListeners = new TimeSeriesEventListener[numLines];
+		this.queues = new LineQueue[numLines];
 		for (int i=0; i<numLines; i++) {
 			lineListeners[i] = new TimeSeriesEventListener(i);
+			queues[i] = new LineQueue();
 			lineActive[i] = false;
 		}
 	}
@@ -64,8 +84,12 @@ public abstract class DeviceStateListener {
 
 	/** Resets the time series to the state as created when freshly constructing it (i.e. quiescent). */
 	public void reset() {
-		for (int i=0; i<lineActive.length; i++)
+		for (int i=0; i<lineActive.length; i++) {
 			lineActive[i] = false;
+			queues[i].clear();
+		}
+		cursor = 0;
+		cursorDone = false;
 	}
 	
 	/** This method will be called when the device was quiescent and became active with
@@ -119,6 +143,121 @@ public abstract class DeviceStateListener {
 		return false;
 	}
 
+	/** Passes on as many queued samples and events as possible in the order
+	 * described above. Lines are fed one after the other, so only the line 
+	 * that has just delivered samples may still deliver events for its last
+	 * sample. The cursor therefore never moves past the last sample of this
+	 * line, all other lines have delivered all of their events.
+	 * @param lineIndex The line that delivered the samples.
+	 */
+	private void samplesReceived(int lineIndex) {
+		while (true) {
+			LineQueue q = queues[cursor];
+			if (!cursorDone) {
+				if (q.isEmpty())
+					return;
+				q.passOn(cursor);
+				cursorDone = true;
+			}
+			if (cursor == lineIndex && q.passedOn == q.received)
+				return;
+			cursor = (cursor+1) % queues.length;
+			cursorDone = false;
+		}
+	}
+	
+	/** Handles a segment event of a line: it is passed on immediately if all
+	 * samples of the line have been passed on, and queued otherwise. 
+	 */
+	private void eventReceived(int lineIndex, int type, int numSample) {
+		if (queues[lineIndex].isEmpty())
+			handleEvent(lineIndex, type, numSample);
+		else
+			queues[lineIndex].add(type, 0, 0, numSample);
+	}
+	
+	/** Updates the device state for a segment event. */
+	private void handleEvent(int lineIndex, int type, int numSample) {
+		boolean previouslyActive = isActive();
+		lineActive[lineIndex] = (type == LineQueue.SegmentStart);
+		if (type == LineQueue.SegmentStart && !previouslyActive && isActive()) {
+			logger.debug("Time series " + lineIndex + " is first to become active at index " + numSample);
+			toActive(lineIndex, numSample);
+		}
+		else if (type == LineQueue.SegmentEnd && previouslyActive && !isActive()) {
+			logger.debug("Time series " + lineIndex + " is last to become quiescent");
+			toQuiescent(lineIndex, numSample);
+		}
+	}
+
+	/** This holds the samples and segment events of a line that have not 
+	 * yet been passed on, in the order they have been received.
+	 */
+	private class LineQueue {
+		static final int Sample = 0;
+		static final int Sample_Int = 1;
+		static final int SegmentStart = 2;
+		static final int SegmentEnd = 3;
+		
+		int[] types = new int[16];
+		double[] samples = new double[16];
+		int[] samples_Int = new int[16];
+		int[] indices = new int[16];
+		int head = 0, tail = 0;
+		/** The number of samples received and passed on on this line. */
+		int received = 0, passedOn = 0;
+		
+		boolean isEmpty() {
+			return head == tail;
+		}
+		
+		void clear() {
+			head = tail = received = passedOn = 0;
+		}
+		
+		void add(int type, double sample, int sample_Int, int index) {
+			if (tail == types.length) {
+				// compact first, and only grow when more than half is in use
+				int num = tail - head;
+				int size = num*2 > types.length ? types.length*2 : types.length;
+				int[] t = new int[size];
+				double[] s = new double[size];
+				int[] si = new int[size];
+				int[] ind = new int[size];
+				System.arraycopy(types, head, t, 0, num);
+				System.arraycopy(samples, head, s, 0, num);
+				System.arraycopy(samples_Int, head, si, 0, num);
+				System.arraycopy(indices, head, ind, 0, num);
+				types = t; samples = s; samples_Int = si; indices = ind;
+				head = 0;
+				tail = num;
+			}
+			types[tail] = type;
+			samples[tail] = sample;
+			samples_Int[tail] = sample_Int;
+			indices[tail] = index;
+			tail++;
+			if (type == Sample || type == Sample_Int)
+				received++;
+		}
+		
+		/** Passes on the sample at the head and all events following it. */
+		void passOn(int lineIndex) {
+			if (types[head] == Sample)
+				sampleAdded(lineIndex, samples[head], indices[head]);
+			else
+				sampleAdded(lineIndex, samples_Int[head], indices[head]);
+			head++;
+			passedOn++;
+			while (head < tail && types[head] != Sample && types[head] != Sample_Int) {
+				handleEvent(lineIndex, types[head], indices[head]);
+				head++;
+			}
+			if (head == tail)
+				head = tail = 0;
+		}
+	}
+
 	/** This is a helper class for listening to the sample events. */
 	private class TimeSeriesEventListener implements SamplesSink, SamplesSink_Int {
 		/** The line index in @see #lineActive that this object is responsible for. */
@@ -129,34 +268,40 @@ public abstract class DeviceStateListener {
 			this.lineIndex = lineIndex;
 		}
 	
-		/** Empty implementation of the SamplesSink method. Does nothing. */
+		/** Implementation of the SamplesSink method, queues the sample. */
 		public void addSample(double sample, int index) {
-			sampleAdded(lineIndex, sample, index);
+			queues[lineIndex].add(LineQueue.Sample, sample, 0, index);
+			samplesReceived(lineIndex);
 		}
 
-		/** Empty implementation of the SamplesSink_Int method. Does nothing. */
+		/** Implementation of the SamplesSink_Int method, queues the sample. */
 		public void addSample(int sample, int index) {
-			sampleAdded(lineIndex, sample, index);
+			queues[lineIndex].add(LineQueue.Sample_Int, 0, sample, index);
+			samplesReceived(lineIndex);
+		}
+
+		/** Implementation of the SamplesSink method, queues the samples. */
+		public void addSamples(double[] samples, int off, int len, int firstIndex) {
+			for (int i=0; i<len; i++)
+				queues[lineIndex].add(LineQueue.Sample, samples[off+i], 0, firstIndex+i);
+			samplesReceived(lineIndex);
+		}
+
+		/** Implementation of the SamplesSink_Int method, queues the samples. */
+		public void addSamples(int[] samples, int off, int len, int firstIndex) {
+			for (int i=0; i<len; i++)
+				queues[lineIndex].add(LineQueue.Sample_Int, 0, samples[off+i], firstIndex+i);
+			samplesReceived(lineIndex);
 		}
 
 		/** When a segment start has been detected, mark the respective device as active. */
 		public void segmentStart(int numSample) {
-			boolean previouslyActive = isActive();
-			lineActive[lineIndex] = true;
-			if (!previouslyActive && isActive()) {
-				logger.debug("Time series " + lineIndex + " is first to become active at index " + numSample);
-				toActive(lineIndex, numSample);
-			}
+			eventReceived(lineIndex, LineQueue.SegmentStart, numSample);
 		}
 
 		/** When all lines have become inactive again, mark the respective device as quiescent. */
 		public void segmentEnd(int numSample) {
-			boolean previouslyActive = isActive();
-			lineActive[lineIndex] = false;
-			if (previouslyActive && !isActive()) {
-				logger.debug("Time series " + lineIndex + " is last to become quiescent");
-				toQuiescent(lineIndex, numSample);
-			}
+			eventReceived(lineIndex, LineQueue.SegmentEnd, numSample);
 		}
 	}
 }
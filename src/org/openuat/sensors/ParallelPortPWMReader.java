@@ -11,8 +11,6 @@ package org.openuat.sensors;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +35,10 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 	/** The length of s sample period, i.e. the sample width, in microseconds. */
 	private int sampleWidth;
 	
-	/** The current samples, i.e. all sample values that fall into the current sample period. */
-	private ArrayList[] curSample;
+	/** The sums of the current samples, i.e. of all sample values that fall 
+	 * into the current sample period, and their number. */
+	private long[] curSampleSum;
+	private int curSampleCount;
 	/** The time when the last sample was issued, in usec. */
 	private long lastSampleAt;
 	/** Remember the last sample values, in case there is a sample period with no samples from
@@ -46,6 +46,14 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 	 */
 	private double[] lastSampleValues;
 	
+	/** The timestamp and line values of the line currently being parsed. */
+	private long timestampSecs, timestampUSecs;
+	private int[] allLines = new int[8];
+	
+	/** The index of the first field of the current line that is not a 
+	 * number, or -1. */
+	private int firstTextField = -1;
+	
 	/** Initializes the parallel port PWM log reader. It only saves the
 	 * passed parameters and opens the InputStream to read from the specified
 	 * file, and thus implicitly to check if the file exists and can be opened.
@@ -61,10 +69,11 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 		super(filename, 8, 0, false); 
 
 		this.sampleWidth = 1000000 / samplerate;
-		this.curSample = new ArrayList[maxNumLines];
-		for (int i=0; i<maxNumLines; i++)
-			curSample[i] = new ArrayList();
+		this.curSampleSum = new long[maxNumLines];
+		this.curSampleCount = 0;
 		this.lastSampleValues = new double[maxNumLines];
+		// the timestamp is written as seconds.microseconds
+		setFieldSeparators(" .");
 		
 		this.lastSampleAt = 0;
 		
@@ -84,10 +93,11 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 		super(stream, 8); 
 
 		this.sampleWidth = 1000000 / samplerate;
-		this.curSample = new ArrayList[maxNumLines];
-		for (int i=0; i<maxNumLines; i++)
-			curSample[i] = new ArrayList();
+		this.curSampleSum = new long[maxNumLines];
+		this.curSampleCount = 0;
 		this.lastSampleValues = new double[maxNumLines];
+		// the timestamp is written as seconds.microseconds
+		setFieldSeparators(" .");
 		
 		this.lastSampleAt = 0;
 		
@@ -95,45 +105,37 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 				" Hz (sample width " + sampleWidth + " us)");
 	}
 	
-	/** A helper function to parse single line of the format produced by 
-	 * parport-pulsewidth. This method creates the samples and emits events.
-	 * @param line The line to parse.
+	/** Remembers the timestamp and line values of the current line. */
+	//@Override
+	protected void fieldParsed(int field, long value) {
+		if (field == 0)
+			timestampSecs = value;
+		else if (field == 1)
+			timestampUSecs = value;
+		else if (field < 2+allLines.length)
+			allLines[field-2] = (int) value;
+	}
+
+	/** Remembers that the current line contains a field that is not a number. */
+	//@Override
+	protected void textFieldParsed(int field, byte[] buffer, int off, int len) {
+		if (firstTextField == -1)
+			firstTextField = field;
+	}
+
+	/** Handles a line of the format produced by parport-pulsewidth that has 
+	 * just been parsed. This method creates the samples and emits events.
+	 * @param numFields The number of fields in the line.
 	 */
 	//@Override
-	protected void parseLine(String line) {
-		long timestamp = 0;
-		/* Version 1 
-		StringTokenizer st = new StringTokenizer(line, " .", false);
-		// first two columns (with a '.' in between) are the timestamp (sec and usec)
-		try {
-			int timestampSecs = Integer.parseInt(st.nextToken()); 
-			int timestampUSecs = Integer.parseInt(st.nextToken());
-			timestamp = (long)timestampSecs*1000000 + timestampUSecs;
-		}
-		catch (NoSuchElementException e) {
-			logger.warn("Short line with incomplete timestamp, ignoring line");
-			return;
-		}
-		catch (NumberFormatException e) {
-			logger.warn("Unable to decode timestamp, ignoring line");
-			return;
-		}*/
-		
-		/* Version 2: maybe faster? - just slightly it seems, but keep it anyway */ 
-		try {
-			int timestampSecs = Integer.parseInt(line.substring(0, 10)); 
-			int timestampUSecs = Integer.parseInt(line.substring(11, 17));
-			timestamp = (long)timestampSecs*1000000 + timestampUSecs;
-		}
-		catch (StringIndexOutOfBoundsException e) {
-			logger.warn("Unable to decode timestamp, ignoring line");
-			return;
-		}
-		catch (NumberFormatException e) {
+	protected void lineParsed(int numFields) {
+		int textField = firstTextField;
+		firstTextField = -1;
+		if (numFields < 2 || (textField >= 0 && textField < 2)) {
 			logger.warn("Unable to decode timestamp, ignoring line");
 			return;
 		}
-		StringTokenizer st = new StringTokenizer(line.substring(18), " ", false);
+		long timestamp = timestampSecs*1000000 + timestampUSecs;
 		
 		if (logger.isDebugEnabled())
 			logger.debug("Reading at timestamp " + timestamp + " us");
@@ -164,17 +166,15 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 				logger.debug("Current reading creates new sample");
 			
 			// get the average over the last period's samples (if there are any, if not, just use the last period's samples)
-			if (curSample[0].size() > 0) {
+			if (curSampleCount > 0) {
 				if (logger.isDebugEnabled())
-					logger.debug("Averaging over " + curSample[0].size() + " values for the last sample");
+					logger.debug("Averaging over " + curSampleCount + " values for the last sample");
 				for (int i=0; i<maxNumLines; i++) {
-					lastSampleValues[i] = 0;
-					for (int j=0; j<curSample[i].size(); j++)
-						lastSampleValues[i] += ((Integer) curSample[i].get(j)).intValue();
-					lastSampleValues[i] /= curSample[i].size();
+					lastSampleValues[i] = (double) curSampleSum[i] / curSampleCount;
 					// prepare for the next (i.e. the currently starting) sample period
-					curSample[i].clear();
+					curSampleSum[i] = 0;
 				}
+				curSampleCount = 0;
 			}
 			
 			while (timestamp > lastSampleAt + sampleWidth) {
@@ -186,23 +186,15 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 			}
 		}
 		
-		// only continue to extract values when there are more tokens in the line
-		if (st.hasMoreElements()) {
+		// only continue to extract values when there are more fields in the line
+		if (numFields > 2) {
 			// then the 8 data lines
-			int[] allLines = new int[8];
-			int elem=0;
-			while (elem<8 && st.hasMoreElements()) {
-				try {
-					allLines[elem] = Integer.parseInt(st.nextToken());
-				}
-				catch (NumberFormatException e) {
-					logger.warn("Unable to decode sample value, ignoring line");
-					return;
-				}
-				elem++;
+			if (textField >= 0 && textField < 2+allLines.length) {
+				logger.warn("Unable to decode sample value, ignoring line");
+				return;
 			}
-			if (elem<8) {
-				logger.warn("Short line, only got " + elem + " line values instead of " + 8 + ", ignoring line");
+			if (numFields < 2+allLines.length) {
+				logger.warn("Short line, only got " + (numFields-2) + " line values instead of " + 8 + ", ignoring line");
 			}
 			else {
 				// extract the lines we want and remember the values
@@ -210,8 +202,9 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 					int val = allLines[i]; 
 					if (logger.isDebugEnabled())
 						logger.debug("Read value " + val + " on line " + i);
-					curSample[i].add(new Integer(val));
+					curSampleSum[i] += val;
 				}
+				curSampleCount++;
 			}
 		}
 		else
@@ -219,6 +212,15 @@ public class ParallelPortPWMReader extends AsciiLineReaderBase {
 				logger.debug("This is an empty reading containing only a timestamp");
 	}
 	
+	/** Returns the time of the sample that has been emitted last, in
+	 * microseconds. This is the time sinks should associate with a sample
+	 * while it is being passed to them.
+	 */
+	//@Override
+	public long getSampleTime() {
+		return lastSampleAt;
+	}
+
 	/** Provides appropriate parameters for interpreting the values to 
 	 * normalize to the [-1;1] range.
 	 */
@@ -0,0 +1,124 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors;
+
+/** This is a growable buffer of samples that keeps them in a primitive
+ * array instead of boxing each of them. Samples are appended at the end
+ * and can be removed from the front, so that it can also be used for
+ * sliding windows.
+ * <br>
+ * The samples are always stored consecutively, so that they can be passed
+ * to methods that take an array, an offset and a length without copying
+ * them: the samples are getArray()[getOffset()] to
+ * getArray()[getOffset()+size()-1]. Removing samples from the front only
+ * moves the offset, and the remaining samples are moved to the front of
+ * the array only when the end has been reached and at least half of the
+ * array is free, which takes amortized constant time per sample.
+ * <br>
+ * This class is not thread safe.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class SamplesBuffer {
+	/** The array holding the samples. */
+	private double[] buffer;
+
+	/** The position of the first sample in buffer. */
+	private int start = 0;
+
+	/** The number of samples in buffer. */
+	private int size = 0;
+
+	/** Creates an empty buffer.
+	 * @param initialCapacity The number of samples the buffer can hold before
+	 *                        it needs to grow. Must be > 0.
+	 */
+	public SamplesBuffer(int initialCapacity) {
+		if (initialCapacity <= 0)
+			throw new IllegalArgumentException("Initial capacity must be > 0");
+		buffer = new double[initialCapacity];
+	}
+
+	/** Appends a sample, growing the buffer if necessary. */
+	public void add(double sample) {
+		if (start + size == buffer.length) {
+			if (start >= buffer.length / 2)
+				// enough room at the front, just move the samples there
+				System.arraycopy(buffer, start, buffer, 0, size);
+			else {
+				double[] newBuffer = new double[buffer.length * 2];
+				System.arraycopy(buffer, start, newBuffer, 0, size);
+				buffer = newBuffer;
+			}
+			start = 0;
+		}
+		buffer[start + size++] = sample;
+	}
+
+	/** Removes samples from the front.
+	 * @param num The number of samples to remove. If it is larger than
+	 *            size(), all samples are removed.
+	 */
+	public void removeFirst(int num) {
+		if (num >= size)
+			clear();
+		else if (num > 0) {
+			start += num;
+			size -= num;
+		}
+	}
+
+	/** Removes all samples, but keeps the array. */
+	public void clear() {
+		start = 0;
+		size = 0;
+	}
+
+	/** Returns the number of samples in the buffer. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns a sample.
+	 * @param i The position of the sample, 0 for the first one.
+	 */
+	public double get(int i) {
+		if (i < 0 || i >= size)
+			throw new ArrayIndexOutOfBoundsException(i);
+		return buffer[start + i];
+	}
+
+	/** Returns the array holding the samples, starting at getOffset(). It
+	 * is only valid until the next call to add, and must not be modified.
+	 */
+	public double[] getArray() {
+		return buffer;
+	}
+
+	/** Returns the position of the first sample in getArray(). */
+	public int getOffset() {
+		return start;
+	}
+
+	/** Copies samples to a new array.
+	 * @param off The position of the first sample to copy, 0 for the first
+	 *            one in the buffer.
+	 * @param len The number of samples to copy.
+	 * @return A new array with len samples.
+	 */
+	public double[] toArray(int off, int len) {
+		if (off < 0 || len < 0 || off + len > size)
+			throw new ArrayIndexOutOfBoundsException("Can not copy " + len +
+					" samples from " + off + " of " + size);
+		double[] ret = new double[len];
+		System.arraycopy(buffer, start + off, ret, 0, len);
+		return ret;
+	}
+}
@@ -0,0 +1,314 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors;
+
+/** This is a ring buffer for handing samples from one producer thread (the
+ * sampling thread of a SamplesSource) to one consumer thread (which calls
+ * the sinks). Each entry is a complete sample over all lines, stored in
+ * primitive arrays, so that putting and taking samples does not allocate
+ * objects and does not need locks: the producer is the only one writing
+ * tail, and the consumer is the only one writing head. A thread that has
+ * to wait (the consumer on an empty ring, or a producer with OverflowBlock
+ * on a full one) parks on a monitor and is notified by the other thread,
+ * which only takes the lock when it sees that flag set. An idle ring
+ * therefore does not wake up any thread.
+ *
+ * What happens when the ring is full depends on the overflow policy:
+ * <ul>
+ * <li>OverflowBlock makes the producer wait until the consumer has taken
+ *     samples, so no samples are lost.</li>
+ * <li>OverflowDropNewest discards the sample that is being put.</li>
+ * <li>OverflowDropOldest lets the producer continue and the consumer skips
+ *     the samples that have been waiting longest. To make this safe
+ *     without locks, the ring has room for one more batch than its
+ *     capacity, so that the producer never overwrites samples the consumer
+ *     is currently copying. Only when the producer also fills this room
+ *     before the consumer has finished copying a batch, the newest sample
+ *     is discarded.</li>
+ * </ul>
+ * Dropped samples are counted in both cases.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class SamplesRing {
+	/** The producer waits until there is room. */
+	public static final int OverflowBlock = 0;
+	/** The oldest samples are discarded. */
+	public static final int OverflowDropOldest = 1;
+	/** The sample being put is discarded. */
+	public static final int OverflowDropNewest = 2;
+
+	/** The number of lines of each sample. */
+	private int numLines;
+
+	/** The number of samples that may wait in the ring. */
+	private int capacity;
+
+	/** The maximum number of samples taken at once. */
+	private int batchSize;
+
+	/** The number of slots, capacity+batchSize. */
+	private int slots;
+
+	/** One of the Overflow* constants. */
+	private int overflowPolicy;
+
+	/** The sample values, numLines per slot. Integer samples are stored as
+	 * double values, which is exact. */
+	private double[] values;
+
+	/** The sample indices, one per slot. */
+	private int[] indices;
+
+	/** True for slots that hold integer samples. */
+	private boolean[] isInt;
+
+	/** The position of the next sample to take, only written by the consumer. */
+	private volatile long head = 0;
+
+	/** The position of the next sample to put, only written by the producer. */
+	private volatile long tail = 0;
+
+	/** Samples dropped by the producer (OverflowDropNewest, or
+	 * OverflowDropOldest when the extra room was full as well). */
+	private volatile long droppedByProducer = 0;
+
+	/** Samples skipped by the consumer (OverflowDropOldest). */
+	private volatile long droppedByConsumer = 0;
+
+	/** Set by close, makes a blocked producer give up. */
+	private volatile boolean closed = false;
+
+	/** The monitor that a waiting producer or consumer parks on. */
+	private Object parking = new Object();
+
+	/** Set while the consumer waits for samples. It is written before 
+	 * checking tail again, and the producer reads it after writing tail,
+	 * so that one of them always sees the other's write. */
+	private volatile boolean consumerWaiting = false;
+
+	/** Set while the producer waits for room, the same as consumerWaiting
+	 * with head. */
+	private volatile boolean producerWaiting = false;
+
+	/** Creates the ring.
+	 * @param numLines The number of lines of each sample.
+	 * @param capacity The number of samples that may wait in the ring before
+	 *                 the overflow policy applies.
+	 * @param batchSize The maximum number of samples take returns at once.
+	 * @param overflowPolicy One of OverflowBlock, OverflowDropOldest and
+	 *                       OverflowDropNewest.
+	 */
+	public SamplesRing(int numLines, int capacity, int batchSize, int overflowPolicy) {
+		if (numLines < 1 || capacity < 1 || batchSize < 1)
+			throw new IllegalArgumentException("Number of lines, capacity and batch size must be > 0");
+		if (overflowPolicy < OverflowBlock || overflowPolicy > OverflowDropNewest)
+			throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+		this.numLines = numLines;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.slots = capacity + batchSize;
+		this.overflowPolicy = overflowPolicy;
+		values = new double[slots * numLines];
+		indices = new int[slots];
+		isInt = new boolean[slots];
+	}
+
+	/** Returns the number of lines of each sample. */
+	public int getNumLines() {
+		return numLines;
+	}
+
+	/** Returns the maximum number of samples take returns at once. */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/** Returns the overflow policy as passed to the constructor. */
+	public int getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/** Returns the number of samples that have been dropped so far. */
+	public long getDroppedSamples() {
+		return droppedByProducer + droppedByConsumer;
+	}
+
+	/** Returns the number of samples currently waiting in the ring. */
+	public int size() {
+		long n = tail - head;
+		return n > capacity ? capacity : (int) n;
+	}
+
+	/** Returns true if no samples are waiting in the ring. */
+	public boolean isEmpty() {
+		return tail == head;
+	}
+
+	/** Makes a producer that is blocked in put and a consumer that waits 
+	 * in waitForSamples return. Samples that are already in the ring can 
+	 * still be taken.
+	 */
+	public void close() {
+		closed = true;
+		unpark();
+	}
+
+	/** Wakes up the other thread if it is parked. */
+	private void unpark() {
+		synchronized (parking) {
+			parking.notifyAll();
+		}
+	}
+
+	/** Waits until a slot may be written, according to the overflow policy.
+	 * Must only be called by the producer.
+	 * @return The position to write, or -1 if the sample is dropped.
+	 */
+	private long claim() {
+		long t = tail;
+		switch (overflowPolicy) {
+		case OverflowBlock:
+			if (t - head >= capacity) {
+				synchronized (parking) {
+					producerWaiting = true;
+					try {
+						while (t - head >= capacity) {
+							if (closed) {
+								droppedByProducer++;
+								return -1;
+							}
+							parking.wait();
+						}
+					}
+					catch (InterruptedException e) {
+						droppedByProducer++;
+						return -1;
+					}
+					finally {
+						producerWaiting = false;
+					}
+				}
+			}
+			return t;
+		case OverflowDropNewest:
+			if (t - head >= capacity) {
+				droppedByProducer++;
+				return -1;
+			}
+			return t;
+		default:
+			// the slots up to head+slots only hold samples the consumer has
+			// already copied or will skip
+			if (t - head >= slots) {
+				droppedByProducer++;
+				return -1;
+			}
+			return t;
+		}
+	}
+
+	/** Puts a sample into the ring. Must only be called by the producer.
+	 * @param sample The sample, with at least getNumLines() values. The
+	 *               values are copied.
+	 * @param index The index of the sample.
+	 * @return false if the sample has been dropped.
+	 */
+	public boolean put(double[] sample, int index) {
+		long t = claim();
+		if (t < 0)
+			return false;
+		int slot = (int) (t % slots);
+		System.arraycopy(sample, 0, values, slot*numLines, numLines);
+		indices[slot] = index;
+		isInt[slot] = false;
+		tail = t+1;
+		if (consumerWaiting)
+			unpark();
+		return true;
+	}
+
+	/** Puts a sample into the ring. Must only be called by the producer.
+	 * @param sample The sample, with at least getNumLines() values. The
+	 *               values are copied.
+	 * @param index The index of the sample.
+	 * @return false if the sample has been dropped.
+	 */
+	public boolean put(int[] sample, int index) {
+		long t = claim();
+		if (t < 0)
+			return false;
+		int slot = (int) (t % slots);
+		for (int i=0, off=slot*numLines; i<numLines; i++)
+			values[off+i] = sample[i];
+		indices[slot] = index;
+		isInt[slot] = true;
+		tail = t+1;
+		if (consumerWaiting)
+			unpark();
+		return true;
+	}
+
+	/** Takes up to getBatchSize() samples from the ring, without waiting.
+	 * Must only be called by the consumer.
+	 * @param samples Receives the samples, must have getBatchSize() rows
+	 *                with getNumLines() values each. Integer samples are
+	 *                returned as double values.
+	 * @param sampleIndices Receives the indices of the samples.
+	 * @param sampleIsInt Receives true for integer samples.
+	 * @return The number of samples taken, 0 if the ring is empty.
+	 */
+	public int take(double[][] samples, int[] sampleIndices, boolean[] sampleIsInt) {
+		long h = head, t = tail;
+		if (overflowPolicy == OverflowDropOldest && t - h > capacity) {
+			// skip the oldest samples, the producer may already be overwriting them
+			droppedByConsumer += t - capacity - h;
+			h = t - capacity;
+		}
+		int n = (int) Math.min(t - h, batchSize);
+		for (int k=0; k<n; k++) {
+			int slot = (int) ((h+k) % slots);
+			System.arraycopy(values, slot*numLines, samples[k], 0, numLines);
+			sampleIndices[k] = indices[slot];
+			sampleIsInt[k] = isInt[slot];
+		}
+		head = h+n;
+		if (n > 0 && producerWaiting)
+			unpark();
+		return n;
+	}
+
+	/** Waits until samples are available, the timeout has passed or the 
+	 * ring has been closed. Must only be called by the consumer.
+	 * @param timeoutMs The maximum time to wait in milliseconds.
+	 * @return true if samples are available.
+	 * @throws InterruptedException When interrupted while waiting.
+	 */
+	public boolean waitForSamples(int timeoutMs) throws InterruptedException {
+		if (!isEmpty())
+			return true;
+		long end = System.currentTimeMillis() + timeoutMs;
+		synchronized (parking) {
+			consumerWaiting = true;
+			try {
+				while (isEmpty()) {
+					long remaining = end - System.currentTimeMillis();
+					if (remaining <= 0 || closed)
+						return false;
+					parking.wait(remaining);
+				}
+			}
+			finally {
+				consumerWaiting = false;
+			}
+		}
+		return true;
+	}
+}
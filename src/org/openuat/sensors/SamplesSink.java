@@ -9,8 +9,9 @@
 package org.openuat.sensors;
 
 /** This interface represents a sink for sample values, and only defines
- * three methods: to add new samples, to react to a segment becoming
- * "active" (by some definition) and to react to a segment becoming "inactive".
+ * methods to add new samples (one at a time or as a block), to react to a
+ * segment becoming "active" (by some definition) and to react to a segment
+ * becoming "inactive".
  * 
  * @author Rene Mayrhofer
  * @version 1.0
@@ -24,6 +25,23 @@ public interface SamplesSink {
 	 */
 	public void addSample(double sample, int index);
 
+	/** Adds a block of consecutive samples to the sink. This must be 
+	 * equivalent to calling addSample for each of them in order, but saves a
+	 * call per sample in each stage. Sources that deliver samples of multiple
+	 * lines may pass a whole block for one line before the block for the next
+	 * line, so sinks that combine lines must not rely on the samples of
+	 * different lines being interleaved.
+	 * 
+	 * @param samples The array holding the sample values. It may be reused
+	 *                by the caller after this method returns, so the sink
+	 *                must copy any values it wants to keep.
+	 * @param off The position of the first sample in samples.
+	 * @param len The number of samples to add.
+	 * @param firstIndex The index of the first sample, the following ones
+	 *                   have consecutive indices.
+	 */
+	public void addSamples(double[] samples, int off, int len, int firstIndex);
+
 	/** Should be called when it is detected that an active segment
 	 * starts, i.e. when it is detected that the source has become
 	 * active by some definition.
@@ -9,19 +9,33 @@ package org.openuat.sensors;
 
 import java.util.Vector;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.Clock;
+import org.openuat.util.ExecutionService;
+import org.openuat.util.VirtualClock;
 
 /** This is a base class for emitting samples to a list of registers 
  * SamplesSink objects. It imlements handling the listeners and the background
  * thread for doing the sampling.
  * 
+ * Derived classes that can read more than one sample at a time (e.g. when
+ * replaying a log file) should call beginBlock and endBlock around emitting
+ * these samples. The samples are then collected and delivered to the sinks
+ * as blocks, one line after the other, instead of calling every sink for 
+ * every sample.
+ * 
+ * With setHandOff, the sinks are called by a separate thread instead of the
+ * sampling thread. The sampling thread then only puts the samples into a
+ * SamplesRing, so that slow sinks do not delay reading from the sensor.
+ * 
  * @author Rene Mayrhofer
  * @version 1.0
  */
 public abstract class SamplesSource {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.SamplesSource" /*SamplesSource.class*/);
+	private static Log logger = LogFactory.getLogger("org.openuat.sensors.SamplesSource" /*SamplesSource.class*/);
 
 	/** The maximum number of data lines to read from the device - depends on the sensor. */
 	protected int maxNumLines;
@@ -57,6 +71,12 @@ public abstract class SamplesSource {
 	 */
 	private Vector listeners;
 	
+	/** A copy of listeners that is used for emitting samples, so that the
+	 * Vector does not need to be accessed for each sample. Updated whenever
+	 * a sink is added or removed.
+	 */
+	private ListenerCombination[] listenersArray = new ListenerCombination[0];
+	
 	/** This holds all registered vector sinks.
 	 * @see #addSink(VectorSamplesSink)
 	 * @see #removeSink(VectorSamplesSink)
@@ -73,7 +93,7 @@ public abstract class SamplesSource {
 	 * @see #start()
 	 * @see #stop()
 	 */
-	private Thread samplingThread = null;
+	private BackgroundTask samplingThread = null;
 	
 	/** The time to sleep between two reads from the file in milliseconds.
 	 * @see RunHelper#run()
@@ -85,7 +105,65 @@ public abstract class SamplesSource {
 	 * @see #stop()
 	 * @see RunHelper#run()
 	 */
-	boolean alive = true;
+	volatile boolean alive = true;
+	
+	/** The capacity of the ring to use for handing samples to the sinks, or
+	 * 0 to call the sinks from the sampling thread.
+	 * @see #setHandOff(int, int)
+	 */
+	private int handOffCapacity = 0;
+	
+	/** The overflow policy of the ring, one of the SamplesRing.Overflow* 
+	 * constants.
+	 */
+	private int handOffPolicy = SamplesRing.OverflowBlock;
+	
+	/** The ring that emitSample puts samples into while the sampling thread
+	 * and the hand-off thread are running, null otherwise.
+	 */
+	private SamplesRing ring = null;
+	
+	/** The thread that takes samples from ring and calls the sinks. */
+	private BackgroundTask handOffThread = null;
+	
+	/** The samples dropped by previously used rings. */
+	private long droppedSamples = 0;
+	
+	/** The clock set with setClock, or null to use the default clock. */
+	private Clock clock = null;
+	
+	/** The virtual clock that is advanced with the samples while replaying
+	 * in virtual time, null otherwise. Set by start and simulateSampling.
+	 */
+	private VirtualClock drivenClock = null;
+	
+	/** The maximum number of samples that are collected between beginBlock
+	 * and endBlock before they are delivered.
+	 */
+	protected static final int MaxBlockSize = 256;
+	
+	/** True between beginBlock and endBlock. */
+	private boolean collectingBlock = false;
+
+	/** The collected samples of the current block, indexed by line and then
+	 * by sample. Only one of them is used in a block, depending on the 
+	 * emitSample variant that has been called.
+	 */
+	private double[][] block = null;
+	private int[][] block_Int = null;
+
+	/** The number of samples in the current block. */
+	private int blockLength = 0;
+	
+	/** The number of the first sample in the current block. */
+	private int blockFirstSample = 0;
+	
+	/** True if the current block has been collected from integer samples. */
+	private boolean blockIsInt = false;
+	
+	/** Used for converting a line of a block to the type of a sink. */
+	private double[] convertBlock = null;
+	private int[] convertBlock_Int = null;
 
 	/** Initializes the reader base object. It only saves the
 	 * passed parameters, but the member variable @see {@link #port} needs to
@@ -132,6 +210,14 @@ public abstract class SamplesSource {
 		if (logger.isDebugEnabled())
 			logger.debug("Registering new listener for lines " + tmp.toString());
 		listeners.addElement(listener);
+		updateListenersArray();
+	}
+	
+	/** Copies listeners to listenersArray. */
+	private void updateListenersArray() {
+		ListenerCombination[] tmp = new ListenerCombination[listeners.size()];
+		listeners.copyInto(tmp);
+		listenersArray = tmp;
 	}
 
 	/** Registers a sink, which will receive all new values as they are sampled.
@@ -172,6 +258,8 @@ public abstract class SamplesSource {
 	}
 
 	/** Registers a sink, which will receive all new vectors as they are sampled.
+	 * The arrays passed to the sink are reused for later samples, see
+	 * {@link VectorSamplesSink#addSample}.
 	 * @param vectorSinks These sinks will be notified with complete samples.  
 	 */
 	public void addSink(VectorSamplesSink vectorSink) throws IllegalArgumentException {
@@ -187,7 +275,9 @@ public abstract class SamplesSource {
 	 * @return true if removed, false if not (i.e. if they have not been added previously).
 	 */
 	public boolean removeSink(int[] lines, SamplesSink[] doubleSinks) {
-		return listeners.removeElement(new ListenerCombination(lines, doubleSinks, null));
+		boolean removed = listeners.removeElement(new ListenerCombination(lines, doubleSinks, null));
+		updateListenersArray();
+		return removed;
 	}
 
 	/** Removes a previously registered sink.
@@ -199,7 +289,9 @@ public abstract class SamplesSource {
 	 * @return true if removed, false if not (i.e. if they have not been added previously).
 	 */
 	public boolean removeSink_Int(int[] lines, SamplesSink_Int[] intSinks) {
-		return listeners.removeElement(new ListenerCombination(lines, null, intSinks));
+		boolean removed = listeners.removeElement(new ListenerCombination(lines, null, intSinks));
+		updateListenersArray();
+		return removed;
 	}
 
 	/** Removes a previously registered sink.
@@ -216,10 +308,18 @@ public abstract class SamplesSource {
 	 */
 	public void start() {
 		if (samplingThread == null) {
+			alive = true;
+			initClock();
+			// in virtual time, sinks need to be called while the clock is at their sample
+			if (handOffCapacity > 0 && drivenClock == null) {
+				if (logger.isDebugEnabled())
+					logger.debug("Starting hand-off thread with capacity " + handOffCapacity);
+				ring = new SamplesRing(maxNumLines, handOffCapacity, MaxBlockSize, handOffPolicy);
+				handOffThread = ExecutionService.start(ExecutionService.PoolSensor, new HandOffHelper(ring));
+			}
 			if (logger.isDebugEnabled())
 				logger.debug("Starting sampling thread");
-			samplingThread = new Thread(new RunHelper());
-			samplingThread.start();
+			samplingThread = ExecutionService.start(ExecutionService.PoolSensor, new RunHelper());
 		}
 	}
 
@@ -247,8 +347,53 @@ public abstract class SamplesSource {
 			}
 			logger.error("Sampling thread stopped");
 			samplingThread = null;
+			
+			if (handOffThread != null) {
+				// the hand-off thread delivers the remaining samples before ending
+				ring.close();
+				try {
+					handOffThread.join();
+				}
+				catch (InterruptedException e) {
+					logger.error("Error waiting for hand-off thread to terminate: " + e.toString());
+				}
+				handOffThread = null;
+				droppedSamples += ring.getDroppedSamples();
+				if (ring.getDroppedSamples() > 0)
+					logger.warn("Dropped " + ring.getDroppedSamples() + " samples because the sinks were too slow");
+				ring = null;
+			}
 		}
 	}
+	
+	/** Lets the sinks be called by a separate thread instead of the sampling
+	 * thread. This takes effect with the next call to start and only applies
+	 * to the background sampling started there, not to simulateSampling.
+	 * @param capacity The number of samples that may wait for the sinks
+	 *                 before overflowPolicy applies. Set to 0 to call the 
+	 *                 sinks from the sampling thread again.
+	 * @param overflowPolicy One of SamplesRing.OverflowBlock, 
+	 *                       SamplesRing.OverflowDropOldest and
+	 *                       SamplesRing.OverflowDropNewest.
+	 * @see SamplesRing
+	 */
+	public void setHandOff(int capacity, int overflowPolicy) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must be >= 0");
+		if (overflowPolicy < SamplesRing.OverflowBlock || overflowPolicy > SamplesRing.OverflowDropNewest)
+			throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+		this.handOffCapacity = capacity;
+		this.handOffPolicy = overflowPolicy;
+	}
+	
+	/** Returns the number of samples that have been dropped because the 
+	 * sinks could not keep up with the sampling thread.
+	 * @see #setHandOff(int, int)
+	 */
+	public long getDroppedSamples() {
+		SamplesRing r = ring;
+		return droppedSamples + (r != null ? r.getDroppedSamples() : 0);
+	}
 
 	/** This causes the reader to be shut down properly by calling stop().
 	 * #see stop
@@ -265,21 +410,89 @@ public abstract class SamplesSource {
 		return maxNumLines;
 	}
 
+	/** Returns the number of milliseconds to sleep between two reads. Sources
+	 * that sleep between reads should only read a single sample in 
+	 * handleSample, so that the sampling rate is kept.
+	 */
+	protected int getSleepBetweenReads() {
+		return sleepBetweenReads;
+	}
+
+	/** Sets the clock used for sleeping between reads.
+	 * <br>
+	 * When the clock is a VirtualClock, the source replays in virtual time:
+	 * it does not sleep, but advances the clock to the time of each sample
+	 * (see getSampleTime) before passing it to the sinks, or by 
+	 * sleepBetweenReads after each read for sources that do not know the
+	 * time of their samples. The samples are then passed one at a time and
+	 * from the sampling thread, so that everything using the clock sees the
+	 * time of the sample it is processing. This takes effect with the next
+	 * call to start or simulateSampling.
+	 * @param clock The clock to use, or null to use Clock.getDefault().
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+	
+	/** Returns the clock set with setClock, or the default clock. */
+	public Clock getClock() {
+		return clock != null ? clock : Clock.getDefault();
+	}
+	
+	/** Returns the time of the sample that is currently being emitted, in 
+	 * microseconds. Sources that know when their samples have been taken 
+	 * (e.g. from the timestamps in a log file) should override this, it is
+	 * used to advance a virtual clock.
+	 * @return The time in microseconds, or -1 if unknown.
+	 * @see #setClock(Clock)
+	 */
+	public long getSampleTime() {
+		return -1;
+	}
+	
+	/** Decides whether this source drives a virtual clock. */
+	private void initClock() {
+		Clock c = getClock();
+		drivenClock = c instanceof VirtualClock ? (VirtualClock) c : null;
+		if (drivenClock != null && logger.isDebugEnabled())
+			logger.debug("Replaying in virtual time, starting at " + drivenClock.currentTimeMillis() + "ms");
+	}
+	
+	/** Waits for sleepBetweenReads, or advances the virtual clock. */
+	private void pause() {
+		if (sleepBetweenReads <= 0)
+			return;
+		VirtualClock vc = drivenClock;
+		if (vc != null) {
+			if (getSampleTime() < 0)
+				vc.advance(sleepBetweenReads);
+			return;
+		}
+		try {
+			getClock().sleep(sleepBetweenReads);
+		} catch (InterruptedException e) {
+			// just don't care when being interrupted, it just makes the waiting time shorter when stopping
+		}
+	}
+	
+	/** Advances the virtual clock to the time of the current sample. */
+	private void advanceClock() {
+		long t = getSampleTime();
+		if (t >= 0)
+			drivenClock.advanceTo(t / 1000);
+	}
+	
 	/** Simulate sampling by reading all available lines from the spcified file. */
 	public void simulateSampling() {
-		while (handleSample()) {
-			try {
-				if (sleepBetweenReads > 0)
-					Thread.sleep(sleepBetweenReads);
-			} catch (InterruptedException e) {
-				// just don't care when being interrupted, it just makes the waiting time shorter when stopping
-			}
-		}
+		initClock();
+		while (handleSample())
+			pause();
 	}
 	
 	/** This method should be called by the parseLine method to send samples to all registered
 	 * listeners. Note: When integer sinks have been registered, the double values will be truncated
-	 * for sending to these listeners!
+	 * for sending to these listeners! The array is passed on to vector sinks
+	 * as it is and may be reused by the caller as soon as this returns.
 	 * @param sample The current sample.
 	 */
 	protected void emitSample(double[] sample) {
@@ -287,24 +500,52 @@ public abstract class SamplesSource {
 			for (int i=0; i<maxNumLines; i++)
 				logger.debug("Double sample number " + numSamples +  
 						", line " + i + " = " + sample[i]);
-    	if (listeners != null)
-    		for (int j=0; j<listeners.size(); j++) {
-    			ListenerCombination l = (ListenerCombination) listeners.elementAt(j);
+		if (drivenClock != null)
+			advanceClock();
+		SamplesRing r = ring;
+		if (r != null)
+			r.put(sample, numSamples);
+		else
+			deliverSample(sample, numSamples);
+		numSamples++;
+	}
+	
+	/** Sends a sample to all registered listeners, or adds it to the current
+	 * block. 
+	 */
+	private void deliverSample(double[] sample, int index) {
+		if (collectingBlock) {
+			if (blockLength > 0 && blockIsInt)
+				flushBlock();
+			if (block == null)
+				block = new double[maxNumLines][MaxBlockSize];
+			if (blockLength == 0)
+				blockFirstSample = index;
+			blockIsInt = false;
+			for (int i=0; i<maxNumLines; i++)
+				block[i][blockLength] = sample[i];
+			if (++blockLength == MaxBlockSize)
+				flushBlock();
+		}
+		else {
+			ListenerCombination[] ls = listenersArray;
+			for (int j=0; j<ls.length; j++) {
+				ListenerCombination l = ls[j];
 				if (l.doubleSinks != null)
 					for (int i=0; i<l.lines.length; i++)
-    					l.doubleSinks[i].addSample(sample[l.lines[i]], numSamples);
+    					l.doubleSinks[i].addSample(sample[l.lines[i]], index);
    				if (l.intSinks != null)
 					for (int i=0; i<l.lines.length; i++)
-    					l.intSinks[i].addSample((int) sample[l.lines[i]], numSamples);
-    		}
+    					l.intSinks[i].addSample((int) sample[l.lines[i]], index);
+			}
+		}
     	
     	if (vectorListeners != null)
     		for (int j=0; j<vectorListeners.size(); j++) {
     			VectorSamplesSink l = (VectorSamplesSink) vectorListeners.elementAt(j);
     			if (l != null)
-    				l.addSample(sample, numSamples);
+    				l.addSample(sample, index);
     		}
-		numSamples++;
 	}
 
 	/** This method should be called by the parseLine method to send samples to all registered
@@ -316,17 +557,107 @@ public abstract class SamplesSource {
 			for (int i=0; i<maxNumLines; i++)
 				logger.debug("Integer sample number " + numSamples +  
 						", line " + i + " = " + sample[i]);
-    	if (listeners != null)
-    		for (int j=0; j<listeners.size(); j++) {
-    			ListenerCombination l = (ListenerCombination) listeners.elementAt(j);
+		if (drivenClock != null)
+			advanceClock();
+		SamplesRing r = ring;
+		if (r != null)
+			r.put(sample, numSamples);
+		else
+			deliverSample(sample, numSamples);
+		numSamples++;
+	}
+	
+	/** Sends a sample to all registered listeners, or adds it to the current
+	 * block. 
+	 */
+	private void deliverSample(int[] sample, int index) {
+		if (collectingBlock) {
+			if (blockLength > 0 && !blockIsInt)
+				flushBlock();
+			if (block_Int == null)
+				block_Int = new int[maxNumLines][MaxBlockSize];
+			if (blockLength == 0)
+				blockFirstSample = index;
+			blockIsInt = true;
+			for (int i=0; i<maxNumLines; i++)
+				block_Int[i][blockLength] = sample[i];
+			if (++blockLength == MaxBlockSize)
+				flushBlock();
+		}
+		else {
+			ListenerCombination[] ls = listenersArray;
+			for (int j=0; j<ls.length; j++) {
+				ListenerCombination l = ls[j];
 				if (l.doubleSinks != null)
 					for (int i=0; i<l.lines.length; i++)
-    					l.doubleSinks[i].addSample(sample[l.lines[i]], numSamples);
+    					l.doubleSinks[i].addSample(sample[l.lines[i]], index);
    				if (l.intSinks != null)
 					for (int i=0; i<l.lines.length; i++)
-    					l.intSinks[i].addSample(sample[l.lines[i]], numSamples);
-    		}
-		numSamples++;
+    					l.intSinks[i].addSample(sample[l.lines[i]], index);
+			}
+		}
+	}
+	
+	/** Starts collecting the samples passed to emitSample instead of 
+	 * delivering each of them immediately. Vector sinks still receive each
+	 * sample immediately.
+	 * @see #endBlock()
+	 */
+	protected void beginBlock() {
+		// with a hand-off thread, it collects the blocks, and in virtual time
+		// each sample is delivered at its time
+		if (ring == null && drivenClock == null)
+			collectingBlock = true;
+	}
+	
+	/** Delivers all samples collected since beginBlock to the sinks and stops 
+	 * collecting.
+	 * @see #beginBlock()
+	 */
+	protected void endBlock() {
+		if (ring == null) {
+			flushBlock();
+			collectingBlock = false;
+		}
+	}
+	
+	/** Delivers the samples collected so far to all sinks, one line after the
+	 * other for each listener combination. Note: When integer sinks have been 
+	 * registered, double values will be truncated as in emitSample. 
+	 */
+	private void flushBlock() {
+		if (blockLength == 0)
+			return;
+		int len = blockLength, first = blockFirstSample;
+		blockLength = 0;
+		ListenerCombination[] ls = listenersArray;
+		for (int j=0; j<ls.length; j++) {
+			ListenerCombination l = ls[j];
+			for (int i=0; i<l.lines.length; i++) {
+				if (l.doubleSinks != null) {
+					if (blockIsInt) {
+						if (convertBlock == null)
+							convertBlock = new double[MaxBlockSize];
+						for (int k=0; k<len; k++)
+							convertBlock[k] = block_Int[l.lines[i]][k];
+						l.doubleSinks[i].addSamples(convertBlock, 0, len, first);
+					}
+					else
+						l.doubleSinks[i].addSamples(block[l.lines[i]], 0, len, first);
+				}
+				if (l.intSinks != null) {
+					if (!blockIsInt) {
+						if (convertBlock_Int == null)
+							convertBlock_Int = new int[MaxBlockSize];
+						for (int k=0; k<len; k++)
+							convertBlock_Int[k] = (int) block[l.lines[i]][k];
+						l.intSinks[i].addSamples(convertBlock_Int, 0, len, first);
+					}
+					else
+						l.intSinks[i].addSamples(block_Int[l.lines[i]], 0, len, first);
+				}
+			}
+		}
 	}
 	
 	/** This is a helper class that implements the Runnable interface internally. This way, one <b>has</b> to use the
@@ -334,14 +665,8 @@ public abstract class SamplesSource {
 	 */
 	private class RunHelper implements Runnable {
 		public void run() {
-			while (alive && handleSample()) {
-				try {
-					if (sleepBetweenReads > 0)
-						Thread.sleep(sleepBetweenReads);
-				} catch (InterruptedException e) {
-					// just don't care when being interrupted, it just makes the waiting time shorter when stopping
-				}
-			}
+			while (alive && handleSample())
+				pause();
 			if (! alive)
 				if (logger.isDebugEnabled())
 					logger.debug("Background sampling thread terminated regularly due to request");
@@ -375,6 +700,53 @@ public abstract class SamplesSource {
 		}
 	}
 	
+	/** This is a helper class that takes the samples from the ring and calls
+	 * the sinks, until the sampling thread has been stopped and the ring is 
+	 * empty. Samples that are taken together are delivered as a block.
+	 */
+	private class HandOffHelper implements Runnable {
+		private SamplesRing r;
+		
+		HandOffHelper(SamplesRing r) {
+			this.r = r;
+		}
+		
+		public void run() {
+			double[][] samples = new double[r.getBatchSize()][maxNumLines];
+			int[] indices = new int[r.getBatchSize()];
+			boolean[] isInt = new boolean[r.getBatchSize()];
+			int[] sample_Int = new int[maxNumLines];
+			
+			while (alive || !r.isEmpty()) {
+				int num = r.take(samples, indices, isInt);
+				if (num == 0) {
+					try {
+						// stop closes the ring, which ends the wait early
+						r.waitForSamples(1000);
+					}
+					catch (InterruptedException e) {
+						// just check again
+					}
+					continue;
+				}
+				collectingBlock = num > 1;
+				for (int k=0; k<num; k++) {
+					if (isInt[k]) {
+						for (int i=0; i<maxNumLines; i++)
+							sample_Int[i] = (int) samples[k][i];
+						deliverSample(sample_Int, indices[k]);
+					}
+					else
+						deliverSample(samples[k], indices[k]);
+				}
+				flushBlock();
+				collectingBlock = false;
+			}
+			if (logger.isDebugEnabled())
+				logger.debug("Hand-off thread terminated");
+		}
+	}
+	
 	/** This method is called whenever a sample should be read from the 
 	 * respective source, and it should in turn call emitSample to send the
 	 * new sample to all registered listeners.
@@ -10,8 +10,9 @@ package org.openuat.sensors;
 
 import java.util.Vector;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
+import org.openuat.util.Clock;
 
 /** This class represents a possibly multi-dimensional time series of a single
  * sensor. It computes simply statistical values, can distinguish active from
@@ -22,7 +23,7 @@ import org.slf4j.LoggerFactory;
  */
 public class TimeSeries implements SamplesSink {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.TimeSeries" /*TimeSeries.class*/);
+	private static Log logger = LogFactory.getLogger("org.openuat.sensors.TimeSeries" /*TimeSeries.class*/);
 	
 	/** This interface represents the parameters that <b>must</b> be reasonably
 	 * set when initializing a time series that reads from sensors instead of
@@ -63,17 +64,28 @@ public class TimeSeries implements SamplesSink {
 	/** Stores the last value, used only when differencing=true. */
 	private double lastSample;
 	
-	/** Keeps a running total sum over all samples added to this time series so far (not only the current time window). */
-	private double totalSum = 0;
-	/** Keeps a running total sum over all squared samples added to this time series so far (not only the current time window). */
-	private double totalSum2 = 0;
+	/** After this many wraps of the circular buffer, the window statistics
+	 * are recomputed from the buffer to remove the rounding errors that the
+	 * incremental updates have accumulated. This keeps them exact on streams
+	 * that run for days, while costing less than one operation per sample.
+	 */
+	private static final int recomputeWindowStatisticsWraps = 64;
+
+	/** Keeps a running mean over all samples added to this time series so far (not only the current time window). 
+	 * This and totalM2 are updated with Welford's method, which, unlike a sum of
+	 * squares, does not lose precision when the mean is large compared to the variance. */
+	private double totalMean = 0;
+	/** Keeps the sum of squared differences to totalMean over all samples added to this time series so far. */
+	private double totalM2 = 0;
 	/** The number of samples added to this time series so far (not only the current time window). */
-	private int totalNum = 0;
+	private long totalNum = 0;
 	
-	/** Keeps a running sum over all samples pf the current time window. */
-	private double windowSum = 0;
-	/** Keeps a running sum over all squared samples pf the current time window. */
-	private double windowSum2 = 0;
+	/** Keeps a running mean over all samples of the current time window. */
+	private double windowMean = 0;
+	/** Keeps the sum of squared differences to windowMean over all samples of the current time window. */
+	private double windowM2 = 0;
+	/** Counts the wraps of the circular buffer since the window statistics have been recomputed. */
+	private int wraps = 0;
 
 	/** This offset is added to all sample values for normalization.
 	 * @see #setOffset(double)
@@ -103,6 +115,19 @@ public class TimeSeries implements SamplesSink {
 	 */
 	private Vector nextStageSinks = new Vector();
 	
+	/** A copy of nextStageSinks, so that forwarding samples does not need to
+	 * access the Vector. It is replaced whenever a sink is added or removed.
+	 */
+	private SamplesSink[] nextStageArray = new SamplesSink[0];
+	
+	/** Holds the pre-processed samples until they are forwarded to the next
+	 * stage. It is reused for all blocks and only grows.
+	 */
+	private double[] nextStageBlock = new double[1];
+	
+	/** Used by addSample to pass a single sample to addSamples. */
+	private double[] singleSample = new double[1];
+	
 	/** The variance threshold to detect active segments. Only if this is set > 0, 
 	 * detection of active segments (and thus calculation of the variance) will be
 	 * done.
@@ -125,6 +150,11 @@ public class TimeSeries implements SamplesSink {
 	 * samples ago).
 	 */
 	private long lastSampleRateReported = -1;
+	
+	/** The clock used for estimating the sample rate, or null to use the
+	 * default clock.
+	 */
+	private Clock clock = null;
 
 	/** Initializes the time series circular buffer with the specified window size.
 	 * 
@@ -145,11 +175,12 @@ public class TimeSeries implements SamplesSink {
 	public void reset() {
 		index = 0;
 		full = false;
-		totalSum = 0;
-		totalSum2 = 0;
+		totalMean = 0;
+		totalM2 = 0;
 		totalNum = 0;
-		windowSum = 0;
-		windowSum2 = 0;
+		windowMean = 0;
+		windowM2 = 0;
+		wraps = 0;
 	}
 	
 	/** Adds a new sample to the time series in-memory buffer, updates statistics and
@@ -162,114 +193,178 @@ public class TimeSeries implements SamplesSink {
 	 *              to start at 0.
 	 */
 	public void addSample(double sample, int sampleNum) {
-/*		if (sampleNum != totalNum) {
-			logger.warn("Sample index " + sampleNum + " does not correspond to number of samples already received "
-					+ "(" + totalNum + ")");
-		}*/
-		
-		// first of all, normalize the incoming values to our internal range
-		sample = sample * multiplicator + offset;
+		singleSample[0] = sample;
+		addSamples(singleSample, 0, 1, sampleNum);
+	}
 
-                // and if differencing is enabled, do it right now so that it is used for all other stages
-                // (so that even the buffer will already hold difference values)
-                if (differencing) {
-                    if (index>0 || full) {
-                        double tmp = sample;
-                        sample -= lastSample;
-                        lastSample = tmp;
-                    }
-                    else {
-                        // if this is the first sample, can only use 0
-                        lastSample = sample;
-                        sample = 0;
-                    }
-                }
+	/** Adds a block of consecutive samples to the time series in-memory buffer, updates 
+	 * statistics and may forward to the next stage. This is equivalent to calling addSample
+	 * for each of them, but the next stage receives the pre-processed samples as blocks,
+	 * which are only split where active or quiescent segments start.
+	 * 
+	 * @param samples The array holding the samples to add.
+	 * @param off The position of the first sample in samples.
+	 * @param len The number of samples to add.
+	 * @param firstSampleNum The number of the first sample to add.
+	 */
+	public void addSamples(double[] samples, int off, int len, int firstSampleNum) {
+		if (nextStageBlock.length < len)
+			nextStageBlock = new double[len];
+		boolean trace = logger.isTraceEnabled();
+		boolean debug = logger.isDebugEnabled();
+		// the number of samples in nextStageBlock that have not yet been forwarded
+		int pending = 0;
+		for (int k=0; k<len; k++) {
+			int sampleNum = firstSampleNum + k;
+/*			if (sampleNum != totalNum) {
+				logger.warn("Sample index " + sampleNum + " does not correspond to number of samples already received "
+						+ "(" + totalNum + ")");
+			}*/
+			// first of all, normalize the incoming values to our internal range
+			double sample = samples[off+k] * multiplicator + offset;
+
+			// and if differencing is enabled, do it right now so that it is used for all other stages
+			// (so that even the buffer will already hold difference values)
+			if (differencing) {
+				if (index>0 || full) {
+					double tmp = sample;
+					sample -= lastSample;
+					lastSample = tmp;
+				}
+				else {
+					// if this is the first sample, can only use 0
+					lastSample = sample;
+					sample = 0;
+				}
+			}
+
+			// update the window statistics: if circular buffer is already full, the
+			// new sample replaces the oldest one, otherwise it is simply added
+			if (full) {
+				double old = circularBuffer[index];
+				double newMean = windowMean + (sample - old) / circularBuffer.length;
+				windowM2 += (sample - old) * (sample - newMean + old - windowMean);
+				windowMean = newMean;
+			}
+			else {
+				double delta = sample - windowMean;
+				windowMean += delta / (index+1);
+				windowM2 += delta * (sample - windowMean);
+			}
+
+			// add sample to internal buffer
+			circularBuffer[index] = sample;
+			index++;
+			if (index == circularBuffer.length) {
+				full = true;
+				index = 0;
+				if (++wraps == recomputeWindowStatisticsWraps)
+					recomputeWindowStatistics();
+			}
+
+			totalNum++;
+			double delta = sample - totalMean;
+			totalMean += delta / totalNum;
+			totalM2 += delta * (sample - totalMean);
 
-       		// if circular buffer is already full, remove oldest (i.e. update statistics)
-		if (full) {
-			windowSum -= circularBuffer[index];
-			windowSum2 -= circularBuffer[index] * circularBuffer[index];
+			// Now that this time series buffer has been updated, queue it for the next stage.
+			// But optionally pre-process our values before forwarding them.
+			double nextStageSample = sample;
+			// first subtract mean (because that is in the same value range as the "raw" values)
+			if (subtractWindowMean)
+				nextStageSample -= getWindowMean();
+			else if (subtractTotalMean)
+				nextStageSample -= getTotalMean();
+			if (trace)
+				logger.trace("Pushing value " + nextStageSample + " to next stage");
+			nextStageBlock[pending++] = nextStageSample;
+
+			// detect active segments
+			if (debug)
+				logger.debug("Checking for activity: window variance is " + getWindowVariance() + 
+						", threshold is " + activeVarianceThreshold);
+			if (activeVarianceThreshold > 0) {
+				double variance = getWindowVariance();
+				if (variance >= activeVarianceThreshold && !isActive) {
+					if (debug)
+						logger.debug("Detected transition to active at index " + sampleNum);
+					isActive = true;
+					// the next stage must have received all samples up to this one
+					forwardNextStage(pending, sampleNum-pending+1);
+					pending = 0;
+					for (int i=0; i<nextStageArray.length; i++)
+						// we define the active segment to start at the end of an active window
+						nextStageArray[i].segmentStart(sampleNum);
+				}
+				else if (variance < activeVarianceThreshold && isActive) {
+					if (debug)
+						logger.debug("Detected transition to quiescent at index " + (sampleNum-circularBuffer.length+1));
+					isActive = false;
+					forwardNextStage(pending, sampleNum-pending+1);
+					pending = 0;
+					for (int i=0; i<nextStageArray.length; i++)
+						// and to end at the beginning of a quiescent window
+						nextStageArray[i].segmentEnd(sampleNum-circularBuffer.length+1);
+				}
+			}
+
+			// enable the sample rate
+			if (debug || forceSampleRateEstimation)
+				estimateSampleRate();
 		}
-		
-		// add sample to internal buffer and update statistics
-		circularBuffer[index] = sample;
-		index++;
-		if (index == circularBuffer.length) {
-			full = true;
-			index = 0;
+		forwardNextStage(pending, firstSampleNum+len-pending);
+	}
+
+	/** Forwards the first num samples of nextStageBlock to the next stage.
+	 * @param num The number of samples to forward.
+	 * @param firstSampleNum The number of the first of these samples.
+	 */
+	private void forwardNextStage(int num, int firstSampleNum) {
+		if (num == 0)
+			return;
+		for (int i=0; i<nextStageArray.length; i++) {
+			if (num == 1)
+				nextStageArray[i].addSample(nextStageBlock[0], firstSampleNum);
+			else
+				nextStageArray[i].addSamples(nextStageBlock, 0, num, firstSampleNum);
 		}
+	}
 
-		windowSum += sample;
-		windowSum2 += sample * sample;
-		totalSum += sample;
-		totalSum2 += sample * sample;
-		totalNum++;
-		
-		// Now that this time series buffer has been updated, notify next stage.
-		// But optionally pre-process our values before forwarding them.
-		double nextStageSample = sample;
-		// first subtract mean (because that is in the same value range as the "raw" values)
-		if (subtractWindowMean)
-			nextStageSample -= getWindowMean();
-		else if (subtractTotalMean)
-			nextStageSample -= getTotalMean();
-		if (logger.isTraceEnabled())
-			logger.trace("Pushing value " + nextStageSample + " to next stage");
-    	if (nextStageSinks != null)
-    		for (int i=0; i<nextStageSinks.size(); i++) {
-    			SamplesSink s = (SamplesSink) nextStageSinks.elementAt(i);
-    			s.addSample(nextStageSample, sampleNum);
-    		}
-		
-		// detect active segments
-    	if (logger.isDebugEnabled())
-    		logger.debug("Checking for activity: window variance is " + getWindowVariance() + 
-    				", threshold is " + activeVarianceThreshold);
-    	if (activeVarianceThreshold > 0 && getWindowVariance() >= activeVarianceThreshold
-    			&& !isActive) {
-    		logger.debug("Detected transition to active at index " + sampleNum);
-    		isActive = true;
-        	if (nextStageSinks != null)
-        		for (int i=0; i<nextStageSinks.size(); i++) {
-        			SamplesSink s = (SamplesSink) nextStageSinks.elementAt(i);
-        			// we define the active segment to start at the end of an active window
-        			s.segmentStart(sampleNum);
-        		}
-    	}
-    	if (activeVarianceThreshold > 0 && getWindowVariance() < activeVarianceThreshold
-    			&& isActive) {
-    		logger.debug("Detected transition to quiescent at index " + (sampleNum-circularBuffer.length+1));
-    		isActive = false;
-        	if (nextStageSinks != null)
-        		for (int i=0; i<nextStageSinks.size(); i++) {
-        			SamplesSink s = (SamplesSink) nextStageSinks.elementAt(i);
-        			// and to end at the beginning of a quiescent window
-        			s.segmentEnd(sampleNum-circularBuffer.length+1);
-        		}
-    	}
+	/** Computes windowMean and windowM2 from the (full) circular buffer. */
+	private void recomputeWindowStatistics() {
+		double sum = 0;
+		for (int i=0; i<circularBuffer.length; i++)
+			sum += circularBuffer[i];
+		double mean = sum / circularBuffer.length;
+		double m2 = 0;
+		for (int i=0; i<circularBuffer.length; i++)
+			m2 += (circularBuffer[i] - mean) * (circularBuffer[i] - mean);
+		windowMean = mean;
+		windowM2 = m2;
+		wraps = 0;
+	}
 
-    	// enable the sample rate
-    	if (logger.isDebugEnabled() || forceSampleRateEstimation) {
-    		if (totalNum % estimateSampleRateWidth == 0) {
-				long curTime = System.currentTimeMillis();
-    			if (lastSampleRateEstimated >= 0) {
-    				// only print at a maximum rate
-    				if (lastSampleRateReported < 0 || 
-    					curTime - lastSampleRateReported >= reportSampleRateSeconds) {
-    					lastSampleRateReported = curTime;
-    					float sampleRate = (curTime - lastSampleRateEstimated) / (float) estimateSampleRateWidth;
-        				lastSampleRateEstimated = curTime;
-    					if (forceSampleRateEstimation)
-    						logger.warn("Current sample rate: " + sampleRate + " Hz");
-    					else
-    						logger.debug("Current sample rate: " + sampleRate + " Hz");
-    				}
-    			}
-    			else
-    				// first time, initialization
-    				lastSampleRateEstimated = curTime;
-    		}
-    	}
+	/** Estimates and reports the sample rate every estimateSampleRateWidth samples. */
+	private void estimateSampleRate() {
+		if (totalNum % estimateSampleRateWidth == 0) {
+			long curTime = (clock != null ? clock : Clock.getDefault()).currentTimeMillis();
+			if (lastSampleRateEstimated >= 0) {
+				// only print at a maximum rate
+				if (lastSampleRateReported < 0 || 
+					curTime - lastSampleRateReported >= reportSampleRateSeconds) {
+					lastSampleRateReported = curTime;
+					float sampleRate = (curTime - lastSampleRateEstimated) / (float) estimateSampleRateWidth;
+					lastSampleRateEstimated = curTime;
+					if (forceSampleRateEstimation)
+						logger.warn("Current sample rate: " + sampleRate + " Hz");
+					else
+						logger.debug("Current sample rate: " + sampleRate + " Hz");
+				}
+			}
+			else
+				// first time, initialization
+				lastSampleRateEstimated = curTime;
+		}
 	}
 	
 	/** Dummy implementation of SamplesSink.segmentStart. Does nothing. */
@@ -288,6 +383,7 @@ public class TimeSeries implements SamplesSink {
 	 */
 	public void addNextStageSink(SamplesSink sink) {
 		nextStageSinks.addElement(sink);
+		updateNextStageArray();
 	}
 
 	/** Removes a previously registered sink.
@@ -296,58 +392,88 @@ public class TimeSeries implements SamplesSink {
 	 * @return true if removed, false if not (i.e. if it has not been added previously).
 	 */
 	public boolean removeSink(SamplesSink sink) {
-		return nextStageSinks.removeElement(sink);
+		boolean removed = nextStageSinks.removeElement(sink);
+		updateNextStageArray();
+		return removed;
 	}
-	
-	/** Helper method for computing the arithmetical average, i.e. the mean. */
-	private static double getMean(double sum, int num) {
-		if (num > 0)
-			return sum / num;
-		else
-			return 0;
+
+	/** Copies nextStageSinks to nextStageArray. */
+	private void updateNextStageArray() {
+		SamplesSink[] sinks = new SamplesSink[nextStageSinks.size()];
+		nextStageSinks.copyInto(sinks);
+		nextStageArray = sinks;
 	}
 	
-	/** Helper method for computing the variance. */
-	private static double getVariance(double sum, double sum2, int num) {
-		if (num > 1) {
-			//return (sum2 - 2*sum*sum/num + sum*sum/num) / (num -1);
-			return (sum2 - sum*sum/num) / (num -1);
-		}
+	/** Helper method for computing the variance from the sum of squared 
+	 * differences to the mean. */
+	private static double getVariance(double m2, long num) {
+		// m2 can become slightly negative due to rounding when all values are equal
+		if (num > 1 && m2 > 0)
+			return m2 / (num -1);
 		else
 			return 0;
 	}
 	
 	/** Returns the mean over all values added to this time series since its construction. */
 	public double getTotalMean() {
-		return getMean(totalSum, totalNum);
+		return totalMean;
 	}
 	
 	/** Returns the variance over all values added to this time series since its construction. */
 	public double getTotalVariance() {
-		return getVariance(totalSum, totalSum2, totalNum);
+		return getVariance(totalM2, totalNum);
 	}
 
 	/** Returns the mean over all values in the time series buffer, i.e. the last window size samples. */
 	public double getWindowMean() {
-		return getMean(windowSum, full ? circularBuffer.length : index);
+		return windowMean;
 	}
 	
 	/** Returns the variance over all values in the time series buffer, i.e. the last window size samples. */
 	public double getWindowVariance() {
-		return getVariance(windowSum, windowSum2, full ? circularBuffer.length : index); 
+		return getVariance(windowM2, getNumSamplesInWindow()); 
+	}
+	
+	/** Returns the number of samples currently contained in the time window. */
+	public int getNumSamplesInWindow() {
+		return full ? circularBuffer.length : index;
+	}
+	
+	/** Returns a sample currently contained in the time window without 
+	 * copying the window. It is already normalized.
+	 * @param i The position of the sample in the window, 0 for the oldest
+	 *          and getNumSamplesInWindow()-1 for the most recent one.
+	 */
+	public double getSampleInWindow(int i) {
+		if (i < 0 || i >= getNumSamplesInWindow())
+			throw new ArrayIndexOutOfBoundsException(i);
+		int pos = (full ? index : 0) + i;
+		return circularBuffer[pos < circularBuffer.length ? pos : pos - circularBuffer.length];
+	}
+	
+	/** Copies all samples currently contained in the time window to an 
+	 * array, oldest first. These are already normalized.
+	 * @param dest The array to copy to. It must have room for 
+	 *             getNumSamplesInWindow() samples starting at off.
+	 * @param off The position in dest to copy the oldest sample to.
+	 * @return The number of samples copied.
+	 */
+	public int getSamplesInWindow(double[] dest, int off) {
+		if (!full) {
+			System.arraycopy(circularBuffer, 0, dest, off, index);
+			return index;
+		}
+		int first = circularBuffer.length - index;
+		System.arraycopy(circularBuffer, index, dest, off, first);
+		System.arraycopy(circularBuffer, 0, dest, off + first, index);
+		return circularBuffer.length;
 	}
 	
 	/** Returns all samples currently contained in the time window. 
 	 * These are already normalized. */
 	public double[] getSamplesInWindow() {
-		// TODO: this can be optimized with 2 System.ArrayCopy calls
-		int startInd = full ? index : 0;
-		int num = full ? circularBuffer.length : index;
-		double[] ret = new double[num];
-		
-		for (int i=0; i<num; i++)
-			ret[i] = circularBuffer[(startInd+i)%circularBuffer.length];
-		
+		double[] ret = new double[getNumSamplesInWindow()];
+		getSamplesInWindow(ret, 0);
 		return ret;
 	}
 	
@@ -475,4 +601,11 @@ public class TimeSeries implements SamplesSink {
 		setMultiplicator(pars.getMultiplicator());
 		setOffset(pars.getOffset());
 	}
+	
+	/** Sets the clock used for estimating the sample rate.
+	 * @param clock The clock to use, or null to use Clock.getDefault().
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
 }
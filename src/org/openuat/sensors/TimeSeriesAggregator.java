@@ -8,10 +8,9 @@
  */
 package org.openuat.sensors;
 
-import java.util.Vector;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.PhaseTracer;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
 
 /** This class implements an aggregation of multiple time series into one. To do so,
  * it calculates the magnitude of the multi-dimensional vector for each sample and uses
@@ -34,13 +33,15 @@ import org.slf4j.LoggerFactory;
  */
 public class TimeSeriesAggregator extends TimeSeriesBundle {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.TimeSeriesAggregator" /*TimeSeriesAggregator.class*/);
+	private static Log logger = LogFactory.getLogger("org.openuat.sensors.TimeSeriesAggregator" /*TimeSeriesAggregator.class*/);
 	
-	/** This holds the current, aggregated segment when currently in active state. If
-	 * in quiescent state, it is set to null;
+	/** This holds the current, aggregated segment when currently in active state. 
+	 * It is allocated once and reused for all segments.
 	 */
 //#if cfg.haveFloatSupport
-	private Vector aggregatedSeries = null;
+	private SamplesBuffer aggregatedSeries;
+	/** True while aggregating into aggregatedSeries, i.e. in active state. */
+	private boolean aggregating = false;
 //#endif
 	private int[] aggregatedSeries_Int = null;
 	/** A negative index means that we are not in an active segment and that
@@ -49,6 +50,9 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 	 */
 	private int aggregatedSeriesIndex_Int = -1;
 	
+	/** The trace handle of the current active segment, or null. */
+	private Object segmentTrace = null;
+	
 	/** Constructs all internal buffers and the time series.
 	 * 
 	 * @param numSeries The number of time series to use, i.e. the dimensionality
@@ -70,35 +74,41 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 		super(numSeries, windowSize, minSegmentSize, maxSegmentSize);
 		
 		aggregatedSeries_Int = new int[maxSegmentSize+windowSize];
+//#if cfg.haveFloatSupport
+		aggregatedSeries = new SamplesBuffer(maxSegmentSize > 0 ? maxSegmentSize+windowSize : 2*windowSize);
+//#endif
 	}
 
 	protected void toActiveFirstLine(int numSample) {
 //#if cfg.haveFloatSupport
-		aggregatedSeries = new Vector();
+		aggregatedSeries.clear();
+		aggregating = true;
 //#endif
 		// start aggregating into the array
 		aggregatedSeriesIndex_Int = 0;
+		segmentTrace = PhaseTracer.begin(PhaseTracer.Segment);
 	}
 
 	protected void toQuiescentLastLine(int numSample) {
 	  if (logger.isDebugEnabled() && (
 //#if cfg.haveFloatSupport
-			(aggregatedSeries != null && aggregatedSeries.size() > windowSize) ||
+			(aggregating && aggregatedSeries.size() > windowSize) ||
 //#endif					
 			(aggregatedSeries_Int != null && aggregatedSeriesIndex_Int >= 0 && aggregatedSeriesIndex_Int > windowSize))) {
-				logger.debug("Unexpected index of segment end, got " + numSample 
-						+ ", expected either " + curSampleIndex
-						+ " or " +  + (curSampleIndex+1));
+				if (logger.isDebugEnabled())
+					logger.debug("Unexpected index of segment end, got " + numSample 
+							+ ", expected either " + curSampleIndex
+							+ " or " +  + (curSampleIndex+1));
 	  }
 			
 //#if cfg.haveFloatSupport
-		if (aggregatedSeries != null && aggregatedSeries.size() > windowSize) {
+		if (aggregating && aggregatedSeries.size() > windowSize) {
 			if (aggregatedSeries.size()-windowSize >= minSegmentSize) {
-				double[] segment = new double[aggregatedSeries.size()-windowSize];
-				for (int i=0; i<aggregatedSeries.size()-windowSize; i++)
-					segment[i] = ((Double) aggregatedSeries.elementAt(i)).doubleValue();
+				// the sinks may keep the segment, so it needs to be copied
+				double[] segment = aggregatedSeries.toArray(0, aggregatedSeries.size()-windowSize);
 				if (segmentsSinks != null) {
-					logger.debug("Forwarding segment to " + segmentsSinks.size() + " registered sinks");
+					if (logger.isDebugEnabled())
+						logger.debug("Forwarding segment to " + segmentsSinks.size() + " registered sinks");
 					for (int i=0; i<segmentsSinks.size(); i++) {
 						SegmentsSink s = (SegmentsSink) segmentsSinks.elementAt(i);
 						s.addSegment(segment, curSampleIndex-aggregatedSeries.size());
@@ -110,13 +120,13 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 				logger.info("Active segment with " + aggregatedSeries.size() +
 						" samples is too short, not forwarding");
 		}
-		else if (aggregatedSeries != null)
+		else if (aggregating)
 			logger.info("Detected segment that is smaller than the window size (" +
 					aggregatedSeries.size() + " <= " + windowSize + ", ignoring");
 		else
 			logger.info("toQuiescent called, but aggregated time series not initialized (it was probably forwarded due to reaching the maximum size), ignoring");
 
-		aggregatedSeries = null;
+		aggregating = false;
 //#endif
 		
 		if (aggregatedSeries_Int != null && aggregatedSeriesIndex_Int >= 0 && aggregatedSeriesIndex_Int > windowSize) {
@@ -124,7 +134,8 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 				int[] segment = new int[aggregatedSeriesIndex_Int-windowSize];
 				System.arraycopy(aggregatedSeries_Int, 0, segment, 0, aggregatedSeriesIndex_Int-windowSize);
 				if (segmentsSinks_Int != null) {
-					logger.debug("Forwarding segment to " + segmentsSinks_Int.size() + " registered sinks");
+					if (logger.isDebugEnabled())
+						logger.debug("Forwarding segment to " + segmentsSinks_Int.size() + " registered sinks");
 					for (int i=0; i<segmentsSinks_Int.size(); i++) {
 						SegmentsSink_Int s = (SegmentsSink_Int) segmentsSinks_Int.elementAt(i);
 						s.addSegment(segment, curSampleIndex-aggregatedSeriesIndex_Int);
@@ -142,24 +153,28 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 		else
 			logger.info("toQuiescent called, but aggregated time series not initialized (it was probably forwarded due to reaching the maximum size), ignoring");
 
+		PhaseTracer.end(segmentTrace, numSample, aggregatedSeriesIndex_Int > 0 ? aggregatedSeriesIndex_Int : 0);
+		segmentTrace = null;
+
 		// stop aggregating
 		aggregatedSeriesIndex_Int = -1;
 	}
 
 //#if cfg.haveFloatSupport
 	protected void sampleAddedLine(int lineIndex, double sample, int numSample) {
-		if (aggregatedSeries != null) {
+		if (aggregating) {
 			double magnitude = 0;
 			for (int i=0; i<curSample.length; i++)
 				magnitude += curSample[i] * curSample[i];
 			magnitude = Math.sqrt(magnitude);
-			aggregatedSeries.addElement(new Double(magnitude));
+			aggregatedSeries.add(magnitude);
 
 			/* this is inside an active segment, so also forward the aggregated samples 
 			 * immediately to all registered listeners
 			 */
 			if (samplesSinks != null) {
-				logger.debug("Forwarding single sample to " + samplesSinks.size() + " registered sinks");
+				if (logger.isDebugEnabled())
+					logger.debug("Forwarding single sample to " + samplesSinks.size() + " registered sinks");
 				for (int i=0; i<samplesSinks.size(); i++) {
 					SamplesSink s = (SamplesSink) samplesSinks.elementAt(i);
 					s.addSample(magnitude, numSample);
@@ -185,7 +200,8 @@ public class TimeSeriesAggregator extends TimeSeriesBundle {
 			 * immediately to all registered listeners
 			 */
 			if (samplesSinks_Int != null) {
-				logger.debug("Forwarding single sample to " + samplesSinks_Int.size() + " registered sinks");
+				if (logger.isDebugEnabled())
+					logger.debug("Forwarding single sample to " + samplesSinks_Int.size() + " registered sinks");
 				for (int i=0; i<samplesSinks_Int.size(); i++) {
 					SamplesSink_Int s = (SamplesSink_Int) samplesSinks_Int.elementAt(i);
 					s.addSample(magnitude, numSample);
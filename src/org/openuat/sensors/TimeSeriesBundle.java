@@ -10,8 +10,9 @@ package org.openuat.sensors;
 
 import java.util.Vector;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
+import org.openuat.util.Clock;
 
 /** This class implements a collection of multiple time series that belong together,
  * for example multiple dimensions from a single sensor.
@@ -28,7 +29,7 @@ import org.slf4j.LoggerFactory;
  */
 public abstract class TimeSeriesBundle {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.TimeSeriesBundle" /*TimeSeriesBundle.class*/);
+	private static Log logger = LogFactory.getLogger("org.openuat.sensors.TimeSeriesBundle" /*TimeSeriesBundle.class*/);
 
 	/** This is a helper class to listen to second stage samples and for active/quiescent
 	 * events of the TimeSeries.
@@ -56,8 +57,9 @@ public abstract class TimeSeriesBundle {
 			// also forward this event to the sample listeners
 //#if cfg.haveFloatSupport
 			if (samplesSinks != null) {
-				logger.debug("Forwarding segment start event of line " + 
-						lineIndex + " to " + samplesSinks.size() + " registered integer sinks");
+				if (logger.isDebugEnabled())
+					logger.debug("Forwarding segment start event of line " + 
+							lineIndex + " to " + samplesSinks.size() + " registered integer sinks");
 				for (int i=0; i<samplesSinks.size(); i++) {
 					SamplesSink s = (SamplesSink) samplesSinks.elementAt(i);
 					s.segmentStart(numSample);
@@ -65,8 +67,9 @@ public abstract class TimeSeriesBundle {
 			}
 //#endif			
 			if (samplesSinks_Int != null) {
-				logger.debug("Forwarding segment start event of line " + 
-						lineIndex + " to " + samplesSinks_Int.size() + " registered sinks");
+				if (logger.isDebugEnabled())
+					logger.debug("Forwarding segment start event of line " + 
+							lineIndex + " to " + samplesSinks_Int.size() + " registered sinks");
 				for (int i=0; i<samplesSinks_Int.size(); i++) {
 					SamplesSink_Int s = (SamplesSink_Int) samplesSinks_Int.elementAt(i);
 					s.segmentStart(numSample);
@@ -83,9 +86,10 @@ public abstract class TimeSeriesBundle {
 			// +1 because first and last samples are added
 			if (logger.isDebugEnabled() && (curSampleIndex != numSample && curSampleIndex+1 != numSample && 
 			    curSampleIndex-windowSize != numSample && curSampleIndex-windowSize+1 != numSample))
-				logger.debug("Unexpected index of segment end, got " + numSample 
-						+ ", expected either " + curSampleIndex
-						+ " or " +  + (curSampleIndex+1));
+				if (logger.isDebugEnabled())
+					logger.debug("Unexpected index of segment end, got " + numSample 
+							+ ", expected either " + curSampleIndex
+							+ " or " +  + (curSampleIndex+1));
 
 			// this is a hook for final processing/forwarding and to stop processing
 			toQuiescentLastLine(numSample);
@@ -99,8 +103,9 @@ public abstract class TimeSeriesBundle {
 			if (lineIndex != -1) {
 //#if cfg.haveFloatSupport
 				if (samplesSinks != null) {
-					logger.debug("Forwarding segment end event of line " +
-							lineIndex + " to " + samplesSinks.size() + " registered sinks");
+					if (logger.isDebugEnabled())
+						logger.debug("Forwarding segment end event of line " +
+								lineIndex + " to " + samplesSinks.size() + " registered sinks");
 					for (int i=0; i<samplesSinks.size(); i++) {
 						SamplesSink s = (SamplesSink) samplesSinks.elementAt(i);
 						s.segmentEnd(numSample);
@@ -108,8 +113,9 @@ public abstract class TimeSeriesBundle {
 				}
 //#endif			
 				if (samplesSinks_Int != null) {
-					logger.debug("Forwarding segment end event of line " +
-							lineIndex + " to " + samplesSinks_Int.size() + " registered integer sinks");
+					if (logger.isDebugEnabled())
+						logger.debug("Forwarding segment end event of line " +
+								lineIndex + " to " + samplesSinks_Int.size() + " registered integer sinks");
 					for (int i=0; i<samplesSinks_Int.size(); i++) {
 						SamplesSink_Int s = (SamplesSink_Int) samplesSinks_Int.elementAt(i);
 						s.segmentEnd(numSample);
@@ -144,8 +150,9 @@ public abstract class TimeSeriesBundle {
 				/* and also check if the maximum segment size has been reached */
 				// need to subtract windowSize, because the segment will be shortened in toQuiescent
 				if (maxSegmentSize != -1 && curActiveSegmentLength-windowSize == maxSegmentSize) {
-					logger.debug("Active segment with " + curActiveSegmentLength +
-							" samples has reached maximum segment size, forwarding now");
+					if (logger.isDebugEnabled())
+						logger.debug("Active segment with " + curActiveSegmentLength +
+								" samples has reached maximum segment size, forwarding now");
 					// the first parameter is ignored by this toQuiescent implementation
 					toQuiescent(-1, numSample);
 				}
@@ -169,8 +176,9 @@ public abstract class TimeSeriesBundle {
 				/* and also check if the maximum segment size has been reached */
 				// need to subtract windowSize, because the segment will be shortened in toQuiescent
 				if (maxSegmentSize != -1 && curActiveSegmentLength-windowSize == maxSegmentSize) {
-					logger.debug("Active segment with " + curActiveSegmentLength +
-							" samples has reached maximum segment size, forwarding now");
+					if (logger.isDebugEnabled())
+						logger.debug("Active segment with " + curActiveSegmentLength +
+								" samples has reached maximum segment size, forwarding now");
 					// the first parameter is ignored by this toQuiescent implementation
 					toQuiescent(-1, numSample);
 				}
@@ -429,6 +437,18 @@ public abstract class TimeSeriesBundle {
 			firstStageSeries_Int[i].setParameters(pars);
 	}
 
+	/** Sets the clock for all internally kept time series.
+	 * @see TimeSeries#setClock
+	 */
+	public void setClock(Clock clock) {
+		for (int i=0; i<firstStageSeries_Int.length; i++) {
+//#if cfg.haveFloatSupport
+			firstStageSeries[i].setClock(clock);
+//#endif
+			firstStageSeries_Int[i].setClock(clock);
+		}
+	}
+
 	/** Registers a sink which will receive all active segments when they are complete.
 	 * 
 	 * @param sink The sink to push new aggregated segments to.
@@ -436,12 +456,14 @@ public abstract class TimeSeriesBundle {
 //#if cfg.haveFloatSupport
 	public void addNextStageSegmentsSink(SegmentsSink sink) {
 		segmentsSinks.addElement(sink);
-		logger.debug("Registered next stage float segments sink " + sink);
+		if (logger.isDebugEnabled())
+			logger.debug("Registered next stage float segments sink " + sink);
 	}
 //#endif
 	public void addNextStageSegmentsSink_Int(SegmentsSink_Int sink) {
 		segmentsSinks_Int.addElement(sink);
-		logger.debug("Registered next stage integer segments sink " + sink);
+		if (logger.isDebugEnabled())
+			logger.debug("Registered next stage integer segments sink " + sink);
 	}
 
 	/** Removes a previously registered sink.
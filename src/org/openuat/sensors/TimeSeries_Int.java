@@ -10,8 +10,9 @@ package org.openuat.sensors;
 
 import java.util.Vector;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.openuat.log.Log;
+import org.openuat.log.LogFactory;
+import org.openuat.util.Clock;
 
 /** This class represents a possibly multi-dimensional time series of a single
  * sensor. It computes simply statistical values, can distinguish active from
@@ -25,7 +26,7 @@ import org.slf4j.LoggerFactory;
  */
 public class TimeSeries_Int implements SamplesSink_Int {
 	/** Our logger. */
-	private static Logger logger = LoggerFactory.getLogger("org.openuat.sensors.TimeSeries_Int" /*TimeSeries_Int.class*/);
+	private static Log logger = LogFactory.getLogger("org.openuat.sensors.TimeSeries_Int" /*TimeSeries_Int.class*/);
 	
 	/** This interface represents the parameters that <b>must</b> be reasonably
 	 * set when initializing a time series that reads from sensors instead of
@@ -70,17 +71,19 @@ public class TimeSeries_Int implements SamplesSink_Int {
         /** Stores the last value, used only when differencing=true. */
         private int lastSample;
 	
-	/** Keeps a running total sum over all samples added to this time series so far (not only the current time window). */
-	private int totalSum = 0;
+	/** Keeps a running total sum over all samples added to this time series so far (not only the current time window). 
+	 * The sums are kept as long, so that they are exact and do not overflow even 
+	 * on streams that run for a long time at high sample rates. */
+	private long totalSum = 0;
 	/** Keeps a running total sum over all squared samples added to this time series so far (not only the current time window). */
-	private int totalSum2 = 0;
+	private long totalSum2 = 0;
 	/** The number of samples added to this time series so far (not only the current time window). */
-	private int totalNum = 0;
+	private long totalNum = 0;
 	
-	/** Keeps a running sum over all samples pf the current time window. */
-	private int windowSum = 0;
-	/** Keeps a running sum over all squared samples pf the current time window. */
-	private int windowSum2 = 0;
+	/** Keeps a running sum over all samples of the current time window. */
+	private long windowSum = 0;
+	/** Keeps a running sum over all squared samples of the current time window. */
+	private long windowSum2 = 0;
 
 	/** This offset is added to all sample values for normalization.
 	 * @see #setOffset(int)
@@ -115,6 +118,19 @@ public class TimeSeries_Int implements SamplesSink_Int {
 	 */
 	private Vector nextStageSinks = new Vector();
 	
+	/** A copy of nextStageSinks, so that forwarding samples does not need to
+	 * access the Vector. It is replaced whenever a sink is added or removed.
+	 */
+	private SamplesSink_Int[] nextStageArray = new SamplesSink_Int[0];
+	
+	/** Holds the pre-processed samples until they are forwarded to the next
+	 * stage. It is reused for all blocks and only grows.
+	 */
+	private int[] nextStageBlock = new int[1];
+	
+	/** Used by addSample to pass a single sample to addSamples. */
+	private int[] singleSample = new int[1];
+	
 	/** The variance threshold to detect active segments. Only if this is set > 0, 
 	 * detection of active segments (and thus calculation of the variance) will be
 	 * done.
@@ -138,6 +154,11 @@ public class TimeSeries_Int implements SamplesSink_Int {
 	 */
 	private long lastSampleRateReported = -1;
 	
+	/** The clock used for estimating the sample rate, or null to use the
+	 * default clock.
+	 */
+	private Clock clock = null;
+	
 	/** Initializes the time series circular buffer with the specified window size.
 	 * 
 	 * @param windowSize Specifies the number of past samples kept in memory and used for
@@ -174,114 +195,155 @@ public class TimeSeries_Int implements SamplesSink_Int {
 	 *              to start at 0.
 	 */
 	public void addSample(int sample, int sampleNum) {
-		if (sampleNum != totalNum) {
-			logger.warn("Sample index " + sampleNum + " does not correspond to number of samples already received "
-					+ "(" + totalNum + ")");
+		singleSample[0] = sample;
+		addSamples(singleSample, 0, 1, sampleNum);
+	}
+
+	/** Adds a block of consecutive samples to the time series in-memory buffer, updates 
+	 * statistics and may forward to the next stage. This is equivalent to calling addSample
+	 * for each of them, but the next stage receives the pre-processed samples as blocks,
+	 * which are only split where active or quiescent segments start.
+	 * 
+	 * @param samples The array holding the samples to add.
+	 * @param off The position of the first sample in samples.
+	 * @param len The number of samples to add.
+	 * @param firstSampleNum The number of the first sample to add.
+	 */
+	public void addSamples(int[] samples, int off, int len, int firstSampleNum) {
+		if (nextStageBlock.length < len)
+			nextStageBlock = new int[len];
+		boolean trace = logger.isTraceEnabled();
+		boolean debug = logger.isDebugEnabled();
+		// the number of samples in nextStageBlock that have not yet been forwarded
+		int pending = 0;
+		for (int k=0; k<len; k++) {
+			int sampleNum = firstSampleNum + k;
+			if (sampleNum != totalNum) {
+				logger.warn("Sample index " + sampleNum + " does not correspond to number of samples already received "
+						+ "(" + totalNum + ")");
+			}
+			// first of all, normalize the incoming values to our internal range
+			int sample = samples[off+k] * multiplicator / divisor + offset;
+
+			// and if differencing is enabled, do it right now so that it is used for all other stages
+			// (so that even the buffer will already hold difference values)
+			if (differencing) {
+				if (index>0 || full) {
+					int tmp = sample;
+					sample -= lastSample;
+					lastSample = tmp;
+				}
+				else {
+					// if this is the first sample, can only use 0
+					lastSample = sample;
+					sample = 0;
+				}
+			}
+
+			// if circular buffer is already full, remove oldest (i.e. update statistics)
+			if (full) {
+				windowSum -= circularBuffer[index];
+				windowSum2 -= (long) circularBuffer[index] * circularBuffer[index];
+			}
+
+			// add sample to internal buffer and update statistics
+			circularBuffer[index] = sample;
+			index++;
+			if (index == circularBuffer.length) {
+				full = true;
+				index = 0;
+			}
+
+			windowSum += sample;
+			windowSum2 += (long) sample * sample;
+			totalSum += sample;
+			totalSum2 += (long) sample * sample;
+			totalNum++;
+
+			// Now that this time series buffer has been updated, queue it for the next stage.
+			// But optionally pre-process our values before forwarding them.
+			int nextStageSample = sample;
+			// first subtract mean (because that is in the same value range as the "raw" values)
+			if (subtractWindowMean)
+				nextStageSample -= getWindowMean();
+			else if (subtractTotalMean)
+				nextStageSample -= getTotalMean();
+			if (trace)
+				logger.trace("Pushing value " + nextStageSample + " to next stage");
+			nextStageBlock[pending++] = nextStageSample;
+
+			// detect active segments
+			if (debug)
+				logger.debug("Checking for activity: window variance is " + getWindowVariance() + 
+						", threshold is " + activeVarianceThreshold);
+			if (activeVarianceThreshold > 0) {
+				int variance = getWindowVariance();
+				if (variance >= activeVarianceThreshold && !isActive) {
+					if (debug)
+						logger.debug("Detected transition to active at index " + sampleNum);
+					isActive = true;
+					// the next stage must have received all samples up to this one
+					forwardNextStage(pending, sampleNum-pending+1);
+					pending = 0;
+					for (int i=0; i<nextStageArray.length; i++)
+						// we define the active segment to start at the end of an active window
+						nextStageArray[i].segmentStart(sampleNum);
+				}
+				else if (variance < activeVarianceThreshold && isActive) {
+					if (debug)
+						logger.debug("Detected transition to quiescent at index " + (sampleNum-circularBuffer.length+1));
+					isActive = false;
+					forwardNextStage(pending, sampleNum-pending+1);
+					pending = 0;
+					for (int i=0; i<nextStageArray.length; i++)
+						// and to end at the beginning of a quiescent window
+						nextStageArray[i].segmentEnd(sampleNum-circularBuffer.length+1);
+				}
+			}
+
+			// enable the sample rate
+			if (debug || forceSampleRateEstimation)
+				estimateSampleRate();
 		}
-		
-		// first of all, normalize the incoming values to our internal range
-		sample = sample * multiplicator / divisor + offset; 
-		
-                // and if differencing is enabled, do it right now so that it is used for all other stages
-                // (so that even the buffer will already hold difference values)
-                if (differencing) {
-                    if (index>0 || full) {
-                        int tmp = sample;
-                        sample -= lastSample;
-                        lastSample = tmp;
-                    }
-                    else {
-                        // if this is the first sample, can only use 0
-                        lastSample = sample;
-                        sample = 0;
-                    }
-                }
+		forwardNextStage(pending, firstSampleNum+len-pending);
+	}
 
-		// if circular buffer is already full, remove oldest (i.e. update statistics
-		if (full) {
-			windowSum -= circularBuffer[index];
-			windowSum2 -= circularBuffer[index] * circularBuffer[index];
+	/** Forwards the first num samples of nextStageBlock to the next stage.
+	 * @param num The number of samples to forward.
+	 * @param firstSampleNum The number of the first of these samples.
+	 */
+	private void forwardNextStage(int num, int firstSampleNum) {
+		if (num == 0)
+			return;
+		for (int i=0; i<nextStageArray.length; i++) {
+			if (num == 1)
+				nextStageArray[i].addSample(nextStageBlock[0], firstSampleNum);
+			else
+				nextStageArray[i].addSamples(nextStageBlock, 0, num, firstSampleNum);
 		}
-		
-		// add sample to internal buffer and update statistics
-		circularBuffer[index] = sample;
-		index++;
-		if (index == circularBuffer.length) {
-			full = true;
-			index = 0;
+	}
+
+	/** Estimates and reports the sample rate every estimateSampleRateWidth samples. */
+	private void estimateSampleRate() {
+		if (totalNum % estimateSampleRateWidth == 0) {
+			long curTime = (clock != null ? clock : Clock.getDefault()).currentTimeMillis();
+			if (lastSampleRateEstimated >= 0) {
+				// only print at a maximum rate
+				if (lastSampleRateReported < 0 || 
+					curTime - lastSampleRateReported >= reportSampleRateSeconds) {
+					lastSampleRateReported = curTime;
+					float sampleRate = (curTime - lastSampleRateEstimated) / (float) estimateSampleRateWidth;
+					lastSampleRateEstimated = curTime;
+					if (forceSampleRateEstimation)
+						logger.warn("Current sample rate: " + sampleRate + " Hz");
+					else
+						logger.debug("Current sample rate: " + sampleRate + " Hz");
+				}
+			}
+			else
+				// first time, initialization
+				lastSampleRateEstimated = curTime;
 		}
-		
-		windowSum += sample;
-		windowSum2 += sample * sample;
-		totalSum += sample;
-		totalSum2 += sample * sample;
-		totalNum++;
-		
-		// Now that this time series buffer has been updated, notify next stage.
-		// But optionally pre-process our values before forwarding them.
-		int nextStageSample = sample;
-		// first subtract mean (because that is in the same value range as the "raw" values)
-		if (subtractWindowMean)
-			nextStageSample -= getWindowMean();
-		else if (subtractTotalMean)
-			nextStageSample -= getTotalMean();
-		if (logger.isTraceEnabled())
-			logger.trace("Pushing value " + nextStageSample + " to next stage");
-    	if (nextStageSinks != null)
-    		for (int i=0; i<nextStageSinks.size(); i++) {
-    			SamplesSink_Int s = (SamplesSink_Int) nextStageSinks.elementAt(i);
-    			s.addSample(nextStageSample, sampleNum);
-    		}
-		
-		// detect active segments
-    	if (logger.isDebugEnabled())
-    		logger.debug("Checking for activity: window variance is " + getWindowVariance() + 
-    				", threshold is " + activeVarianceThreshold);
-    	if (activeVarianceThreshold > 0 && getWindowVariance() >= activeVarianceThreshold
-    			&& !isActive) {
-    		logger.debug("Detected transition to active at index " + sampleNum);
-    		isActive = true;
-        	if (nextStageSinks != null)
-        		for (int i=0; i<nextStageSinks.size(); i++) {
-        			SamplesSink_Int s = (SamplesSink_Int) nextStageSinks.elementAt(i);
-        			// we define the active segment to start at the end of an active window
-        			s.segmentStart(sampleNum);
-        		}
-    	}
-    	if (activeVarianceThreshold > 0 && getWindowVariance() < activeVarianceThreshold
-    			&& isActive) {
-    		logger.debug("Detected transition to quiescent at index " + (sampleNum-circularBuffer.length+1));
-    		isActive = false;
-        	if (nextStageSinks != null)
-        		for (int i=0; i<nextStageSinks.size(); i++) {
-        			SamplesSink_Int s = (SamplesSink_Int) nextStageSinks.elementAt(i);
-        			// and to end at the beginning of a quiescent window
-        			s.segmentEnd(sampleNum-circularBuffer.length+1);
-        		}
-    	}
-    	
-    	// enable the sample rate
-    	if (logger.isDebugEnabled() || forceSampleRateEstimation) {
-    		if (totalNum % estimateSampleRateWidth == 0) {
-				long curTime = System.currentTimeMillis();
-    			if (lastSampleRateEstimated >= 0) {
-    				// only print at a maximum rate
-    				if (lastSampleRateReported < 0 || 
-    					curTime - lastSampleRateReported >= reportSampleRateSeconds) {
-    					lastSampleRateReported = curTime;
-    					float sampleRate = (curTime - lastSampleRateEstimated) / (float) estimateSampleRateWidth;
-        				lastSampleRateEstimated = curTime;
-    					if (forceSampleRateEstimation)
-    						logger.warn("Current sample rate: " + sampleRate + " Hz");
-    					else
-    						logger.debug("Current sample rate: " + sampleRate + " Hz");
-    				}
-    			}
-    			else
-    				// first time, initialization
-    				lastSampleRateEstimated = curTime;
-    		}
-    	}
 	}
 	
 	/** Dummy implementation of SamplesSink_Int.segmentStart. Does nothing. */
@@ -300,6 +362,7 @@ public class TimeSeries_Int implements SamplesSink_Int {
 	 */
 	public void addNextStageSink(SamplesSink_Int sink) {
 		nextStageSinks.addElement(sink);
+		updateNextStageArray();
 	}
 
 	/** Removes a previously registered sink.
@@ -308,22 +371,38 @@ public class TimeSeries_Int implements SamplesSink_Int {
 	 * @return true if removed, false if not (i.e. if it has not been added previously).
 	 */
 	public boolean removeSink(SamplesSink_Int sink) {
-		return nextStageSinks.removeElement(sink);
+		boolean removed = nextStageSinks.removeElement(sink);
+		updateNextStageArray();
+		return removed;
+	}
+
+	/** Copies nextStageSinks to nextStageArray. */
+	private void updateNextStageArray() {
+		SamplesSink_Int[] sinks = new SamplesSink_Int[nextStageSinks.size()];
+		nextStageSinks.copyInto(sinks);
+		nextStageArray = sinks;
 	}
 	
 	/** Helper method for computing the arithmetical average, i.e. the mean. */
-	private static int getMean(int sum, int num) {
+	private static int getMean(long sum, long num) {
 		if (num > 0)
-			return sum / num;
+			return (int) (sum / num);
 		else
 			return 0;
 	}
 	
-	/** Helper method for computing the variance. */
-	private static int getVariance(int sum, int sum2, int num) {
+	/** Computes the variance from the sum, the sum of squares and the number
+	 * of samples, as kept by this class for the window and the total series.
+	 * It does not overflow as long as sum2 fits into a long.
+	 */
+	public static int getVariance(long sum, long sum2, long num) {
 		if (num > 1) {
 			//return (sum2 - 2*sum*sum/num + sum*sum/num) / (num -1);
-			return (sum2 - sum*sum/num) / (num -1);
+			// sum*sum/num would overflow for long series, so split sum into
+			// q*num+r and compute q*q*num + 2*q*r + r*r/num, which is the same
+			long q = sum / num, r = sum % num;
+			// r*r itself overflows once num exceeds 2^31.5, but r/num < 1
+			return (int) ((sum2 - (q*q*num + 2*q*r + (long) ((double) r / num * r))) / (num -1));
 		}
 		else
 			return 0;
@@ -341,25 +420,54 @@ public class TimeSeries_Int implements SamplesSink_Int {
 
 	/** Returns the mean over all values in the time series buffer, i.e. the last window size samples. */
 	public int getWindowMean() {
-		return getMean(windowSum, full ? circularBuffer.length : index);
+		return getMean(windowSum, getNumSamplesInWindow());
 	}
 	
 	/** Returns the variance over all values in the time series buffer, i.e. the last window size samples. */
 	public int getWindowVariance() {
-		return getVariance(windowSum, windowSum2, full ? circularBuffer.length : index); 
+		return getVariance(windowSum, windowSum2, getNumSamplesInWindow()); 
+	}
+	
+	/** Returns the number of samples currently contained in the time window. */
+	public int getNumSamplesInWindow() {
+		return full ? circularBuffer.length : index;
+	}
+	
+	/** Returns a sample currently contained in the time window without 
+	 * copying the window. It is already normalized.
+	 * @param i The position of the sample in the window, 0 for the oldest
+	 *          and getNumSamplesInWindow()-1 for the most recent one.
+	 */
+	public int getSampleInWindow(int i) {
+		if (i < 0 || i >= getNumSamplesInWindow())
+			throw new ArrayIndexOutOfBoundsException(i);
+		int pos = (full ? index : 0) + i;
+		return circularBuffer[pos < circularBuffer.length ? pos : pos - circularBuffer.length];
+	}
+	
+	/** Copies all samples currently contained in the time window to an 
+	 * array, oldest first. These are already normalized.
+	 * @param dest The array to copy to. It must have room for 
+	 *             getNumSamplesInWindow() samples starting at off.
+	 * @param off The position in dest to copy the oldest sample to.
+	 * @return The number of samples copied.
+	 */
+	public int getSamplesInWindow(int[] dest, int off) {
+		if (!full) {
+			System.arraycopy(circularBuffer, 0, dest, off, index);
+			return index;
+		}
+		int first = circularBuffer.length - index;
+		System.arraycopy(circularBuffer, index, dest, off, first);
+		System.arraycopy(circularBuffer, 0, dest, off + first, index);
+		return circularBuffer.length;
 	}
 	
 	/** Returns all samples currently contained in the time window.
 	 * These are already normalized. */
 	public int[] getSamplesInWindow() {
-		// TODO: this can be optimized with 2 System.ArrayCopy calls
-		int startInd = full ? index : 0;
-		int num = full ? circularBuffer.length : index;
-		int[] ret = new int[num];
-		
-		for (int i=0; i<num; i++)
-			ret[i] = circularBuffer[(startInd+i)%circularBuffer.length];
-		
+		int[] ret = new int[getNumSamplesInWindow()];
+		getSamplesInWindow(ret, 0);
 		return ret;
 	}
 	
@@ -508,4 +616,11 @@ public class TimeSeries_Int implements SamplesSink_Int {
 		setDivisor(pars.getDivisor());
 		setOffset(pars.getOffset());
 	}
+	
+	/** Sets the clock used for estimating the sample rate.
+	 * @param clock The clock to use, or null to use Clock.getDefault().
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
 }
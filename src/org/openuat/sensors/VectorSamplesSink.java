@@ -18,7 +18,13 @@ package org.openuat.sensors;
 public interface VectorSamplesSink {
 	/** Adds a new sample to the sink.
 	 * 
-	 * @param sample The new sample vector to add.
+	 * The sample array is only valid during this call. Sources reuse the 
+	 * same array for the following samples, both when emitting them from 
+	 * the sampling thread and when handing them off to a separate thread, 
+	 * so implementations that keep the values must copy them.
+	 * 
+	 * @param sample The new sample vector to add. It must not be modified
+	 *               and must not be referenced after this call returns.
 	 * @param index The index of this sample. All samples are required
 	 *              to be equally spaced.
 	 */
@@ -398,6 +398,11 @@ public class WiTiltRawReader extends AsciiLineReaderBase {
 			System.out.println(name + ": " + sample);
 		}
 
+		public void addSamples(double[] samples, int off, int len, int firstIndex) {
+			for (int i=0; i<len; i++)
+				addSample(samples[off+i], firstIndex+i);
+		}
+
 		public void segmentStart(int index) {
 			// just ignore for sample code
 		}
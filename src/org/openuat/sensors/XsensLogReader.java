@@ -11,7 +11,6 @@ package org.openuat.sensors;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +35,16 @@ public class XsensLogReader extends AsciiLineReaderBase {
 	/** The time when the last sample was issued, in msec. */
 	private long lastSampleAt;
 	
+	/** The fields of the line currently being parsed. The sample array is
+	 * reused for all lines, vector sinks may only use it during addSample. */
+	private int samplenum;
+	private long timestamp;
+	private double[] sample;
+	
+	/** The index of the first field of the current line that is not a 
+	 * number, or -1. */
+	private int firstTextField = -1;
+	
 	/** Initializes the parallel port PWM log reader. It only saves the
 	 * passed parameters and opens the InputStream to read from the specified
 	 * file, and thus implicitly to check if the file exists and can be opened.
@@ -50,6 +59,8 @@ public class XsensLogReader extends AsciiLineReaderBase {
 		super(filename, 6, 0, false); 
 
 		this.lastSampleAt = 0;
+		this.sample = new double[maxNumLines];
+		setFieldSeparators(" ");
 		
 		logger.info("Reading from " + filename);
 	}
@@ -65,26 +76,40 @@ public class XsensLogReader extends AsciiLineReaderBase {
 		super(stream, 6); 
 
 		this.lastSampleAt = 0;
+		this.sample = new double[maxNumLines];
+		setFieldSeparators(" ");
 		
 		logger.info("Reading from input stream");
 	}
 	
-	/** A helper function to parse single line of the format produced by 
-	 * parport-pulsewidth. This method creates the samples and emits events.
-	 * @param line The line to parse.
+	/** Remembers the sample number, timestamp and values of the current line. */
+	//@Override
+	protected void fieldParsed(int field, long value) {
+		if (field == 0)
+			samplenum = (int) value;
+		else if (field == 1)
+			timestamp = value;
+		else if (field < 2+maxNumLines)
+			sample[field-2] = value;
+	}
+
+	/** Remembers that the current line contains a field that is not a number. */
+	//@Override
+	protected void textFieldParsed(int field, byte[] buffer, int off, int len) {
+		if (firstTextField == -1)
+			firstTextField = field;
+	}
+
+	/** Checks the line of the format produced by the logger tool that has
+	 * just been parsed and emits its sample.
+	 * @param numFields The number of fields in the line.
 	 */
 	//@Override
-	protected void parseLine(String line) {
-		int samplenum;
-		long timestamp = 0;
-		StringTokenizer st = new StringTokenizer(line, " ", false);
-		
-		try {
-			samplenum = Integer.parseInt(st.nextToken());
-			timestamp = Long.parseLong(st.nextToken());
-		}
-		catch (NumberFormatException e) {
-			logger.warn("Unable to decode sample number or timestamp, ignoring line: " + e);
+	protected void lineParsed(int numFields) {
+		int textField = firstTextField;
+		firstTextField = -1;
+		if (numFields < 2 || (textField >= 0 && textField < 2)) {
+			logger.warn("Unable to decode sample number or timestamp, ignoring line");
 			return;
 		}
 		
@@ -112,15 +137,10 @@ public class XsensLogReader extends AsciiLineReaderBase {
 		}
 		lastSampleAt = timestamp;
 
-		double sample[] = new double[maxNumLines];
-		for (int i=0; i<maxNumLines; i++) {
-			try {
-				sample[i] = Integer.parseInt(st.nextToken());
-			}
-			catch (NumberFormatException e) {
-				logger.warn("Unable to decode sample " + i);
-				return;
-			}
+		if (numFields < 2+maxNumLines || (textField >= 0 && textField < 2+maxNumLines)) {
+			logger.warn("Unable to decode sample " + 
+					((textField >= 0 ? textField : numFields) - 2));
+			return;
 		}
 			
 		if (logger.isDebugEnabled())
@@ -128,6 +148,15 @@ public class XsensLogReader extends AsciiLineReaderBase {
 		emitSample(sample);
 	}
 	
+	/** Returns the time of the sample that has been emitted last, in
+	 * microseconds. This is the time sinks should associate with a sample
+	 * while it is being passed to them.
+	 */
+	//@Override
+	public long getSampleTime() {
+		return lastSampleAt * 1000;
+	}
+
 	/** Provides appropriate parameters for interpreting the values to 
 	 * normalize to the [-1;1] range.
 	 */
@@ -0,0 +1,84 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Vector;
+
+import org.openuat.sensors.AsciiLineReaderBase;
+import org.openuat.sensors.TimeSeries;
+import org.openuat.sensors.TimeSeries_Int;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AsciiLineReaderBaseTest extends TestCase {
+	/** Records the field callbacks as one string per line. */
+	private static class FieldsRecorder extends AsciiLineReaderBase {
+		Vector lines = new Vector();
+		StringBuffer cur = new StringBuffer();
+
+		FieldsRecorder(String input, String separators) {
+			super(new ByteArrayInputStream(input.getBytes()), 1);
+			setFieldSeparators(separators);
+		}
+
+		protected void fieldParsed(int field, long value) {
+			cur.append(field).append('=').append(value).append(' ');
+		}
+
+		protected void textFieldParsed(int field, byte[] buffer, int off, int len) {
+			cur.append(field).append("='").append(new String(buffer, off, len)).append("' ");
+		}
+
+		protected void lineParsed(int numFields) {
+			cur.append('#').append(numFields);
+			lines.addElement(cur.toString());
+			cur.setLength(0);
+		}
+
+		public TimeSeries.Parameters getParameters() {
+			return null;
+		}
+
+		public TimeSeries_Int.Parameters getParameters_Int() {
+			return null;
+		}
+	}
+
+	public void testFields() {
+		FieldsRecorder r = new FieldsRecorder(
+				"1 -2 +3  x1\r\n\n1234567890.000123 7\n12345678901234567890 - 5", " .");
+		r.simulateSampling();
+		Assert.assertEquals(4, r.lines.size());
+		Assert.assertEquals("0=1 1=-2 2=3 3='x1' #4", r.lines.elementAt(0));
+		Assert.assertEquals("#0", r.lines.elementAt(1));
+		Assert.assertEquals("0=1234567890 1=123 2=7 #3", r.lines.elementAt(2));
+		// too long for a long, a lone sign, and no newline at the end
+		Assert.assertEquals("0='12345678901234567890' 1='-' 2=5 #3", r.lines.elementAt(3));
+	}
+
+	public void testLongLines() {
+		// lines that do not fit into the read buffer as a whole
+		StringBuffer input = new StringBuffer();
+		for (int l=0; l<3; l++) {
+			for (int i=0; i<3000; i++)
+				input.append(i).append(' ');
+			input.append('\n');
+		}
+		FieldsRecorder r = new FieldsRecorder(input.toString(), " ");
+		r.simulateSampling();
+		Assert.assertEquals(3, r.lines.size());
+		for (int l=0; l<3; l++) {
+			String line = (String) r.lines.elementAt(l);
+			Assert.assertTrue(line.startsWith("0=0 1=1 "));
+			Assert.assertTrue(line.endsWith(" 2999=2999 #3000"));
+		}
+	}
+}
@@ -9,13 +9,13 @@
 package org.openuat.sensors.test;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.zip.GZIPInputStream;
+import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +59,10 @@ public class AsciiLineReaderRunner {
 			if (segment != null)
 				segment.add(new Double(s));
 		}
+		public void addSamples(double[] samples, int off, int len, int firstIndex) {
+			for (int i=0; i<len; i++)
+				addSample(samples[off+i], firstIndex+i);
+		}
 		public void segmentStart(int index) {
 			logger.debug("Receiving segment starting from index " + index);
 			
@@ -197,12 +201,12 @@ public class AsciiLineReaderRunner {
 	private static void plotTimeSeries(String runClassName, String filename) throws IOException {
 		AsciiLineReaderBase r = null;
 		if (runClassName.equals("ParallelPortPWMReader")) {
-			FileInputStream is = new FileInputStream(filename);
-			r = new ParallelPortPWMReader(new GZIPInputStream(is), 100);
+			InputStream is = DataFilesHelper.openTestFile(filename);
+			r = new ParallelPortPWMReader(is, 100);
 		}
 		else if (runClassName.equals("XsensLogReader")) {
-			FileInputStream is = new FileInputStream(filename);
-			r = new XsensLogReader(new GZIPInputStream(is));
+			InputStream is = DataFilesHelper.openTestFile(filename);
+			r = new XsensLogReader(is);
 		}
 		else if (runClassName.equals("WiTiltRawReader")) {
 			r = new WiTiltRawReader();
@@ -252,8 +256,8 @@ public class AsciiLineReaderRunner {
 		
 		AsciiLineReaderBase r = null;
 		if (runClassName.equals("ParallelPortPWMReader")) {
-			FileInputStream is = new FileInputStream(filename);
-			r = new ParallelPortPWMReader(new GZIPInputStream(is), samplerate);
+			InputStream is = DataFilesHelper.openTestFile(filename);
+			r = new ParallelPortPWMReader(is, samplerate);
 		}
 		else {
 			System.err.println("Unknown derived class name!");
@@ -348,14 +352,14 @@ public class AsciiLineReaderRunner {
 					AsciiLineReaderBase r2 = null;
 					int sensor1ind[], sensor2ind[];
 					if (runClassName.equals("ParallelPortPWMReader")) {
-						FileInputStream is = new FileInputStream(filename);
-						r2 = new ParallelPortPWMReader(new GZIPInputStream(is), samplerate);
+						InputStream is = DataFilesHelper.openTestFile(filename);
+						r2 = new ParallelPortPWMReader(is, samplerate);
 						sensor1ind = new int[] {0, 1, 2};
 						sensor2ind = new int[] {4, 5, 6};
 					}
 					else if (runClassName.equals("XsensLogReader")) {
-						FileInputStream is = new FileInputStream(filename);
-						r2 = new XsensLogReader(new GZIPInputStream(is));
+						InputStream is = DataFilesHelper.openTestFile(filename);
+						r2 = new XsensLogReader(is);
 						samplerate = XsensLogReader.SAMPLE_RATE;
 						sensor1ind = new int[] {0, 1, 2};
 						sensor2ind = new int[] {3, 4, 5};
@@ -556,11 +560,11 @@ public class AsciiLineReaderRunner {
 						String filename = String.format(subdir + "/%s-%s-subj%03d-try%03d.log.gz", 
 								new Object[] {settings[j], hands[k], new Integer(i+1), new Integer(l+1)});
 						System.out.println("Reading from file " + filename);
-						FileInputStream is = new FileInputStream(filename);
+						InputStream is = DataFilesHelper.openTestFile(filename);
 						
 						AsciiLineReaderBase r = null;
 						if (runClassName.equals("ParallelPortPWMReader"))
-							r = new ParallelPortPWMReader(new GZIPInputStream(is), 
+							r = new ParallelPortPWMReader(is, 
 									ShakeWellBeforeUseParameters.samplerate);
 						else {
 							System.err.println("Unknown derived class name or not supported for WiTilt right now!");
@@ -654,6 +658,88 @@ public class AsciiLineReaderRunner {
 		System.out.println("Different feature vectors overall: " + allVectors.size());
 	}
 	
+	/** Collects the first significant segment of one recording, for 
+	 * evaluateAll. Unlike SegmentSink, it has no static state and can be
+	 * used by many evaluations at the same time. */
+	static class FirstSegmentSink implements SegmentsSink {
+		double[] segment = null;
+
+		public void addSegment(double[] segment, int startIndex) {
+			if (this.segment == null)
+				this.segment = segment;
+		}
+	}
+
+	/** Computes the coherence between the two devices of each of the 
+	 * recordings in the given directories, with the default parameters. The
+	 * recordings are evaluated concurrently, as many as there are 
+	 * processors. */
+	private static void evaluateAll(final String runClassName, String[] directories) throws IOException {
+		Vector files = new Vector();
+		for (int i=0; i<directories.length; i++) {
+			String[] f = DataFilesHelper.getTestFiles(directories[i]);
+			for (int j=0; j<f.length; j++)
+				files.addElement(directories[i] + File.separator + f[j]);
+		}
+		String[] filenames = new String[files.size()];
+		files.copyInto(filenames);
+		if (!runClassName.equals("ParallelPortPWMReader")) {
+			System.err.println("Unknown derived class name or not supported for batch evaluation right now!");
+			System.exit(200);
+		}
+
+		long startTime = System.currentTimeMillis();
+		Exception e;
+		try {
+			e = DataFilesHelper.runConcurrently(filenames, new DataFilesHelper.FileTask() {
+				public void run(String filename) throws Exception {
+					int samplerate = ShakeWellBeforeUseParameters.samplerate;
+					InputStream is = DataFilesHelper.openTestFile(filename);
+					AsciiLineReaderBase r = new ParallelPortPWMReader(is, samplerate);
+					TimeSeriesAggregator aggr_a = new TimeSeriesAggregator(3, ShakeWellBeforeUseParameters.activityDetectionWindowSize, ShakeWellBeforeUseParameters.activityMinimumSegmentSize, -1);
+					TimeSeriesAggregator aggr_b = new TimeSeriesAggregator(3, ShakeWellBeforeUseParameters.activityDetectionWindowSize, ShakeWellBeforeUseParameters.activityMinimumSegmentSize, -1);
+					FirstSegmentSink seg_a = new FirstSegmentSink(), seg_b = new FirstSegmentSink();
+					r.addSink(new int[] {0, 1, 2}, aggr_a.getInitialSinks());
+					r.addSink(new int[] {4, 5, 6}, aggr_b.getInitialSinks());
+					aggr_a.addNextStageSegmentsSink(seg_a);
+					aggr_b.addNextStageSegmentsSink(seg_b);
+					aggr_a.setParameters(r.getParameters());
+					aggr_b.setParameters(r.getParameters());
+					aggr_a.setActiveVarianceThreshold(ShakeWellBeforeUseParameters.activityVarianceThreshold);
+					aggr_b.setActiveVarianceThreshold(ShakeWellBeforeUseParameters.activityVarianceThreshold);
+					r.simulateSampling();
+					aggr_a.forceToQuiescent();
+					aggr_b.forceToQuiescent();
+					is.close();
+
+					if (seg_a.segment == null || seg_b.segment == null) {
+						System.out.println(filename + ": did not get 2 significant active segments");
+						return;
+					}
+					double[][] splits = TimeSeriesUtil.cutSegmentsToEqualLength(seg_a.segment, seg_b.segment);
+					int windowSize = ShakeWellBeforeUseParameters.coherenceWindowSize;
+					int windowOverlap = (int) (ShakeWellBeforeUseParameters.coherenceWindowOverlapFactor * windowSize);
+					double[] coherence = Coherence.cohere(splits[0], splits[1], windowSize, windowOverlap);
+					if (coherence == null) {
+						System.out.println(filename + ": can not compute coherence, not enough slices");
+						return;
+					}
+					double coherenceMean = Coherence.mean(coherence, TimeSeriesUtil.getMaxInd(windowSize, 
+							samplerate, ShakeWellBeforeUseParameters.coherenceCutOffFrequency));
+					System.out.println(filename + ": coherence mean " + coherenceMean + ", signal_length=" + 
+							splits[0].length + " (" + ((float) splits[0].length)/samplerate + " s)");
+				}
+			});
+		}
+		catch (InterruptedException ex) {
+			throw new IOException("Interrupted while waiting for the evaluation: " + ex);
+		}
+		System.out.println("Evaluated " + filenames.length + " recordings in " + 
+				(System.currentTimeMillis()-startTime) + " ms");
+		if (e != null)
+			throw new IOException("Evaluation failed: " + e);
+	}
+	
 	public static void mainRunner(String runClassName, String[] args) throws IOException {
 		String filename = args[0];
 		
@@ -669,6 +755,14 @@ public class AsciiLineReaderRunner {
 			paramSearch_matches = true;
 		if (args.length > 1 && args[1].equals("estimate_entropy"))
 			estimateEntropy = true;
+		if (args.length > 1 && args[1].equals("evaluate_all")) {
+			// the first argument and all following the mode are directories
+			String[] directories = new String[args.length-1];
+			directories[0] = filename;
+			System.arraycopy(args, 2, directories, 1, args.length-2);
+			evaluateAll(runClassName, directories);
+			return;
+		}
 		if (args.length > 1 && args[1].equals("convert_all")) {
 			// only convert
 			convertToSimpleFormat(runClassName, filename, false);
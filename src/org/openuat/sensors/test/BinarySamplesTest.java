@@ -0,0 +1,126 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+import org.openuat.sensors.BinarySamplesReader;
+import org.openuat.sensors.BinarySamplesWriter;
+import org.openuat.sensors.ParallelPortPWMReader;
+import org.openuat.sensors.SamplesSource;
+import org.openuat.sensors.VectorSamplesSink;
+import org.openuat.sensors.XsensLogReader;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class BinarySamplesTest extends TestCase {
+	private File output;
+
+	public void setUp() throws IOException {
+		output = File.createTempFile("samples", ".bin");
+	}
+
+	public void tearDown() {
+		output.delete();
+	}
+
+	/** Records all samples of a source as strings. */
+	private static Vector replay(SamplesSource source) {
+		final Vector samples = new Vector();
+		source.addSink(new VectorSamplesSink() {
+			public void addSample(double[] sample, int index) {
+				StringBuffer s = new StringBuffer();
+				s.append(index).append(':');
+				for (int i=0; i<sample.length; i++)
+					s.append(' ').append(sample[i]);
+				samples.addElement(s.toString());
+			}
+
+			public void segmentStart(int index) {
+			}
+
+			public void segmentEnd(int index) {
+			}
+		});
+		source.simulateSampling();
+		return samples;
+	}
+
+	public void testConvertParallelPortPWM() throws IOException {
+		String input = "tests/motionauth/positive/3.gz";
+		int num = BinarySamplesWriter.convert("ParallelPortPWMReader", input, output.getPath(), 128);
+
+		InputStream in = new GZIPInputStream(new FileInputStream(input));
+		ParallelPortPWMReader text = new ParallelPortPWMReader(in, 128);
+		Vector expected = replay(text);
+		BinarySamplesReader binary = new BinarySamplesReader(output.getPath());
+		Assert.assertEquals(num, binary.getNumSamples());
+		Assert.assertEquals(expected.size(), num);
+		Assert.assertEquals(128, binary.getSampleRate(), 0);
+		Assert.assertEquals(text.getParameters().getMultiplicator(), binary.getParameters().getMultiplicator(), 0);
+		Assert.assertEquals(text.getParameters_Int().getDivisor(), binary.getParameters_Int().getDivisor());
+		// equidistant samples
+		for (int i=1; i<num; i++)
+			Assert.assertEquals(1000000/128, binary.getTimestamp(i) - binary.getTimestamp(i-1));
+		Assert.assertEquals(expected, replay(binary));
+		text.dispose();
+		binary.dispose();
+	}
+
+	public void testConvertXsens() throws IOException {
+		// values up to 65535 do not fit into signed 16 bit integers without an offset
+		File input = File.createTempFile("xsens", ".log");
+		try {
+			FileWriter w = new FileWriter(input);
+			for (int i=0; i<1000; i++) {
+				w.write(i + " " + (1000 + i*4));
+				for (int l=0; l<6; l++)
+					w.write(" " + (i*(l+1)*997) % 65536);
+				w.write("\n");
+			}
+			w.close();
+			BinarySamplesWriter.convert("XsensLogReader", input.getPath(), output.getPath(), 0);
+
+			Vector expected = replay(new XsensLogReader(input.getPath()));
+			Assert.assertEquals(1000, expected.size());
+			BinarySamplesReader binary = new BinarySamplesReader(output.getPath());
+			Assert.assertEquals(XsensLogReader.SAMPLE_RATE, binary.getSampleRate(), 0);
+			Assert.assertEquals(1000000, binary.getTimestamp(0));
+			// replaying one sample at a time gives the same as in blocks
+			Assert.assertEquals(expected, replay(binary));
+			Assert.assertEquals(expected, replay(new BinarySamplesReader(output.getPath(), 1)));
+			// 64 bytes header, 8 bytes timestamp and 6 16 bit values per sample
+			Assert.assertEquals(64 + 1000*(8+6*2), output.length());
+		}
+		finally {
+			input.delete();
+		}
+	}
+
+	public void testInvalidFile() throws IOException {
+		FileWriter w = new FileWriter(output);
+		for (int i=0; i<100; i++)
+			w.write("not a binary samples file\n");
+		w.close();
+		try {
+			new BinarySamplesReader(output.getPath());
+			Assert.fail("Should have rejected the file");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -14,11 +14,26 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.StringTokenizer;
+import java.util.Vector;
 import java.util.zip.GZIPInputStream;
 
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
+import org.openuat.util.PrefetchInputStream;
+
 public class DataFilesHelper {
+	/** The pool that runConcurrently uses, limited to the number of
+	 * processors. */
+	public static final String PoolReplay = "replay";
+
+	/** A task that runConcurrently runs for each file. */
+	public interface FileTask {
+		public void run(String filename) throws Exception;
+	}
+
 	/** This is a small helper to get all *.gz files from a directory. */
 	public static String[] getTestFiles(String directory) {
 		File dir = new File(directory);
@@ -30,9 +45,43 @@ public class DataFilesHelper {
 		return testFiles;
 	}
 
+	/** Opens a *.gz file for reading. The file is decompressed in the
+	 * background, concurrently to parsing it. */
+	public static InputStream openTestFile(String filename) throws FileNotFoundException, IOException {
+		return new PrefetchInputStream(new GZIPInputStream(new FileInputStream(filename), 
+				PrefetchInputStream.DefaultChunkSize));
+	}
+
+	/** Runs a task for each of the files, with as many files at a time as
+	 * there are processors.
+	 * @return The first exception thrown by any of the tasks, or null if
+	 *         all have succeeded. All tasks are run in any case.
+	 */
+	public static Exception runConcurrently(String[] filenames, final FileTask task) throws InterruptedException {
+		ExecutionService.configurePool(PoolReplay, Runtime.getRuntime().availableProcessors(), false);
+		final Vector errors = new Vector();
+		BackgroundTask[] tasks = new BackgroundTask[filenames.length];
+		for (int i=0; i<filenames.length; i++) {
+			final String filename = filenames[i];
+			tasks[i] = ExecutionService.start(PoolReplay, new Runnable() {
+				public void run() {
+					try {
+						task.run(filename);
+					}
+					catch (Exception e) {
+						errors.addElement(e);
+					}
+				}
+			});
+		}
+		for (int i=0; i<tasks.length; i++)
+			tasks[i].join();
+		return errors.isEmpty() ? null : (Exception) errors.firstElement();
+	}
+
 	/** This helper function returns the length of the data set in seconds. */ 
 	public static int determineDataSetLength(String filename) throws FileNotFoundException, IOException {
-		BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))));
+		BufferedReader in = new BufferedReader(new InputStreamReader(openTestFile(filename)));
 		int firstTimestamp = -1, lastTimestamp = -1;
 		String line = in.readLine();
 		while (line != null) {
@@ -44,6 +93,7 @@ public class DataFilesHelper {
 				lastTimestamp = timestampSecs;
 			line = in.readLine();
 		}
+		in.close();
 		return lastTimestamp - firstTimestamp;
 	}
 }
@@ -0,0 +1,64 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-29
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors.test;
+
+import org.openuat.sensors.SamplesBuffer;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class SamplesBufferTest extends TestCase {
+	public void testGrow() {
+		SamplesBuffer b = new SamplesBuffer(2);
+		for (int i=0; i<100; i++)
+			b.add(i);
+		Assert.assertEquals(100, b.size());
+		double[] arr = b.toArray(10, 5);
+		for (int i=0; i<5; i++)
+			Assert.assertEquals(10+i, arr[i], 0d);
+		b.clear();
+		Assert.assertEquals(0, b.size());
+	}
+
+	public void testSlidingWindow() {
+		// like windows of 8 samples shifted by 3
+		SamplesBuffer b = new SamplesBuffer(16);
+		int first = 0;
+		for (int i=0; i<1000; i++) {
+			b.add(i);
+			if (b.size() == 8) {
+				double[] a = b.getArray();
+				for (int j=0; j<8; j++)
+					Assert.assertEquals(first+j, a[b.getOffset()+j], 0d);
+				Assert.assertEquals(first+7, b.get(7), 0d);
+				b.removeFirst(3);
+				first += 3;
+			}
+		}
+		// compacting must have kept the array from growing
+		Assert.assertEquals(16, b.getArray().length);
+	}
+
+	public void testRemoveAll() {
+		SamplesBuffer b = new SamplesBuffer(4);
+		b.add(1);
+		b.add(2);
+		b.removeFirst(5);
+		Assert.assertEquals(0, b.size());
+		b.add(3);
+		Assert.assertEquals(3, b.get(0), 0d);
+		try {
+			b.get(1);
+			Assert.fail("Should not return samples beyond the size");
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+}
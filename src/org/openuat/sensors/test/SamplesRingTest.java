@@ -0,0 +1,135 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-27
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors.test;
+
+import org.openuat.sensors.SamplesRing;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class SamplesRingTest extends TestCase {
+	private double[][] samples = new double[8][2];
+	private int[] indices = new int[8];
+	private boolean[] isInt = new boolean[8];
+
+	private void put(SamplesRing r, int from, int to) {
+		for (int i=from; i<to; i++)
+			r.put(new double[] {i, -i}, i);
+	}
+
+	public void testOrderAndTypes() {
+		SamplesRing r = new SamplesRing(2, 16, 8, SamplesRing.OverflowBlock);
+		Assert.assertEquals(0, r.take(samples, indices, isInt));
+		put(r, 0, 5);
+		r.put(new int[] {5, -5}, 5);
+		Assert.assertEquals(6, r.size());
+		Assert.assertEquals(6, r.take(samples, indices, isInt));
+		for (int i=0; i<6; i++) {
+			Assert.assertEquals(i, indices[i]);
+			Assert.assertEquals(i, samples[i][0], 0);
+			Assert.assertEquals(-i, samples[i][1], 0);
+			Assert.assertEquals(i == 5, isInt[i]);
+		}
+		Assert.assertTrue(r.isEmpty());
+		Assert.assertEquals(0, r.getDroppedSamples());
+	}
+
+	public void testDropNewest() {
+		SamplesRing r = new SamplesRing(2, 4, 8, SamplesRing.OverflowDropNewest);
+		put(r, 0, 10);
+		Assert.assertEquals(6, r.getDroppedSamples());
+		Assert.assertEquals(4, r.take(samples, indices, isInt));
+		for (int i=0; i<4; i++)
+			Assert.assertEquals(i, indices[i]);
+	}
+
+	public void testDropOldest() {
+		SamplesRing r = new SamplesRing(2, 4, 8, SamplesRing.OverflowDropOldest);
+		put(r, 0, 10);
+		// the producer can fill the extra room without waiting for the consumer
+		Assert.assertEquals(0, r.getDroppedSamples());
+		Assert.assertEquals(4, r.take(samples, indices, isInt));
+		Assert.assertEquals(6, r.getDroppedSamples());
+		for (int i=0; i<4; i++)
+			Assert.assertEquals(6+i, indices[i]);
+		// only when the extra room is full as well, the newest are dropped
+		put(r, 10, 30);
+		Assert.assertEquals(6+8, r.getDroppedSamples());
+	}
+
+	public void testWaitIsWokenUp() throws InterruptedException {
+		final SamplesRing r = new SamplesRing(2, 4, 8, SamplesRing.OverflowBlock);
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					// just put earlier
+				}
+				// the fifth sample blocks until the consumer has taken some
+				put(r, 0, 5);
+			}
+		};
+		producer.start();
+		// the consumer is woken up by the put, not by the timeout
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(r.waitForSamples(5000));
+		Assert.assertTrue("Consumer not woken up by put", System.currentTimeMillis() - start < 2500);
+		while (r.size() < 4)
+			Thread.sleep(10);
+		// and the blocked producer by the take
+		Assert.assertEquals(4, r.take(samples, indices, isInt));
+		producer.join(2500);
+		Assert.assertFalse("Producer not woken up by take", producer.isAlive());
+		Assert.assertEquals(1, r.take(samples, indices, isInt));
+
+		// closing ends the wait on an empty ring
+		Thread closer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					// just close earlier
+				}
+				r.close();
+			}
+		};
+		closer.start();
+		start = System.currentTimeMillis();
+		Assert.assertFalse(r.waitForSamples(5000));
+		Assert.assertTrue("Consumer not woken up by close", System.currentTimeMillis() - start < 2500);
+		closer.join();
+		Assert.assertEquals(0, r.getDroppedSamples());
+	}
+
+	public void testBlockingHandOff() throws InterruptedException {
+		final SamplesRing r = new SamplesRing(2, 16, 8, SamplesRing.OverflowBlock);
+		final int total = 10000;
+		Thread producer = new Thread() {
+			public void run() {
+				put(r, 0, total);
+			}
+		};
+		producer.start();
+		int next = 0;
+		while (next < total) {
+			int n = r.take(samples, indices, isInt);
+			for (int i=0; i<n; i++, next++) {
+				Assert.assertEquals(next, indices[i]);
+				Assert.assertEquals(next, samples[i][0], 0);
+			}
+			if (n == 0)
+				Assert.assertTrue("Producer stalled", r.waitForSamples(5000));
+		}
+		producer.join();
+		Assert.assertEquals(0, r.getDroppedSamples());
+	}
+}
@@ -0,0 +1,224 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-26
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.sensors.test;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import org.openuat.sensors.ParallelPortPWMReader;
+import org.openuat.sensors.SamplesRing;
+import org.openuat.sensors.SamplesSink;
+import org.openuat.sensors.SamplesSource;
+import org.openuat.sensors.SegmentsSink;
+import org.openuat.sensors.TimeSeries;
+import org.openuat.sensors.TimeSeriesAggregator;
+import org.openuat.sensors.TimeSeries_Int;
+import org.openuat.util.VirtualClock;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class SamplesSourceTest extends TestCase {
+	/** Emits a synthetic 3D signal with a few active segments, either one
+	 * sample at a time or in blocks of blockSize samples. */
+	private static class SyntheticSource extends SamplesSource {
+		int blockSize;
+		volatile int next = 0;
+		int total;
+
+		SyntheticSource(int total, int blockSize) {
+			super(3, 0);
+			this.total = total;
+			this.blockSize = blockSize;
+		}
+
+		protected boolean handleSample() {
+			if (blockSize > 1)
+				beginBlock();
+			for (int i=0; i<blockSize && next<total; i++, next++) {
+				// different lines become active and quiescent at different times
+				double[] sample = new double[3];
+				for (int l=0; l<3; l++) {
+					boolean active = (next+7*l) % 300 < 120;
+					sample[l] = active ? 50 * Math.sin(next * (0.3 + l*0.1)) : (next % 3) * 0.01;
+				}
+				emitSample(sample);
+			}
+			if (blockSize > 1)
+				endBlock();
+			return next < total;
+		}
+
+		public TimeSeries.Parameters getParameters() {
+			return null;
+		}
+
+		public TimeSeries_Int.Parameters getParameters_Int() {
+			return null;
+		}
+	}
+
+	/** Records everything coming out of an aggregator as strings. */
+	private static class Recorder implements SegmentsSink, SamplesSink {
+		Vector events = new Vector();
+
+		public void addSegment(double[] segment, int startIndex) {
+			StringBuffer s = new StringBuffer("segment " + startIndex + ":");
+			for (int i=0; i<segment.length; i++)
+				s.append(' ').append(segment[i]);
+			events.addElement(s.toString());
+		}
+
+		public void addSample(double sample, int index) {
+			events.addElement("sample " + index + " " + sample);
+		}
+
+		public void addSamples(double[] samples, int off, int len, int firstIndex) {
+			for (int i=0; i<len; i++)
+				addSample(samples[off+i], firstIndex+i);
+		}
+
+		public void segmentStart(int index) {
+			events.addElement("start " + index);
+		}
+
+		public void segmentEnd(int index) {
+			events.addElement("end " + index);
+		}
+	}
+
+	/** A source without timestamps that would sleep between its samples. */
+	private static class SleepingSource extends SamplesSource {
+		int next = 0;
+		Vector times = new Vector();
+
+		SleepingSource(int sleepBetweenReads) {
+			super(1, sleepBetweenReads);
+		}
+
+		protected boolean handleSample() {
+			times.addElement(new Long(getClock().currentTimeMillis()));
+			emitSample(new double[] {next++});
+			return next < 100;
+		}
+
+		public TimeSeries.Parameters getParameters() {
+			return null;
+		}
+
+		public TimeSeries_Int.Parameters getParameters_Int() {
+			return null;
+		}
+	}
+
+	private Vector runAggregator(int blockSize) throws InterruptedException {
+		return runAggregator(blockSize, false);
+	}
+
+	private Vector runAggregator(int blockSize, boolean handOff) throws InterruptedException {
+		SyntheticSource source = new SyntheticSource(2000, blockSize);
+		TimeSeriesAggregator aggr = new TimeSeriesAggregator(3, 16, 32, -1);
+		aggr.setActiveVarianceThreshold(1d);
+		Recorder r = new Recorder();
+		aggr.addNextStageSegmentsSink(r);
+		aggr.addNextStageSamplesSink(r);
+		source.addSink(new int[] {0, 1, 2}, aggr.getInitialSinks());
+		if (handOff) {
+			source.setHandOff(100, SamplesRing.OverflowBlock);
+			source.start();
+			while (source.next < source.total)
+				Thread.sleep(10);
+			source.stop();
+			Assert.assertEquals(0, source.getDroppedSamples());
+		}
+		else
+			source.simulateSampling();
+		return r.events;
+	}
+
+	public void testBlocksMatchSingleSamples() throws InterruptedException {
+		Vector single = runAggregator(1);
+		Assert.assertTrue("Synthetic signal produced no segments", single.toString().indexOf("segment") >= 0);
+		// including block sizes larger than the source staging buffer
+		int[] blockSizes = {2, 17, 100, 1000};
+		for (int i=0; i<blockSizes.length; i++)
+			Assert.assertEquals("Block size " + blockSizes[i] + " changed the result",
+					single, runAggregator(blockSizes[i]));
+	}
+
+	public void testHandOffMatchesDirectDelivery() throws InterruptedException {
+		Assert.assertEquals(runAggregator(1), runAggregator(1, true));
+		Assert.assertEquals(runAggregator(1), runAggregator(17, true));
+	}
+
+	public void testVirtualTimeWithoutTimestamps() {
+		SleepingSource source = new SleepingSource(1000);
+		VirtualClock clock = new VirtualClock(5000);
+		source.setClock(clock);
+		long start = System.currentTimeMillis();
+		source.simulateSampling();
+		// 100 seconds of sampling, but without sleeping
+		Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+		for (int i=0; i<100; i++)
+			Assert.assertEquals(5000 + i*1000, ((Long) source.times.elementAt(i)).longValue());
+		// no pause after the last sample
+		Assert.assertEquals(5000 + 99*1000, clock.currentTimeMillis());
+	}
+
+	public void testVirtualTimeFollowsTimestamps() throws IOException {
+		final ParallelPortPWMReader reader = new ParallelPortPWMReader(
+				DataFilesHelper.openTestFile("tests/motionauth/positive/3.gz"), 128);
+		final VirtualClock clock = new VirtualClock();
+		reader.setClock(clock);
+		final Vector mismatches = new Vector();
+		final int[] num = {0};
+		// the sinks see the clock at the time of their sample
+		reader.addSink(new int[] {0}, new SamplesSink[] {new SamplesSink() {
+			public void addSample(double sample, int index) {
+				if (clock.currentTimeMillis() != reader.getSampleTime() / 1000)
+					mismatches.addElement(new Integer(index));
+				num[0]++;
+			}
+
+			public void addSamples(double[] samples, int off, int len, int firstIndex) {
+				Assert.fail("Blocks should not be delivered in virtual time");
+			}
+
+			public void segmentStart(int index) {
+			}
+
+			public void segmentEnd(int index) {
+			}
+		}});
+		reader.simulateSampling();
+		Assert.assertTrue(num[0] > 1000);
+		Assert.assertEquals(new Vector(), mismatches);
+		Assert.assertEquals(reader.getSampleTime() / 1000, clock.currentTimeMillis());
+		reader.dispose();
+	}
+
+	public void testTimeSeriesAddSamples() {
+		TimeSeries s1 = new TimeSeries(10), s2 = new TimeSeries(10);
+		s1.setActiveVarianceThreshold(1d);
+		s2.setActiveVarianceThreshold(1d);
+		Recorder r1 = new Recorder(), r2 = new Recorder();
+		s1.addNextStageSink(r1);
+		s2.addNextStageSink(r2);
+		double[] samples = new double[500];
+		for (int i=0; i<samples.length; i++)
+			samples[i] = (i / 100) % 2 == 0 ? 0 : 10 * Math.sin(i);
+		for (int i=0; i<samples.length; i++)
+			s1.addSample(samples[i], i);
+		for (int i=0; i<samples.length; i+=64)
+			s2.addSamples(samples, i, Math.min(64, samples.length-i), i);
+		Assert.assertEquals(r1.events, r2.events);
+		Assert.assertEquals(s1.getWindowMean(), s2.getWindowMean(), 0);
+		Assert.assertEquals(s1.getWindowVariance(), s2.getWindowVariance(), 0);
+	}
+}
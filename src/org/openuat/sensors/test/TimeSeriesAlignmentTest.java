@@ -8,9 +8,8 @@
  */
 package org.openuat.sensors.test;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
+import java.io.InputStream;
 
 import org.openuat.authentication.accelerometer.ShakeWellBeforeUseParameters;
 import org.openuat.sensors.AsciiLineReaderBase;
@@ -322,8 +321,8 @@ public class TimeSeriesAlignmentTest extends TestCase {
 		int dataSetLength = DataFilesHelper.determineDataSetLength(filename);
 		System.out.println("Data set is " + dataSetLength + " seconds long");
 		// just read from the file
-		FileInputStream in = new FileInputStream(filename);
-		AsciiLineReaderBase reader1 = new ParallelPortPWMReader(new GZIPInputStream(in), ShakeWellBeforeUseParameters.samplerate);
+		InputStream in = DataFilesHelper.openTestFile(filename);
+		AsciiLineReaderBase reader1 = new ParallelPortPWMReader(in, ShakeWellBeforeUseParameters.samplerate);
 
 		reader1.addSink(new int[] { 0, 1, 2 }, sample1.getInitialSinks());
 		reader1.addSink(new int[] { 4, 5, 6 }, sample2.getInitialSinks());
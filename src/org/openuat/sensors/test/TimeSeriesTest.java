@@ -56,4 +56,36 @@ public class TimeSeriesTest extends TestCase {
 		
 		Assert.assertEquals("Window variance calculated online does not match", var2, s.getWindowVariance(), 0.0001d);
 	}
+
+	public void testWindowView() {
+		double[] arr = s.getSamplesInWindow();
+		Assert.assertEquals(arr.length, s.getNumSamplesInWindow());
+		double[] dest = new double[arr.length + 2];
+		Assert.assertEquals(arr.length, s.getSamplesInWindow(dest, 2));
+		for (int i=0; i<arr.length; i++) {
+			Assert.assertEquals(9-i, arr[i], 0d);
+			Assert.assertEquals(arr[i], dest[i+2], 0d);
+			Assert.assertEquals(arr[i], s.getSampleInWindow(i), 0d);
+		}
+	}
+
+	public void testLongStreamStaysExact() {
+		// a large mean with a small variance is the worst case for sums of squares
+		TimeSeries t = new TimeSeries(50);
+		for (int i=0; i<1000000; i++)
+			t.addSample(1e6 + Math.sin(i * 0.1) + (i % 7) * 0.01, i);
+		double[] arr = t.getSamplesInWindow();
+		double mean = 0;
+		for (int i=0; i<arr.length; i++)
+			mean += arr[i];
+		mean /= arr.length;
+		double var = 0;
+		for (int i=0; i<arr.length; i++)
+			var += (arr[i] - mean) * (arr[i] - mean);
+		var /= arr.length-1;
+		Assert.assertEquals(mean, t.getWindowMean(), 1e-9);
+		Assert.assertEquals(var, t.getWindowVariance(), 1e-9);
+		Assert.assertEquals(1e6, t.getTotalMean(), 0.1);
+		Assert.assertTrue(t.getTotalVariance() > 0.4 && t.getTotalVariance() < 0.6);
+	}
 }
@@ -56,4 +56,37 @@ public class TimeSeriesTest_Int extends TestCase {
 		
 		Assert.assertEquals("Window variance calculated online does not match", var2, s.getWindowVariance());
 	}
+
+	public void testWindowView() {
+		int[] arr = s.getSamplesInWindow();
+		Assert.assertEquals(arr.length, s.getNumSamplesInWindow());
+		int[] dest = new int[arr.length + 2];
+		Assert.assertEquals(arr.length, s.getSamplesInWindow(dest, 2));
+		for (int i=0; i<arr.length; i++) {
+			Assert.assertEquals(9-i, arr[i]);
+			Assert.assertEquals(arr[i], dest[i+2]);
+			Assert.assertEquals(arr[i], s.getSampleInWindow(i));
+		}
+	}
+
+	public void testLongStreamDoesNotOverflow() {
+		TimeSeries_Int t = new TimeSeries_Int(64);
+		// the sum of squares exceeds the int range after about 2000 samples
+		for (int i=0; i<1000000; i++)
+			t.addSample((i % 2 == 0) ? TimeSeries_Int.MAXIMUM_VALUE : -TimeSeries_Int.MAXIMUM_VALUE, i);
+		Assert.assertEquals(0, t.getTotalMean());
+		Assert.assertEquals(1048577, t.getTotalVariance());
+		Assert.assertEquals(0, t.getWindowMean());
+		Assert.assertEquals(1065220, t.getWindowVariance());
+	}
+
+	public void testVarianceBeyond32BitSampleCount() {
+		// 2^31 samples of 1000 and 2^31+1 samples of 0, i.e. about 50 days at 1kHz
+		long num = (1L << 32) + 1, ones = 1L << 31;
+		long sum = ones * 1000, sum2 = ones * 1000 * 1000;
+		// the exact value is 250000.00006
+		Assert.assertEquals(250000, TimeSeries_Int.getVariance(sum, sum2, num));
+		// and short series give the same as the direct formula, (795 - 105*105/21) / 20
+		Assert.assertEquals(13, TimeSeries_Int.getVariance(10*9+15, 2*285+225, 21));
+	}
 }
@@ -0,0 +1,136 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-22
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This is the handle to a task started with ExecutionService.start. It
+ * offers the parts of the Thread interface that OpenUAT components use to
+ * control their background threads (interrupt, join and isAlive), but
+ * applies them to the task and not to the thread that happens to execute it.
+ * Because worker threads are reused, an interrupt that arrives after the
+ * task has finished is ignored instead of hitting the next task.
+ *
+ * @see ExecutionService
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class BackgroundTask implements Runnable {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.BackgroundTask" /*BackgroundTask.class*/);
+
+	/** The actual task. */
+	private Runnable task;
+
+	/** The pool that accounts for this task. */
+	private ThreadPool pool;
+
+	/** The thread executing the task, only set while it is running. */
+	private Thread thread = null;
+
+	/** Set when interrupt is called before the task started. */
+	private boolean interruptRequested = false;
+
+	/** Set when run has been called. */
+	private boolean started = false;
+
+	/** Set when the task has finished. */
+	private boolean finished = false;
+
+	/** Only ExecutionService creates tasks. */
+	BackgroundTask(Runnable task, ThreadPool pool) {
+		this.task = task;
+		this.pool = pool;
+	}
+
+	/** Executes the task in the current thread and updates the statistics
+	 * of the pool. This is called by the thread that executes the task and
+	 * must not be called by anybody else. */
+	public void run() {
+		synchronized (this) {
+			if (started) {
+				logger.error("Task " + task + " in pool '" + pool.getName() + "' already started, not running it twice");
+				return;
+			}
+			started = true;
+			thread = Thread.currentThread();
+			if (interruptRequested)
+				thread.interrupt();
+		}
+		long startTime = pool.taskStarted();
+		boolean failed = true;
+		try {
+			task.run();
+			failed = false;
+		}
+		catch (RuntimeException e) {
+			logger.error("Task " + task + " in pool '" + pool.getName() + "' aborted with " + e);
+		}
+		finally {
+			pool.taskFinished(startTime, failed);
+			synchronized (this) {
+				finished = true;
+				thread = null;
+				notifyAll();
+			}
+//#if cfg.includeJSSESupport
+			// don't let a pending interrupt of this task hit the next one on this thread
+			Thread.interrupted();
+//#endif
+		}
+	}
+
+	/** Interrupts the task if it is running, or as soon as it starts if it
+	 * has not yet started. Does nothing when the task has already finished. */
+	public synchronized void interrupt() {
+		if (finished)
+			return;
+		if (thread != null)
+			thread.interrupt();
+		else
+			interruptRequested = true;
+	}
+
+	/** Waits until the task has finished. */
+	public void join() throws InterruptedException {
+		join(0);
+	}
+
+	/** Waits until the task has finished, but at most for the given time.
+	 * @param timeoutMs The maximum time to wait in milliseconds, or 0 to
+	 *                  wait forever.
+	 */
+	public synchronized void join(long timeoutMs) throws InterruptedException {
+		if (thread == Thread.currentThread())
+			throw new IllegalArgumentException("Task can not wait for itself to finish");
+		long endTime = System.currentTimeMillis() + timeoutMs;
+		while (!finished) {
+			if (timeoutMs <= 0)
+				wait();
+			else {
+				long remaining = endTime - System.currentTimeMillis();
+				if (remaining <= 0)
+					return;
+				wait(remaining);
+			}
+		}
+	}
+
+	/** Returns true if the task has not yet finished, i.e. if it is either
+	 * still waiting to be executed or running. */
+	public synchronized boolean isAlive() {
+		return !finished;
+	}
+
+	/** Returns the name of the pool this task has been submitted to. */
+	public String getPoolName() {
+		return pool.getName();
+	}
+}
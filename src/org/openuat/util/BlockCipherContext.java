@@ -0,0 +1,397 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-17
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.openuat.authentication.exceptions.InternalApplicationException;
+
+/** This class holds a block cipher (AES/Rijndael) that has been initialized
+ * with a fixed key, so that the key schedule is only computed once and not
+ * for every message or block. It implements the same modes as
+ * SimpleBlockCipher (ECB for a single block, CBC with a random IV prepended
+ * for longer messages), but works on caller-provided buffers and does not
+ * allocate any memory per message. IVs are taken from the EntropyService.
+ * <br>
+ * When using the JSSE, the default JCE provider of the JVM is used, which on
+ * current JVMs uses the AES instructions of the CPU where available.
+ * <br>
+ * The methods of one context are synchronized, because the underlying cipher
+ * objects and the scratch buffers can not be used concurrently.
+ * <br>
+ * A context holds the key and its expanded key schedule, so it should be 
+ * disposed of as soon as the key is no longer needed.
+ *
+ * @see SimpleBlockCipher
+ * @author Rene Mayrhofer
+ */
+public class BlockCipherContext {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.BlockCipherContext" /*BlockCipherContext.class*/);
+
+	/** The key that the ciphers have been initialized with. This is a copy
+	 * of the key passed to the constructor.
+	 */
+	private byte[] sharedKey;
+
+	/** If set to true, the JSSE will be used, if set to false, the Bouncycastle Lightweight API. */
+	private boolean useJSSE;
+
+	/** The cipher initialized for encryption, or null if not yet used. */
+	private Object encryptCipher = null;
+
+	/** The cipher initialized for decryption, or null if not yet used. */
+	private Object decryptCipher = null;
+
+	/** Scratch buffers of one block each, used for CBC chaining. */
+	private byte[] curBlock = new byte[SimpleBlockCipher.BlockByteLength],
+		nextBlock = new byte[SimpleBlockCipher.BlockByteLength];
+
+	/** Set by dispose, after which the context can no longer be used. */
+	private boolean disposed = false;
+
+	/** This may be set to distinguish multiple instances running on the same machine. */
+	public String instanceId = null;
+
+	/** Construct a cipher context for a fixed key.
+	 * @param sharedKey The key to use for encryption and decryption. It must
+	 *                  be of length SimpleBlockCipher.KeyByteLength.
+	 * @param useJSSE If set to true, the JSSE API with the default JCE provider of the JVM will be used
+	 *                for cryptographic operations. If set to false, an internal copy of the Bouncycastle
+	 *                Lightweight API classes will be used.
+	 * @throws InternalApplicationException
+	 */
+	public BlockCipherContext(byte[] sharedKey, boolean useJSSE) throws InternalApplicationException {
+		if (sharedKey == null)
+			throw new InternalApplicationException("Can not create cipher context without shared key");
+		if (sharedKey.length != SimpleBlockCipher.KeyByteLength)
+			throw new InternalApplicationException("Invalid key length: expected " +
+					SimpleBlockCipher.KeyByteLength + " bytes, got " + sharedKey.length);
+		this.sharedKey = new byte[sharedKey.length];
+		System.arraycopy(sharedKey, 0, this.sharedKey, 0, sharedKey.length);
+		this.useJSSE = useJSSE;
+	}
+
+	/** Returns true if this context has been initialized with the given key
+	 * and cipher implementation. */
+	public synchronized boolean matches(byte[] key, boolean useJSSE) {
+		if (disposed || key == null || key.length != sharedKey.length || useJSSE != this.useJSSE)
+			return false;
+		for (int i=0; i<key.length; i++)
+			if (key[i] != sharedKey[i]) return false;
+		return true;
+	}
+
+	/** Returns the length of the cipher text that encrypt will produce.
+	 * @param plainTextLength The length of the plain text in bytes.
+	 * @param numMessageBits The number of bits of the plain text to use.
+	 */
+	public static int getCipherTextLength(int plainTextLength, int numMessageBits) {
+		if (plainTextLength == SimpleBlockCipher.BlockByteLength)
+			return SimpleBlockCipher.BlockByteLength;
+		int numCipherTextBlocks = (numMessageBits%(SimpleBlockCipher.BlockByteLength*8) == 0 ?
+				numMessageBits/(SimpleBlockCipher.BlockByteLength*8) :
+				numMessageBits/(SimpleBlockCipher.BlockByteLength*8) + 1) + 1;
+		return numCipherTextBlocks * SimpleBlockCipher.BlockByteLength;
+	}
+
+	/** Returns the length of the plain text that decrypt will produce.
+	 * @param cipherTextLength The length of the cipher text in bytes.
+	 * @param numMessageBits The number of bits of the plain text.
+	 */
+	public static int getPlainTextLength(int cipherTextLength, int numMessageBits) {
+		if (cipherTextLength == SimpleBlockCipher.BlockByteLength)
+			return SimpleBlockCipher.BlockByteLength;
+		return numMessageBits%8 == 0 ? numMessageBits/8 : numMessageBits/8+1;
+	}
+
+	/** Encrypts or decrypts a single block in ECB mode. Input and output may
+	 * be the same array at the same offset.
+	 * @throws InternalApplicationException
+	 */
+	public synchronized void processBlock(boolean encrypt, byte[] input, int inOff,
+			byte[] output, int outOff) throws InternalApplicationException {
+		Object cipher = getCipher(encrypt);
+//#if cfg.includeJSSESupport
+		if (useJSSE)
+			processBlock_JSSE(cipher, input, inOff, output, outOff);
+		else
+//#endif
+			processBlock_BCAPI(cipher, input, inOff, output, outOff);
+	}
+
+	/** Encrypt the plain text message. If the message length equals the block
+	 * size of the cipher, it is assumed to be a nonce and is encrypted as a
+	 * single block in ECB mode. If it is larger, it is encrypted in CBC mode
+	 * with a random IV prepended.
+	 * @param plainText The buffer holding the message to encrypt.
+	 * @param plainOff The offset of the message in plainText.
+	 * @param plainLen The length of the message in bytes.
+	 * @param numMessageBits The number of bits to use of this message.
+	 * @param output The buffer to write the cipher text to. It must have
+	 *               room for getCipherTextLength(plainLen, numMessageBits)
+	 *               bytes, and may be the same array as plainText with the
+	 *               same offset (i.e. encryption in place).
+	 * @param outOff The offset to start writing at in output.
+	 * @return The number of bytes written to output.
+	 * @throws InternalApplicationException
+	 */
+	public synchronized int encrypt(byte[] plainText, int plainOff, int plainLen, int numMessageBits,
+			byte[] output, int outOff) throws InternalApplicationException {
+		int cipherTextLength = getCipherTextLength(plainLen, numMessageBits);
+		if (output.length - outOff < cipherTextLength)
+			throw new IllegalArgumentException("Output buffer too small, need " + cipherTextLength + " bytes" +
+					(instanceId != null ? " [instance " + instanceId : ""));
+
+		// now distinguish between the single-block and the multiple-block cases
+		if (plainLen == SimpleBlockCipher.BlockByteLength) {
+			// ok, the simple case - just one block in ECB mode
+			processBlock(true, plainText, plainOff, output, outOff);
+			return cipherTextLength;
+		}
+
+		// more difficult: multiple block in CBC mode with prepended IV
+		int numCipherTextBlocks = cipherTextLength / SimpleBlockCipher.BlockByteLength;
+		/* Each plain text block is read before the cipher text block at the
+		 * same position is written, so that output may overlap plainText. */
+		readPlainBlock(plainText, plainOff, plainLen, 0, curBlock);
+		// first block is the IV
+		EntropyService.nextBytes(nextBlock);
+		System.arraycopy(nextBlock, 0, output, outOff, SimpleBlockCipher.BlockByteLength);
+		// and then as many rounds of CBC as we need
+		for (int i=0; i<numCipherTextBlocks-1; i++) {
+			if (logger.isDebugEnabled())
+				logger.debug("Encrypting block " + i +
+						(instanceId != null ? " [instance " + instanceId : ""));
+			if (i+1 < numCipherTextBlocks-1)
+				readPlainBlock(plainText, plainOff, plainLen, i+1, nextBlock);
+			// XOR with the last cipher text block
+			for (int j=0; j<SimpleBlockCipher.BlockByteLength; j++)
+				curBlock[j] ^= output[outOff + i*SimpleBlockCipher.BlockByteLength + j];
+			// and encrypt directly into the output
+			processBlock(true, curBlock, 0, output, outOff + (i+1)*SimpleBlockCipher.BlockByteLength);
+			byte[] tmp = curBlock;
+			curBlock = nextBlock;
+			nextBlock = tmp;
+		}
+		return cipherTextLength;
+	}
+
+	/** Decrypt the cipher text message. If the message length equals the block
+	 * size of the cipher, the plain text is assumed to have been a nonce and is
+	 * decrypted as a single block in ECB mode. If it is larger, it is decrypted
+	 * in CBC mode with a random IV prepended.
+	 * @param cipherText The buffer holding the cipher text to decrypt.
+	 * @param cipherOff The offset of the cipher text in cipherText.
+	 * @param cipherLen The length of the cipher text, which must be a multiple
+	 *                  of the block size.
+	 * @param numMessageBits The number of bits to extract from cipherText after decrypting.
+	 * @param output The buffer to write the plain text to. It must have room
+	 *               for getPlainTextLength(cipherLen, numMessageBits) bytes,
+	 *               and may be the same array as cipherText with the same
+	 *               offset (i.e. decryption in place).
+	 * @param outOff The offset to start writing at in output.
+	 * @return The number of bytes written to output.
+	 * @throws InternalApplicationException
+	 */
+	public synchronized int decrypt(byte[] cipherText, int cipherOff, int cipherLen, int numMessageBits,
+			byte[] output, int outOff) throws InternalApplicationException {
+		if (cipherLen % SimpleBlockCipher.BlockByteLength != 0)
+			throw new IllegalArgumentException("Can only decrypt multiples of the block cipher length" +
+					(instanceId != null ? " [instance " + instanceId : ""));
+		int plainTextLength = getPlainTextLength(cipherLen, numMessageBits);
+		if (output.length - outOff < plainTextLength)
+			throw new IllegalArgumentException("Output buffer too small, need " + plainTextLength + " bytes" +
+					(instanceId != null ? " [instance " + instanceId : ""));
+
+		// now distinguish between the single-block and the multiple-block cases
+		if (cipherLen == SimpleBlockCipher.BlockByteLength) {
+			// ok, the simple case - just one block in ECB mode
+			processBlock(false, cipherText, cipherOff, output, outOff);
+			return plainTextLength;
+		}
+
+		// more difficult: multiple block in CBC mode with prepended IV
+		int numCipherTextBlocks = cipherLen / SimpleBlockCipher.BlockByteLength;
+		if (plainTextLength > (numCipherTextBlocks-1) * SimpleBlockCipher.BlockByteLength)
+			throw new IllegalArgumentException("Cipher text too short for " + numMessageBits + " bits" +
+					(instanceId != null ? " [instance " + instanceId : ""));
+		/* Keep a copy of the previous cipher text block, because it might be
+		 * overwritten by the plain text when decrypting in place. */
+		System.arraycopy(cipherText, cipherOff, nextBlock, 0, SimpleBlockCipher.BlockByteLength);
+		for (int i=0; i<numCipherTextBlocks-1; i++) {
+			// the number of bytes left for this block - may be less for the last
+			int bytesInBlock = (i+1)*SimpleBlockCipher.BlockByteLength <= plainTextLength ?
+					SimpleBlockCipher.BlockByteLength : plainTextLength - i*SimpleBlockCipher.BlockByteLength;
+			if (logger.isDebugEnabled())
+				logger.debug("Decrypting block " + i + ": " + bytesInBlock + " bytes" +
+						(instanceId != null ? " [instance " + instanceId : ""));
+			if (bytesInBlock <= 0)
+				break;
+			int blockOff = cipherOff + (i+1)*SimpleBlockCipher.BlockByteLength;
+			processBlock(false, cipherText, blockOff, curBlock, 0);
+			// then XOR with the last cipher text block
+			for (int j=0; j<SimpleBlockCipher.BlockByteLength; j++)
+				curBlock[j] ^= nextBlock[j];
+			// remember this cipher text block before it might get overwritten
+			System.arraycopy(cipherText, blockOff, nextBlock, 0, SimpleBlockCipher.BlockByteLength);
+			// and finally add to the output
+			System.arraycopy(curBlock, 0, output, outOff + i*SimpleBlockCipher.BlockByteLength, bytesInBlock);
+		}
+		return plainTextLength;
+	}
+
+	/** Copies block number i of the plain text into block, padded with zeros. */
+	private static void readPlainBlock(byte[] plainText, int plainOff, int plainLen, int i, byte[] block) {
+		// the number of bytes left for this block - may be less for the last
+		int bytesInBlock = (i+1)*SimpleBlockCipher.BlockByteLength <= plainLen ?
+				SimpleBlockCipher.BlockByteLength : plainLen - i*SimpleBlockCipher.BlockByteLength;
+		if (bytesInBlock < 0)
+			bytesInBlock = 0;
+		System.arraycopy(plainText, plainOff + i*SimpleBlockCipher.BlockByteLength, block, 0, bytesInBlock);
+		// if not filled, the rest is padded with zeros
+		for (int j=bytesInBlock; j<SimpleBlockCipher.BlockByteLength; j++)
+			block[j] = 0;
+	}
+
+	/** Wipes the key and the scratch buffers, and overwrites the key 
+	 * schedules of the ciphers by initializing them with an all-zero key 
+	 * before dropping them. After this, the context can not be used anymore.
+	 */
+	public synchronized void dispose() {
+		if (disposed)
+			return;
+		disposed = true;
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = 0;
+		for (int i=0; i<SimpleBlockCipher.BlockByteLength; i++) {
+			curBlock[i] = 0;
+			nextBlock[i] = 0;
+		}
+		try {
+			if (encryptCipher != null)
+				wipeCipher(encryptCipher, true);
+			if (decryptCipher != null)
+				wipeCipher(decryptCipher, false);
+		}
+		catch (InternalApplicationException e) {
+			logger.warn("Could not overwrite key schedule of disposed cipher context: " + e + 
+					(instanceId != null ? " [instance " + instanceId : ""));
+		}
+		encryptCipher = null;
+		decryptCipher = null;
+	}
+
+	/** Returns true if dispose has been called. */
+	public synchronized boolean isDisposed() {
+		return disposed;
+	}
+
+	/** Re-initializes a cipher with the (already wiped) key, so that it no 
+	 * longer holds the key schedule of the real key. */
+	private void wipeCipher(Object cipher, boolean encrypt) throws InternalApplicationException {
+//#if cfg.includeJSSESupport
+		if (useJSSE) {
+			try {
+				((javax.crypto.Cipher) cipher).init(encrypt ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE,
+						new javax.crypto.spec.SecretKeySpec(sharedKey, "AES"));
+			} catch (java.security.InvalidKeyException e) {
+				throw new InternalApplicationException("Cipher does not accept its key.", e);
+			}
+		}
+		else
+//#endif
+			((org.bouncycastle.crypto.BlockCipher) cipher).init(encrypt, 
+					new org.bouncycastle.crypto.params.KeyParameter(sharedKey));
+	}
+
+	/** Returns the cipher for the requested direction, initializing it with
+	 * the key on first use. */
+	private Object getCipher(boolean encrypt) throws InternalApplicationException {
+		if (disposed)
+			throw new InternalApplicationException("Cipher context has already been disposed" + 
+					(instanceId != null ? " [instance " + instanceId : ""));
+		if (encrypt) {
+			if (encryptCipher == null)
+				encryptCipher = initCipher(true);
+			return encryptCipher;
+		}
+		else {
+			if (decryptCipher == null)
+				decryptCipher = initCipher(false);
+			return decryptCipher;
+		}
+	}
+
+	/** Initializes the block cipher for encryption or decryption. */
+	private Object initCipher(boolean encrypt) throws InternalApplicationException {
+//#if cfg.includeJSSESupport
+		if (useJSSE)
+			return initCipher_JSSE(encrypt, sharedKey);
+		else
+//#endif
+			return initCipher_BCAPI(encrypt, sharedKey);
+	}
+
+//#if cfg.includeJSSESupport
+	/** Initializes the block cipher for encryption or decryption. This implementation utilizes the
+	 * Sun JSSE API. */
+	private static Object initCipher_JSSE(boolean encrypt, byte[] sharedKey) throws InternalApplicationException {
+        // need to specifically request no padding or padding would enlarge the one 128 bits block to two
+        try {
+			javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(encrypt ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE,
+					new javax.crypto.spec.SecretKeySpec(sharedKey, "AES"));
+			return cipher;
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new InternalApplicationException(
+					"Unable to get cipher object from crypto provider.", e);
+		} catch (javax.crypto.NoSuchPaddingException e) {
+			throw new InternalApplicationException(
+					"Unable to get requested padding from crypto provider.", e);
+		} catch (java.security.InvalidKeyException e) {
+			throw new InternalApplicationException(
+					"Cipher does not accept its key.", e);
+		}
+	}
+//#endif
+
+	/** Initializes the block cipher for encryption or decryption. This implementation utilizes the
+	 * Bouncycastle Lightweight API. */
+	private static Object initCipher_BCAPI(boolean encrypt, byte[] sharedKey) {
+   		org.bouncycastle.crypto.BlockCipher cipher = new org.bouncycastle.crypto.engines.AESLightEngine();
+    	cipher.init(encrypt, new org.bouncycastle.crypto.params.KeyParameter(sharedKey));
+    	return cipher;
+	}
+
+//#if cfg.includeJSSESupport
+	/** Process a block with the previously initialized block cipher (just in ECB mode). */
+	private static void processBlock_JSSE(Object cipher, byte[] input, int inOff,
+			byte[] output, int outOff) throws InternalApplicationException {
+		try {
+			// for ECB without padding, every complete block is processed immediately
+			int processedBytes = ((javax.crypto.Cipher) cipher).update(input, inOff,
+					SimpleBlockCipher.BlockByteLength, output, outOff);
+			if (processedBytes != SimpleBlockCipher.BlockByteLength)
+				throw new InternalApplicationException("Block processing went wrong: unexpected number of bytes returned");
+		} catch (javax.crypto.ShortBufferException e) {
+			throw new InternalApplicationException(
+					"Output buffer too short for block.", e);
+		}
+	}
+//#endif
+
+	/** Process a block with the previously initialized block cipher (just in ECB mode). */
+	private static void processBlock_BCAPI(Object cipher, byte[] input, int inOff,
+			byte[] output, int outOff) throws InternalApplicationException {
+		int processedBytes = ((org.bouncycastle.crypto.BlockCipher) cipher).processBlock(input, inOff, output, outOff);
+		if (processedBytes != SimpleBlockCipher.BlockByteLength)
+			throw new InternalApplicationException("Block processing went wrong: unexpected number of bytes returned");
+	}
+}
@@ -0,0 +1,72 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-28
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+/** This class is the source of time for sensor processing and protocol
+ * timeouts. The default implementation simply uses the system time, but a
+ * VirtualClock can be set instead (either as default with setDefault or for
+ * single components with their setClock methods) so that replays of
+ * recorded sensor data run as fast as possible and still see the same
+ * times as when sampling in real time.
+ * <br>
+ * Components that wait for a condition with a timeout must re-check the
+ * condition and the time in a loop, because waitOn may return early.
+ *
+ * @see VirtualClock
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class Clock {
+	/** The system time. */
+	private static final Clock systemClock = new Clock();
+
+	/** The clock returned by getDefault. */
+	private static Clock defaultClock = systemClock;
+
+	/** Returns the clock that components use unless they have been given
+	 * their own. */
+	public static synchronized Clock getDefault() {
+		return defaultClock;
+	}
+
+	/** Sets the clock that components use unless they have been given their
+	 * own. Components that are already running may keep using the previous
+	 * clock for timeouts they have already started.
+	 * @param clock The new default clock, or null for the system time.
+	 */
+	public static synchronized void setDefault(Clock clock) {
+		defaultClock = clock != null ? clock : systemClock;
+	}
+
+	/** Returns the current time in milliseconds. */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/** Lets the calling thread sleep.
+	 * @param ms The time to sleep in milliseconds.
+	 * @throws InterruptedException When interrupted while sleeping.
+	 */
+	public void sleep(long ms) throws InterruptedException {
+		if (ms > 0)
+			Thread.sleep(ms);
+	}
+
+	/** Waits on an object until it is notified or the timeout has passed,
+	 * like lock.wait(timeoutMs). The caller must hold the lock of the
+	 * object. This may also return early, so callers need to check their
+	 * condition and the time in a loop.
+	 * @param lock The object to wait on.
+	 * @param timeoutMs The maximum time to wait in milliseconds, must be > 0.
+	 * @throws InterruptedException When interrupted while waiting.
+	 */
+	public void waitOn(Object lock, long timeoutMs) throws InterruptedException {
+		lock.wait(timeoutMs);
+	}
+}
@@ -17,6 +17,11 @@ import org.slf4j.LoggerFactory;
 /** This is a decorator for an InputStream that will log every character
  * read from the underlying stream at log4j trace level.
  *  
+ * Logging every byte synchronously is too slow for anything but debugging
+ * single connections. RemoteTCPConnection and BluetoothRFCOMMChannel only
+ * apply it when their logger is at trace or debug level, respectively. To
+ * record complete pairing sessions, use WireRecorder and RecordingInputStream.
+ * 
  * @author Rene Mayrhofer
  * @version 1.0
  */
@@ -0,0 +1,199 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-20
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.security.SecureRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class is the central source of random numbers for nonces, IVs and
+ * key agreement secrets. Creating a new SecureRandom object for every nonce
+ * is expensive, because each new object seeds itself from the system entropy
+ * source, and concurrent protocol runs then contend on that source.
+ * <br>
+ * Instead, a single master generator is seeded from the system once. Each
+ * thread gets its own deterministic random bit generator, which is seeded
+ * from the master generator on first use and reseeded from it after 
+ * ReseedBytes bytes or ReseedRequests requests. Therefore, threads never
+ * block each other when generating random numbers.
+ * The per-thread generators are NIST SP 800-90A DRBGs where the runtime
+ * provides them (Java 9 and later). Older runtimes fall back to SHA1PRNG,
+ * and if that is not available either, to the master generator.
+ * On platforms without JSSE support, all threads share the master generator.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class EntropyService {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.EntropyService" /*EntropyService.class*/);
+
+	/** The number of bytes that a per-thread generator may produce before
+	 * it is reseeded. */
+	public static final int ReseedBytes = 1 << 20;
+
+	/** The number of requests that a per-thread generator may serve before
+	 * it is reseeded. */
+	public static final int ReseedRequests = 4096;
+
+	/** The length of the seed taken from the master generator. */
+	private static final int SeedByteLength = 32;
+
+	/** The master generator, seeded from the system on first use. */
+	private static SecureRandom master = null;
+
+//#if cfg.includeJSSESupport
+	/** The per-thread generators, as PerThreadGenerator objects. */
+	private static ThreadLocal generators = new ThreadLocal();
+//#endif
+
+//#if cfg.includeJSSESupport
+	/** The algorithms to try for the per-thread generators, in this order. */
+	private static final String[] GeneratorAlgorithms = {"DRBG", "SHA1PRNG"};
+//#endif
+
+	/** Holds a per-thread generator and counts its use for reseeding. */
+	private static class PerThreadGenerator {
+		SecureRandom random;
+		int bytesSinceSeed = 0;
+		int requestsSinceSeed = 0;
+	}
+
+	/** This class only has static methods. */
+	private EntropyService() {
+	}
+
+	/** Returns the master generator, creating it on first use. */
+	private static synchronized SecureRandom getMaster() {
+		if (master == null) {
+			if (logger.isDebugEnabled())
+				logger.debug("Creating master random number generator");
+			master = new SecureRandom();
+		}
+		return master;
+	}
+
+	/** Returns seed material from the master generator. */
+	private static byte[] nextSeed() {
+		byte[] seed = new byte[SeedByteLength];
+		SecureRandom m = getMaster();
+		synchronized (m) {
+			m.nextBytes(seed);
+		}
+		return seed;
+	}
+
+	/** Returns the generator to use for the current thread, and accounts
+	 * for a request of numBytes bytes.
+	 */
+	private static SecureRandom getGenerator(int numBytes) {
+		SecureRandom r = null;
+//#if cfg.includeJSSESupport
+		PerThreadGenerator g = (PerThreadGenerator) generators.get();
+		if (g == null) {
+			g = new PerThreadGenerator();
+			g.random = createGenerator();
+			generators.set(g);
+		}
+		else if (g.bytesSinceSeed >= ReseedBytes || g.requestsSinceSeed >= ReseedRequests) {
+			if (logger.isDebugEnabled())
+				logger.debug("Reseeding generator of thread " + Thread.currentThread().getName() +
+						" after " + g.bytesSinceSeed + " bytes in " + g.requestsSinceSeed + " requests");
+			// for both DRBG and SHA1PRNG, this supplements and does not replace the current seed
+			g.random.setSeed(nextSeed());
+			g.bytesSinceSeed = 0;
+			g.requestsSinceSeed = 0;
+		}
+		g.bytesSinceSeed += numBytes;
+		g.requestsSinceSeed++;
+		r = g.random;
+//#endif
+		if (r == null)
+			r = getMaster();
+		return r;
+	}
+
+//#if cfg.includeJSSESupport
+	/** Creates a new per-thread generator, seeded from the master generator,
+	 * with the first of GeneratorAlgorithms that is available. 
+	 */
+	private static SecureRandom createGenerator() {
+		for (int i=0; i<GeneratorAlgorithms.length; i++) {
+			try {
+				SecureRandom r = SecureRandom.getInstance(GeneratorAlgorithms[i]);
+				/* For SHA1PRNG, seeding before first use replaces self-seeding 
+				 * from the system. A DRBG instantiates itself from the shared
+				 * seeder of the runtime and mixes this seed in. */
+				r.setSeed(nextSeed());
+				if (i > 0)
+					logger.warn(GeneratorAlgorithms[0] + " not available, falling back to " +
+							GeneratorAlgorithms[i] + " for thread " + Thread.currentThread().getName());
+				return r;
+			} catch (java.security.NoSuchAlgorithmException e) {
+				// try the next one
+			}
+		}
+		logger.warn("No DRBG available, using master generator for thread " +
+				Thread.currentThread().getName());
+		return getMaster();
+	}
+//#endif
+
+	/** Returns a random number generator for the current thread, e.g. to be
+	 * passed to key pair generators. It must not be passed to other threads.
+	 */
+	public static SecureRandom getRandom() {
+		return getGenerator(0);
+	}
+
+	/** Fills a part of a buffer with random bytes.
+	 * @param out The buffer to fill.
+	 * @param off The offset to start at.
+	 * @param len The number of random bytes to write.
+	 */
+	public static void nextBytes(byte[] out, int off, int len) {
+		if (off < 0 || len < 0 || off + len > out.length)
+			throw new IllegalArgumentException("Invalid offset " + off + " or length " + len +
+					" for buffer of length " + out.length);
+		SecureRandom r = getGenerator(len);
+		if (off == 0 && len == out.length) {
+			r.nextBytes(out);
+			return;
+		}
+		byte[] tmp = new byte[len];
+		r.nextBytes(tmp);
+		System.arraycopy(tmp, 0, out, off, len);
+	}
+
+	/** Fills a buffer with random bytes. */
+	public static void nextBytes(byte[] out) {
+		getGenerator(out.length).nextBytes(out);
+	}
+
+	/** Generates multiple nonces at once, with a single request to the
+	 * generator.
+	 * @param count The number of nonces to generate.
+	 * @param nonceByteLength The length of each nonce in bytes.
+	 * @return count nonces of nonceByteLength bytes each.
+	 */
+	public static byte[][] nextNonces(int count, int nonceByteLength) {
+		if (count < 0 || nonceByteLength < 0)
+			throw new IllegalArgumentException("Number and length of nonces can not be negative");
+		byte[] all = new byte[count * nonceByteLength];
+		nextBytes(all);
+		byte[][] nonces = new byte[count][nonceByteLength];
+		for (int i=0; i<count; i++)
+			System.arraycopy(all, i*nonceByteLength, nonces[i], 0, nonceByteLength);
+		// don't leave a copy of the nonces behind
+		for (int i=0; i<all.length; i++)
+			all[i] = 0;
+		return nonces;
+	}
+}
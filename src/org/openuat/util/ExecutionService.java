@@ -0,0 +1,204 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-22
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class is the central place where OpenUAT components start their
+ * background threads. Every task is submitted to a named ThreadPool, which
+ * keeps statistics about its utilisation. This allows applications that
+ * embed OpenUAT, e.g. in a server, to observe and bound its thread usage:
+ * <ul>
+ * <li>configurePool sets a limit and the daemon flag for a pool,</li>
+ * <li>setExecutor hands all tasks to an application-provided executor,</li>
+ * <li>setUseVirtualThreads runs workers as virtual threads on virtual
+ *     machines that support them.</li>
+ * </ul>
+ * Tasks are represented by BackgroundTask handles, which support the
+ * interrupt, join and isAlive operations that the components used on
+ * their raw Thread objects before.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class ExecutionService {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.ExecutionService" /*ExecutionService.class*/);
+
+	/** The pool for authentication protocol runs. */
+	public static final String PoolProtocol = "protocol";
+	/** The pool for threads listening for incoming connections or messages. */
+	public static final String PoolListener = "listener";
+	/** The pool for threads reading sensor samples. */
+	public static final String PoolSensor = "sensor";
+	/** The pool for timers, e.g. SafetyBeltTimer. It is a daemon pool. */
+	public static final String PoolTimer = "timer";
+	/** The pool for serving and sending files via HTTP. It is a daemon pool. */
+	public static final String PoolHttp = "http";
+	/** The pool for device and service discovery. */
+	public static final String PoolDiscovery = "discovery";
+	/** The pool for out-of-band channel transmissions and audio coding. */
+	public static final String PoolChannel = "channel";
+	/** The pool for group key message handlers. */
+	public static final String PoolGroupKey = "groupkey";
+	/** The pool for writing captures of the wire traffic. It is a daemon pool. */
+	public static final String PoolRecorder = "recorder";
+	/** The pool for splitting computations such as coherence across processors. It is a daemon pool. */
+	public static final String PoolCompute = "compute";
+
+	/** All pools by name, as ThreadPool objects. */
+	private static Hashtable pools = new Hashtable();
+
+	/** If set, all tasks are handed to this executor. */
+	private static TaskExecutor executor = null;
+
+	/** If true, pools start their workers as virtual threads. */
+	private static boolean useVirtualThreads = false;
+
+	static {
+		// timers must never keep the virtual machine alive, and HTTP sessions never did;
+		// the recorder is stopped explicitly and computations are always waited for
+		configurePool(PoolTimer, 0, true);
+		configurePool(PoolHttp, 0, true);
+		configurePool(PoolRecorder, 0, true);
+		configurePool(PoolCompute, 0, true);
+	}
+
+	/** This class only has static methods. */
+	private ExecutionService() {
+	}
+
+	/** Runs a task in the background.
+	 * @param pool The name of the pool to use, e.g. PoolProtocol. Pools
+	 *             that have not been configured are created on first use,
+	 *             without a limit and as non-daemon pools.
+	 * @param task The task to run.
+	 * @return The handle to the task.
+	 */
+	public static BackgroundTask start(String pool, Runnable task) {
+		if (task == null)
+			throw new IllegalArgumentException("Task can not be null");
+		ThreadPool p = getPool(pool);
+		BackgroundTask t = new BackgroundTask(task, p);
+		TaskExecutor e;
+		boolean virtual;
+		synchronized (ExecutionService.class) {
+			e = executor;
+			virtual = useVirtualThreads;
+		}
+		p.submit(t, e, virtual);
+		return t;
+	}
+
+	/** Returns the pool with the given name, creating it if necessary. */
+	public static synchronized ThreadPool getPool(String pool) {
+		ThreadPool p = (ThreadPool) pools.get(pool);
+		if (p == null) {
+			if (logger.isDebugEnabled())
+				logger.debug("Creating thread pool '" + pool + "'");
+			p = new ThreadPool(pool, 0, false);
+			pools.put(pool, p);
+		}
+		return p;
+	}
+
+	/** Returns the names of all pools. */
+	public static synchronized String[] getPoolNames() {
+		String[] names = new String[pools.size()];
+		int i = 0;
+		for (Enumeration e = pools.keys(); e.hasMoreElements(); )
+			names[i++] = (String) e.nextElement();
+		return names;
+	}
+
+	/** Configures a pool, creating it if necessary.
+	 * @param pool The name of the pool.
+	 * @param maxThreads The maximum number of concurrently running tasks,
+	 *                   or 0 for no limit. Pools that run long-running loops
+	 *                   such as PoolListener or PoolSensor should not be
+	 *                   limited, because queued tasks would only start when
+	 *                   one of these loops has finished.
+	 * @param daemon If true, workers don't keep the virtual machine alive.
+	 */
+	public static synchronized void configurePool(String pool, int maxThreads, boolean daemon) {
+		ThreadPool p = (ThreadPool) pools.get(pool);
+		if (p == null)
+			pools.put(pool, new ThreadPool(pool, maxThreads, daemon));
+		else
+			p.configure(maxThreads, daemon);
+	}
+
+	/** Sets an executor that runs all tasks submitted afterwards, or null
+	 * to run them on the workers of the pools again. The statistics of the
+	 * pools are still updated, but limits are up to the executor. */
+	public static synchronized void setExecutor(TaskExecutor taskExecutor) {
+		executor = taskExecutor;
+	}
+
+	/** Returns the executor set with setExecutor, or null if none is set. */
+	public static synchronized TaskExecutor getExecutor() {
+		return executor;
+	}
+
+	/** Requests pools to start their workers as virtual threads. Virtual
+	 * threads are always daemon threads and are not kept idle for reuse.
+	 * @return true if virtual threads are used from now on, false if they
+	 *         were requested but are not supported by this virtual machine.
+	 */
+	public static synchronized boolean setUseVirtualThreads(boolean virtualThreads) {
+		useVirtualThreads = false;
+//#if cfg.includeJSSESupport
+		if (virtualThreads) {
+			Thread test = createVirtualThread(new Runnable() { public void run() {} }, "openuat-test");
+			useVirtualThreads = (test != null);
+			if (!useVirtualThreads)
+				logger.warn("Virtual threads are not supported by this virtual machine, using platform threads");
+		}
+//#endif
+		return useVirtualThreads == virtualThreads;
+	}
+
+	/** Returns true if pools start their workers as virtual threads. */
+	public static synchronized boolean getUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	/** Returns a string with the statistics of all pools, for logging. */
+	public static synchronized String getStatistics() {
+		StringBuffer s = new StringBuffer();
+		for (Enumeration e = pools.elements(); e.hasMoreElements(); ) {
+			if (s.length() > 0)
+				s.append('\n');
+			s.append(e.nextElement());
+		}
+		return s.toString();
+	}
+
+//#if cfg.includeJSSESupport
+	/** Creates an unstarted virtual thread via reflection, so that this
+	 * class still compiles and runs on older virtual machines.
+	 * @return The thread, or null if virtual threads are not supported.
+	 */
+	static Thread createVirtualThread(Runnable r, String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+			Class builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", new Class[] {String.class}).invoke(builder, new Object[] {name});
+			return (Thread) builderClass.getMethod("unstarted", new Class[] {Runnable.class}).invoke(builder, new Object[] {r});
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+//#endif
+}
@@ -13,6 +13,10 @@ import org.openuat.authentication.exceptions.InternalApplicationException;
 /** This is a small helper class that implements SHAd-256, a double execution of SHA256 
  * to counter extension attacks. It is defined in 
  * Niels Ferguson, Bruce Schneier: Practical Cryptography, Wiley 2003
+ * <br>
+ * Objects of this class compute SHA-256 or HMAC-SHA256 incrementally and 
+ * can be reused for multiple hashes. The static methods use one reusable
+ * object per thread (see getThreadInstance).
  *
  * @author Rene Mayrhofer
  * @version 1.0
@@ -26,44 +30,204 @@ public class Hash {
 	/** Constant OPAD as defined by HMAC. */
 	private static final byte OPAD_BYTE = 0x36;
 	
-	/** This is only a helper function to select JSSE or Bouncycastle implementation. */
-	public static byte[] SHA256(byte[] text, boolean useJSSE) 
-			throws InternalApplicationException {
+	/** The length of the SHA-256 hash in bytes. */
+	public static final int HashByteLength = 32;
+
 //#if cfg.includeJSSESupport
-		if (useJSSE)
-			return SHA256_JSSE(text);
-		else
+	/** The reusable instances for each thread, see getThreadInstance. */
+	private static ThreadLocal threadInstanceJSSE = new ThreadLocal(),
+		threadInstanceBCAPI = new ThreadLocal();
 //#endif
-			return SHA256_BCAPI(text);
-	}
-	
-	/** This is an implementation of SHA256 using the Sun JSSE. */
+
+	/** If set to true, the JSSE will be used, if set to false, the Bouncycastle Lightweight API. */
+	private boolean useJSSE;
+
+	/** The underlying digest, either a java.security.MessageDigest or an 
+	 * org.bouncycastle.crypto.Digest object.
+	 */
+	private Object digest;
+
+	/** When in HMAC mode, the key XORed with IPAD and OPAD. Null otherwise. */
+	private byte[] keyIpad = null, keyOpad = null;
+
+	/** Holds the inner hash when in HMAC mode. */
+	private byte[] innerHash = null;
+
+	/** Constructs a new incremental SHA-256 hash. Data is added with the 
+	 * update methods, and the hash is computed with doFinal or hashInto, 
+	 * after which the object can be reused for the next hash.
+	 * @param useJSSE If set to true, the JSSE API with the default JCE provider of the JVM will be used
+	 *                for cryptographic operations. If set to false, an internal copy of the Bouncycastle
+	 *                Lightweight API classes will be used.
+	 * @throws InternalApplicationException
+	 */
+	public Hash(boolean useJSSE) throws InternalApplicationException {
+		this.useJSSE = useJSSE;
 //#if cfg.includeJSSESupport
-		private static byte[] SHA256_JSSE(byte[] text)
-				throws InternalApplicationException {
+		if (useJSSE) {
 			try {
-				java.security.MessageDigest h = java.security.MessageDigest.getInstance(DIGEST_ALGORITHM);
-				return h.digest(text);
+				digest = java.security.MessageDigest.getInstance(DIGEST_ALGORITHM);
 			} catch (java.security.NoSuchAlgorithmException e) {
 				throw new InternalApplicationException(
 						"Required digest algorithm is unknown to the installed cryptography provider(s)",
 						e);
 			}
 		}
+		else
+//#endif
+			digest = new org.bouncycastle.crypto.digests.SHA256Digest();
+	}
+
+	/** Returns an incremental SHA-256 hash object that is reused by all calls
+	 * from the same thread, so that the digest does not need to be looked up
+	 * again for every hash. It is reset to compute a plain SHA-256 hash. 
+	 * The returned object must not be kept across calls to other code that
+	 * might use the thread instance, including the static methods of this 
+	 * class.
+	 * On platforms without JSSE support, a new object is returned on each call.
+	 * @param useJSSE If set to true, the JSSE API with the default JCE provider of the JVM will be used
+	 *                for cryptographic operations. If set to false, an internal copy of the Bouncycastle
+	 *                Lightweight API classes will be used.
+	 * @throws InternalApplicationException
+	 */
+	public static Hash getThreadInstance(boolean useJSSE) throws InternalApplicationException {
+		Hash h = null;
+//#if cfg.includeJSSESupport
+		ThreadLocal cache = useJSSE ? threadInstanceJSSE : threadInstanceBCAPI;
+		h = (Hash) cache.get();
+		if (h == null) {
+			h = new Hash(useJSSE);
+			cache.set(h);
+		}
 //#endif
+		if (h == null)
+			h = new Hash(useJSSE);
+		h.clearHmac();
+		return h;
+	}
 
-		/** This is an implementation of SHA256 using the Bouncycastle Lightweight API. */
-		private static byte[] SHA256_BCAPI(byte[] text)
-				throws InternalApplicationException {
-			org.bouncycastle.crypto.Digest h = new org.bouncycastle.crypto.digests.SHA256Digest();
-			
-			byte[] tmp = new byte[h.getDigestSize()];
-			if (tmp.length != 32)
-				throw new InternalApplicationException("Digst does not produce 256 bits, but claims to produce " + tmp.length);
-			h.update(text, 0, text.length);
-			h.doFinal(tmp, 0);
-			return tmp;
-		}	
+	/** Overwrites the HMAC key material, switches back to plain SHA-256 and
+	 * resets the digest. */
+	private void clearHmac() {
+		if (keyIpad != null) {
+			for (int i=0; i<HashByteLength; i++)
+				keyIpad[i] = keyOpad[i] = innerHash[i] = 0;
+			keyIpad = keyOpad = innerHash = null;
+		}
+		reset();
+	}
+
+	/** Switches this object to computing HMAC-SHA256 with the given key, as 
+	 * defined in hmacSHA256. Subsequent calls to doFinal or hashInto will 
+	 * compute the HMAC over all data passed to update, and the key is kept 
+	 * for computing the next HMAC.
+	 * @param key The key for the HMAC, see hmacSHA256.
+	 * @throws InternalApplicationException
+	 */
+	public void initHmac(byte[] key) throws InternalApplicationException {
+		// shorten key if it is too long
+		if (key.length > HashByteLength)
+			key = doubleSHA256(key, useJSSE);
+		if (keyIpad == null) {
+			keyIpad = new byte[HashByteLength];
+			keyOpad = new byte[HashByteLength];
+			innerHash = new byte[HashByteLength];
+		}
+		// XOR the key with IPAD and OPAD, with the key zero-padded if it is too short
+		for (int i=0; i<HashByteLength; i++) {
+			byte k = i < key.length ? key[i] : 0;
+			keyIpad[i] = (byte) (IPAD_BYTE ^ k);
+			keyOpad[i] = (byte) (OPAD_BYTE ^ k);
+		}
+		reset();
+	}
+
+	/** Discards all data added since the last hash was computed. */
+	public void reset() {
+//#if cfg.includeJSSESupport
+		if (useJSSE)
+			((java.security.MessageDigest) digest).reset();
+		else
+//#endif
+			((org.bouncycastle.crypto.Digest) digest).reset();
+		// in HMAC mode, the inner hash starts with the key XORed with IPAD
+		if (keyIpad != null)
+			update(keyIpad, 0, keyIpad.length);
+	}
+
+	/** Adds a part of text to the hash. */
+	public void update(byte[] text, int off, int len) {
+//#if cfg.includeJSSESupport
+		if (useJSSE)
+			((java.security.MessageDigest) digest).update(text, off, len);
+		else
+//#endif
+			((org.bouncycastle.crypto.Digest) digest).update(text, off, len);
+	}
+
+	/** Adds text to the hash. */
+	public void update(byte[] text) {
+		update(text, 0, text.length);
+	}
+
+	/** Computes the hash over all data added since the last hash, and writes
+	 * it to a caller-provided buffer. The object is then reset and can be 
+	 * used for the next hash.
+	 * @param out The buffer to write the hash to. It must have room for 
+	 *            HashByteLength bytes starting at off.
+	 * @param off The offset in out to write the hash at.
+	 * @return The number of bytes written, i.e. HashByteLength.
+	 * @throws InternalApplicationException
+	 */
+	public int hashInto(byte[] out, int off) throws InternalApplicationException {
+		if (keyOpad != null) {
+			// HMAC: hash the key XORed with OPAD and the inner hash
+			finish(innerHash, 0);
+			update(keyOpad, 0, keyOpad.length);
+			update(innerHash, 0, innerHash.length);
+		}
+		finish(out, off);
+		// re-initialize for the next HMAC with the same key
+		if (keyIpad != null)
+			update(keyIpad, 0, keyIpad.length);
+		return HashByteLength;
+	}
+
+	/** Computes the hash over all data added since the last hash. The object
+	 * is then reset and can be used for the next hash. 
+	 * @return The hash value.
+	 * @throws InternalApplicationException
+	 */
+	public byte[] doFinal() throws InternalApplicationException {
+		byte[] out = new byte[HashByteLength];
+		hashInto(out, 0);
+		return out;
+	}
+
+	/** Finishes the underlying digest into out and resets it. */
+	private void finish(byte[] out, int off) throws InternalApplicationException {
+		if (out.length - off < HashByteLength)
+			throw new IllegalArgumentException("Output buffer too small, need " + HashByteLength + " bytes");
+//#if cfg.includeJSSESupport
+		if (useJSSE) {
+			try {
+				((java.security.MessageDigest) digest).digest(out, off, HashByteLength);
+			} catch (java.security.DigestException e) {
+				throw new InternalApplicationException("Unable to compute digest", e);
+			}
+		}
+		else
+//#endif
+			((org.bouncycastle.crypto.Digest) digest).doFinal(out, off);
+	}
+
+	/** This is only a helper function to select JSSE or Bouncycastle implementation. */
+	public static byte[] SHA256(byte[] text, boolean useJSSE) 
+			throws InternalApplicationException {
+		Hash h = getThreadInstance(useJSSE);
+		h.update(text, 0, text.length);
+		return h.doFinal();
+	}
 
 	/** This is a small utility function for computing a secure hash from the shared key.
 	 * @param text The text to hash, it may be of arbitrary length.
@@ -74,21 +238,48 @@ public class Hash {
 	 */		
 	public static byte[] doubleSHA256(byte[] text, boolean useJSSE)
 			throws InternalApplicationException {
+		byte[] out = new byte[HashByteLength];
+		doubleSHA256(text, 0, text.length, out, 0, useJSSE);
+		return out;
+	}
+
+	/** Computes the SHAd-256 hash over a part of text without allocating 
+	 * memory, see doubleSHA256(byte[], boolean).
+	 * @param text The buffer holding the text to hash.
+	 * @param off The offset of the text in the buffer.
+	 * @param len The length of the text to hash.
+	 * @param out The buffer to write the hash to. It must have room for 
+	 *            HashByteLength bytes starting at outOff, and this range
+	 *            must not overlap the text, because the text is hashed
+	 *            again after the first hash has been written to out.
+	 * @param outOff The offset in out to write the hash at.
+	 * @param useJSSE If set to true, the JSSE API with the default JCE provider of the JVM will be used
+	 *                for cryptographic operations. If set to false, an internal copy of the Bouncycastle
+	 *                Lightweight API classes will be used.
+	 * @return The number of bytes written, i.e. HashByteLength.
+	 */
+	public static int doubleSHA256(byte[] text, int off, int len, byte[] out, int outOff, boolean useJSSE)
+			throws InternalApplicationException {
+		if (out == text && outOff < off + len && off < outOff + HashByteLength)
+			throw new IllegalArgumentException("Output range [" + outOff + ";" + (outOff+HashByteLength) + 
+					") overlaps the text range [" + off + ";" + (off+len) + ")");
 		/* This double hashing with the first hash being prepended to the message is suggested by 
 		 * Practical Cryptography, p. 93 - it should solve the length extension attacks and thus the
-		 * MD5 attacks. It is defined as SHAd256(m) = SHA256( SHA256(m) | m ). */
-
-		byte[] tmp1 = SHA256(text, useJSSE);
-		if (tmp1.length != 32)
-			throw new InternalApplicationException("Digst does not produce 256 bits, but claims to produce " + tmp1.length);
-		byte[] tmp2 = new byte[tmp1.length + text.length];
-		System.arraycopy(tmp1, 0, tmp2, 0, tmp1.length);
-		System.arraycopy(text, 0, tmp2, tmp1.length, text.length);
-		return SHA256(tmp2, useJSSE);
+		 * MD5 attacks. It is defined as SHAd256(m) = SHA256( SHA256(m) | m ). 
+		 * The first hash is written to out and then fed back, so that the
+		 * concatenation never needs to be copied. */
+		Hash h = getThreadInstance(useJSSE);
+		h.update(text, off, len);
+		h.hashInto(out, outOff);
+		h.update(out, outOff, HashByteLength);
+		h.update(text, off, len);
+		return h.hashInto(out, outOff);
 	}
 	
 	/** This is a small utility function for computing HMAC-SHA256 in its standard definition.
 	 * HMAC-SHA256 is defined as \mathrm{HMAC}_K(m) = h\bigg((K \oplus \mathrm{opad}) \| h\big((K \oplus \mathrm{ipad}) \| m\big)\bigg)
+	 * Note that the key is padded to the hash length of 32 Bytes and not to 
+	 * the block size of SHA-256, so the result differs from the JCE HmacSHA256.
 	 * @param text The text to hash, it may be of arbitrary length.
 	 * @param key The key for the HMAC. It should conform to the block size 
 	 * 			  of the underlying hash function, i.e. 256 Bits / 32 Bytes, 
@@ -103,41 +294,16 @@ public class Hash {
 	 */		
 	public static byte[] hmacSHA256(byte[] text, byte[] key, boolean useJSSE)
 			throws InternalApplicationException {
-		// shorten key if it is too long
-		if (key.length > 32)
+		// shorten key if it is too long, before getting the thread instance
+		if (key.length > HashByteLength)
 			key = doubleSHA256(key, useJSSE);
-		// and zero-pad if it is too short
-		if (key.length < 32) {
-			// the Java runtime is defined to initialize all elements with 0
-			byte[] tmp = new byte[32];
-			System.arraycopy(key, 0, tmp, 0, key.length);
-			key = tmp;
-		}
-		
-		if (key.length != 32) {
-			throw new InternalApplicationException("Key for HMAC-SHA256 is not 32 Bytes long even after pre-processing. This should not happen!");
-		}
-		
-		// XOR the key with IPAD and OPED
-		byte[] key_ipad = new byte[key.length], key_opad = new byte[key.length];
-		for (int i=0; i<key.length; i++) {
-			key_ipad[i] = (byte) (IPAD_BYTE ^ key[i]);
-			key_opad[i] = (byte) (OPAD_BYTE ^ key[i]);
-		}
-		
-		// first: prepend ipad to message
-		byte[] ipadAndText = new byte[key.length + text.length];
-		System.arraycopy(key_ipad, 0, ipadAndText, 0, key.length);
-		System.arraycopy(text, 0, ipadAndText, key.length, text.length);
-		// and hash this
-		byte[] firstHash = SHA256(ipadAndText, useJSSE);
-		
-		// second: prepend opad to this first hash
-		byte[] opadAndHash = new byte[2*key.length];
-		System.arraycopy(key_opad, 0, opadAndHash, 0, key.length);
-		System.arraycopy(firstHash, 0, opadAndHash, key.length, key.length);
-		// and hash
-		return SHA256(opadAndHash, useJSSE);
+		Hash h = getThreadInstance(useJSSE);
+		h.initHmac(key);
+		h.update(text, 0, text.length);
+		byte[] ret = h.doFinal();
+		// don't keep the key in the thread instance
+		h.clearHmac();
+		return ret;
 	}
 	
 	/** 
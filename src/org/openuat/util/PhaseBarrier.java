@@ -0,0 +1,215 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-14
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class implements a reusable synchronization barrier for a variable
+ * number of parties, modeled after java.util.concurrent.Phaser (which is not
+ * available on J2ME and older J2SE versions). Each party registers with the
+ * barrier, and the barrier advances to the next phase as soon as all
+ * registered parties have arrived. Parties may register and deregister at
+ * any time, and waiting can be limited by a timeout.
+ * <br>
+ * In contrast to a simple wait/notifyAll on a shared object, arriving at the
+ * barrier does not wake up the parties that are already waiting. Waiting
+ * parties block on a monitor object that belongs to the current phase, and
+ * are woken up exactly once, when the last party arrives. This keeps the
+ * cost of a barrier with many parties linear in the number of parties.
+ * <br>
+ * Sample code for a fixed group of parties:
+ * <pre>
+ * {
+ * 		PhaseBarrier barrier = new PhaseBarrier(groupSize);
+ * 		// in each of the groupSize threads
+ * 		if (barrier.arriveAndAwaitAdvance(timeoutMs) &lt; 0)
+ * 			// timeout
+ * }
+ * </pre>
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class PhaseBarrier {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.PhaseBarrier" /*PhaseBarrier.class*/);
+
+	/** The current phase number, starting at 0. It is only modified while
+	 * holding the lock on this object, but read by waiting parties while
+	 * holding the lock on the phase monitor.
+	 */
+	private volatile int phase = 0;
+
+	/** The number of currently registered parties. */
+	private int parties;
+
+	/** The number of registered parties that have not yet arrived in the
+	 * current phase.
+	 */
+	private int unarrived;
+
+	/** The monitor that parties waiting for the current phase to complete
+	 * block on. It is replaced by a fresh object on every advance, and only
+	 * the old one is notified.
+	 */
+	private Object phaseMonitor = new Object();
+
+	/** Creates a new barrier with an initial number of registered parties.
+	 * @param parties The number of parties that are registered initially.
+	 *                Must not be negative.
+	 */
+	public PhaseBarrier(int parties) {
+		if (parties < 0)
+			throw new IllegalArgumentException("Number of parties can not be negative");
+		this.parties = parties;
+		this.unarrived = parties;
+	}
+
+	/** Adds a new unarrived party to the barrier. If called while the
+	 * current phase is in progress, that phase will not advance until the
+	 * new party has arrived as well.
+	 * @return The phase in which the party has been registered.
+	 */
+	public synchronized int register() {
+		parties++;
+		unarrived++;
+		return phase;
+	}
+
+	/** Arrives at the barrier without waiting for the others.
+	 * @return The phase that was arrived at.
+	 */
+	public int arrive() {
+		return doArrive(false);
+	}
+
+	/** Arrives at the barrier and deregisters from it, without waiting for
+	 * the others.
+	 * @return The phase that was arrived at.
+	 */
+	public int arriveAndDeregister() {
+		return doArrive(true);
+	}
+
+	/** Deregisters a party that has already arrived at the barrier, e.g.
+	 * after waiting for the others timed out. If the barrier is still in
+	 * the phase that the party arrived at, it is only removed, otherwise
+	 * this is the same as arriveAndDeregister.
+	 * @param arrivedPhase The phase returned when the party arrived.
+	 * @return The phase that the party was deregistered in.
+	 */
+	public int deregister(int arrivedPhase) {
+		synchronized (this) {
+			if (phase == arrivedPhase) {
+				parties--;
+				return phase;
+			}
+		}
+		// the barrier can not advance further without this party arriving
+		return doArrive(true);
+	}
+
+	/** Arrives at the barrier and waits for all other registered parties to
+	 * arrive as well.
+	 * @param timeoutMs The maximum time to wait in milliseconds. Set to 0
+	 *                  to wait without a timeout.
+	 * @return The phase number that the barrier has advanced to, or -1 on a
+	 *         timeout. On a timeout, the party still counts as arrived.
+	 */
+	public int arriveAndAwaitAdvance(int timeoutMs) {
+		return awaitAdvance(doArrive(false), timeoutMs);
+	}
+
+	/** Waits for the barrier to advance from the given phase.
+	 * @param phase The phase to wait for. When the barrier is already in
+	 *              another phase, this method returns immediately.
+	 * @param timeoutMs The maximum time to wait in milliseconds. Set to 0
+	 *                  to wait without a timeout.
+	 * @return The phase number that the barrier has advanced to, or -1 on a
+	 *         timeout.
+	 */
+	public int awaitAdvance(int phase, int timeoutMs) {
+		Object monitor;
+		synchronized (this) {
+			if (this.phase != phase)
+				return this.phase;
+			monitor = phaseMonitor;
+		}
+
+		long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+		synchronized (monitor) {
+			// the phase might have advanced since releasing the lock above, but the notify can't be missed
+			while (this.phase == phase) {
+				long remaining = 0;
+				if (deadline > 0) {
+					remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						logger.warn("Timeout while waiting for barrier to advance from phase " + phase);
+						return -1;
+					}
+				}
+				try {
+					monitor.wait(remaining);
+				} catch (InterruptedException e) {
+					// just ignore if we're interrupted, we'll just re-check the phase
+				}
+			}
+		}
+		return this.phase;
+	}
+
+	/** Returns the current phase number. */
+	public int getPhase() {
+		return phase;
+	}
+
+	/** Returns the number of currently registered parties. */
+	public synchronized int getRegisteredParties() {
+		return parties;
+	}
+
+	/** Returns the number of parties that have already arrived in the current phase. */
+	public synchronized int getArrivedParties() {
+		return parties - unarrived;
+	}
+
+	/** Registers the arrival of one party, and advances the barrier if it was
+	 * the last one.
+	 * @param deregister If true, the party is also removed from the barrier.
+	 * @return The phase that was arrived at.
+	 */
+	private int doArrive(boolean deregister) {
+		Object toNotify = null;
+		int arrivedPhase;
+		synchronized (this) {
+			if (unarrived <= 0)
+				throw new IllegalStateException("More arrivals than registered parties in phase " + phase);
+			arrivedPhase = phase;
+			unarrived--;
+			if (deregister)
+				parties--;
+			if (unarrived == 0) {
+				if (logger.isDebugEnabled())
+					logger.debug("All " + parties + " parties arrived, advancing from phase " + phase);
+				// advance, and only wake up those waiting for this phase
+				toNotify = phaseMonitor;
+				phaseMonitor = new Object();
+				unarrived = parties;
+				phase++;
+			}
+		}
+		if (toNotify != null) {
+			synchronized (toNotify) {
+				toNotify.notifyAll();
+			}
+		}
+		return arrivedPhase;
+	}
+}
@@ -0,0 +1,257 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-28
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This stream reads ahead from another stream in a background task, so
+ * that reading (and e.g. decompressing, when the other stream is a
+ * GZIPInputStream) runs concurrently to whatever consumes the data. The
+ * background task fills chunks of chunkSize bytes into a queue of at most
+ * numChunks chunks and waits when the queue is full, so that the memory
+ * used for prefetching is bounded.
+ * <br>
+ * The background task runs in ExecutionService.PoolSensor. Exceptions
+ * thrown by the other stream are thrown by the next read after all data
+ * before them has been consumed.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class PrefetchInputStream extends InputStream {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.PrefetchInputStream" /*PrefetchInputStream.class*/);
+
+	/** The default size of the chunks in bytes. */
+	public static final int DefaultChunkSize = 65536;
+	/** The default number of chunks that may be queued. */
+	public static final int DefaultNumChunks = 8;
+	/** How long close waits for the background task to end, in ms. */
+	public static final int CloseTimeoutMs = 1000;
+
+	/** The stream to read from. */
+	private InputStream in;
+
+	/** The chunks, used as a ring. */
+	private byte[][] chunks;
+
+	/** The number of valid bytes in each chunk. */
+	private int[] lengths;
+
+	/** The chunk the consumer reads from and the number of chunks in the
+	 * queue. Protected by the lock on this object. */
+	private int head = 0, queued = 0;
+
+	/** The chunk the consumer currently reads from, its length and the
+	 * position in it. Only used by the consumer, which takes them from the
+	 * queue while holding the lock. */
+	private byte[] cur = null;
+	private int curLen = 0, pos = 0;
+
+	/** Set by the background task when the other stream has ended. */
+	private boolean eof = false;
+
+	/** The exception thrown by the other stream, if any. */
+	private IOException error = null;
+
+	/** Set by close. */
+	private boolean closed = false;
+
+	/** Set while the background task reads from the other stream, as 
+	 * opposed to waiting for room in the queue. Protected by the lock on 
+	 * this object. */
+	private boolean reading = false;
+
+	/** The background task. */
+	private BackgroundTask task;
+
+	/** Starts reading ahead with the default chunk size and number.
+	 * @param in The stream to read from. It is closed when this stream is
+	 *           closed.
+	 */
+	public PrefetchInputStream(InputStream in) {
+		this(in, DefaultChunkSize, DefaultNumChunks);
+	}
+
+	/** Starts reading ahead.
+	 * @param in The stream to read from. It is closed when this stream is
+	 *           closed.
+	 * @param chunkSize The size of the chunks in bytes.
+	 * @param numChunks The number of chunks that may be queued.
+	 */
+	public PrefetchInputStream(InputStream in, int chunkSize, int numChunks) {
+		if (in == null)
+			throw new IllegalArgumentException("Input stream can not be null");
+		if (chunkSize < 1 || numChunks < 1)
+			throw new IllegalArgumentException("Chunk size and number of chunks must be > 0");
+		this.in = in;
+		chunks = new byte[numChunks][chunkSize];
+		lengths = new int[numChunks];
+		task = ExecutionService.start(ExecutionService.PoolSensor, new Prefetcher());
+	}
+
+	/** Reads chunks until the other stream ends or this stream is closed. */
+	private class Prefetcher implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					int tail;
+					synchronized (PrefetchInputStream.this) {
+						while (queued == chunks.length && !closed)
+							PrefetchInputStream.this.wait();
+						if (closed)
+							return;
+						tail = (head + queued) % chunks.length;
+						reading = true;
+					}
+					// the consumer does not touch chunks that are not queued; fill
+					// the chunk as far as possible without blocking once there is
+					// data, so that live streams (e.g. FIFOs) are not delayed
+					byte[] chunk = chunks[tail];
+					int len = 0, n = 0;
+					while (len < chunk.length && (len == 0 || in.available() > 0) &&
+							(n = in.read(chunk, len, chunk.length - len)) >= 0)
+						len += n;
+					synchronized (PrefetchInputStream.this) {
+						reading = false;
+						if (len > 0) {
+							lengths[tail] = len;
+							queued++;
+						}
+						if (n < 0)
+							eof = true;
+						PrefetchInputStream.this.notifyAll();
+						if (eof)
+							return;
+					}
+				}
+			}
+			catch (IOException e) {
+				synchronized (PrefetchInputStream.this) {
+					reading = false;
+					// close may have closed the other stream to unblock reading
+					if (closed)
+						return;
+					error = e;
+					PrefetchInputStream.this.notifyAll();
+				}
+			}
+			catch (InterruptedException e) {
+				logger.warn("Prefetching interrupted, ending stream");
+				synchronized (PrefetchInputStream.this) {
+					eof = true;
+					PrefetchInputStream.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Hands the current chunk back to the background task and waits for
+	 * the next one.
+	 * @return false at the end of the stream.
+	 */
+	private synchronized boolean fill() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (cur != null) {
+			head = (head + 1) % chunks.length;
+			queued--;
+			cur = null;
+			notifyAll();
+		}
+		while (queued == 0) {
+			// closed by another thread while waiting
+			if (closed)
+				throw new IOException("Stream closed");
+			if (error != null)
+				throw error;
+			if (eof)
+				return false;
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for data");
+			}
+		}
+		cur = chunks[head];
+		curLen = lengths[head];
+		pos = 0;
+		return true;
+	}
+
+	//@Override
+	public int read() throws IOException {
+		if (pos == curLen && !fill())
+			return -1;
+		return cur[pos++] & 0xff;
+	}
+
+	//@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == curLen && !fill())
+			return -1;
+		int n = Math.min(len, curLen - pos);
+		System.arraycopy(cur, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	//@Override
+	public synchronized int available() {
+		int n = curLen - pos;
+		// the current chunk is the head chunk and still counts as queued
+		for (int i=(cur != null ? 1 : 0); i<queued; i++)
+			n += lengths[(head + i) % chunks.length];
+		return n;
+	}
+
+	/** Stops reading ahead and closes the other stream. When the background
+	 * task is waiting for room in the queue, it ends immediately and the 
+	 * other stream is closed afterwards. When it is reading from the other
+	 * stream, it may be blocked there, e.g. on a live socket or serial port,
+	 * so the other stream is closed first to unblock it. Streams that do not
+	 * unblock on close leave the task running until their next read returns,
+	 * but close itself never waits longer than CloseTimeoutMs.
+	 */
+	//@Override
+	public void close() throws IOException {
+		boolean wasReading;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			// the task does not start another read once closed is set
+			wasReading = reading;
+			// the rest of the current chunk can not be read any more
+			pos = curLen;
+			notifyAll();
+		}
+		try {
+			if (wasReading)
+				in.close();
+			task.join(CloseTimeoutMs);
+			if (!wasReading)
+				in.close();
+			if (task.isAlive())
+				logger.warn("Prefetching did not end within " + CloseTimeoutMs + 
+						"ms after closing, the other stream does not unblock on close");
+		}
+		catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for prefetching to end");
+			in.close();
+		}
+	}
+}
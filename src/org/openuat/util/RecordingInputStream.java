@@ -0,0 +1,98 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-25
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** This is a decorator for an InputStream that records everything read
+ * from the underlying stream with a WireRecorder tap. It is usually created
+ * with WireRecorder.wrap.
+ *  
+ * @see WireRecorder
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class RecordingInputStream extends InputStream {
+	/** The underlying input stream to read from. */
+	private InputStream realStream;
+	
+	/** The tap to record to. */
+	private WireRecorder.Tap tap;
+	
+	/** Initializes the decorator with the real stream. 
+	 * @param realStream The InputStream to read from.
+	 * @param tap The tap to record to. It is closed together with this stream. 
+	 */
+	public RecordingInputStream(InputStream realStream, WireRecorder.Tap tap) {
+		this.realStream = realStream;
+		this.tap = tap;
+	}
+	
+	/** Returns the tap this stream records to. */
+	public WireRecorder.Tap getTap() {
+		return tap;
+	}
+	
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public int read() throws IOException {
+		int c = realStream.read();
+		if (c >= 0)
+			tap.record(c);
+		return c;
+	}
+	
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public int read(byte[] arr) throws IOException {
+		return read(arr, 0, arr.length);
+	}
+	
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public int read(byte[] arr, int off, int len) throws IOException {
+		int readLen = realStream.read(arr, off, len);
+		if (readLen > 0)
+			tap.record(arr, off, readLen);
+		return readLen;
+	}
+	
+	/** Only passes through to realStream, skipped bytes are not recorded. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public long skip(long arg0) throws java.io.IOException {
+		return realStream.skip(arg0);
+	}
+	
+	/** Only passes through to realStream. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public int available() throws java.io.IOException {
+		return realStream.available();
+	}
+	
+	/** Passes through to realStream and closes the tap. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void close() throws java.io.IOException {
+		tap.close();
+		realStream.close();
+	}
+	
+	/** Marking is not supported, as bytes read again would be recorded twice. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,80 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-25
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** This is a decorator for an OutputStream that records everything written
+ * to the underlying stream with a WireRecorder tap. It is usually created
+ * with WireRecorder.wrap.
+ *  
+ * @see WireRecorder
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class RecordingOutputStream extends OutputStream {
+	/** The underlying output stream to write to. */
+	private OutputStream realStream;
+	
+	/** The tap to record to. */
+	private WireRecorder.Tap tap;
+	
+	/** Initializes the decorator with the real stream. 
+	 * @param realStream The OutputStream to write to.
+	 * @param tap The tap to record to. It is closed together with this stream. 
+	 */
+	public RecordingOutputStream(OutputStream realStream, WireRecorder.Tap tap) {
+		this.realStream = realStream;
+		this.tap = tap;
+	}
+	
+	/** Returns the tap this stream records to. */
+	public WireRecorder.Tap getTap() {
+		return tap;
+	}
+	
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void write(int c) throws IOException {
+		realStream.write(c);
+		tap.record(c);
+	}
+
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void write(byte[] arr) throws java.io.IOException {
+		write(arr, 0, arr.length);
+	}
+	
+	/** Passes through to realStream, but records. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void write(byte[] arr, int off, int len) throws java.io.IOException {
+		realStream.write(arr, off, len);
+		tap.record(arr, off, len);
+	}
+	
+	/** Only passes through to realStream. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void flush() throws java.io.IOException {
+		realStream.flush();
+	}
+	
+	/** Passes through to realStream and closes the tap. */
+	// TODO: activate me again when J2ME polish can deal with Java5 sources!
+	//@Override
+	public void close() throws java.io.IOException {
+		tap.close();
+		realStream.close();
+	}
+}
@@ -71,10 +71,10 @@ public class SafetyBeltTimer implements Runnable {
 	private boolean timeout = false;
 	/** The time, in milliseconds, that this timer will use. */
 	private int msCountdown;
-	/** This is only the thread object used to execute run() in the background.
+	/** This is only the task used to execute run() in the background.
 	 * It is created and immediately started in the constructor, and stops itself.
 	 */
-	private Thread thread;
+	private BackgroundTask thread;
 	/** If set, then this stream will be forcefully closed when the timer is
 	 * triggered. This can be used for enforcing timeouts on blocking reads.
 	 */ 
@@ -90,8 +90,7 @@ public class SafetyBeltTimer implements Runnable {
 	public SafetyBeltTimer(int time, InputStream abortStream) {
 		msCountdown = time;
 		this.abortStream = abortStream;
-		thread = new Thread(this);
-		thread.start();
+		thread = ExecutionService.start(ExecutionService.PoolTimer, this);
 	}
 	
 	/** Implements the timer background thread. */
@@ -8,14 +8,24 @@
  */
 package org.openuat.util;
 
-import java.security.SecureRandom;
+import java.util.Vector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.exceptions.InternalApplicationException;
 
 /** This class implements a simple interface to a block cipher (AES/Rijndael)
- * with as little parameters as possible.
+ * with as little parameters as possible. The initialized ciphers are cached
+ * per key in BlockCipherContext objects, so that encrypting or decrypting
+ * multiple messages with the same key only computes the key schedule once.
+ * Because these hold the keys, clear() should be called when the keys are
+ * no longer used. Contexts evicted from the cache are wiped as well, as 
+ * soon as they are no longer in use.
+ * <br>
+ * The cache belongs to the object, so only objects that are used for many 
+ * messages benefit from it, e.g. an InterlockProtocol instance that runs
+ * multiple exchanges, but not InterlockProtocol.interlockExchange, which 
+ * creates a new instance for every exchange.
  * 
  * @author Rene Mayrhofer
  */
@@ -29,9 +39,32 @@ public class SimpleBlockCipher {
 	/** The current block size of the used cipher in bytes. */
 	public static final int BlockByteLength = 16;
 	
+	/** The maximum number of keys for which cipher contexts are kept. */
+	private static final int MaxCachedContexts = 8;
+
 	/** If set to true, the JSSE will be used, if set to false, the Bouncycastle Lightweight API. */
 	private boolean useJSSE;
 
+	/** The cipher contexts for the most recently used keys as CachedContext
+	 * objects, with the most recently created one last.
+	 * @see BlockCipherContext
+	 */
+	private Vector contexts = new Vector();
+
+	/** One entry of contexts. The lock on contexts is only held to look up,
+	 * insert and evict entries, and not while a context is in use. Contexts
+	 * that are evicted while in use are therefore only wiped when the last
+	 * user has released them. All fields are protected by the lock on 
+	 * contexts.
+	 */
+	private static class CachedContext {
+		BlockCipherContext context;
+		/** The number of threads currently using context. */
+		int users = 0;
+		/** Set when the entry has been removed from contexts. */
+		boolean evicted = false;
+	}
+
 	/** This may be set to distinguish multiple instances running on the same machine. */
 	public String instanceId = null;
 
@@ -77,62 +110,13 @@ public class SimpleBlockCipher {
 					KeyByteLength + " bytes, got " + sharedKey.length + 
 					(instanceId != null ? " [instance " + instanceId : ""));
 		
-		byte[] cipherText;
-		Object cipher; 
-//#if cfg.includeJSSESupport
-		if (useJSSE) 
-			cipher = initCipher_JSSE(true, sharedKey);
-		else
-//#endif
-			cipher = initCipher_BCAPI(true, sharedKey);
-		
-		// now distinguish between the single-block and the multiple-block cases
-		if (plainText.length == BlockByteLength) {
-			// ok, the simple case - just one block in ECB mode
-//#if cfg.includeJSSESupport
-			if (useJSSE) 
-				cipherText = processBlock_JSSE(cipher, plainText);
-			else
-//#endif
-				cipherText = processBlock_BCAPI(cipher, plainText);
+		byte[] cipherText = new byte[BlockCipherContext.getCipherTextLength(plainText.length, numMessageBits)];
+		CachedContext c = acquireContext(sharedKey);
+		try {
+			c.context.encrypt(plainText, 0, plainText.length, numMessageBits, cipherText, 0);
 		}
-		else {
-			// more difficult: multiple block in CBC mode with prepended IV
-			int numCipherTextBlocks = (numMessageBits%(SimpleBlockCipher.BlockByteLength*8) == 0 ? 
-						numMessageBits/(SimpleBlockCipher.BlockByteLength*8) : 
-						numMessageBits/(SimpleBlockCipher.BlockByteLength*8) + 1) + 1;
-			
-	        SecureRandom r = new SecureRandom();
-			byte[] iv = new byte[BlockByteLength];
-			r.nextBytes(iv);
-			// the ciphertext will need to keep the whole message and the IV
-			cipherText = new byte[numCipherTextBlocks * BlockByteLength];
-			// first block is the IV
-			System.arraycopy(iv, 0, cipherText, 0, BlockByteLength);
-			// and then as many rounds of CBC as we need
-			for (int i=0; i<numCipherTextBlocks-1; i++) {
-				byte[] plainBlock = new byte[BlockByteLength];
-				// the number of bytes left for this block - may be less for the last
-				int bytesInBlock = (i+1)*BlockByteLength <= plainText.length ? 
-						BlockByteLength : plainText.length - i*BlockByteLength;
-				if (logger.isDebugEnabled())
-					logger.debug("Encrypting block " + i + ": " + bytesInBlock + " bytes" + 
-							(instanceId != null ? " [instance " + instanceId : ""));
-				System.arraycopy(plainText, i*BlockByteLength, plainBlock, 0, bytesInBlock);
-				// if not filled, the rest is padded with zeros (initialized by the JVM)
-				// then XOR with the last cipher text block
-				for (int j=0; j<BlockByteLength; j++)
-					plainBlock[j] ^= cipherText[i*BlockByteLength + j];
-				byte[] cipherBlock; 
-//#if cfg.includeJSSESupport
-				if (useJSSE)
-					cipherBlock = processBlock_JSSE(cipher, plainBlock);
-				else
-//#endif
-					cipherBlock = processBlock_BCAPI(cipher, plainBlock);
-				// and finally add to the output
-				System.arraycopy(cipherBlock, 0, cipherText, (i+1)*BlockByteLength, BlockByteLength);
-			}
+		finally {
+			releaseContext(c);
 		}
 
 		return cipherText;
@@ -164,118 +148,78 @@ public class SimpleBlockCipher {
 					KeyByteLength + " bytes, got " + sharedKey.length + 
 					(instanceId != null ? " [instance " + instanceId : ""));
 
-		byte[] plainText;
-		Object cipher; 
-//#if cfg.includeJSSESupport
-		if (useJSSE)
-			cipher = initCipher_JSSE(false, sharedKey);
-		else
-//#endif
-			cipher = initCipher_BCAPI(false, sharedKey);
-		// now distinguish between the single-block and the multiple-block cases
-		if (cipherText.length == BlockByteLength) {
-			// ok, the simple case - just one block in ECB mode
-//#if cfg.includeJSSESupport
-			if (useJSSE) 
-				plainText = processBlock_JSSE(cipher, cipherText);
-			else
-//#endif
-				plainText = processBlock_BCAPI(cipher, cipherText);
+		byte[] plainText = new byte[BlockCipherContext.getPlainTextLength(cipherText.length, numMessageBits)];
+		CachedContext c = acquireContext(sharedKey);
+		try {
+			c.context.decrypt(cipherText, 0, cipherText.length, numMessageBits, plainText, 0);
 		}
-		else {
-			// more difficult: multiple block in CBC mode with prepended IV
-			int numCipherTextBlocks = (numMessageBits%(SimpleBlockCipher.BlockByteLength*8) == 0 ? 
-					numMessageBits/(SimpleBlockCipher.BlockByteLength*8) : 
-					numMessageBits/(SimpleBlockCipher.BlockByteLength*8) + 1) + 1;
-
-			// the plain text will only need to have enough bytes to extract the message
-			plainText = new byte[numMessageBits%8 == 0 ? numMessageBits/8 : numMessageBits/8+1];
-			// first block is the IV
-			byte[] iv = new byte[BlockByteLength];
-			System.arraycopy(cipherText, 0, iv, 0, BlockByteLength);
-			// and then as many rounds of CBC as we need
-			for (int i=0; i<numCipherTextBlocks-1; i++) {
-				byte[] cipherBlock = new byte[BlockByteLength];
-				System.arraycopy(cipherText, (i+1)*BlockByteLength, cipherBlock, 0, BlockByteLength);
-				byte[] plainBlock; 
-//#if cfg.includeJSSESupport
-				if (useJSSE) 
-					plainBlock = processBlock_JSSE(cipher, cipherBlock);
-				else
-//#endif
-					plainBlock = processBlock_BCAPI(cipher, cipherBlock);
-				// then XOR with the last cipher text block
-				for (int j=0; j<BlockByteLength; j++)
-					plainBlock[j] ^= cipherText[i*BlockByteLength + j];
-				// the number of bytes left for this block - may be less for the last
-				int bytesInBlock = (i+1)*BlockByteLength <= plainText.length ? 
-						BlockByteLength : plainText.length - i*BlockByteLength; 
-				if (logger.isDebugEnabled())
-					logger.debug("Decrypting block " + i + ": " + bytesInBlock + " bytes" + 
-							(instanceId != null ? " [instance " + instanceId : ""));
-				// and finally add to the output
-				System.arraycopy(plainBlock, 0, plainText, i*BlockByteLength, bytesInBlock);
-			}
+		finally {
+			releaseContext(c);
 		}
 
 		return plainText;
 	}
-
-	//#if cfg.includeJSSESupport
-	/** Encrypt the nonce using the shared key. This implementation utilizes the Sun JSSE API. */
-	private Object initCipher_JSSE(boolean encrypt, byte[] sharedKey) throws InternalApplicationException {
-    	// encrypt already checks for correct length of plainText
-        // need to specifically request no padding or padding would enlarge the one 128 bits block to two
-        try {
-			javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
-			cipher.init(encrypt ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE,
-					new javax.crypto.spec.SecretKeySpec(sharedKey, "AES"));
-			return cipher;
-		} catch (java.security.NoSuchAlgorithmException e) {
-			throw new InternalApplicationException(
-					"Unable to get cipher object from crypto provider.", e);
-		} catch (javax.crypto.NoSuchPaddingException e) {
-			throw new InternalApplicationException(
-					"Unable to get requested padding from crypto provider.", e);
-		} catch (java.security.InvalidKeyException e) {
-			throw new InternalApplicationException(
-					"Cipher does not accept its key.", e);
-		}
-	}
-//#endif
 	
-	/** Initializes the block cipher for encryption or decryption. This implementation utilizes the 
-	 * Bouncycastle Lightweight API. */
-	private static Object initCipher_BCAPI(boolean encrypt, byte[] sharedKey) {
-    	// encrypt already checks for correct length of plainText
-   		org.bouncycastle.crypto.BlockCipher cipher = new org.bouncycastle.crypto.engines.AESLightEngine();
-    	cipher.init(encrypt, new org.bouncycastle.crypto.params.KeyParameter(sharedKey));
-    	return cipher;
+	/** Wipes and forgets all cached cipher contexts, and thereby the keys 
+	 * and key schedules they hold. This should be called as soon as the keys
+	 * used with this object are no longer needed, e.g. at the end of a 
+	 * protocol run. The object can still be used afterwards, but will need 
+	 * to set up new contexts. Contexts that are in use by other threads are
+	 * wiped when these are finished with them.
+	 */
+	public void clear() {
+		synchronized (contexts) {
+			for (int i=0; i<contexts.size(); i++)
+				evict((CachedContext) contexts.elementAt(i));
+			contexts.removeAllElements();
+		}
 	}
 
-//#if cfg.includeJSSESupport
-	/** Process a block with the previously initialized block cipher (just in ECB mode). */
-	private static byte[] processBlock_JSSE(Object cipher, byte[] input) throws InternalApplicationException {
-		try {
-			return ((javax.crypto.Cipher) cipher).doFinal(input);
-		} catch (javax.crypto.IllegalBlockSizeException e) {
-			throw new InternalApplicationException(
-					"Cipher does not accept requested block size.", e);
-		} catch (javax.crypto.BadPaddingException e) {
-			throw new InternalApplicationException(
-				"Cipher does not accept requested padding.", e);
+	/** Returns the cipher context for this key, initializing a new one if the
+	 * key has not been used recently. This avoids re-computing the key
+	 * schedule (and, with the JSSE, looking up the provider) for every
+	 * message. The context can not be wiped until releaseContext is called.
+	 */
+	private CachedContext acquireContext(byte[] sharedKey) throws InternalApplicationException {
+		synchronized (contexts) {
+			for (int i=contexts.size()-1; i>=0; i--) {
+				CachedContext c = (CachedContext) contexts.elementAt(i);
+				if (c.context.matches(sharedKey, useJSSE)) {
+					c.users++;
+					return c;
+				}
+			}
+			if (contexts.size() >= MaxCachedContexts) {
+				evict((CachedContext) contexts.elementAt(0));
+				contexts.removeElementAt(0);
+			}
+			CachedContext c = new CachedContext();
+			c.context = new BlockCipherContext(sharedKey, useJSSE);
+			c.context.instanceId = instanceId;
+			c.users = 1;
+			contexts.addElement(c);
+			if (logger.isDebugEnabled())
+				logger.debug("Created new cipher context, now caching " + contexts.size() + 
+						(instanceId != null ? " [instance " + instanceId : ""));
+			return c;
 		}
 	}
-//#endif
-	
-	/** Process a block with the previously initialized block cipher (just in ECB mode). */
-	private static byte[] processBlock_BCAPI(Object cipher, byte[] input) {
-    	byte[] output = new byte[BlockByteLength];
-		int processedBytes = ((org.bouncycastle.crypto.BlockCipher) cipher).processBlock(input, 0, output, 0);
-		if (processedBytes != BlockByteLength) {
-   			logger.error("Block processing went wrong: unexpexted number of bytes returned");
-			return new byte[processedBytes];
+
+	/** Releases a context returned by acquireContext, and wipes it if it has
+	 * been evicted in the meantime and this was the last user. */
+	private void releaseContext(CachedContext c) {
+		synchronized (contexts) {
+			c.users--;
+			if (c.evicted && c.users == 0)
+				c.context.dispose();
 		}
-		return output;
+	}
+
+	/** Marks an entry as evicted and wipes it if it is not in use. The caller
+	 * must hold the lock on contexts and remove the entry from it. */
+	private static void evict(CachedContext c) {
+		c.evicted = true;
+		if (c.users == 0)
+			c.context.dispose();
 	}
 }
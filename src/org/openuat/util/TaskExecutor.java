@@ -0,0 +1,34 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-22
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+/** This interface can be implemented by applications that embed OpenUAT
+ * and want to run its background tasks on their own threads, e.g. to bound
+ * the total number of threads in a server. It is registered with
+ * ExecutionService.setExecutor.
+ *
+ * @see ExecutionService#setExecutor(TaskExecutor)
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public interface TaskExecutor {
+	/** Runs the task in the background. Implementations must not run the
+	 * task in the calling thread, because many tasks are long-running loops
+	 * (e.g. listening for incoming connections) and callers expect this
+	 * method to return immediately.
+	 *
+	 * @param pool The pool the task has been submitted to, e.g.
+	 *             ExecutionService.PoolProtocol.
+	 * @param daemon true if the pool is configured to not keep the virtual
+	 *               machine alive.
+	 * @param task The task to run. It takes care of updating the statistics
+	 *             of the pool.
+	 */
+	void execute(String pool, boolean daemon, Runnable task);
+}
@@ -0,0 +1,317 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-22
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class represents a named pool of background threads managed by
+ * ExecutionService, together with its utilisation statistics.
+ * <br>
+ * Worker threads are started on demand. If maxThreads is set, at most this
+ * many tasks run concurrently and further tasks are queued until a worker
+ * becomes free. Note that many OpenUAT tasks are long-running loops, so a
+ * limit should only be set for pools that only run short tasks, such as
+ * PoolProtocol.
+ * <br>
+ * Workers of daemon pools stay idle for keepAliveMs after their last task
+ * and are reused for new tasks. Workers of other pools end when there are
+ * no more queued tasks, so that they never keep the virtual machine alive
+ * for longer than the tasks themselves.
+ *
+ * @see ExecutionService
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class ThreadPool {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.ThreadPool" /*ThreadPool.class*/);
+
+	/** The default time that idle workers of daemon pools wait for new tasks. */
+	public static final int DefaultKeepAliveMs = 30000;
+
+	/** The name of the pool. */
+	private String name;
+
+	/** The maximum number of concurrently running tasks, or 0 for no limit. */
+	private int maxThreads;
+
+	/** If true, workers don't keep the virtual machine alive. */
+	private boolean daemon;
+
+	/** The time that idle workers wait for new tasks before they end. */
+	private int keepAliveMs = DefaultKeepAliveMs;
+
+	/** The tasks that have been submitted but not yet picked up by a worker,
+	 * as BackgroundTask objects. */
+	private Vector queue = new Vector();
+
+	/** The number of worker threads that currently exist. */
+	private int workers = 0;
+
+	/** The number of worker threads that are waiting for a task. */
+	private int idleWorkers = 0;
+
+	/** Used to number the worker threads. */
+	private int workerCounter = 0;
+
+	// statistics
+	private long submittedTasks = 0;
+	private long completedTasks = 0;
+	private long failedTasks = 0;
+	private int activeTasks = 0;
+	private int peakActiveTasks = 0;
+	private long busyTimeMs = 0;
+	private long createdThreads = 0;
+	private long creationTime = System.currentTimeMillis();
+
+	/** Creates a new pool. Pools are normally created through
+	 * ExecutionService.configurePool.
+	 * @param name The name of the pool.
+	 * @param maxThreads The maximum number of concurrently running tasks, or
+	 *                   0 for no limit.
+	 * @param daemon If true, workers don't keep the virtual machine alive.
+	 */
+	public ThreadPool(String name, int maxThreads, boolean daemon) {
+		if (name == null)
+			throw new IllegalArgumentException("Pool name can not be null");
+		this.name = name;
+		configure(maxThreads, daemon);
+	}
+
+	/** Changes the configuration of the pool. This only has an effect on
+	 * workers that are started afterwards. */
+	public synchronized void configure(int maxThreads, boolean daemon) {
+		if (maxThreads < 0)
+			throw new IllegalArgumentException("Maximum number of threads can not be negative");
+		this.maxThreads = maxThreads;
+		this.daemon = daemon;
+		// more tasks may run now
+		while (queue.size() > 0 && idleWorkers == 0 &&
+				(maxThreads == 0 || workers < maxThreads))
+			startWorker();
+		notifyAll();
+	}
+
+	/** Sets the time that idle workers of daemon pools wait for new tasks. */
+	public synchronized void setKeepAliveMs(int keepAliveMs) {
+		this.keepAliveMs = keepAliveMs;
+	}
+
+	/** Submits a task to the pool.
+	 * @param task The task to run.
+	 * @param executor If not null, the task is handed to this executor
+	 *                 instead of the workers of this pool.
+	 * @param virtualThreads If true, workers are started as virtual threads.
+	 */
+	void submit(BackgroundTask task, TaskExecutor executor, boolean virtualThreads) {
+		synchronized (this) {
+			submittedTasks++;
+			if (executor == null) {
+				queue.addElement(task);
+				if (idleWorkers > queue.size() - 1)
+					notify();
+				else if (maxThreads == 0 || workers < maxThreads)
+					startWorker(virtualThreads);
+				else if (logger.isDebugEnabled())
+					logger.debug("Pool '" + name + "' is at its limit of " + maxThreads +
+							" threads, queueing task (" + queue.size() + " queued)");
+				return;
+			}
+		}
+		executor.execute(name, daemon, task);
+	}
+
+	/** Starts a new worker with platform threads. */
+	private void startWorker() {
+		startWorker(false);
+	}
+
+	/** Starts a new worker. Must be called while holding the lock. */
+	private void startWorker(boolean virtualThreads) {
+		Worker w = new Worker(virtualThreads);
+		String threadName = "openuat-" + name + "-" + (++workerCounter);
+		Thread t = null;
+//#if cfg.includeJSSESupport
+		if (virtualThreads)
+			t = ExecutionService.createVirtualThread(w, threadName);
+//#endif
+		if (t == null) {
+			w.virtual = false;
+			t = new Thread(w, threadName);
+//#if cfg.includeJSSESupport
+			t.setDaemon(daemon);
+//#endif
+		}
+		workers++;
+		createdThreads++;
+		t.start();
+	}
+
+	/** Called by workers to get the next task. Returns null if the worker
+	 * should end. */
+	private synchronized BackgroundTask nextTask(boolean keepIdle) {
+		if (queue.size() == 0 && keepIdle && daemon && keepAliveMs > 0) {
+			idleWorkers++;
+			long endTime = System.currentTimeMillis() + keepAliveMs;
+			try {
+				long remaining = keepAliveMs;
+				while (queue.size() == 0 && remaining > 0) {
+					wait(remaining);
+					remaining = endTime - System.currentTimeMillis();
+				}
+			}
+			catch (InterruptedException e) {
+				// end this worker
+			}
+			finally {
+				idleWorkers--;
+			}
+		}
+		if (queue.size() == 0 || (maxThreads > 0 && workers > maxThreads)) {
+			workers--;
+			return null;
+		}
+		BackgroundTask task = (BackgroundTask) queue.firstElement();
+		queue.removeElementAt(0);
+		return task;
+	}
+
+	/** Called by workers when they end abnormally. */
+	private synchronized void workerAborted() {
+		workers--;
+		// don't leave queued tasks behind
+		if (queue.size() > 0)
+			startWorker();
+	}
+
+	/** Called by a task when it starts. Returns the start time. */
+	long taskStarted() {
+		synchronized (this) {
+			activeTasks++;
+			if (activeTasks > peakActiveTasks)
+				peakActiveTasks = activeTasks;
+		}
+		return System.currentTimeMillis();
+	}
+
+	/** Called by a task when it has finished. */
+	synchronized void taskFinished(long startTime, boolean failed) {
+		activeTasks--;
+		busyTimeMs += System.currentTimeMillis() - startTime;
+		if (failed)
+			failedTasks++;
+		else
+			completedTasks++;
+	}
+
+	/** Returns the name of the pool. */
+	public String getName() {
+		return name;
+	}
+
+	/** Returns the maximum number of concurrently running tasks, or 0 if
+	 * there is no limit. */
+	public synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/** Returns true if the workers don't keep the virtual machine alive. */
+	public synchronized boolean isDaemon() {
+		return daemon;
+	}
+
+	/** Returns the number of tasks submitted so far. */
+	public synchronized long getSubmittedTasks() {
+		return submittedTasks;
+	}
+
+	/** Returns the number of tasks that finished normally. */
+	public synchronized long getCompletedTasks() {
+		return completedTasks;
+	}
+
+	/** Returns the number of tasks that aborted with an exception. */
+	public synchronized long getFailedTasks() {
+		return failedTasks;
+	}
+
+	/** Returns the number of tasks that are currently running. */
+	public synchronized int getActiveTasks() {
+		return activeTasks;
+	}
+
+	/** Returns the highest number of concurrently running tasks so far. */
+	public synchronized int getPeakActiveTasks() {
+		return peakActiveTasks;
+	}
+
+	/** Returns the number of tasks waiting for a worker. */
+	public synchronized int getQueuedTasks() {
+		return queue.size();
+	}
+
+	/** Returns the number of worker threads that currently exist. This does
+	 * not include threads of an external executor. */
+	public synchronized int getThreads() {
+		return workers;
+	}
+
+	/** Returns the number of worker threads created so far. */
+	public synchronized long getCreatedThreads() {
+		return createdThreads;
+	}
+
+	/** Returns the sum of the run times of all finished tasks in ms. */
+	public synchronized long getBusyTimeMs() {
+		return busyTimeMs;
+	}
+
+	/** Returns the average number of busy threads since the pool has been
+	 * created, i.e. the busy time divided by the lifetime of the pool. */
+	public synchronized double getUtilisation() {
+		long lifetime = System.currentTimeMillis() - creationTime;
+		return lifetime > 0 ? (double) busyTimeMs / lifetime : 0;
+	}
+
+	public synchronized String toString() {
+		return "pool '" + name + "': " + activeTasks + " active (peak " + peakActiveTasks +
+			(maxThreads > 0 ? ", limit " + maxThreads : "") + "), " + queue.size() +
+			" queued, " + workers + " threads (" + createdThreads + " created), " +
+			completedTasks + " completed, " + failedTasks + " failed, busy " + busyTimeMs + "ms";
+	}
+
+	/** The loop of a worker thread. */
+	private class Worker implements Runnable {
+		/** Virtual threads are cheap and are not kept idle. */
+		boolean virtual;
+
+		Worker(boolean virtual) {
+			this.virtual = virtual;
+		}
+
+		public void run() {
+			boolean normalExit = false;
+			try {
+				BackgroundTask task = nextTask(false);
+				while (task != null) {
+					task.run();
+					task = nextTask(!virtual);
+				}
+				normalExit = true;
+			}
+			finally {
+				if (!normalExit)
+					workerAborted();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-28
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+/** This is a clock whose time only moves when it is advanced, typically by
+ * a SamplesSource that replays recorded samples and advances the clock to
+ * the timestamp of each sample. Everything that uses the clock therefore
+ * sees the same times as when sampling in real time, independent of how
+ * fast the replay actually runs.
+ * <br>
+ * Threads that sleep on the clock wait until it has been advanced far
+ * enough. When nobody advances the clock any more, e.g. after the end of
+ * the replay, setAutoAdvance(true) lets sleeping and waiting threads
+ * advance the clock to their deadlines themselves, so that pending
+ * timeouts expire immediately instead of never.
+ *
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class VirtualClock extends Clock {
+	/** The real time in milliseconds that waitOn waits at most before
+	 * returning to let the caller check the virtual time. */
+	private static final int PollInterval = 1;
+
+	/** The current virtual time in milliseconds. */
+	private long now;
+
+	/** If true, sleep and waitOn advance the clock to their deadlines. */
+	private boolean autoAdvance = false;
+
+	/** Creates a clock starting at time 0. */
+	public VirtualClock() {
+		this(0);
+	}
+
+	/** Creates a clock.
+	 * @param start The initial time in milliseconds.
+	 */
+	public VirtualClock(long start) {
+		now = start;
+	}
+
+	//@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	/** Advances the clock to the given time and wakes up the threads that
+	 * sleep on it. The clock never goes back, earlier times are ignored.
+	 * @param ms The new time in milliseconds.
+	 */
+	public synchronized void advanceTo(long ms) {
+		if (ms > now) {
+			now = ms;
+			notifyAll();
+		}
+	}
+
+	/** Advances the clock by the given time.
+	 * @param ms The time to add in milliseconds.
+	 */
+	public synchronized void advance(long ms) {
+		advanceTo(now + ms);
+	}
+
+	/** Controls what happens when threads sleep or wait on the clock.
+	 * @param autoAdvance If true, they advance the clock to the end of their
+	 *                    sleep or wait themselves. If false, they wait for
+	 *                    somebody else to advance the clock.
+	 */
+	public synchronized void setAutoAdvance(boolean autoAdvance) {
+		this.autoAdvance = autoAdvance;
+		notifyAll();
+	}
+
+	/** Waits until the clock has been advanced by ms. */
+	//@Override
+	public synchronized void sleep(long ms) throws InterruptedException {
+		long end = now + ms;
+		while (now < end) {
+			if (autoAdvance)
+				advanceTo(end);
+			else
+				wait();
+		}
+	}
+
+	/** Waits on the object for a short real time, and in auto advance mode
+	 * then advances the clock to the end of the timeout. The caller needs to
+	 * check its condition and the time in a loop.
+	 */
+	//@Override
+	public void waitOn(Object lock, long timeoutMs) throws InterruptedException {
+		long end = currentTimeMillis() + timeoutMs;
+		lock.wait(PollInterval);
+		synchronized (this) {
+			if (autoAdvance)
+				advanceTo(end);
+		}
+	}
+}
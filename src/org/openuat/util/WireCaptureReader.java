@@ -0,0 +1,233 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-25
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
+/** This class reads capture files written by WireRecorder. Records are
+ * returned in the order they have been written, which is the order of the
+ * data within each tap but not necessarily across taps. Its main method
+ * prints a capture in human-readable form.
+ *
+ * @see WireRecorder
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class WireCaptureReader {
+	/** The capture to read from. */
+	private DataInputStream in;
+
+	/** The start of the recording in milliseconds since the epoch. */
+	private long startTime;
+
+	/** The time of the last record, relative to the start of the recording. */
+	private long lastTime = 0;
+
+	/** The names of all taps announced so far, indexed by their id. */
+	private Hashtable tapNames = new Hashtable();
+
+	/** The directions of all taps announced so far, indexed by their id. */
+	private Hashtable tapOutgoing = new Hashtable();
+
+	/** Set when RecordEnd has been read. */
+	private boolean ended = false;
+
+	/** This is a single record of a capture. */
+	public static class Record {
+		private int type;
+		private String tap;
+		private boolean outgoing;
+		private long time;
+		private byte[] data;
+		private long droppedBytes;
+
+		/** Returns the type, one of the WireRecorder.Record* constants. */
+		public int getType() {
+			return type;
+		}
+
+		/** Returns the name of the tap this record belongs to. */
+		public String getTap() {
+			return tap;
+		}
+
+		/** Returns true if the tap records data sent to the remote side. */
+		public boolean isOutgoing() {
+			return outgoing;
+		}
+
+		/** Returns the time of this record in nanoseconds since the start of
+		 * the recording. For RecordTapOpened, this is the time of the
+		 * previous record. */
+		public long getTime() {
+			return time;
+		}
+
+		/** Returns the data of a RecordData record, or null. */
+		public byte[] getData() {
+			return data;
+		}
+
+		/** Returns the number of bytes dropped for a RecordDropped record, or 0. */
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+	}
+
+	/** Opens a capture and reads its header.
+	 * @param in The stream to read the capture from.
+	 * @throws IOException If the stream is not a capture of a supported version.
+	 */
+	public WireCaptureReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+		for (int i=0; i<WireRecorder.Magic.length; i++)
+			if (this.in.readByte() != WireRecorder.Magic[i])
+				throw new IOException("Not a wire capture");
+		int version = this.in.readUnsignedByte();
+		if (version != WireRecorder.Version)
+			throw new IOException("Unsupported capture version " + version);
+		startTime = this.in.readLong();
+	}
+
+	/** Returns the start of the recording in milliseconds since the epoch. */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/** Reads the next record.
+	 * @return The record, or null at the end of the capture. A capture that
+	 *         has not been stopped properly ends without RecordEnd, this is
+	 *         not treated as an error.
+	 */
+	public Record next() throws IOException {
+		if (ended)
+			return null;
+		int type;
+		try {
+			type = (int) readVarLong();
+		}
+		catch (EOFException e) {
+			ended = true;
+			return null;
+		}
+		if (type == WireRecorder.RecordEnd) {
+			ended = true;
+			return null;
+		}
+
+		Record r = new Record();
+		r.type = type;
+		Integer id = new Integer((int) readVarLong());
+		if (type == WireRecorder.RecordTapOpened) {
+			r.outgoing = (in.readUnsignedByte() & WireRecorder.FlagOutgoing) != 0;
+			r.tap = in.readUTF();
+			r.time = lastTime;
+			tapNames.put(id, r.tap);
+			tapOutgoing.put(id, new Boolean(r.outgoing));
+			return r;
+		}
+
+		r.tap = (String) tapNames.get(id);
+		if (r.tap == null)
+			throw new IOException("Record for unknown tap " + id);
+		r.outgoing = ((Boolean) tapOutgoing.get(id)).booleanValue();
+		long diff = readVarLong();
+		lastTime += (diff >>> 1) ^ -(diff & 1);
+		r.time = lastTime;
+		switch (type) {
+		case WireRecorder.RecordData:
+			r.data = new byte[(int) readVarLong()];
+			in.readFully(r.data);
+			break;
+		case WireRecorder.RecordDropped:
+			r.droppedBytes = readVarLong();
+			break;
+		case WireRecorder.RecordTapClosed:
+			break;
+		default:
+			throw new IOException("Unknown record type " + type);
+		}
+		return r;
+	}
+
+	/** Closes the capture. */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/** Reads a number written by WireRecorder.writeVarLong. */
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift=0; shift<64; shift+=7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed number in capture");
+	}
+
+	/** Returns a printable form of data: printable ASCII characters are
+	 * kept, all others are escaped. */
+	public static String toPrintable(byte[] data) {
+		StringBuffer s = new StringBuffer(data.length);
+		for (int i=0; i<data.length; i++) {
+			int c = data[i] & 0xff;
+			if (c >= 0x20 && c < 0x7f && c != '\\')
+				s.append((char) c);
+			else if (c == '\\')
+				s.append("\\\\");
+			else if (c == '\n')
+				s.append("\\n");
+			else if (c == '\r')
+				s.append("\\r");
+			else
+				s.append("\\x").append(Integer.toHexString(c | 0x100).substring(1));
+		}
+		return s.toString();
+	}
+
+	/** Prints the capture given as argument to the standard output. */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: WireCaptureReader <capture file>");
+			System.exit(1);
+		}
+		WireCaptureReader reader = new WireCaptureReader(
+				new BufferedInputStream(new FileInputStream(args[0])));
+		System.out.println("Capture started at " + new java.util.Date(reader.getStartTime()));
+		Record r;
+		while ((r = reader.next()) != null) {
+			String time = (r.getTime() / 1000) / 1000.0 + " ms ";
+			String dir = r.isOutgoing() ? " > " : " < ";
+			switch (r.getType()) {
+			case WireRecorder.RecordTapOpened:
+				System.out.println(time + r.getTap() + dir + "opened");
+				break;
+			case WireRecorder.RecordData:
+				System.out.println(time + r.getTap() + dir + r.getData().length + " bytes: " +
+						toPrintable(r.getData()));
+				break;
+			case WireRecorder.RecordDropped:
+				System.out.println(time + r.getTap() + dir + "dropped " + r.getDroppedBytes() + " bytes");
+				break;
+			case WireRecorder.RecordTapClosed:
+				System.out.println(time + r.getTap() + dir + "closed");
+				break;
+			}
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,512 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-25
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** This class records the traffic of RemoteConnection streams and UDP
+ * datagrams to a binary capture file, which can be read with
+ * WireCaptureReader. In contrast to DebugInputStream and DebugOutputStream,
+ * which log every byte synchronously, recording is cheap enough to capture
+ * real pairing sessions under load:
+ * <ul>
+ * <li>Every recorded direction of a connection is a Tap with its own ring
+ *     buffer. The thread that reads from or writes to the connection only
+ *     copies the bytes into this ring and never blocks; when the ring is
+ *     full, the bytes are dropped and counted instead.</li>
+ * <li>A single background writer drains all rings and writes timestamped
+ *     frames to the capture file.</li>
+ * </ul>
+ * Each ring has a single producer and a single consumer and therefore does
+ * not need any locks: the producer only advances head, the writer only
+ * advances tail, and both are volatile. This means that a tap must only be
+ * written by one thread at a time, which holds for the streams of a
+ * connection. Users that write to a tap from different threads, like the
+ * sending side of UDPMulticastSocket, must serialize these calls themselves.
+ * <br>
+ * Recording is off by default. It is started with start and stopped with
+ * stop; only connections opened while recording are recorded.
+ * <br>
+ * The capture file starts with the magic bytes "OUCAP", a version byte and
+ * the start time in milliseconds since the epoch. It is followed by records
+ * that start with one of the record types defined below, the tap id and,
+ * depending on the type, further fields. Numbers are written as variable
+ * length integers with 7 bits per byte, times as the signed difference to
+ * the previous time in nanoseconds.
+ *
+ * @see WireCaptureReader
+ * @author Rene Mayrhofer
+ * @version 1.0
+ */
+public class WireRecorder {
+	/** Our logger. */
+	private static Logger logger = LoggerFactory.getLogger("org.openuat.util.WireRecorder" /*WireRecorder.class*/);
+
+	/** The magic bytes at the start of each capture file. */
+	public static final byte[] Magic = {'O', 'U', 'C', 'A', 'P'};
+	/** The version of the capture file format. */
+	public static final int Version = 1;
+
+	/** The end of the capture. */
+	public static final int RecordEnd = 0;
+	/** A tap has been opened. Followed by a flags byte (see FlagOutgoing)
+	 * and the name of the tap in modified UTF-8. */
+	public static final int RecordTapOpened = 1;
+	/** Data has been recorded. Followed by the time and the length and
+	 * bytes of the data. */
+	public static final int RecordData = 2;
+	/** Data has been dropped because the ring of the tap was full. Followed
+	 * by the time and the number of dropped bytes. */
+	public static final int RecordDropped = 3;
+	/** A tap has been closed. Followed by the time. */
+	public static final int RecordTapClosed = 4;
+
+	/** Set in the flags of RecordTapOpened for data sent to the remote side. */
+	public static final int FlagOutgoing = 1;
+
+	/** The default size of the ring of each tap in bytes. */
+	public static final int DefaultRingSize = 64 * 1024;
+
+	/** How long the writer waits when all rings are empty, in milliseconds. */
+	private static final int PollInterval = 10;
+
+	/** The number of bytes in front of each frame in a ring: the time as
+	 * long and the length as int. */
+	private static final int FrameHeader = 12;
+
+	/** The currently active recorder, or null. */
+	private static WireRecorder active = null;
+
+	/** The stream to write the capture to. */
+	private DataOutputStream out;
+
+	/** The size of the ring of new taps, a power of 2. */
+	private int ringSize;
+
+	/** The time of the start of recording, as returned by System.nanoTime. */
+	private long startTime;
+
+	/** The time of the last record that has been written, relative to
+	 * startTime. Only used by the writer. */
+	private long lastTime = 0;
+
+	/** All open taps, elements are of type Tap. */
+	private Vector taps = new Vector();
+
+	/** Set when taps has been modified since the writer last copied it. */
+	private boolean tapsChanged = false;
+
+	/** The id of the next tap. */
+	private int nextTapId = 0;
+
+	/** Set by stop to let the writer finish. */
+	private boolean stopRequested = false;
+
+	/** The background task writing the capture. */
+	private BackgroundTask writer;
+
+	/** This is one recorded direction of a connection. Its record methods
+	 * must only be called by one thread at a time.
+	 */
+	public static class Tap {
+		/** The recorder this tap belongs to. */
+		private WireRecorder recorder;
+		/** The id of this tap in the capture file. */
+		private int id;
+		/** The name of this tap. */
+		private String name;
+		/** True if this tap records data sent to the remote side. */
+		private boolean outgoing;
+
+		/** The ring of frames, its size is a power of 2. */
+		private byte[] ring;
+		/** ring.length - 1. */
+		private int mask;
+		/** The largest number of bytes copied into one frame. */
+		private int maxChunk;
+		/** The total number of bytes put into the ring, only advanced by the producer. */
+		private volatile long head = 0;
+		/** The total number of bytes taken from the ring, only advanced by the writer. */
+		private volatile long tail = 0;
+		/** The number of bytes dropped so far, only modified by the producer. */
+		private volatile long droppedBytes = 0;
+		/** The number of dropped bytes already written, only used by the writer. */
+		private long reportedDroppedBytes = 0;
+		/** Set when no more data is recorded. */
+		private volatile boolean closed = false;
+		/** Set by the writer when it has written the RecordTapOpened record. */
+		private boolean announced = false;
+		/** Used by record(int) to avoid allocations. */
+		private byte[] single = new byte[1];
+
+		/** Only WireRecorder creates taps. */
+		Tap(WireRecorder recorder, int id, String name, boolean outgoing, int ringSize) {
+			this.recorder = recorder;
+			this.id = id;
+			this.name = name;
+			this.outgoing = outgoing;
+			ring = new byte[ringSize];
+			mask = ringSize - 1;
+			maxChunk = ringSize / 4 - FrameHeader;
+		}
+
+		/** Records a single byte. */
+		public void record(int b) {
+			single[0] = (byte) b;
+			record(single, 0, 1);
+		}
+
+		/** Records the given bytes. This copies them into the ring of this
+		 * tap, or drops them if the ring is full. Large blocks are split
+		 * into several frames.
+		 */
+		public void record(byte[] data, int off, int len) {
+			if (closed || len <= 0)
+				return;
+			long time = System.nanoTime() - recorder.startTime;
+			while (len > 0) {
+				int chunk = len < maxChunk ? len : maxChunk;
+				if (!put(time, data, off, chunk)) {
+					droppedBytes += len;
+					return;
+				}
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		/** Puts one frame into the ring.
+		 * @return false if there is not enough space.
+		 */
+		private boolean put(long time, byte[] data, int off, int len) {
+			long h = head;
+			if (ring.length - (h - tail) < FrameHeader + len)
+				return false;
+			int pos = (int) h & mask;
+			for (int i=56; i>=0; i-=8) {
+				ring[pos] = (byte) (time >>> i);
+				pos = (pos + 1) & mask;
+			}
+			for (int i=24; i>=0; i-=8) {
+				ring[pos] = (byte) (len >>> i);
+				pos = (pos + 1) & mask;
+			}
+			int first = ring.length - pos;
+			if (first >= len)
+				System.arraycopy(data, off, ring, pos, len);
+			else {
+				System.arraycopy(data, off, ring, pos, first);
+				System.arraycopy(data, off + first, ring, 0, len - first);
+			}
+			// publishes the frame to the writer
+			head = h + FrameHeader + len;
+			return true;
+		}
+
+		/** Stops recording on this tap. Data recorded before is still written. */
+		public void close() {
+			closed = true;
+		}
+
+		/** Returns true if this tap has been closed or the recording has been stopped. */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/** Returns the number of bytes that have been dropped because the ring was full. */
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+
+		/** Returns the name of this tap. */
+		public String getName() {
+			return name;
+		}
+
+		/** Returns true if this tap records data sent to the remote side. */
+		public boolean isOutgoing() {
+			return outgoing;
+		}
+	}
+
+	/** Only start creates recorders. */
+	private WireRecorder(OutputStream out, int ringSize) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.ringSize = ringSize;
+	}
+
+	/** Starts recording to a file with the default ring size.
+	 * @param fileName The capture file, which is overwritten.
+	 */
+	public static void start(String fileName) throws IOException {
+		start(new FileOutputStream(fileName), DefaultRingSize);
+	}
+
+	/** Starts recording.
+	 * @param out The stream to write the capture to. It is closed by stop.
+	 * @param ringSize The size of the ring of each tap in bytes. It is
+	 *                 rounded up to the next power of 2 and must be at
+	 *                 least 256.
+	 * @throws IllegalStateException If a recording is already active.
+	 */
+	public static synchronized void start(OutputStream out, int ringSize) throws IOException {
+		if (active != null)
+			throw new IllegalStateException("Already recording");
+		if (ringSize < 256)
+			throw new IllegalArgumentException("Ring size must be at least 256 bytes");
+		int size = 256;
+		while (size < ringSize)
+			size <<= 1;
+
+		final WireRecorder r = new WireRecorder(out, size);
+		r.out.write(Magic);
+		r.out.writeByte(Version);
+		r.out.writeLong(System.currentTimeMillis());
+		r.startTime = System.nanoTime();
+		r.writer = ExecutionService.start(ExecutionService.PoolRecorder, new Runnable() {
+			public void run() {
+				r.writeCapture();
+			}
+		});
+		active = r;
+		logger.info("Started recording wire traffic with rings of " + size + " bytes");
+	}
+
+	/** Stops recording. All data recorded so far is written, all taps are
+	 * closed and the capture is closed. Does nothing when not recording.
+	 */
+	public static void stop() {
+		WireRecorder r;
+		synchronized (WireRecorder.class) {
+			r = active;
+			active = null;
+		}
+		if (r == null)
+			return;
+		synchronized (r) {
+			r.stopRequested = true;
+			r.notifyAll();
+		}
+		try {
+			r.writer.join();
+		}
+		catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for the capture to be written");
+		}
+	}
+
+	/** Returns true if a recording is active. */
+	public static synchronized boolean isRecording() {
+		return active != null;
+	}
+
+	/** Opens a new tap if a recording is active.
+	 * @param name A name describing the connection, e.g. the protocol and
+	 *             remote address.
+	 * @param outgoing true for data sent to the remote side, false for
+	 *                 received data.
+	 * @return The new tap, or null if no recording is active.
+	 */
+	public static Tap openTap(String name, boolean outgoing) {
+		WireRecorder r;
+		synchronized (WireRecorder.class) {
+			r = active;
+		}
+		if (r == null)
+			return null;
+		synchronized (r) {
+			if (r.stopRequested)
+				return null;
+			Tap t = new Tap(r, r.nextTapId++, name, outgoing, r.ringSize);
+			r.taps.addElement(t);
+			r.tapsChanged = true;
+			return t;
+		}
+	}
+
+	/** Returns a stream that records everything read from in, or in itself
+	 * if no recording is active. */
+	public static InputStream wrap(InputStream in, String name) {
+		Tap t = openTap(name, false);
+		return t != null ? new RecordingInputStream(in, t) : in;
+	}
+
+	/** Returns a stream that records everything written to out, or out
+	 * itself if no recording is active. */
+	public static OutputStream wrap(OutputStream out, String name) {
+		Tap t = openTap(name, true);
+		return t != null ? new RecordingOutputStream(out, t) : out;
+	}
+
+	/** Closes the tap of a stream returned by wrap. Does nothing for
+	 * streams that are not recorded, including null. */
+	public static void closeTap(Object stream) {
+		if (stream instanceof RecordingInputStream)
+			((RecordingInputStream) stream).getTap().close();
+		else if (stream instanceof RecordingOutputStream)
+			((RecordingOutputStream) stream).getTap().close();
+	}
+
+	/** This is the main loop of the writer. */
+	private void writeCapture() {
+		Tap[] current = new Tap[0];
+		boolean stopping = false;
+		try {
+			while (true) {
+				synchronized (this) {
+					stopping = stopRequested;
+					if (tapsChanged) {
+						current = new Tap[taps.size()];
+						taps.copyInto(current);
+						tapsChanged = false;
+					}
+				}
+				boolean written = false;
+				for (int i=0; i<current.length; i++) {
+					Tap t = current[i];
+					// read closed before draining, so that nothing recorded before close is lost
+					boolean closed = t.closed;
+					written |= drain(t);
+					if (closed || stopping) {
+						t.closed = true;
+						writeRecord(RecordTapClosed, t, System.nanoTime() - startTime);
+						synchronized (this) {
+							taps.removeElement(t);
+							tapsChanged = true;
+						}
+						written = true;
+					}
+				}
+				if (stopping)
+					break;
+				if (!written) {
+					out.flush();
+					synchronized (this) {
+						if (!stopRequested)
+							wait(PollInterval);
+					}
+				}
+			}
+			out.writeByte(RecordEnd);
+			out.flush();
+			logger.info("Stopped recording wire traffic");
+		}
+		catch (IOException e) {
+			logger.error("Could not write capture, stopping recording: " + e);
+			synchronized (WireRecorder.class) {
+				if (active == this)
+					active = null;
+			}
+		}
+		catch (InterruptedException e) {
+			logger.warn("Capture writer interrupted, stopping recording");
+			synchronized (WireRecorder.class) {
+				if (active == this)
+					active = null;
+			}
+		}
+		finally {
+			synchronized (this) {
+				stopRequested = true;
+				for (int i=0; i<taps.size(); i++)
+					((Tap) taps.elementAt(i)).closed = true;
+				taps.removeAllElements();
+			}
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				logger.warn("Could not close capture: " + e);
+			}
+		}
+	}
+
+	/** Writes all frames currently in the ring of a tap.
+	 * @return true if anything has been written.
+	 */
+	private boolean drain(Tap t) throws IOException {
+		boolean written = false;
+		if (!t.announced) {
+			writeVarLong(RecordTapOpened);
+			writeVarLong(t.id);
+			out.writeByte(t.outgoing ? FlagOutgoing : 0);
+			out.writeUTF(t.name);
+			t.announced = true;
+			written = true;
+		}
+
+		byte[] ring = t.ring;
+		long h = t.head;
+		long pos = t.tail;
+		while (pos < h) {
+			int p = (int) pos & t.mask;
+			long time = 0;
+			for (int i=0; i<8; i++) {
+				time = (time << 8) | (ring[p] & 0xff);
+				p = (p + 1) & t.mask;
+			}
+			int len = 0;
+			for (int i=0; i<4; i++) {
+				len = (len << 8) | (ring[p] & 0xff);
+				p = (p + 1) & t.mask;
+			}
+			writeRecord(RecordData, t, time);
+			writeVarLong(len);
+			int first = ring.length - p;
+			if (first >= len)
+				out.write(ring, p, len);
+			else {
+				out.write(ring, p, first);
+				out.write(ring, 0, len - first);
+			}
+			pos += FrameHeader + len;
+			written = true;
+		}
+		// frees the space for the producer
+		t.tail = pos;
+
+		long dropped = t.droppedBytes;
+		if (dropped != t.reportedDroppedBytes) {
+			writeRecord(RecordDropped, t, System.nanoTime() - startTime);
+			writeVarLong(dropped - t.reportedDroppedBytes);
+			t.reportedDroppedBytes = dropped;
+			written = true;
+		}
+		return written;
+	}
+
+	/** Writes the type, tap id and time that start a record. */
+	private void writeRecord(int type, Tap t, long time) throws IOException {
+		writeVarLong(type);
+		writeVarLong(t.id);
+		long diff = time - lastTime;
+		// zigzag encoding, as frames of different taps are not written in order
+		writeVarLong((diff << 1) ^ (diff >> 63));
+		lastTime = time;
+	}
+
+	/** Writes a non-negative number with 7 bits per byte, the highest bit
+	 * marking that more bytes follow. */
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+}
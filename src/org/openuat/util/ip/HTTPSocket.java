@@ -21,6 +21,8 @@ import java.net.UnknownHostException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
 
 public class HTTPSocket  implements Runnable{
 	/** Our logger. */
@@ -32,7 +34,7 @@ public class HTTPSocket  implements Runnable{
 	private InetAddress ip;
 	private File fileToSend;
 	private String destId;
-	private Thread thread;
+	private BackgroundTask thread;
 	
 
 	public HTTPSocket() {
@@ -41,7 +43,6 @@ public class HTTPSocket  implements Runnable{
 
 	public HTTPSocket(int port) {
 		this.port = port;
-		thread = new Thread(this);
 	}
 
 	public static void main(String[] args) {
@@ -87,8 +88,7 @@ public class HTTPSocket  implements Runnable{
 			return false;
 		}
 		logger.debug("create thread");
-		thread = new Thread(this);
-		thread.start();
+		thread = ExecutionService.start(ExecutionService.PoolHttp, this);
 		return true;
 	}
 
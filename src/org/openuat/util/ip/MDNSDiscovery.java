@@ -11,8 +11,6 @@ package org.openuat.util.ip;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.Enumeration;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 
@@ -20,6 +18,7 @@ import javax.jmdns.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.openuat.util.ExecutionService;
 
 /** This class wraps host and service discovery via Multicast DNS, using the jmDNS library
  * (a MDNS and DNS-SD implementation in pure Java) at the moment. If another MDNS responder
@@ -261,16 +260,18 @@ public class MDNSDiscovery {
 			} else if (isRelateType && info == null) {
 				//HACK the first add event doesn't always seem to contain any service info
 				//if info is null, try ignoring the event and setting a timertask to do a resolve query in a few seconds
-				Timer t = new Timer();
-				t.schedule(new TimerTask() {
+				ExecutionService.start(ExecutionService.PoolTimer, new Runnable() {
 					public void run() {
 						try {
+							Thread.sleep(QUERY_DELAY);
 							MDNSDiscovery.getMDNSDiscovery().resolveAddress(deviceId);
+						} catch(InterruptedException ex) {
+							// just don't query
 						} catch(IOException ex) {
 							logger.warn("Couldn't get MDNSDiscovery.");
 						}
 					}
-				}, QUERY_DELAY);
+				});
 			}
 		}
 		
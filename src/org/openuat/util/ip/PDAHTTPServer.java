@@ -14,6 +14,7 @@ import java.net.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.openuat.util.ExecutionService;
 
 /**
  * A simple, tiny, nicely embeddable HTTP 1.0 server in Java
@@ -210,7 +211,9 @@ public class PDAHTTPServer {
 		final ServerSocket ss = new ServerSocket(myTcpPort, 50, ia);
 		logger.info("serversocket port: " +ss.getLocalPort());
 		logger.info("server: address"+ ss.getInetAddress().getHostAddress());
-		Thread t = new Thread(new Runnable() {
+		// the daemon pool does not keep the virtual machine alive
+		ExecutionService.start(deamon ? ExecutionService.PoolHttp : ExecutionService.PoolListener, 
+				new Runnable() {
 			public void run() {
 				try {
 					while (alive){
@@ -220,8 +223,6 @@ public class PDAHTTPServer {
 				}
 			}
 		});
-		t.setDaemon(deamon);
-		t.start();
 		this.myFileDir = new File("");
 		logger.debug("Now serving files in port " + port + " from \""
 				+ new File("").getAbsolutePath() + "\"");
@@ -282,9 +283,7 @@ public class PDAHTTPServer {
 		public HTTPSession(Socket s) {
 			mySocket = s;
 			logger.info("http session: client socket address: "+mySocket.getInetAddress());
-			Thread t = new Thread(this);
-			t.setDaemon(true);
-			t.start();
+			ExecutionService.start(ExecutionService.PoolHttp, this);
 		}
 
 		public void run() {
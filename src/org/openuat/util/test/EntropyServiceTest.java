@@ -0,0 +1,89 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-20
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import java.util.Hashtable;
+
+import org.openuat.util.EntropyService;
+import org.openuat.util.Hash;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class EntropyServiceTest extends TestCase {
+	public void testNoncesDiffer() {
+		byte[][] nonces = EntropyService.nextNonces(1000, 16);
+		Assert.assertEquals(1000, nonces.length);
+		Hashtable seen = new Hashtable();
+		for (int i=0; i<nonces.length; i++) {
+			Assert.assertEquals(16, nonces[i].length);
+			String hex = Hash.getHexString(nonces[i]);
+			Assert.assertNull("Got duplicate nonce " + hex, seen.put(hex, hex));
+		}
+	}
+
+	public void testUsesDrbgWhereAvailable() {
+		if (java.security.Security.getAlgorithms("SecureRandom").contains("DRBG"))
+			Assert.assertEquals("DRBG", EntropyService.getRandom().getAlgorithm());
+		else
+			Assert.assertNotNull(EntropyService.getRandom());
+	}
+
+	public void testPartialBuffer() {
+		byte[] buffer = new byte[64];
+		EntropyService.nextBytes(buffer, 16, 32);
+		for (int i=0; i<16; i++) {
+			Assert.assertEquals(0, buffer[i]);
+			Assert.assertEquals(0, buffer[48+i]);
+		}
+		boolean nonZero = false;
+		for (int i=16; i<48; i++)
+			nonZero |= buffer[i] != 0;
+		Assert.assertTrue(nonZero);
+
+		try {
+			EntropyService.nextBytes(buffer, 40, 32);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(true);
+		}
+	}
+
+	// generates random bytes past the reseed limits from multiple threads
+	private static class Generator extends Thread {
+		String[] last = new String[2];
+		//@Override
+		public void run() {
+			byte[] block = new byte[EntropyService.ReseedBytes / 16];
+			for (int i=0; i<40; i++)
+				EntropyService.nextBytes(block);
+			for (int i=0; i<EntropyService.ReseedRequests+10; i++)
+				EntropyService.getRandom().nextInt();
+			byte[] nonce = new byte[16];
+			for (int i=0; i<last.length; i++) {
+				EntropyService.nextBytes(nonce);
+				last[i] = Hash.getHexString(nonce);
+			}
+		}
+	}
+
+	public void testThreadsAndReseeding() throws InterruptedException {
+		Generator[] g = new Generator[4];
+		for (int i=0; i<g.length; i++) {
+			g[i] = new Generator();
+			g[i].start();
+		}
+		Hashtable seen = new Hashtable();
+		for (int i=0; i<g.length; i++) {
+			g[i].join();
+			for (int j=0; j<g[i].last.length; j++)
+				Assert.assertNull("Threads generated the same nonce", seen.put(g[i].last[j], g[i].last[j]));
+		}
+	}
+}
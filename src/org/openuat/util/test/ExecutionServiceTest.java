@@ -0,0 +1,151 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-22
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import org.openuat.util.BackgroundTask;
+import org.openuat.util.ExecutionService;
+import org.openuat.util.TaskExecutor;
+import org.openuat.util.ThreadPool;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class ExecutionServiceTest extends TestCase {
+	/** A task that blocks until released. */
+	private static class BlockingTask implements Runnable {
+		boolean released = false;
+		boolean interrupted = false;
+		int running = 0;
+
+		public synchronized void run() {
+			running++;
+			notifyAll();
+			try {
+				while (!released)
+					wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+			running--;
+		}
+
+		synchronized void release() {
+			released = true;
+			notifyAll();
+		}
+
+		synchronized void waitForRunning(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while (running < count && System.currentTimeMillis() < end)
+				wait(100);
+		}
+	}
+
+	public void testJoinAndInterrupt() throws InterruptedException {
+		BlockingTask r = new BlockingTask();
+		BackgroundTask t = ExecutionService.start("test-interrupt", r);
+		r.waitForRunning(1);
+		Assert.assertTrue(t.isAlive());
+		t.join(50);
+		Assert.assertTrue(t.isAlive());
+		t.interrupt();
+		t.join();
+		Assert.assertFalse(t.isAlive());
+		Assert.assertTrue(r.interrupted);
+		// a late interrupt must not affect the finished task
+		t.interrupt();
+		ThreadPool p = ExecutionService.getPool("test-interrupt");
+		Assert.assertEquals(1, p.getSubmittedTasks());
+		Assert.assertEquals(1, p.getCompletedTasks());
+		Assert.assertEquals(0, p.getActiveTasks());
+	}
+
+	public void testPoolLimit() throws InterruptedException {
+		ExecutionService.configurePool("test-limit", 2, true);
+		BlockingTask r = new BlockingTask();
+		BackgroundTask[] t = new BackgroundTask[5];
+		for (int i=0; i<t.length; i++)
+			t[i] = ExecutionService.start("test-limit", r);
+		r.waitForRunning(2);
+		ThreadPool p = ExecutionService.getPool("test-limit");
+		Assert.assertEquals(2, p.getActiveTasks());
+		Assert.assertEquals(3, p.getQueuedTasks());
+		Assert.assertEquals(2, p.getThreads());
+		r.release();
+		for (int i=0; i<t.length; i++)
+			t[i].join();
+		Assert.assertEquals(5, p.getCompletedTasks());
+		Assert.assertEquals(2, p.getPeakActiveTasks());
+		// the queued tasks ran on the existing workers
+		Assert.assertEquals(2, p.getCreatedThreads());
+	}
+
+	public void testDaemonPoolReusesWorkers() throws InterruptedException {
+		ExecutionService.configurePool("test-reuse", 0, true);
+		for (int i=0; i<5; i++) {
+			BlockingTask r = new BlockingTask();
+			r.release();
+			ExecutionService.start("test-reuse", r).join();
+			// give the worker time to become idle after finishing the task
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(1, ExecutionService.getPool("test-reuse").getCreatedThreads());
+	}
+
+	public void testFailedTaskIsCounted() throws InterruptedException {
+		BackgroundTask t = ExecutionService.start("test-fail", new Runnable() {
+			public void run() {
+				throw new IllegalStateException("expected by test");
+			}
+		});
+		t.join();
+		ThreadPool p = ExecutionService.getPool("test-fail");
+		Assert.assertEquals(1, p.getFailedTasks());
+		Assert.assertEquals(0, p.getCompletedTasks());
+	}
+
+	public void testExternalExecutor() throws InterruptedException {
+		final int[] executed = new int[1];
+		ExecutionService.setExecutor(new TaskExecutor() {
+			public void execute(String pool, boolean daemon, Runnable task) {
+				Assert.assertEquals("test-executor", pool);
+				executed[0]++;
+				new Thread(task).start();
+			}
+		});
+		try {
+			BlockingTask r = new BlockingTask();
+			r.release();
+			ExecutionService.start("test-executor", r).join();
+		}
+		finally {
+			ExecutionService.setExecutor(null);
+		}
+		Assert.assertEquals(1, executed[0]);
+		ThreadPool p = ExecutionService.getPool("test-executor");
+		Assert.assertEquals(1, p.getCompletedTasks());
+		Assert.assertEquals(0, p.getCreatedThreads());
+	}
+
+	public void testVirtualThreadsFallBack() throws InterruptedException {
+		boolean supported = ExecutionService.setUseVirtualThreads(true);
+		try {
+			Assert.assertEquals(supported, ExecutionService.getUseVirtualThreads());
+			BlockingTask r = new BlockingTask();
+			r.release();
+			// runs either way
+			ExecutionService.start("test-virtual", r).join();
+			Assert.assertEquals(1, ExecutionService.getPool("test-virtual").getCompletedTasks());
+		}
+		finally {
+			ExecutionService.setUseVirtualThreads(false);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-18
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import java.security.MessageDigest;
+
+import org.openuat.authentication.test.SimpleKeyAgreementTest;
+import org.openuat.util.Hash;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HashTest extends TestCase {
+	protected boolean useJSSE = true;
+
+	public HashTest(String s) {
+		super(s);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] ret = new byte[a.length + b.length];
+		System.arraycopy(a, 0, ret, 0, a.length);
+		System.arraycopy(b, 0, ret, a.length, b.length);
+		return ret;
+	}
+
+	private static byte[] referenceSHA256(byte[] text) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(text);
+	}
+
+	public void testSHA256Vector() throws Exception {
+		Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				Hash.getHexString(Hash.SHA256("abc".getBytes(), useJSSE)));
+	}
+
+	public void testIncremental() throws Exception {
+		byte[] text = new byte[1000];
+		for (int i=0; i<text.length; i++)
+			text[i] = (byte) (i*13);
+		Hash h = new Hash(useJSSE);
+		// the object must be reusable for multiple hashes
+		for (int round=0; round<3; round++) {
+			h.update(text, 0, 100);
+			h.update(text, 100, 900);
+			byte[] out = new byte[Hash.HashByteLength + 5];
+			Assert.assertEquals(Hash.HashByteLength, h.hashInto(out, 5));
+			byte[] hash = new byte[Hash.HashByteLength];
+			System.arraycopy(out, 5, hash, 0, hash.length);
+			Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(referenceSHA256(text), hash));
+		}
+		h.update(text);
+		h.reset();
+		Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(referenceSHA256(new byte[0]), h.doFinal()));
+	}
+
+	public void testDoubleSHA256() throws Exception {
+		byte[] text = "The answer is 42.".getBytes();
+		byte[] expected = referenceSHA256(concat(referenceSHA256(text), text));
+		Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(expected, Hash.doubleSHA256(text, useJSSE)));
+
+		byte[] buffer = concat(new byte[3], text);
+		byte[] out = new byte[Hash.HashByteLength];
+		Hash.doubleSHA256(buffer, 3, text.length, out, 0, useJSSE);
+		Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(expected, out));
+
+		// the hash may be written into the same buffer, right after the text
+		buffer = new byte[3 + text.length + Hash.HashByteLength];
+		System.arraycopy(text, 0, buffer, 3, text.length);
+		Hash.doubleSHA256(buffer, 3, text.length, buffer, 3 + text.length, useJSSE);
+		for (int i=0; i<Hash.HashByteLength; i++)
+			Assert.assertEquals(expected[i], buffer[3 + text.length + i]);
+	}
+
+	public void testDoubleSHA256Overlapping() throws Exception {
+		byte[] buffer = new byte[64];
+		int[] outOffs = new int[] {0, 10, 16, 31};
+		for (int i=0; i<outOffs.length; i++) {
+			try {
+				Hash.doubleSHA256(buffer, 16, 16, buffer, outOffs[i], useJSSE);
+				Assert.fail("Overlapping ranges were accepted with output offset " + outOffs[i]);
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(true);
+			}
+		}
+		// directly before the text is fine
+		Hash.doubleSHA256(buffer, 32, 16, buffer, 0, useJSSE);
+	}
+
+	private byte[] referenceHmac(byte[] text, byte[] key) throws Exception {
+		if (key.length > 32)
+			key = Hash.doubleSHA256(key, useJSSE);
+		byte[] ipad = new byte[32], opad = new byte[32];
+		for (int i=0; i<32; i++) {
+			byte k = i < key.length ? key[i] : 0;
+			ipad[i] = (byte) (0x5c ^ k);
+			opad[i] = (byte) (0x36 ^ k);
+		}
+		return referenceSHA256(concat(opad, referenceSHA256(concat(ipad, text))));
+	}
+
+	public void testHmac() throws Exception {
+		byte[] text = "The answer is 42.".getBytes();
+		byte[][] keys = { new byte[0], new byte[20], new byte[32], new byte[50] };
+		for (int k=0; k<keys.length; k++)
+			for (int i=0; i<keys[k].length; i++)
+				keys[k][i] = (byte) (i+k);
+		for (int k=0; k<keys.length; k++) {
+			byte[] expected = referenceHmac(text, keys[k]);
+			Assert.assertTrue("HMAC does not match with key " + k,
+					SimpleKeyAgreementTest.compareByteArray(expected, Hash.hmacSHA256(text, keys[k], useJSSE)));
+
+			// and incrementally, twice with the same key
+			Hash h = new Hash(useJSSE);
+			h.initHmac(keys[k]);
+			for (int round=0; round<2; round++) {
+				h.update(text, 0, 5);
+				h.update(text, 5, text.length-5);
+				Assert.assertTrue("Incremental HMAC does not match with key " + k + " in round " + round,
+						SimpleKeyAgreementTest.compareByteArray(expected, h.doFinal()));
+			}
+		}
+		// the thread instance must be back to plain SHA-256
+		Assert.assertTrue(SimpleKeyAgreementTest.compareByteArray(referenceSHA256(text), Hash.SHA256(text, useJSSE)));
+	}
+}
@@ -0,0 +1,16 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-18
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+public class HashTest_BCAPI extends HashTest {
+	public HashTest_BCAPI(String s) {
+		super(s);
+		this.useJSSE = false;
+	}
+}
@@ -0,0 +1,107 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-14
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import org.openuat.util.PhaseBarrier;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class PhaseBarrierTest extends TestCase {
+	// arrives at the barrier a number of times and records the phases seen
+	private static class Party implements Runnable {
+		PhaseBarrier barrier;
+		int phases;
+		int timeoutMs;
+		int lastPhase = -2;
+
+		public void run() {
+			for (int i=0; i<phases; i++)
+				lastPhase = barrier.arriveAndAwaitAdvance(timeoutMs);
+		}
+	}
+
+	private void runParties(PhaseBarrier barrier, int numParties, int phases) throws InterruptedException {
+		Party[] parties = new Party[numParties];
+		Thread[] threads = new Thread[numParties];
+		for (int i=0; i<numParties; i++) {
+			parties[i] = new Party();
+			parties[i].barrier = barrier;
+			parties[i].phases = phases;
+			parties[i].timeoutMs = 5000;
+			threads[i] = new Thread(parties[i]);
+			threads[i].start();
+		}
+		for (int i=0; i<numParties; i++) {
+			threads[i].join();
+			Assert.assertEquals("Party " + i + " did not see all phases", phases, parties[i].lastPhase);
+		}
+	}
+
+	public void testManyParties() throws InterruptedException {
+		PhaseBarrier barrier = new PhaseBarrier(50);
+		runParties(barrier, 50, 10);
+		Assert.assertEquals(10, barrier.getPhase());
+		Assert.assertEquals(0, barrier.getArrivedParties());
+	}
+
+	public void testTimeout() {
+		PhaseBarrier barrier = new PhaseBarrier(2);
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(-1, barrier.arriveAndAwaitAdvance(200));
+		Assert.assertTrue("Returned before timeout", System.currentTimeMillis() - start >= 200);
+		// still counts as arrived
+		Assert.assertEquals(1, barrier.getArrivedParties());
+		Assert.assertEquals(0, barrier.arrive());
+		Assert.assertEquals(1, barrier.getPhase());
+	}
+
+	public void testDynamicRegistration() throws InterruptedException {
+		PhaseBarrier barrier = new PhaseBarrier(1);
+		Assert.assertEquals(0, barrier.register());
+		Assert.assertEquals(2, barrier.getRegisteredParties());
+		// not all registered parties arrived
+		Assert.assertEquals(-1, barrier.arriveAndAwaitAdvance(50));
+		Assert.assertEquals(0, barrier.getPhase());
+		// the second one leaves, which completes the phase
+		Assert.assertEquals(0, barrier.arriveAndDeregister());
+		Assert.assertEquals(1, barrier.getPhase());
+		Assert.assertEquals(1, barrier.getRegisteredParties());
+		// and a single party never waits
+		Assert.assertEquals(2, barrier.arriveAndAwaitAdvance(0));
+	}
+
+	public void testDeregisterAfterArrival() {
+		PhaseBarrier barrier = new PhaseBarrier(3);
+		// the first party times out, but has arrived in phase 0
+		Assert.assertEquals(-1, barrier.arriveAndAwaitAdvance(50));
+		Assert.assertEquals(0, barrier.deregister(0));
+		Assert.assertEquals(2, barrier.getRegisteredParties());
+		// so the phase completes with the two others
+		Assert.assertEquals(0, barrier.arrive());
+		Assert.assertEquals(0, barrier.getPhase());
+		Assert.assertEquals(0, barrier.arrive());
+		Assert.assertEquals(1, barrier.getPhase());
+		// after an advance, it arrives in the current phase while leaving
+		Assert.assertEquals(1, barrier.deregister(0));
+		Assert.assertEquals(1, barrier.getRegisteredParties());
+		Assert.assertEquals(1, barrier.arrive());
+		Assert.assertEquals(2, barrier.getPhase());
+	}
+
+	public void testTooManyArrivals() {
+		PhaseBarrier barrier = new PhaseBarrier(0);
+		try {
+			barrier.arrive();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(true);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-28
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.openuat.util.PrefetchInputStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class PrefetchInputStreamTest extends TestCase {
+	private byte[] data;
+
+	public void setUp() {
+		data = new byte[100000];
+		for (int i=0; i<data.length; i++)
+			data[i] = (byte) (i * 31 + i / 7);
+	}
+
+	public void testReadsAllData() throws IOException {
+		// small chunks, so that the background task has to wait for the reader
+		PrefetchInputStream in = new PrefetchInputStream(new ByteArrayInputStream(data), 1000, 3);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int n;
+		// mix single byte and block reads
+		while ((n = in.read()) >= 0) {
+			out.write(n);
+			n = in.read(buf, 0, buf.length);
+			if (n < 0)
+				break;
+			out.write(buf, 0, n);
+		}
+		Assert.assertEquals(-1, in.read());
+		Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+		in.close();
+	}
+
+	public void testErrorAfterData() throws IOException {
+		InputStream broken = new InputStream() {
+			int count = 0;
+			public int read() throws IOException {
+				if (count == 3000)
+					throw new IOException("broken");
+				return data[count++] & 0xff;
+			}
+		};
+		PrefetchInputStream in = new PrefetchInputStream(broken, 1000, 2);
+		for (int i=0; i<3000; i++)
+			Assert.assertEquals(data[i] & 0xff, in.read());
+		try {
+			in.read();
+			Assert.fail("Should have thrown the exception of the other stream");
+		}
+		catch (IOException e) {
+			Assert.assertEquals("broken", e.getMessage());
+		}
+		in.close();
+	}
+
+	public void testCloseBeforeEnd() throws IOException {
+		PrefetchInputStream in = new PrefetchInputStream(new ByteArrayInputStream(data), 1000, 2);
+		Assert.assertEquals(data[0] & 0xff, in.read());
+		// must not hang although the background task waits for room
+		in.close();
+		try {
+			in.read(new byte[2000], 0, 2000);
+			in.read(new byte[2000], 0, 2000);
+			Assert.fail("Should not read from a closed stream");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	/** Blocks in read until it is closed, like a live socket. */
+	private static class BlockingInputStream extends InputStream {
+		private boolean closed = false;
+
+		public synchronized int read() throws IOException {
+			while (!closed) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					// just check again
+				}
+			}
+			throw new IOException("Stream closed");
+		}
+
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	public void testCloseWhileBlockedInRead() throws IOException, InterruptedException {
+		BlockingInputStream blocking = new BlockingInputStream();
+		PrefetchInputStream in = new PrefetchInputStream(blocking, 1000, 2);
+		// let the background task block in read
+		Thread.sleep(100);
+		long start = System.currentTimeMillis();
+		// must close the other stream right away to unblock the background task
+		in.close();
+		Assert.assertTrue(blocking.closed);
+		Assert.assertTrue("close took too long", 
+				System.currentTimeMillis() - start < PrefetchInputStream.CloseTimeoutMs / 2);
+	}
+}
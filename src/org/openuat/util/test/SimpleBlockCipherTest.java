@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.openuat.authentication.exceptions.InternalApplicationException;
 import org.openuat.authentication.test.SimpleKeyAgreementTest;
+import org.openuat.util.BlockCipherContext;
 import org.openuat.util.Hash;
 import org.openuat.util.SimpleBlockCipher;
 
@@ -129,4 +130,153 @@ public class SimpleBlockCipherTest extends TestCase {
 		Assert.assertTrue("decrypted plain text does not match original", SimpleKeyAgreementTest.compareByteArray(plaintext.getBytes(), plainBytes2));
 		Assert.assertEquals("decrypted and decoded plain text does not match original", plaintext, plaintext2);
 	}
+
+	public void testContextInPlace() throws InternalApplicationException {
+		byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) i;
+		BlockCipherContext c1 = new BlockCipherContext(sharedKey, useJSSE);
+		SimpleBlockCipher p2 = new SimpleBlockCipher(useJSSE2);
+		// 71 bytes with 3 bytes offset, followed by room for the IV block
+		byte[] plainText = new byte[71];
+		for (int i=0; i<plainText.length; i++)
+			plainText[i] = (byte) (plainText.length-1-i);
+		int len = BlockCipherContext.getCipherTextLength(plainText.length, plainText.length*8);
+		Assert.assertEquals(6*16, len);
+		byte[] buffer = new byte[3 + len];
+		System.arraycopy(plainText, 0, buffer, 3, plainText.length);
+
+		// encrypt in place and decrypt with the allocating variant
+		Assert.assertEquals(len, c1.encrypt(buffer, 3, plainText.length, plainText.length*8, buffer, 3));
+		byte[] cipherText = new byte[len];
+		System.arraycopy(buffer, 3, cipherText, 0, len);
+		byte[] plainText2 = p2.decrypt(cipherText, plainText.length*8, sharedKey);
+		Assert.assertTrue("decrypted plain text does not match original", SimpleKeyAgreementTest.compareByteArray(plainText, plainText2));
+
+		// and decrypt in place
+		Assert.assertEquals(plainText.length, c1.decrypt(buffer, 3, len, plainText.length*8, buffer, 3));
+		for (int i=0; i<plainText.length; i++)
+			Assert.assertEquals("decrypted plain text does not match original at " + i, plainText[i], buffer[3+i]);
+	}
+
+	public void testContextSingleBlockInPlace() throws InternalApplicationException {
+		byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) (i*7);
+		BlockCipherContext c1 = new BlockCipherContext(sharedKey, useJSSE);
+		SimpleBlockCipher p2 = new SimpleBlockCipher(useJSSE2);
+		byte[] plainText = new byte[16];
+		for (int i=0; i<plainText.length; i++)
+			plainText[i] = (byte) i;
+		byte[] buffer = new byte[16];
+		System.arraycopy(plainText, 0, buffer, 0, 16);
+
+		c1.encrypt(buffer, 0, 16, 128, buffer, 0);
+		Assert.assertTrue("ECB mode does not match", SimpleKeyAgreementTest.compareByteArray(plainText, p2.decrypt(buffer, 128, sharedKey)));
+		c1.decrypt(buffer, 0, 16, 128, buffer, 0);
+		Assert.assertTrue("decrypted plain text does not match original", SimpleKeyAgreementTest.compareByteArray(plainText, buffer));
+	}
+
+	public void testKeySwitching() throws InternalApplicationException {
+		// more keys than contexts are cached, used alternately with the same instance
+		byte[][] keys = new byte[10][32];
+		for (int k=0; k<keys.length; k++)
+			for (int i=0; i<32; i++)
+				keys[k][i] = (byte) (k+i);
+		SimpleBlockCipher p1 = new SimpleBlockCipher(useJSSE);
+		SimpleBlockCipher p2 = new SimpleBlockCipher(useJSSE2);
+		byte[] plainText = "The answer is still 42.".getBytes();
+		for (int round=0; round<3; round++) {
+			for (int k=0; k<keys.length; k++) {
+				byte[] cipherText = p1.encrypt(plainText, plainText.length*8, keys[k]);
+				byte[] plainText2 = p2.decrypt(cipherText, plainText.length*8, keys[k]);
+				Assert.assertTrue("decrypted plain text does not match original with key " + k, 
+						SimpleKeyAgreementTest.compareByteArray(plainText, plainText2));
+				// and a different key must not decrypt it
+				byte[] plainText3 = p2.decrypt(cipherText, plainText.length*8, keys[(k+1)%keys.length]);
+				Assert.assertFalse("decrypted with wrong key", SimpleKeyAgreementTest.compareByteArray(plainText, plainText3));
+			}
+		}
+	}
+
+	public void testContextParameterCheck() {
+		try {
+			new BlockCipherContext(new byte[31], useJSSE);
+			Assert.fail();
+		} catch (InternalApplicationException e) {
+			Assert.assertTrue(true);
+		}
+	}
+
+	public void testContextDispose() throws InternalApplicationException {
+		byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) (i+1);
+		BlockCipherContext c = new BlockCipherContext(sharedKey, useJSSE);
+		byte[] buffer = new byte[16];
+		c.encrypt(buffer, 0, 16, 128, buffer, 0);
+		Assert.assertTrue(c.matches(sharedKey, useJSSE));
+
+		c.dispose();
+		Assert.assertTrue(c.isDisposed());
+		Assert.assertFalse("disposed context still matches its key", c.matches(sharedKey, useJSSE));
+		try {
+			c.encrypt(buffer, 0, 16, 128, buffer, 0);
+			Assert.fail();
+		} catch (InternalApplicationException e) {
+			Assert.assertTrue(true);
+		}
+		// the caller's key must not have been touched
+		Assert.assertEquals(1, sharedKey[0]);
+	}
+
+	public void testClear() throws InternalApplicationException {
+		byte[] sharedKey = new byte[32];
+		for (int i=0; i<sharedKey.length; i++)
+			sharedKey[i] = (byte) i;
+		SimpleBlockCipher p = new SimpleBlockCipher(useJSSE);
+		byte[] plainText = "The answer is still 42.".getBytes();
+		byte[] cipherText = p.encrypt(plainText, plainText.length*8, sharedKey);
+		p.clear();
+		// still usable, with new contexts
+		Assert.assertTrue("decrypted plain text does not match original after clear", 
+				SimpleKeyAgreementTest.compareByteArray(plainText, p.decrypt(cipherText, plainText.length*8, sharedKey)));
+	}
+
+	public void testConcurrentKeySwitching() throws InterruptedException {
+		// several threads share one instance with more keys than contexts are cached, so
+		// that contexts are evicted while other threads still use them
+		final byte[][] keys = new byte[12][32];
+		for (int k=0; k<keys.length; k++)
+			for (int i=0; i<32; i++)
+				keys[k][i] = (byte) (3*k+i);
+		final SimpleBlockCipher p = new SimpleBlockCipher(useJSSE);
+		final byte[] plainText = "The answer is still 42, even with many threads.".getBytes();
+		final int[] failures = new int[1];
+		Thread[] threads = new Thread[6];
+		for (int t=0; t<threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int round=0; round<50; round++) {
+							byte[] key = keys[(round + offset) % keys.length];
+							byte[] cipherText = p.encrypt(plainText, plainText.length*8, key);
+							if (!SimpleKeyAgreementTest.compareByteArray(plainText, 
+									p.decrypt(cipherText, plainText.length*8, key)))
+								synchronized (failures) { failures[0]++; }
+							if (round % 20 == 0)
+								p.clear();
+						}
+					} catch (InternalApplicationException e) {
+						synchronized (failures) { failures[0]++; }
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (int t=0; t<threads.length; t++)
+			threads[t].join();
+		Assert.assertEquals("encryption failed while contexts were evicted concurrently", 0, failures[0]);
+	}
 }
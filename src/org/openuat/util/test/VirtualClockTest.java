@@ -0,0 +1,78 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-28
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import org.openuat.util.Clock;
+import org.openuat.util.VirtualClock;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class VirtualClockTest extends TestCase {
+	public void testAdvance() {
+		VirtualClock c = new VirtualClock(1000);
+		Assert.assertEquals(1000, c.currentTimeMillis());
+		c.advance(10);
+		Assert.assertEquals(1010, c.currentTimeMillis());
+		// never goes back
+		c.advanceTo(500);
+		Assert.assertEquals(1010, c.currentTimeMillis());
+		c.advanceTo(2000);
+		Assert.assertEquals(2000, c.currentTimeMillis());
+	}
+
+	public void testSleepWaitsForAdvance() throws InterruptedException {
+		final VirtualClock c = new VirtualClock();
+		final long[] wokeAt = {-1};
+		Thread sleeper = new Thread() {
+			public void run() {
+				try {
+					c.sleep(100);
+					wokeAt[0] = c.currentTimeMillis();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		sleeper.start();
+		for (int i=0; i<9; i++) {
+			c.advance(10);
+			Thread.sleep(5);
+			Assert.assertTrue("Woke up too early", sleeper.isAlive());
+		}
+		c.advance(20);
+		sleeper.join(5000);
+		Assert.assertFalse(sleeper.isAlive());
+		Assert.assertEquals(110, wokeAt[0]);
+	}
+
+	public void testAutoAdvance() throws InterruptedException {
+		VirtualClock c = new VirtualClock();
+		c.setAutoAdvance(true);
+		c.sleep(5000);
+		Assert.assertEquals(5000, c.currentTimeMillis());
+		Object lock = new Object();
+		synchronized (lock) {
+			c.waitOn(lock, 2000);
+		}
+		Assert.assertEquals(7000, c.currentTimeMillis());
+	}
+
+	public void testDefault() {
+		VirtualClock c = new VirtualClock(42);
+		Clock.setDefault(c);
+		try {
+			Assert.assertSame(c, Clock.getDefault());
+		}
+		finally {
+			Clock.setDefault(null);
+		}
+		Assert.assertFalse(Clock.getDefault() instanceof VirtualClock);
+	}
+}
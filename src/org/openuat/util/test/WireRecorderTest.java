@@ -0,0 +1,133 @@
+/* Copyright Rene Mayrhofer
+ * File created 2011-06-25
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ */
+package org.openuat.util.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.openuat.util.RecordingInputStream;
+import org.openuat.util.WireCaptureReader;
+import org.openuat.util.WireRecorder;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class WireRecorderTest extends TestCase {
+	public void tearDown() {
+		WireRecorder.stop();
+	}
+
+	public void testNotRecordingByDefault() {
+		Assert.assertFalse(WireRecorder.isRecording());
+		Assert.assertNull(WireRecorder.openTap("test", false));
+		InputStream in = new ByteArrayInputStream(new byte[1]);
+		Assert.assertSame(in, WireRecorder.wrap(in, "test"));
+	}
+
+	public void testRecordStreams() throws IOException {
+		ByteArrayOutputStream capture = new ByteArrayOutputStream();
+		WireRecorder.start(capture, 2048);
+		Assert.assertTrue(WireRecorder.isRecording());
+
+		byte[] sent = new byte[1000];
+		for (int i=0; i<sent.length; i++)
+			sent[i] = (byte) i;
+		InputStream in = WireRecorder.wrap(new ByteArrayInputStream("hello".getBytes()), "conn");
+		OutputStream out = WireRecorder.wrap(new ByteArrayOutputStream(), "conn");
+		Assert.assertTrue(in instanceof RecordingInputStream);
+
+		byte[] buf = new byte[10];
+		Assert.assertEquals('h', in.read());
+		Assert.assertEquals(4, in.read(buf, 2, 8));
+		// larger than a quarter of the ring, is split into several frames
+		out.write(sent);
+		out.write(42);
+		in.close();
+		out.close();
+		WireRecorder.stop();
+		Assert.assertFalse(WireRecorder.isRecording());
+
+		WireCaptureReader reader = new WireCaptureReader(new ByteArrayInputStream(capture.toByteArray()));
+		ByteArrayOutputStream received = new ByteArrayOutputStream(), written = new ByteArrayOutputStream();
+		int opened = 0, closed = 0;
+		long lastTime = 0;
+		WireCaptureReader.Record r;
+		while ((r = reader.next()) != null) {
+			Assert.assertEquals("conn", r.getTap());
+			switch (r.getType()) {
+			case WireRecorder.RecordTapOpened:
+				opened++;
+				break;
+			case WireRecorder.RecordTapClosed:
+				closed++;
+				break;
+			case WireRecorder.RecordData:
+				(r.isOutgoing() ? written : received).write(r.getData());
+				Assert.assertTrue(r.getTime() >= 0);
+				if (r.isOutgoing()) {
+					Assert.assertTrue("Frames of a tap out of order", r.getTime() >= lastTime);
+					lastTime = r.getTime();
+				}
+				break;
+			default:
+				Assert.fail("Unexpected record type " + r.getType());
+			}
+		}
+		Assert.assertEquals(2, opened);
+		Assert.assertEquals(2, closed);
+		Assert.assertEquals("hello", new String(received.toByteArray()));
+		byte[] w = written.toByteArray();
+		Assert.assertEquals(sent.length + 1, w.length);
+		for (int i=0; i<sent.length; i++)
+			Assert.assertEquals(sent[i], w[i]);
+		Assert.assertEquals(42, w[sent.length]);
+	}
+
+	public void testDropsWhenFull() throws IOException, InterruptedException {
+		ByteArrayOutputStream capture = new ByteArrayOutputStream();
+		WireRecorder.start(capture, 256);
+		WireRecorder.Tap tap = WireRecorder.openTap("full", true);
+		// let the writer announce the tap and go to sleep
+		Thread.sleep(100);
+
+		// much more than fits into the ring until the writer wakes up
+		byte[] data = new byte[50];
+		int frames = 100;
+		for (int i=0; i<frames; i++)
+			tap.record(data, 0, data.length);
+		Assert.assertTrue("Nothing dropped", tap.getDroppedBytes() > 0);
+		long dropped = tap.getDroppedBytes();
+		WireRecorder.stop();
+		Assert.assertTrue(tap.isClosed());
+
+		WireCaptureReader reader = new WireCaptureReader(new ByteArrayInputStream(capture.toByteArray()));
+		long recorded = 0, reportedDropped = 0;
+		WireCaptureReader.Record r;
+		while ((r = reader.next()) != null) {
+			if (r.getType() == WireRecorder.RecordData)
+				recorded += r.getData().length;
+			else if (r.getType() == WireRecorder.RecordDropped)
+				reportedDropped += r.getDroppedBytes();
+		}
+		Assert.assertEquals(dropped, reportedDropped);
+		Assert.assertEquals(frames * data.length, recorded + reportedDropped);
+	}
+
+	public void testRejectsOtherFiles() {
+		try {
+			new WireCaptureReader(new ByteArrayInputStream("not a capture".getBytes()));
+			Assert.fail("Accepted wrong magic bytes");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}